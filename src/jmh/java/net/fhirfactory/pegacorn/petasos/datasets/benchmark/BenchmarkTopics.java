@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * Builds the (synthetic) Topic hierarchies and subscribers used by the
+ * benchmarks. The hierarchy has the same shape as TopicsFile.json - Sector /
+ * Category / Definer / Topic Group / Topic - with a fan-out of 10 at each
+ * container level, so 1M leaf Topics sit beneath ~111k containers.
+ */
+public final class BenchmarkTopics {
+
+    public static final String TOPIC_VERSION = "1.0.0";
+    public static final int CONTAINER_FAN_OUT = 10;
+
+    private final List<Topic> containers;
+    private final List<Topic> leafTopics;
+
+    private BenchmarkTopics(List<Topic> containers, List<Topic> leafTopics) {
+        this.containers = containers;
+        this.leafTopics = leafTopics;
+    }
+
+    /**
+     * @param leafTopicCount The number of (leaf) Topics to build
+     * @return The hierarchy, containers listed outermost first
+     */
+    public static BenchmarkTopics build(int leafTopicCount) {
+        ArrayList<Topic> containers = new ArrayList<Topic>();
+        ArrayList<Topic> leafTopics = new ArrayList<Topic>(leafTopicCount);
+        Topic sector = newTopic(null, TopicTypeEnum.DATASET_SECTOR, "BenchmarkSector");
+        containers.add(sector);
+        Topic category = null;
+        Topic definer = null;
+        Topic topicGroup = null;
+        for (int counter = 0; counter < leafTopicCount; counter++) {
+            int groupIndex = counter / CONTAINER_FAN_OUT;
+            int definerIndex = groupIndex / CONTAINER_FAN_OUT;
+            int categoryIndex = definerIndex / CONTAINER_FAN_OUT;
+            if (counter % (CONTAINER_FAN_OUT * CONTAINER_FAN_OUT * CONTAINER_FAN_OUT) == 0) {
+                category = newTopic(sector, TopicTypeEnum.DATASET_CATEGORY, "Category" + categoryIndex);
+                containers.add(category);
+            }
+            if (counter % (CONTAINER_FAN_OUT * CONTAINER_FAN_OUT) == 0) {
+                definer = newTopic(category, TopicTypeEnum.DATASET_DEFINER, "Definer" + definerIndex);
+                containers.add(definer);
+            }
+            if (counter % CONTAINER_FAN_OUT == 0) {
+                topicGroup = newTopic(definer, TopicTypeEnum.DATASET_TOPIC_GROUP, "Group" + groupIndex);
+                containers.add(topicGroup);
+            }
+            leafTopics.add(newTopic(topicGroup, TopicTypeEnum.DATASET_TOPIC, "Topic" + counter));
+        }
+        return (new BenchmarkTopics(containers, leafTopics));
+    }
+
+    /**
+     * @return A new (unregistered) leaf Topic beneath the given container
+     */
+    public static Topic newTopic(Topic container, TopicTypeEnum topicType, String topicName) {
+        FDN topicFDN;
+        if (container == null) {
+            topicFDN = new FDN();
+        } else {
+            topicFDN = new FDN(container.getIdentifier());
+        }
+        topicFDN.appendRDN(new RDN(topicType.name(), topicName));
+        Topic newTopic = new Topic();
+        newTopic.setIdentifier(topicFDN.getToken());
+        newTopic.setTopicType(topicType);
+        newTopic.setVersion(TOPIC_VERSION);
+        if (container != null) {
+            newTopic.setContainingDataset(container.getIdentifier());
+        }
+        return (newTopic);
+    }
+
+    public static NodeElementIdentifier[] buildSubscribers(int subscriberCount) {
+        NodeElementIdentifier[] subscribers = new NodeElementIdentifier[subscriberCount];
+        for (int counter = 0; counter < subscriberCount; counter++) {
+            FDN subscriberFDN = new FDN();
+            subscriberFDN.appendRDN(new RDN("Site", "BenchmarkSite"));
+            subscriberFDN.appendRDN(new RDN("WUP", "Subscriber" + counter));
+            subscribers[counter] = new NodeElementIdentifier(subscriberFDN.getToken());
+        }
+        return (subscribers);
+    }
+
+    public List<Topic> getContainers() {
+        return (containers);
+    }
+
+    public List<Topic> getLeafTopics() {
+        return (leafTopics);
+    }
+
+    /**
+     * @return Every Topic, containers (outermost first) then leaves - i.e. a valid registration order
+     */
+    public List<Topic> getAllTopics() {
+        ArrayList<Topic> allTopics = new ArrayList<Topic>(containers.size() + leafTopics.size());
+        allTopics.addAll(containers);
+        allTopics.addAll(leafTopics);
+        return (allTopics);
+    }
+
+    public FDNToken[] getLeafIdentifiers() {
+        FDNToken[] identifiers = new FDNToken[leafTopics.size()];
+        for (int counter = 0; counter < identifiers.length; counter++) {
+            identifiers[counter] = leafTopics.get(counter).getIdentifier();
+        }
+        return (identifiers);
+    }
+
+    public TopicToken[] getLeafTokens() {
+        TopicToken[] tokens = new TopicToken[leafTopics.size()];
+        for (int counter = 0; counter < tokens.length; counter++) {
+            tokens[counter] = leafTopics.get(counter).getTopicToken();
+        }
+        return (tokens);
+    }
+}
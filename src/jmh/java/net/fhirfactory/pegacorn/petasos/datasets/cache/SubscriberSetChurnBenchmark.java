@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.fhirfactory.pegacorn.petasos.datasets.benchmark.BenchmarkTopics;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * A single Topic's subscriber set under churn: the copy-on-write
+ * ImmutableSubscriberSet against the LinkedHashSet it replaced.
+ * <p>
+ * The original TopicSubscriptionMapDM held an unsynchronised LinkedHashSet
+ * per Topic (within a ConcurrentHashMap) and handed out the live set, which
+ * readers can't iterate while it is being modified without risking a
+ * ConcurrentModificationException - so that can't be measured under churn
+ * as is. The legacy side here is the cheapest safe form of it: the set
+ * wrapped by Collections.synchronizedSet(), which readers copy under its lock
+ * before iterating. Readers of a snapshot just iterate it.
+ * <p>
+ * The dataManagerChurn group measures the same churn end to end, through
+ * TopicSubscriptionMapDM.getSubscriberSet() against addSubscriber() and
+ * removeSubscriber().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriberSetChurnBenchmark {
+
+    @Param({"1", "10", "100", "500"})
+    int subscriberCount;
+
+    volatile ImmutableSubscriberSet snapshotSet;
+    Set<NodeElementIdentifier> legacySet;
+    NodeElementIdentifier churnSubscriber;
+    TopicSubscriptionMapDM subscriptionMap;
+    TopicToken churnTopic;
+
+    @Setup
+    public void setup() {
+        NodeElementIdentifier[] subscribers = BenchmarkTopics.buildSubscribers(subscriberCount + 1);
+        ImmutableSubscriberSet initialSnapshot = ImmutableSubscriberSet.EMPTY;
+        legacySet = Collections.synchronizedSet(new LinkedHashSet<NodeElementIdentifier>());
+        for (int counter = 0; counter < subscriberCount; counter++) {
+            initialSnapshot = initialSnapshot.with(subscribers[counter]);
+            legacySet.add(subscribers[counter]);
+        }
+        snapshotSet = initialSnapshot;
+        churnSubscriber = subscribers[subscriberCount];
+        subscriptionMap = new TopicSubscriptionMapDM();
+        churnTopic = BenchmarkTopics.newTopic(null, TopicTypeEnum.DATASET_TOPIC, "Churn").getTopicToken();
+        for (int counter = 0; counter < subscriberCount; counter++) {
+            subscriptionMap.addSubscriber(churnTopic, subscribers[counter]);
+        }
+    }
+
+    private void snapshotAddRemove() {
+        synchronized (this) {
+            snapshotSet = snapshotSet.with(churnSubscriber);
+        }
+        synchronized (this) {
+            snapshotSet = snapshotSet.without(churnSubscriber);
+        }
+    }
+
+    private void snapshotIterate(Blackhole blackhole) {
+        for (NodeElementIdentifier subscriber : snapshotSet) {
+            blackhole.consume(subscriber);
+        }
+    }
+
+    private void dataManagerAddRemove() {
+        subscriptionMap.addSubscriber(churnTopic, churnSubscriber);
+        subscriptionMap.removeSubscriber(churnTopic, churnSubscriber);
+    }
+
+    private void dataManagerIterate(Blackhole blackhole) {
+        for (NodeElementIdentifier subscriber : subscriptionMap.getSubscriberSet(churnTopic)) {
+            blackhole.consume(subscriber);
+        }
+    }
+
+    private void legacyAddRemove() {
+        legacySet.add(churnSubscriber);
+        legacySet.remove(churnSubscriber);
+    }
+
+    private void legacyIterate(Blackhole blackhole) {
+        Set<NodeElementIdentifier> copy;
+        synchronized (legacySet) {
+            copy = new LinkedHashSet<NodeElementIdentifier>(legacySet);
+        }
+        for (NodeElementIdentifier subscriber : copy) {
+            blackhole.consume(subscriber);
+        }
+    }
+
+    @Benchmark
+    public void snapshotAddRemoveSubscriber() {
+        snapshotAddRemove();
+    }
+
+    @Benchmark
+    public void snapshotIterateSubscribers(Blackhole blackhole) {
+        snapshotIterate(blackhole);
+    }
+
+    @Benchmark
+    public void legacyAddRemoveSubscriber() {
+        legacyAddRemove();
+    }
+
+    @Benchmark
+    public void legacyIterateSubscribers(Blackhole blackhole) {
+        legacyIterate(blackhole);
+    }
+
+    @Benchmark
+    @Group("snapshotChurn")
+    @GroupThreads(3)
+    public void snapshotChurnReader(Blackhole blackhole) {
+        snapshotIterate(blackhole);
+    }
+
+    @Benchmark
+    @Group("snapshotChurn")
+    @GroupThreads(1)
+    public void snapshotChurnWriter() {
+        snapshotAddRemove();
+    }
+
+    @Benchmark
+    @Group("dataManagerChurn")
+    @GroupThreads(3)
+    public void dataManagerChurnReader(Blackhole blackhole) {
+        dataManagerIterate(blackhole);
+    }
+
+    @Benchmark
+    @Group("dataManagerChurn")
+    @GroupThreads(1)
+    public void dataManagerChurnWriter() {
+        dataManagerAddRemove();
+    }
+
+    @Benchmark
+    @Group("legacyChurn")
+    @GroupThreads(3)
+    public void legacyChurnReader(Blackhole blackhole) {
+        legacyIterate(blackhole);
+    }
+
+    @Benchmark
+    @Group("legacyChurn")
+    @GroupThreads(1)
+    public void legacyChurnWriter() {
+        legacyAddRemove();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.benchmark.BenchmarkTopics;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+/**
+ * TopicCacheDM against a pre-populated registry of 10k - 1M leaf Topics.
+ * <p>
+ * addTopic re-registers (updates) an existing Topic, so the registry stays the
+ * same size for the whole run. The "contended" group runs three readers
+ * against one writer on the same registry.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TopicCacheDMBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int topicCount;
+
+    TopicCacheDM topicCache;
+    List<Topic> leafTopics;
+    FDNToken[] leafIdentifiers;
+
+    @Setup
+    public void setup() {
+        BenchmarkTopics topics = BenchmarkTopics.build(topicCount);
+        topicCache = new TopicCacheDM();
+        topicCache.addTopics(topics.getAllTopics());
+        leafTopics = topics.getLeafTopics();
+        leafIdentifiers = topics.getLeafIdentifiers();
+    }
+
+    private int nextIndex() {
+        return (ThreadLocalRandom.current().nextInt(topicCount));
+    }
+
+    @Benchmark
+    public void addTopic() {
+        topicCache.addTopic(leafTopics.get(nextIndex()));
+    }
+
+    @Benchmark
+    public Topic getTopic() {
+        return (topicCache.getTopic(leafIdentifiers[nextIndex()]));
+    }
+
+    @Benchmark
+    public Map<Integer, Topic> getTopicContainmentHierarchy() {
+        return (topicCache.getTopicContainmentHierarchy(leafIdentifiers[nextIndex()]));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Set<Topic> getTopicSet() {
+        return (topicCache.getTopicSet());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public TopicPage getTopicPage() {
+        return (topicCache.getTopicPage(TopicQuery.ALL.ofType(TopicTypeEnum.DATASET_TOPIC), null, 100));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public Map<Integer, Topic> contendedGetTopicContainmentHierarchy() {
+        return (topicCache.getTopicContainmentHierarchy(leafIdentifiers[nextIndex()]));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedAddTopic() {
+        topicCache.addTopic(leafTopics.get(nextIndex()));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.fhirfactory.pegacorn.petasos.datasets.benchmark.BenchmarkTopics;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * TopicSubscriptionMapDM against 10k - 1M subscribed Topics.
+ * <p>
+ * Every Topic has at least one subscriber. The first {@value #HOT_TOPIC_COUNT}
+ * ("hot") Topics have subscribersPerTopic subscribers each - giving every
+ * Topic 500 subscribers at 1M Topics would need ~2GB of snapshots and hours
+ * of setup, without telling us anything the hot Topics don't. Reads and
+ * writes are spread across the hot Topics.
+ * <p>
+ * getSubscriberSetUnsubscribed looks up as many distinct Topics nobody
+ * subscribes to, i.e. the bulk of the UoW traffic.
+ * <p>
+ * addRemoveSubscriber adds and then removes an extra subscriber, so the map
+ * is unchanged from one invocation to the next. The "contended" group runs
+ * three readers against one writer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TopicSubscriptionMapDMBenchmark {
+
+    static final int HOT_TOPIC_COUNT = 10000;
+
+    @Param({"10000", "100000", "1000000"})
+    int topicCount;
+
+    @Param({"1", "10", "100", "500"})
+    int subscribersPerTopic;
+
+    TopicSubscriptionMapDM subscriptionMap;
+    TopicToken[] topicTokens;
+    TopicToken[] unsubscribedTopics;
+    NodeElementIdentifier churnSubscriber;
+    int hotTopicCount;
+
+    @Setup
+    public void setup() {
+        BenchmarkTopics topics = BenchmarkTopics.build(topicCount);
+        NodeElementIdentifier[] subscribers = BenchmarkTopics.buildSubscribers(subscribersPerTopic + 1);
+        topicTokens = topics.getLeafTokens();
+        hotTopicCount = Math.min(HOT_TOPIC_COUNT, topicCount);
+        subscriptionMap = new TopicSubscriptionMapDM();
+        for (int topicIndex = 0; topicIndex < topicTokens.length; topicIndex++) {
+            int topicSubscriberCount = (topicIndex < hotTopicCount) ? subscribersPerTopic : 1;
+            for (int subscriberIndex = 0; subscriberIndex < topicSubscriberCount; subscriberIndex++) {
+                subscriptionMap.addSubscriber(topicTokens[topicIndex], subscribers[subscriberIndex]);
+            }
+        }
+        churnSubscriber = subscribers[subscribersPerTopic];
+        unsubscribedTopics = new TopicToken[hotTopicCount];
+        for (int topicIndex = 0; topicIndex < hotTopicCount; topicIndex++) {
+            unsubscribedTopics[topicIndex] = BenchmarkTopics.newTopic(null, topics.getLeafTopics().get(0).getTopicType(), "Unsubscribed" + topicIndex).getTopicToken();
+        }
+    }
+
+    private TopicToken nextHotTopic() {
+        return (topicTokens[ThreadLocalRandom.current().nextInt(hotTopicCount)]);
+    }
+
+    @Benchmark
+    public Set<NodeElementIdentifier> getSubscriberSet() {
+        return (subscriptionMap.getSubscriberSet(nextHotTopic()));
+    }
+
+    @Benchmark
+    public Set<NodeElementIdentifier> getSubscriberSetUnsubscribed() {
+        return (subscriptionMap.getSubscriberSet(unsubscribedTopics[ThreadLocalRandom.current().nextInt(hotTopicCount)]));
+    }
+
+    @Benchmark
+    public FanOutRoutingPlan getRoutingPlan() {
+        return (subscriptionMap.getRoutingPlan(nextHotTopic()));
+    }
+
+    @Benchmark
+    public void addRemoveSubscriber() {
+        TopicToken topic = nextHotTopic();
+        subscriptionMap.addSubscriber(topic, churnSubscriber);
+        subscriptionMap.removeSubscriber(topic, churnSubscriber);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public Set<NodeElementIdentifier> contendedGetSubscriberSet() {
+        return (subscriptionMap.getSubscriberSet(nextHotTopic()));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedAddRemoveSubscriber() {
+        TopicToken topic = nextHotTopic();
+        subscriptionMap.addSubscriber(topic, churnSubscriber);
+        subscriptionMap.removeSubscriber(topic, churnSubscriber);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.exchange;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.datasets.benchmark.BenchmarkTopics;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.loader.TopicFileLoader;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+
+/**
+ * The binary exchange format against the TopicsFile.json, for a catalogue of
+ * 10k - 1M leaf Topics: the time to parse each (into Topics, with their
+ * containment links) and to bulk import the exchange file.
+ * <p>
+ * The setup writes the catalogue as JSON, parses it with the TopicFileLoader,
+ * exports the parsed Topics in the exchange format and reads them back -
+ * failing if the round trip doesn't reproduce the JSON loader's Topics - and
+ * logs the size of both encodings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TopicRegistryExchangeBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicRegistryExchangeBenchmark.class);
+
+    @Param({"10000", "100000", "1000000"})
+    int topicCount;
+
+    TopicFileLoader jsonLoader;
+    byte[] jsonCatalogue;
+    ByteBuffer exchangeCatalogue;
+
+    @Setup
+    public void setup() throws IOException {
+        jsonLoader = new TopicFileLoader();
+        jsonCatalogue = writeJson(BenchmarkTopics.build(topicCount).getAllTopics());
+        List<Topic> jsonTopics = parseJson();
+
+        TopicCacheDM topicCache = new TopicCacheDM();
+        topicCache.addTopics(jsonTopics);
+        ByteArrayOutputStream exchangeOutput = new ByteArrayOutputStream();
+        new TopicRegistryExchange(topicCache, new TopicSubscriptionMapDM()).exportTopics(exchangeOutput);
+        exchangeCatalogue = ByteBuffer.wrap(exchangeOutput.toByteArray());
+
+        verifyRoundTrip(jsonTopics, readExchange());
+        LOG.info(".setup(): Topics --> {}, JSON (bytes) --> {}, exchange (bytes) --> {}", jsonTopics.size(), jsonCatalogue.length, exchangeCatalogue.remaining());
+    }
+
+    @Benchmark
+    public List<Topic> parseJson() throws IOException {
+        ArrayList<Topic> topics = new ArrayList<Topic>();
+        jsonLoader.parseTopics(new ByteArrayInputStream(jsonCatalogue), topics::add);
+        return (topics);
+    }
+
+    @Benchmark
+    public List<Topic> readExchange() throws IOException {
+        return (TopicRegistryExchangeReader.open(exchangeCatalogue).readTopics());
+    }
+
+    @Benchmark
+    public TopicCacheDM importExchange() throws IOException {
+        TopicCacheDM topicCache = new TopicCacheDM();
+        new TopicRegistryExchange(topicCache, new TopicSubscriptionMapDM()).importRegistry(exchangeCatalogue);
+        return (topicCache);
+    }
+
+    /**
+     * Writes the Topics in the TopicsFile.json shape, i.e. each Topic nested within its containing Topic.
+     */
+    private static byte[] writeJson(List<Topic> topics) throws IOException {
+        Map<FDNToken, List<Topic>> containedTopics = new HashMap<FDNToken, List<Topic>>();
+        List<Topic> sectors = new ArrayList<Topic>();
+        for (Topic topic : topics) {
+            if (topic.hasContainingDataset()) {
+                containedTopics.computeIfAbsent(topic.getContainingDataset(), key -> new ArrayList<Topic>()).add(topic);
+            } else {
+                sectors.add(topic);
+            }
+        }
+        ByteArrayOutputStream jsonOutput = new ByteArrayOutputStream();
+        try (JsonGenerator generator = new JsonFactory().createGenerator(jsonOutput)) {
+            generator.useDefaultPrettyPrinter();
+            generator.writeStartObject();
+            generator.writeFieldName("topicSectors");
+            writeJsonElements(generator, sectors, containedTopics);
+            generator.writeEndObject();
+        }
+        return (jsonOutput.toByteArray());
+    }
+
+    private static void writeJsonElements(JsonGenerator generator, List<Topic> elements, Map<FDNToken, List<Topic>> containedTopics) throws IOException {
+        generator.writeStartArray();
+        for (Topic element : elements) {
+            generator.writeStartObject();
+            generator.writeStringField("topicType", element.getTopicType().name());
+            List<RDN> rdnSet = new FDN(element.getIdentifier()).getRDNSet();
+            generator.writeStringField("topicName", rdnSet.get(rdnSet.size() - 1).getNameValue());
+            generator.writeStringField("version", element.getVersion());
+            generator.writeFieldName("containedElements");
+            List<Topic> contents = containedTopics.get(element.getIdentifier());
+            writeJsonElements(generator, contents == null ? new ArrayList<Topic>() : contents, containedTopics);
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    private static void verifyRoundTrip(List<Topic> expectedTopics, List<Topic> actualTopics) {
+        Map<TopicToken, Topic> actualByToken = new HashMap<TopicToken, Topic>();
+        for (Topic actual : actualTopics) {
+            actualByToken.put(actual.getTopicToken(), actual);
+        }
+        if (actualByToken.size() != expectedTopics.size()) {
+            throw (new IllegalStateException(".verifyRoundTrip(): expected Topics --> " + expectedTopics.size() + ", read back --> " + actualByToken.size()));
+        }
+        for (Topic expected : expectedTopics) {
+            Topic actual = actualByToken.get(expected.getTopicToken());
+            if ((actual == null)
+                    || (actual.getTopicType() != expected.getTopicType())
+                    || !Objects.equals(actual.getContainingDataset(), expected.getContainingDataset())
+                    || !new HashSet<FDNToken>(actual.getContainedTopics()).equals(new HashSet<FDNToken>(expected.getContainedTopics()))) {
+                throw (new IllegalStateException(".verifyRoundTrip(): Topic did not survive the round trip --> " + expected));
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.lease;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.benchmark.BenchmarkTopics;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicIdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredTopicRegistry;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * Leased subscriptions (10k - 100k leases, spread over 1000 WUPs): renewing a
+ * single lease and renewing every lease of a WUP (its heartbeat) from four
+ * threads, and a single tick of the timing wheel expiring every lease at
+ * once - including removing the subscriptions - with the ticker not running
+ * (the benchmark drives the wheel itself).
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class SubscriptionLeaseBenchmark {
+
+    private static final int WUP_COUNT = 1000;
+    private static final long LEASE_MILLIS = 60000L;
+
+    @State(Scope.Benchmark)
+    public static class LeaseState {
+
+        @Param({"10000", "100000"})
+        int leaseCount;
+
+        SubscriptionLeaseManager leaseManager;
+        List<Topic> topics;
+        NodeElementIdentifier[] wups;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            topics = BenchmarkTopics.build(leaseCount).getAllTopics();
+            wups = new NodeElementIdentifier[WUP_COUNT];
+            for (int counter = 0; counter < WUP_COUNT; counter++) {
+                wups[counter] = new NodeElementIdentifier(new FDNToken("BenchmarkWUP" + counter));
+            }
+            TopicIdentifierInterner topicIds = new TopicIdentifierInterner();
+            TopicCacheDM topicSetCache = new TopicCacheDM(topicIds);
+            TopicSubscriptionMapDM subscriptionCache = new TopicSubscriptionMapDM(topicIds);
+            leaseManager = new SubscriptionLeaseManager(subscriptionCache, new ClusteredTopicRegistry(topicSetCache, subscriptionCache), SubscriptionLeaseManager.DEFAULT_TICK_MILLIS);
+            for (int counter = 0; counter < topics.size(); counter++) {
+                leaseManager.acquireLease(topics.get(counter).getTopicToken(), wups[counter % WUP_COUNT], LEASE_MILLIS);
+            }
+            leaseManager.processTicks(System.nanoTime());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(4)
+    public boolean renewLease(LeaseState state) {
+        int index = ThreadLocalRandom.current().nextInt(state.topics.size());
+        return (state.leaseManager.renewLease(state.topics.get(index).getTopicToken(), state.wups[index % WUP_COUNT]));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Threads(4)
+    public int renewLeases(LeaseState state) {
+        return (state.leaseManager.renewLeases(state.wups[ThreadLocalRandom.current().nextInt(WUP_COUNT)]));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int expireLeases(LeaseState state) {
+        int expiredCount = state.leaseManager.processTicks(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * LEASE_MILLIS));
+        if (expiredCount != state.topics.size()) {
+            throw (new IllegalStateException(".expireLeases(): expected " + state.topics.size() + " expiries, got " + expiredCount));
+        }
+        return (expiredCount);
+    }
+}
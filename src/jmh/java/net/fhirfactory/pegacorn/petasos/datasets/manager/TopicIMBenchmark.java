@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.manager;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import net.fhirfactory.pegacorn.petasos.datasets.benchmark.BenchmarkTopics;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicIdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredTopicRegistry;
+import net.fhirfactory.pegacorn.petasos.datasets.lease.SubscriptionLeaseManager;
+import net.fhirfactory.pegacorn.petasos.datasets.pipeline.TopicRegistryWritePipeline;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+
+/**
+ * Registration of a complete Topic hierarchy (10k - 1M leaf Topics) through
+ * TopicIM.registerTopic(), into an empty (non-clustered) registry.
+ * <p>
+ * registerTopic() also links each Topic into its container, which mutates the
+ * container - so each iteration registers a freshly built hierarchy rather
+ * than re-registering the same Topics. The contended variant splits the
+ * hierarchy across four threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TopicIMBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    int topicCount;
+
+    TopicIM topicIM;
+    List<Topic> topics;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        topics = BenchmarkTopics.build(topicCount).getAllTopics();
+        topicIM = new TopicIM();
+        TopicIdentifierInterner topicIds = new TopicIdentifierInterner();
+        topicIM.topicSetCache = new TopicCacheDM(topicIds);
+        topicIM.subscriptionCache = new TopicSubscriptionMapDM(topicIds);
+        topicIM.clusteredRegistry = new ClusteredTopicRegistry(topicIM.topicSetCache, topicIM.subscriptionCache);
+        topicIM.metrics = topicIM.topicSetCache.getMetrics();
+        topicIM.writePipeline = new TopicRegistryWritePipeline(topicIM.topicSetCache, topicIM.subscriptionCache, topicIM.clusteredRegistry);
+        topicIM.leaseManager = new SubscriptionLeaseManager(topicIM.subscriptionCache, topicIM.clusteredRegistry, SubscriptionLeaseManager.DEFAULT_TICK_MILLIS);
+    }
+
+    private void registerSlice(ThreadParams threadParams) {
+        int threadCount = threadParams.getThreadCount();
+        for (int counter = threadParams.getThreadIndex(); counter < topics.size(); counter += threadCount) {
+            topicIM.registerTopic(topics.get(counter));
+        }
+    }
+
+    @Benchmark
+    public void registerTopic(ThreadParams threadParams) {
+        registerSlice(threadParams);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void contendedRegisterTopic(ThreadParams threadParams) {
+        registerSlice(threadParams);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.benchmark.BenchmarkTopics;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicIdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredTopicRegistry;
+import net.fhirfactory.pegacorn.petasos.datasets.lease.SubscriptionLeaseManager;
+import net.fhirfactory.pegacorn.petasos.datasets.pipeline.TopicRegistryWritePipeline;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * A mass WUP startup: four threads each register a slice of a freshly built
+ * Topic hierarchy (10k - 100k leaf Topics) and subscribe a WUP to each of
+ * their Topics, synchronously (TopicIM.registerTopic()/addTopicSubscriber())
+ * versus through the TopicRegistryWritePipeline (the ...Async() variants,
+ * waiting for every future). The score is the time for the whole burst, so
+ * 10k registrations per second is a score of at most 1000ms per 10k Topics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TopicRegistryWritePipelineBenchmark {
+
+    private static final int WUP_COUNT = 100;
+
+    @Param({"10000", "100000"})
+    int topicCount;
+
+    TopicIM topicIM;
+    List<Topic> topics;
+    NodeElementIdentifier[] wups;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        topics = BenchmarkTopics.build(topicCount).getAllTopics();
+        wups = new NodeElementIdentifier[WUP_COUNT];
+        for (int counter = 0; counter < WUP_COUNT; counter++) {
+            wups[counter] = new NodeElementIdentifier(new FDNToken("BenchmarkWUP" + counter));
+        }
+        topicIM = new TopicIM();
+        TopicIdentifierInterner topicIds = new TopicIdentifierInterner();
+        topicIM.topicSetCache = new TopicCacheDM(topicIds);
+        topicIM.subscriptionCache = new TopicSubscriptionMapDM(topicIds);
+        topicIM.clusteredRegistry = new ClusteredTopicRegistry(topicIM.topicSetCache, topicIM.subscriptionCache);
+        topicIM.metrics = topicIM.topicSetCache.getMetrics();
+        topicIM.writePipeline = new TopicRegistryWritePipeline(topicIM.topicSetCache, topicIM.subscriptionCache, topicIM.clusteredRegistry);
+        topicIM.leaseManager = new SubscriptionLeaseManager(topicIM.subscriptionCache, topicIM.clusteredRegistry, SubscriptionLeaseManager.DEFAULT_TICK_MILLIS);
+        topicIM.writePipeline.start(TopicRegistryWritePipeline.DEFAULT_BATCH_SIZE);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        topicIM.writePipeline.stop();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void registerAndSubscribe(ThreadParams threadParams) {
+        int threadCount = threadParams.getThreadCount();
+        for (int counter = threadParams.getThreadIndex(); counter < topics.size(); counter += threadCount) {
+            Topic topic = topics.get(counter);
+            topicIM.registerTopic(topic);
+            topicIM.addTopicSubscriber(topic.getTopicToken(), wups[counter % WUP_COUNT]);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void registerAndSubscribeAsync(ThreadParams threadParams) {
+        int threadCount = threadParams.getThreadCount();
+        ArrayList<CompletableFuture<Long>> changes = new ArrayList<CompletableFuture<Long>>();
+        for (int counter = threadParams.getThreadIndex(); counter < topics.size(); counter += threadCount) {
+            Topic topic = topics.get(counter);
+            changes.add(topicIM.registerTopicAsync(topic));
+            changes.add(topicIM.addTopicSubscriberAsync(topic.getTopicToken(), wups[counter % WUP_COUNT]));
+        }
+        CompletableFuture.allOf(changes.toArray(new CompletableFuture<?>[changes.size()])).join();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ObjIntConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * A map keyed on the dense int IDs handed out by an IdentifierInterner,
+ * backed by an array indexed directly by the ID - so there is no hashing, no
+ * boxing and no per-entry node object.
+ * <p>
+ * Reads are lock-free; writes are serialised on the table (growing the array
+ * when an ID beyond its current length is written).
+ *
+ * @param <V> The value type
+ */
+public class DenseIdTable<V> {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private volatile AtomicReferenceArray<V> slots;
+    private volatile int populatedCount;
+
+    public DenseIdTable() {
+        this.slots = new AtomicReferenceArray<V>(INITIAL_CAPACITY);
+        this.populatedCount = 0;
+    }
+
+    public V get(int id) {
+        AtomicReferenceArray<V> currentSlots = slots;
+        if (id < 0 || id >= currentSlots.length()) {
+            return (null);
+        }
+        return (currentSlots.get(id));
+    }
+
+    /**
+     * @param id The ID
+     * @param value The new value (null removes the entry)
+     * @return The previous value (or null)
+     */
+    public synchronized V put(int id, V value) {
+        if (id < 0) {
+            throw (new IllegalArgumentException(".put(): id is negative"));
+        }
+        AtomicReferenceArray<V> currentSlots = ensureCapacity(id);
+        V previousValue = currentSlots.getAndSet(id, value);
+        adjustPopulatedCount(previousValue, value);
+        return (previousValue);
+    }
+
+    /**
+     * Atomically replaces the value of an entry with the result of the
+     * remapping function (which is given null for an absent entry, and may
+     * return null to remove the entry).
+     *
+     * @return The new value (or null)
+     */
+    public synchronized V compute(int id, UnaryOperator<V> remappingFunction) {
+        if (id < 0) {
+            throw (new IllegalArgumentException(".compute(): id is negative"));
+        }
+        AtomicReferenceArray<V> currentSlots = ensureCapacity(id);
+        V previousValue = currentSlots.get(id);
+        V newValue = remappingFunction.apply(previousValue);
+        if (newValue != previousValue) {
+            currentSlots.set(id, newValue);
+            adjustPopulatedCount(previousValue, newValue);
+        }
+        return (newValue);
+    }
+
+    public synchronized void clear() {
+        this.slots = new AtomicReferenceArray<V>(INITIAL_CAPACITY);
+        this.populatedCount = 0;
+    }
+
+    /**
+     * Visits every populated entry, as of the time each slot is read.
+     */
+    public void forEach(ObjIntConsumer<V> visitor) {
+        AtomicReferenceArray<V> currentSlots = slots;
+        for (int id = 0; id < currentSlots.length(); id++) {
+            V value = currentSlots.get(id);
+            if (value != null) {
+                visitor.accept(value, id);
+            }
+        }
+    }
+
+    public int size() {
+        return (populatedCount);
+    }
+
+    public boolean isEmpty() {
+        return (populatedCount == 0);
+    }
+
+    private AtomicReferenceArray<V> ensureCapacity(int id) {
+        AtomicReferenceArray<V> currentSlots = slots;
+        if (id < currentSlots.length()) {
+            return (currentSlots);
+        }
+        int newLength = currentSlots.length();
+        while (newLength <= id) {
+            newLength = newLength * 2;
+        }
+        AtomicReferenceArray<V> newSlots = new AtomicReferenceArray<V>(newLength);
+        for (int counter = 0; counter < currentSlots.length(); counter++) {
+            newSlots.set(counter, currentSlots.get(counter));
+        }
+        slots = newSlots;
+        return (newSlots);
+    }
+
+    private void adjustPopulatedCount(V previousValue, V newValue) {
+        if (previousValue == null && newValue != null) {
+            populatedCount++;
+        } else if (previousValue != null && newValue == null) {
+            populatedCount--;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * A distinct set of subscribers (WUPs), shared by every Topic with exactly
+ * that set of subscribers. Groups are hash-consed by a FanOutGroupTable, so
+ * the subscriber set (and the routing plan derived from it) exists once per
+ * distinct set rather than once per Topic.
+ * <p>
+ * A group is immutable, bar the lazily built routing plan and the cache of
+ * moves to neighbouring groups.
+ */
+public final class FanOutGroup {
+
+    // Beyond this, the (cached) moves of a group are discarded and rebuilt on demand
+    private static final int MAX_CACHED_MOVES = 16;
+
+    private final int groupId;
+    private final int[] subscriberIds;
+    private final ImmutableSubscriberSet subscribers;
+    private volatile FanOutRoutingPlan routingPlan;
+
+    // (+/-)(subscriber ID + 1) --> the group this group becomes on adding/removing that subscriber
+    private HashMap<Integer, WeakReference<FanOutGroup>> cachedMoves;
+
+    FanOutGroup(int groupId, int[] subscriberIds, ImmutableSubscriberSet subscribers) {
+        this.groupId = groupId;
+        this.subscriberIds = subscriberIds;
+        this.subscribers = subscribers;
+    }
+
+    /**
+     * @return The ID of the group, unique among the groups of its FanOutGroupTable
+     */
+    public int getGroupId() {
+        return (groupId);
+    }
+
+    /**
+     * @return The (immutable) subscribers of the group
+     */
+    public ImmutableSubscriberSet getSubscribers() {
+        return (subscribers);
+    }
+
+    public int size() {
+        return (subscribers.size());
+    }
+
+    public boolean isEmpty() {
+        return (subscribers.isEmpty());
+    }
+
+    /**
+     * @return The routing plan of the group, built on first use and then shared by every Topic in the group
+     */
+    public FanOutRoutingPlan getRoutingPlan() {
+        FanOutRoutingPlan currentPlan = routingPlan;
+        if (currentPlan == null) {
+            // Plans are immutable and deterministic, so a racing build is merely redundant
+            currentPlan = new FanOutRoutingPlan(groupId, subscribers);
+            routingPlan = currentPlan;
+        }
+        return (currentPlan);
+    }
+
+    // The (sorted) subscriber IDs, i.e. the hash-cons key of the group
+    int[] getSubscriberIds() {
+        return (subscriberIds);
+    }
+
+    // Callers must serialise moves (e.g. hold the TopicSubscriptionMapDM subscriptionWriteLock)
+    FanOutGroup getCachedMove(int moveKey) {
+        if (cachedMoves == null) {
+            return (null);
+        }
+        WeakReference<FanOutGroup> target = cachedMoves.get(moveKey);
+        return ((target == null) ? null : target.get());
+    }
+
+    void cacheMove(int moveKey, FanOutGroup target) {
+        if (cachedMoves == null || cachedMoves.size() >= MAX_CACHED_MOVES) {
+            cachedMoves = new HashMap<Integer, WeakReference<FanOutGroup>>();
+        }
+        cachedMoves.put(moveKey, new WeakReference<FanOutGroup>(target));
+    }
+
+    @Override
+    public String toString() {
+        return ("FanOutGroup{groupId=" + groupId + ", subscribers=" + subscribers + "}");
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * Hash-conses subscriber sets into FanOutGroups: every subscriber set with the
+ * same members (in whatever order they subscribed) maps to the one group.
+ * <p>
+ * The table holds its groups weakly - a group lives exactly as long as some
+ * Topic (or cached resolution) refers to it - so the number of groups tracks
+ * the number of distinct subscriber sets in use. Groups are keyed on the
+ * sorted (dense) IDs of their subscribers, so interning a set costs
+ * O(k log k) for k subscribers; moving a Topic to the neighbouring group on a
+ * subscribe/unsubscribe is usually a single cached lookup (see with() and
+ * without()).
+ */
+final class FanOutGroupTable {
+
+    private static final int[] NO_SUBSCRIBER_IDS = new int[0];
+
+    // Shared by every table, so it never caches moves - those are keyed on one table's subscriber IDs
+    static final FanOutGroup EMPTY_GROUP = new FanOutGroup(0, NO_SUBSCRIBER_IDS, ImmutableSubscriberSet.EMPTY);
+
+    private final IdentifierInterner<NodeElementIdentifier> subscriberIds;
+    private final ConcurrentHashMap<GroupKey, GroupReference> groups;
+    private final ReferenceQueue<FanOutGroup> releasedGroups;
+    private final AtomicInteger nextGroupId;
+
+    FanOutGroupTable(IdentifierInterner<NodeElementIdentifier> subscriberIds) {
+        this.subscriberIds = subscriberIds;
+        this.groups = new ConcurrentHashMap<GroupKey, GroupReference>();
+        this.releasedGroups = new ReferenceQueue<FanOutGroup>();
+        this.nextGroupId = new AtomicInteger(1);
+    }
+
+    /**
+     * @param subscribers A subscriber set (whose members have all been interned)
+     * @return The group with exactly those members
+     */
+    FanOutGroup intern(ImmutableSubscriberSet subscribers) {
+        if (subscribers.isEmpty()) {
+            return (EMPTY_GROUP);
+        }
+        int[] memberIds = new int[subscribers.size()];
+        int counter = 0;
+        for (NodeElementIdentifier subscriber : subscribers) {
+            memberIds[counter++] = subscriberIds.intern(subscriber);
+        }
+        Arrays.sort(memberIds);
+        return (intern(memberIds, subscribers));
+    }
+
+    /**
+     * Callers must serialise moves (as the cached moves of a group are not thread-safe).
+     *
+     * @return The group of the current members plus the subscriber
+     */
+    FanOutGroup with(FanOutGroup group, int subscriberId, NodeElementIdentifier subscriber) {
+        int moveKey = subscriberId + 1;
+        FanOutGroup target = (group == EMPTY_GROUP) ? null : group.getCachedMove(moveKey);
+        if (target == null) {
+            int[] currentIds = group.getSubscriberIds();
+            int position = Arrays.binarySearch(currentIds, subscriberId);
+            if (position >= 0) {
+                return (group);
+            }
+            int insertionPoint = -(position + 1);
+            int[] memberIds = new int[currentIds.length + 1];
+            System.arraycopy(currentIds, 0, memberIds, 0, insertionPoint);
+            memberIds[insertionPoint] = subscriberId;
+            System.arraycopy(currentIds, insertionPoint, memberIds, insertionPoint + 1, currentIds.length - insertionPoint);
+            target = intern(memberIds, group.getSubscribers().with(subscriber));
+            if (group != EMPTY_GROUP) {
+                group.cacheMove(moveKey, target);
+            }
+        }
+        return (target);
+    }
+
+    /**
+     * Callers must serialise moves (as the cached moves of a group are not thread-safe).
+     *
+     * @return The group of the current members less the subscriber
+     */
+    FanOutGroup without(FanOutGroup group, int subscriberId, NodeElementIdentifier subscriber) {
+        int moveKey = -(subscriberId + 1);
+        FanOutGroup target = (group == EMPTY_GROUP) ? null : group.getCachedMove(moveKey);
+        if (target == null) {
+            int[] currentIds = group.getSubscriberIds();
+            int position = Arrays.binarySearch(currentIds, subscriberId);
+            if (position < 0) {
+                return (group);
+            }
+            int[] memberIds = new int[currentIds.length - 1];
+            System.arraycopy(currentIds, 0, memberIds, 0, position);
+            System.arraycopy(currentIds, position + 1, memberIds, position, currentIds.length - position - 1);
+            target = intern(memberIds, group.getSubscribers().without(subscriber));
+            group.cacheMove(moveKey, target);
+        }
+        return (target);
+    }
+
+    private FanOutGroup intern(int[] memberIds, ImmutableSubscriberSet subscribers) {
+        if (memberIds.length == 0) {
+            return (EMPTY_GROUP);
+        }
+        expungeReleasedGroups();
+        GroupKey key = new GroupKey(memberIds);
+        GroupReference existingReference = groups.get(key);
+        FanOutGroup existingGroup = (existingReference == null) ? null : existingReference.get();
+        if (existingGroup != null) {
+            return (existingGroup);
+        }
+        // A strong reference, held until the group is installed, so it can't be collected meanwhile
+        FanOutGroup[] internedGroup = new FanOutGroup[1];
+        groups.compute(key, (currentKey, currentReference) -> {
+            FanOutGroup currentGroup = (currentReference == null) ? null : currentReference.get();
+            if (currentGroup != null) {
+                internedGroup[0] = currentGroup;
+                return (currentReference);
+            }
+            internedGroup[0] = new FanOutGroup(nextGroupId.getAndIncrement(), memberIds, subscribers);
+            return (new GroupReference(currentKey, internedGroup[0], releasedGroups));
+        });
+        return (internedGroup[0]);
+    }
+
+    private void expungeReleasedGroups() {
+        GroupReference releasedReference;
+        while ((releasedReference = (GroupReference) releasedGroups.poll()) != null) {
+            // Only remove the mapping if it hasn't since been replaced by a live group
+            groups.remove(releasedReference.key, releasedReference);
+        }
+    }
+
+    /**
+     * @return The number of (non-empty) groups currently in use
+     */
+    int size() {
+        expungeReleasedGroups();
+        return (groups.size());
+    }
+
+    private static final class GroupKey {
+        private final int[] memberIds;
+        private final int hash;
+
+        GroupKey(int[] memberIds) {
+            this.memberIds = memberIds;
+            this.hash = Arrays.hashCode(memberIds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return ((o instanceof GroupKey) && Arrays.equals(memberIds, ((GroupKey) o).memberIds));
+        }
+
+        @Override
+        public int hashCode() {
+            return (hash);
+        }
+    }
+
+    private static final class GroupReference extends WeakReference<FanOutGroup> {
+        private final GroupKey key;
+
+        GroupReference(GroupKey key, FanOutGroup group, ReferenceQueue<FanOutGroup> releasedGroups) {
+            super(group, releasedGroups);
+            this.key = key;
+        }
+    }
+}
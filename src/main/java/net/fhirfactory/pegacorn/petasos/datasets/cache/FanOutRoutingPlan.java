@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * The (immutable) delivery plan of a FanOutGroup: its subscribers, grouped by
+ * the node hosting each subscriber (the subscriber's FDN less its final RDN),
+ * so that a message can be forwarded once per hosting node and then fanned out
+ * locally. Built once per group, and shared by every Topic in the group.
+ */
+public final class FanOutRoutingPlan {
+
+    private final int groupId;
+    private final List<NodeElementIdentifier> subscribers;
+    private final Map<NodeElementIdentifier, List<NodeElementIdentifier>> subscribersByHostNode;
+
+    FanOutRoutingPlan(int groupId, ImmutableSubscriberSet groupSubscribers) {
+        this.groupId = groupId;
+        this.subscribers = Collections.unmodifiableList(new ArrayList<NodeElementIdentifier>(groupSubscribers));
+        LinkedHashMap<NodeElementIdentifier, List<NodeElementIdentifier>> hostedSubscribers = new LinkedHashMap<NodeElementIdentifier, List<NodeElementIdentifier>>();
+        for (NodeElementIdentifier subscriber : groupSubscribers) {
+            hostedSubscribers.computeIfAbsent(hostNodeOf(subscriber), hostNode -> new ArrayList<NodeElementIdentifier>()).add(subscriber);
+        }
+        for (Map.Entry<NodeElementIdentifier, List<NodeElementIdentifier>> hostEntry : hostedSubscribers.entrySet()) {
+            hostEntry.setValue(Collections.unmodifiableList(hostEntry.getValue()));
+        }
+        this.subscribersByHostNode = Collections.unmodifiableMap(hostedSubscribers);
+    }
+
+    /**
+     * @return The hosting node of the subscriber, or the subscriber itself if it has no parent
+     */
+    static NodeElementIdentifier hostNodeOf(NodeElementIdentifier subscriber) {
+        ArrayList<RDN> rdnSet = new FDN(subscriber).getRDNSet();
+        if (rdnSet.size() <= 1) {
+            return (subscriber);
+        }
+        FDN hostNode = new FDN();
+        for (int counter = 0; counter < rdnSet.size() - 1; counter++) {
+            hostNode.appendRDN(rdnSet.get(counter));
+        }
+        return (new NodeElementIdentifier(hostNode.getToken()));
+    }
+
+    public int getGroupId() {
+        return (groupId);
+    }
+
+    /**
+     * @return Every subscriber, in group order
+     */
+    public List<NodeElementIdentifier> getSubscribers() {
+        return (subscribers);
+    }
+
+    /**
+     * @return The hosting nodes (in order of their first subscriber) and the subscribers each hosts
+     */
+    public Map<NodeElementIdentifier, List<NodeElementIdentifier>> getSubscribersByHostNode() {
+        return (subscribersByHostNode);
+    }
+
+    /**
+     * @return The number of subscribers a message is delivered to
+     */
+    public int getFanOut() {
+        return (subscribers.size());
+    }
+
+    @Override
+    public String toString() {
+        return ("FanOutRoutingPlan{groupId=" + groupId + ", fanOut=" + subscribers.size() + ", hostNodes=" + subscribersByHostNode.keySet() + "}");
+    }
+}
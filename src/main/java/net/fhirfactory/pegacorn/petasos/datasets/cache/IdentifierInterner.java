@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns each distinct identifier (e.g. a TopicToken or a
+ * NodeElementIdentifier) a dense int ID - 0, 1, 2, ... in order of first
+ * registration - and retains one canonical instance of it.
+ * <p>
+ * The IDs are stable for the life of the interner (they are never reused),
+ * so they can index plain arrays (see DenseIdTable) in place of hashing the
+ * full identifier on every lookup. Resolving an ID back to its identifier is
+ * a single array read.
+ * <p>
+ * Lookups are lock-free; registering a new identifier is serialised on the
+ * interner.
+ *
+ * @param <T> The identifier type
+ */
+public class IdentifierInterner<T> {
+
+    public static final int NO_ID = -1;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final ConcurrentHashMap<T, Integer> identifierIndex;
+    private volatile Object[] identifiers;
+    private volatile int identifierCount;
+
+    public IdentifierInterner() {
+        this.identifierIndex = new ConcurrentHashMap<T, Integer>();
+        this.identifiers = new Object[INITIAL_CAPACITY];
+        this.identifierCount = 0;
+    }
+
+    /**
+     * Returns the ID of the identifier, assigning one if it is not yet known.
+     *
+     * @param identifier The identifier
+     * @return Its (dense) ID
+     */
+    public int intern(T identifier) {
+        if (identifier == null) {
+            throw (new IllegalArgumentException(".intern(): identifier is null"));
+        }
+        Integer existingID = identifierIndex.get(identifier);
+        if (existingID != null) {
+            return (existingID);
+        }
+        synchronized (this) {
+            existingID = identifierIndex.get(identifier);
+            if (existingID != null) {
+                return (existingID);
+            }
+            int newID = identifierCount;
+            Object[] currentIdentifiers = identifiers;
+            if (newID == currentIdentifiers.length) {
+                currentIdentifiers = Arrays.copyOf(currentIdentifiers, currentIdentifiers.length * 2);
+            }
+            currentIdentifiers[newID] = identifier;
+            identifiers = currentIdentifiers;
+            identifierCount = newID + 1;
+            // Published last, so any reader that finds the ID can resolve it
+            identifierIndex.put(identifier, newID);
+            return (newID);
+        }
+    }
+
+    /**
+     * @param identifier The identifier (or an object equal to one)
+     * @return Its ID, or NO_ID if it has not been interned
+     */
+    public int lookup(Object identifier) {
+        if (identifier == null) {
+            return (NO_ID);
+        }
+        Integer existingID = identifierIndex.get(identifier);
+        if (existingID == null) {
+            return (NO_ID);
+        }
+        return (existingID);
+    }
+
+    /**
+     * @param id An ID previously returned by intern()
+     * @return The canonical identifier for the ID, or null if the ID is unknown
+     */
+    @SuppressWarnings("unchecked")
+    public T resolve(int id) {
+        Object[] currentIdentifiers = identifiers;
+        if (id < 0 || id >= currentIdentifiers.length) {
+            return (null);
+        }
+        return ((T) currentIdentifiers[id]);
+    }
+
+    /**
+     * @param identifier The identifier
+     * @return The canonical (first registered) instance equal to the identifier
+     */
+    public T canonical(T identifier) {
+        return (resolve(intern(identifier)));
+    }
+
+    public int size() {
+        return (identifierCount);
+    }
+}
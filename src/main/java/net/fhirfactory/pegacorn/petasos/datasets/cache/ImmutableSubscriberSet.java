@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * An immutable, array-backed snapshot of the subscribers (WUPs) of a single
+ * Topic. Instances are never modified once published - a subscribe or
+ * unsubscribe creates a new snapshot (see {@link #with(NodeElementIdentifier)}
+ * and {@link #without(NodeElementIdentifier)}) which is then swapped into the
+ * distribution list. Readers can therefore iterate a snapshot without locking
+ * and without taking a defensive copy.
+ * <p>
+ * Iteration order is subscription order (as per the LinkedHashSet it replaces).
+ */
+public final class ImmutableSubscriberSet extends AbstractSet<NodeElementIdentifier> {
+
+    private static final NodeElementIdentifier[] NO_SUBSCRIBERS = new NodeElementIdentifier[0];
+
+    public static final ImmutableSubscriberSet EMPTY = new ImmutableSubscriberSet(NO_SUBSCRIBERS);
+
+    private final NodeElementIdentifier[] subscribers;
+    private int hash;
+
+    private ImmutableSubscriberSet(NodeElementIdentifier[] subscribers) {
+        this.subscribers = subscribers;
+    }
+
+    /**
+     * @param subscribers The WUPs (duplicates are ignored)
+     * @return A snapshot of the subscribers, in iteration order
+     */
+    public static ImmutableSubscriberSet of(Collection<NodeElementIdentifier> subscribers) {
+        if (subscribers == null) {
+            throw (new IllegalArgumentException(".of(): subscribers is null"));
+        }
+        if (subscribers instanceof ImmutableSubscriberSet) {
+            return ((ImmutableSubscriberSet) subscribers);
+        }
+        LinkedHashSet<NodeElementIdentifier> distinctSubscribers = new LinkedHashSet<NodeElementIdentifier>(subscribers);
+        if (distinctSubscribers.contains(null)) {
+            throw (new IllegalArgumentException(".of(): subscribers contains null"));
+        }
+        if (distinctSubscribers.isEmpty()) {
+            return (EMPTY);
+        }
+        return (new ImmutableSubscriberSet(distinctSubscribers.toArray(new NodeElementIdentifier[distinctSubscribers.size()])));
+    }
+
+    /**
+     * Returns a snapshot containing the current subscribers plus the given one.
+     * If the subscriber is already present, this snapshot is returned as-is.
+     *
+     * @param subscriber The WUP to be added
+     * @return The new (or unchanged) snapshot
+     */
+    public ImmutableSubscriberSet with(NodeElementIdentifier subscriber) {
+        if (subscriber == null) {
+            throw (new IllegalArgumentException(".with(): subscriber is null"));
+        }
+        if (indexOf(subscriber) >= 0) {
+            return (this);
+        }
+        NodeElementIdentifier[] newSubscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+        newSubscribers[subscribers.length] = subscriber;
+        return (new ImmutableSubscriberSet(newSubscribers));
+    }
+
+    /**
+     * Returns a snapshot containing the current subscribers less the given one.
+     * If the subscriber is not present, this snapshot is returned as-is.
+     *
+     * @param subscriber The WUP to be removed
+     * @return The new (or unchanged) snapshot
+     */
+    public ImmutableSubscriberSet without(NodeElementIdentifier subscriber) {
+        int index = indexOf(subscriber);
+        if (index < 0) {
+            return (this);
+        }
+        if (subscribers.length == 1) {
+            return (EMPTY);
+        }
+        NodeElementIdentifier[] newSubscribers = new NodeElementIdentifier[subscribers.length - 1];
+        System.arraycopy(subscribers, 0, newSubscribers, 0, index);
+        System.arraycopy(subscribers, index + 1, newSubscribers, index, subscribers.length - index - 1);
+        return (new ImmutableSubscriberSet(newSubscribers));
+    }
+
+    /**
+     * Returns a snapshot containing the union of this snapshot and the other.
+     * Where one side adds nothing, that side is returned as-is (no allocation).
+     *
+     * @param other The snapshot to be merged into this one
+     * @return The (possibly unchanged) union
+     */
+    public ImmutableSubscriberSet withAll(ImmutableSubscriberSet other) {
+        if (other == null || other.isEmpty() || other == this) {
+            return (this);
+        }
+        if (this.isEmpty()) {
+            return (other);
+        }
+        NodeElementIdentifier[] merged = Arrays.copyOf(subscribers, subscribers.length + other.subscribers.length);
+        int mergedCount = subscribers.length;
+        for (NodeElementIdentifier candidate : other.subscribers) {
+            if (indexOf(candidate) < 0) {
+                merged[mergedCount++] = candidate;
+            }
+        }
+        if (mergedCount == subscribers.length) {
+            return (this);
+        }
+        return (new ImmutableSubscriberSet(Arrays.copyOf(merged, mergedCount)));
+    }
+
+    private int indexOf(Object candidate) {
+        if (candidate == null) {
+            return (-1);
+        }
+        for (int counter = 0; counter < subscribers.length; counter++) {
+            // Subscribers are normally interned (canonical) instances, so try identity first
+            if ((subscribers[counter] == candidate) || subscribers[counter].equals(candidate)) {
+                return (counter);
+            }
+        }
+        return (-1);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return (indexOf(o) >= 0);
+    }
+
+    @Override
+    public int size() {
+        return (subscribers.length);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return (subscribers.length == 0);
+    }
+
+    @Override
+    public Iterator<NodeElementIdentifier> iterator() {
+        return (new Iterator<NodeElementIdentifier>() {
+            private int cursor = 0;
+
+            @Override
+            public boolean hasNext() {
+                return (cursor < subscribers.length);
+            }
+
+            @Override
+            public NodeElementIdentifier next() {
+                if (cursor >= subscribers.length) {
+                    throw (new NoSuchElementException());
+                }
+                return (subscribers[cursor++]);
+            }
+        });
+    }
+
+    @Override
+    public Object[] toArray() {
+        return (Arrays.copyOf(subscribers, subscribers.length, Object[].class));
+    }
+
+    @Override
+    public int hashCode() {
+        // Snapshots are immutable, so the (Set contract) hash can be cached
+        int h = hash;
+        if (h == 0 && subscribers.length > 0) {
+            for (NodeElementIdentifier subscriber : subscribers) {
+                h += subscriber.hashCode();
+            }
+            hash = h;
+        }
+        return (h);
+    }
+}
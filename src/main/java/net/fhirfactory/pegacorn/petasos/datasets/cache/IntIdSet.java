@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A mutable set of (dense, non-negative) int IDs, held in an open-addressing
+ * (linear probing) int[] - so adding or removing a member is O(1) however
+ * many members the set has, with no boxing and no per-member node object.
+ * <p>
+ * Not thread-safe: callers serialise all access (e.g. TopicSubscriptionMapDM
+ * holds its subscriptionWriteLock).
+ */
+public final class IntIdSet {
+
+    private static final int FREE = -1;
+    private static final int INITIAL_CAPACITY = 8;
+
+    private int[] slots;
+    private int size;
+
+    public IntIdSet() {
+        this.slots = newSlots(INITIAL_CAPACITY);
+        this.size = 0;
+    }
+
+    /**
+     * @return true if the member was added (i.e. was not already present)
+     */
+    public boolean add(int member) {
+        if (member < 0) {
+            throw (new IllegalArgumentException(".add(): member is negative"));
+        }
+        int index = indexOf(member);
+        if (slots[index] == member) {
+            return (false);
+        }
+        slots[index] = member;
+        size++;
+        if (size * 4 > slots.length * 3) {
+            rehash(slots.length * 2);
+        }
+        return (true);
+    }
+
+    /**
+     * @return true if the member was removed (i.e. was present)
+     */
+    public boolean remove(int member) {
+        if (member < 0) {
+            return (false);
+        }
+        int index = indexOf(member);
+        if (slots[index] != member) {
+            return (false);
+        }
+        // Backward-shift deletion: close the gap so later probes still find their members
+        int mask = slots.length - 1;
+        int gap = index;
+        int current = (gap + 1) & mask;
+        while (slots[current] != FREE) {
+            int home = mix(slots[current]) & mask;
+            if (((current - home) & mask) >= ((current - gap) & mask)) {
+                slots[gap] = slots[current];
+                gap = current;
+            }
+            current = (current + 1) & mask;
+        }
+        slots[gap] = FREE;
+        size--;
+        return (true);
+    }
+
+    public boolean contains(int member) {
+        return ((member >= 0) && (slots[indexOf(member)] == member));
+    }
+
+    public int size() {
+        return (size);
+    }
+
+    public boolean isEmpty() {
+        return (size == 0);
+    }
+
+    public void forEach(IntConsumer visitor) {
+        for (int slot : slots) {
+            if (slot != FREE) {
+                visitor.accept(slot);
+            }
+        }
+    }
+
+    public int[] toArray() {
+        int[] members = new int[size];
+        int count = 0;
+        for (int slot : slots) {
+            if (slot != FREE) {
+                members[count++] = slot;
+            }
+        }
+        return (members);
+    }
+
+    // The slot holding the member, or the free slot where it would go
+    private int indexOf(int member) {
+        int mask = slots.length - 1;
+        int index = mix(member) & mask;
+        while ((slots[index] != FREE) && (slots[index] != member)) {
+            index = (index + 1) & mask;
+        }
+        return (index);
+    }
+
+    private void rehash(int newCapacity) {
+        int[] previousSlots = slots;
+        slots = newSlots(newCapacity);
+        for (int slot : previousSlots) {
+            if (slot != FREE) {
+                slots[indexOf(slot)] = slot;
+            }
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] newSlots = new int[capacity];
+        Arrays.fill(newSlots, FREE);
+        return (newSlots);
+    }
+
+    // Dense IDs are sequential, so spread them across the table
+    private static int mix(int member) {
+        int hash = member * 0x9E3779B9;
+        return (hash ^ (hash >>> 16));
+    }
+}
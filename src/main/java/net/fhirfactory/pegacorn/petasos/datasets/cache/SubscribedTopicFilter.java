@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counting Bloom filter of the Topics with at least one exact subscription,
+ * so that a lookup of a Topic nobody subscribes to is answered by reading a
+ * few counters of a small array - without hashing into (or allocating for)
+ * the subscription tables.
+ * <p>
+ * Each Topic increments {@value #HASH_COUNT} 4-bit counters (16 to a long),
+ * picked by double hashing its hashCode(), and removing it decrements them
+ * again. A counter that saturates stays saturated, so a Topic is never
+ * reported absent while it is subscribed to. The filter holds
+ * {@value #COUNTERS_PER_TOPIC} counters per Topic of its capacity - 8 bytes
+ * per Topic, for a false positive rate of about 0.5% when full; once more
+ * Topics than that are added, the owner builds a filter twice the size (see
+ * isFull()).
+ * <p>
+ * Reads are lock-free; writes must be serialised by the owner.
+ */
+final class SubscribedTopicFilter {
+
+    static final int MINIMUM_CAPACITY = 1024;
+
+    private static final int HASH_COUNT = 3;
+    private static final int COUNTERS_PER_TOPIC = 16;
+    // 16 counters to a long, of 4 bits each
+    private static final int WORD_INDEX_SHIFT = 4;
+    private static final int COUNTER_WIDTH_SHIFT = 2;
+    private static final long COUNTER_MASK = 0xFL;
+
+    private final AtomicLongArray counterWords;
+    private final int counterIndexMask;
+    private final int capacity;
+    private int topicCount;
+
+    SubscribedTopicFilter(int capacity) {
+        this.capacity = Math.max(MINIMUM_CAPACITY, capacity);
+        int counterCount = Integer.highestOneBit(this.capacity * COUNTERS_PER_TOPIC - 1) << 1;
+        this.counterWords = new AtomicLongArray(counterCount >>> WORD_INDEX_SHIFT);
+        this.counterIndexMask = counterCount - 1;
+        this.topicCount = 0;
+    }
+
+    /**
+     * @return false if the Topic is definitely not in the filter, true if it (probably) is
+     */
+    boolean mightContain(Object topic) {
+        long hash = mix(topic.hashCode());
+        int firstHash = (int) hash;
+        int secondHash = ((int) (hash >>> 32)) | 1;
+        for (int counter = 0; counter < HASH_COUNT; counter++) {
+            if (counterAt((firstHash + counter * secondHash) & counterIndexMask) == 0) {
+                return (false);
+            }
+        }
+        return (true);
+    }
+
+    void add(Object topic) {
+        long hash = mix(topic.hashCode());
+        int firstHash = (int) hash;
+        int secondHash = ((int) (hash >>> 32)) | 1;
+        for (int counter = 0; counter < HASH_COUNT; counter++) {
+            adjustCounter((firstHash + counter * secondHash) & counterIndexMask, 1);
+        }
+        topicCount++;
+    }
+
+    void remove(Object topic) {
+        long hash = mix(topic.hashCode());
+        int firstHash = (int) hash;
+        int secondHash = ((int) (hash >>> 32)) | 1;
+        for (int counter = 0; counter < HASH_COUNT; counter++) {
+            adjustCounter((firstHash + counter * secondHash) & counterIndexMask, -1);
+        }
+        topicCount--;
+    }
+
+    /**
+     * @return true once the filter holds more Topics than it was sized for
+     */
+    boolean isFull() {
+        return (topicCount > capacity);
+    }
+
+    int getCapacity() {
+        return (capacity);
+    }
+
+    /**
+     * @return The size of the counter array, in bytes
+     */
+    long getSizeInBytes() {
+        return ((long) counterWords.length() * Long.BYTES);
+    }
+
+    private int counterAt(int counterIndex) {
+        long word = counterWords.get(counterIndex >>> WORD_INDEX_SHIFT);
+        return ((int) ((word >>> shiftOf(counterIndex)) & COUNTER_MASK));
+    }
+
+    // Single writer, so a read followed by a (volatile) write of the word is enough
+    private void adjustCounter(int counterIndex, int delta) {
+        int wordIndex = counterIndex >>> WORD_INDEX_SHIFT;
+        int shift = shiftOf(counterIndex);
+        long word = counterWords.get(wordIndex);
+        long value = (word >>> shift) & COUNTER_MASK;
+        if ((value == COUNTER_MASK) || ((value == 0) && (delta < 0))) {
+            return;
+        }
+        counterWords.set(wordIndex, word + ((long) delta << shift));
+    }
+
+    private static int shiftOf(int counterIndex) {
+        return ((counterIndex & ((1 << WORD_INDEX_SHIFT) - 1)) << COUNTER_WIDTH_SHIFT);
+    }
+
+    // The finaliser of MurmurHash3 (64 bit), spreading the (often poorly distributed) hashCode over both halves
+    private static long mix(int hashCode) {
+        long hash = hashCode;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash);
+    }
+}
@@ -21,19 +21,27 @@
  */
 package net.fhirfactory.pegacorn.petasos.datasets.cache;
 
-import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
 import javax.transaction.Transactional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventLog;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventTypeEnum;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryMetrics;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryOperationEnum;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersion;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
 import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
 import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
 
@@ -48,10 +56,68 @@ public class TopicCacheDM {
 
     private static final Logger LOG = LoggerFactory.getLogger(TopicCacheDM.class);
 
-    private ConcurrentHashMap<TopicToken, Topic> dataSetCache;
+    // Each TopicToken is interned to a dense int ID (shared with the TopicSubscriptionMapDM), the cache itself is indexed by that ID
+    @Inject
+    TopicIdentifierInterner topicIds;
+    private DenseIdTable<Topic> dataSetCache;
+    private TopicContainmentIndex containmentIndex;
+    // The registered versions of each Topic identifier, in version order
+    private TopicVersionIndex<Topic> versionIndex;
+    // An immutable, name/topicType indexed snapshot of the cache, replaced on every change (see TopicCatalogue)
+    private volatile TopicCatalogue catalogue;
+    // The catalogue as changed so far, published on each change - or, within applyBatch(), at the end of the batch
+    private TopicCatalogue workingCatalogue;
+    private int batchDepth;
+
+    // Topic changes are published, in the order they are applied, to the shared TopicRegistryEventLog
+    private final Object topicWriteLock = new Object();
+    @Inject
+    TopicRegistryEventLog eventLog;
+
+    // Operation counts/latencies are recorded to the shared TopicRegistryMetrics
+    @Inject
+    TopicRegistryMetrics metrics;
 
     public TopicCacheDM() {
-        this.dataSetCache = new ConcurrentHashMap<TopicToken, Topic>();
+        this(new TopicIdentifierInterner());
+    }
+
+    /**
+     * Outside a container, the DM shares the given interner with its TopicSubscriptionMapDM.
+     *
+     * @param topicIds The TopicToken interner
+     */
+    public TopicCacheDM(TopicIdentifierInterner topicIds) {
+        this.topicIds = topicIds;
+        this.dataSetCache = new DenseIdTable<Topic>();
+        this.containmentIndex = new TopicContainmentIndex();
+        this.versionIndex = new TopicVersionIndex<Topic>();
+        this.catalogue = TopicCatalogue.EMPTY;
+        this.workingCatalogue = TopicCatalogue.EMPTY;
+        this.batchDepth = 0;
+        this.eventLog = new TopicRegistryEventLog();
+        this.metrics = new TopicRegistryMetrics();
+    }
+
+    /**
+     * @return The log to which this DM publishes its Topic changes
+     */
+    public TopicRegistryEventLog getEventLog() {
+        return (eventLog);
+    }
+
+    /**
+     * @return The metrics this DM records its operations to
+     */
+    public TopicRegistryMetrics getMetrics() {
+        return (metrics);
+    }
+
+    /**
+     * @return The number of registered Topics (all versions)
+     */
+    public int getTopicCount() {
+        return (dataSetCache.size());
     }
 
     /**
@@ -71,11 +137,77 @@ public class TopicCacheDM {
         if (!newTopic.hasIdentifier()) {
             throw (new IllegalArgumentException(".addTopic(): bad Identifier within newTopic"));
         }
-        TopicToken newToken = newTopic.getTopicToken();
-        if (this.dataSetCache.containsKey(newToken)) {
-            this.dataSetCache.replace(newToken, newTopic);
-        } else {
-            this.dataSetCache.put(newToken, newTopic);
+        installTopic(newTopic);
+    }
+
+    /**
+     * This function bulk-adds a set of Topics to the Element Set (e.g. from the
+     * TopicsFile loader at startup). As per addTopic(), existing entries with
+     * the same TopicToken are replaced.
+     *
+     * @param newTopics The Topics to be added to the Set
+     */
+    @Transactional
+    public void addTopics(Collection<Topic> newTopics) {
+        LOG.debug(".addTopics(): Entry");
+        if (newTopics == null) {
+            throw (new IllegalArgumentException(".addTopics(): newTopics is null"));
+        }
+        for (Topic newTopic : newTopics) {
+            if ((newTopic == null) || !newTopic.hasIdentifier()) {
+                throw (new IllegalArgumentException(".addTopics(): null Topic or bad Identifier within newTopics"));
+            }
+        }
+        for (Topic newTopic : newTopics) {
+            installTopic(newTopic);
+        }
+        LOG.debug(".addTopics(): Exit, added/updated --> {}", newTopics.size());
+    }
+
+    private void installTopic(Topic newTopic) {
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.CACHE_ADD_TOPIC);
+        int topicId = this.topicIds.intern(newTopic.getTopicToken());
+        synchronized (topicWriteLock) {
+            Topic previousTopic = this.dataSetCache.put(topicId, newTopic);
+            this.workingCatalogue = this.workingCatalogue.with(newTopic, previousTopic);
+            publishCatalogue();
+            this.containmentIndex.addTopic(newTopic);
+            this.versionIndex.put(newTopic.getTopicToken(), newTopic);
+            this.eventLog.publish(TopicRegistryEventTypeEnum.TOPIC_ADDED, newTopic, this.topicIds.resolve(topicId), null, null);
+        }
+        metrics.record(TopicRegistryOperationEnum.CACHE_ADD_TOPIC, startNanos);
+    }
+
+    // Callers must hold the topicWriteLock
+    private void publishCatalogue() {
+        if (this.batchDepth == 0) {
+            this.catalogue = this.workingCatalogue;
+        }
+    }
+
+    /**
+     * This function applies a batch of changes (addTopic()/removeTopic() calls
+     * made by the given Runnable) as a unit: no other change is interleaved
+     * with them, and the TopicCatalogue moves from the state before the batch
+     * to the state after it in a single step, so catalogue readers never see
+     * part of a batch.
+     *
+     * @param changes The changes
+     * @return The version of the TopicRegistryEventLog following the batch (i.e. its next version)
+     */
+    public long applyBatch(Runnable changes) {
+        if (changes == null) {
+            throw (new IllegalArgumentException(".applyBatch(): changes is null"));
+        }
+        synchronized (topicWriteLock) {
+            this.batchDepth++;
+            try {
+                changes.run();
+            } finally {
+                this.batchDepth--;
+                publishCatalogue();
+            }
+            return (this.eventLog.getNextVersion());
         }
     }
 
@@ -92,38 +224,92 @@ public class TopicCacheDM {
         if (elementID == null) {
             throw (new IllegalArgumentException(".removeNode(): elementID is null"));
         }
-        if (this.dataSetCache.containsKey(elementID)) {
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.CACHE_REMOVE_TOPIC);
+        int topicId = this.topicIds.lookup(elementID);
+        if (this.dataSetCache.get(topicId) != null) {
             LOG.trace(".removeTopic(): Element found, now removing it...");
-            this.dataSetCache.remove(elementID);
+            synchronized (topicWriteLock) {
+                Topic removedTopic = this.dataSetCache.put(topicId, null);
+                if (removedTopic != null) {
+                    this.workingCatalogue = this.workingCatalogue.without(removedTopic);
+                    publishCatalogue();
+                    this.containmentIndex.removeTopic(removedTopic);
+                    this.versionIndex.remove(removedTopic.getTopicToken());
+                    this.eventLog.publish(TopicRegistryEventTypeEnum.TOPIC_REMOVED, removedTopic, this.topicIds.resolve(topicId), null, null);
+                }
+            }
+            metrics.recordLookup(TopicRegistryOperationEnum.CACHE_REMOVE_TOPIC, startNanos, true);
         } else {
             LOG.trace(".removeTopic(): No element with that elementID is in the map");
+            metrics.recordLookup(TopicRegistryOperationEnum.CACHE_REMOVE_TOPIC, startNanos, false);
         }
         LOG.debug(".removeTopic(): Exit");
     }
 
+    /**
+     * @return An unmodifiable view of the Topics registered at the time of the
+     *         call (the view does not change, and nothing is copied until it is
+     *         iterated) - empty, rather than null, if there are none
+     */
     public Set<Topic> getTopicSet() {
         LOG.debug(".getTopicSet(): Entry");
-        LinkedHashSet<Topic> elementSet = new LinkedHashSet<Topic>();
-        if (this.dataSetCache.isEmpty()) {
-            LOG.debug(".getTopicSet(): Exit, The topic map is empty, returning null");
-            return (null);
-        }
-        elementSet.addAll(this.dataSetCache.values());
+        Set<Topic> elementSet = this.catalogue.asSet();
         if (LOG.isDebugEnabled()) {
             LOG.debug(".getTopicSet(): Exit, returning an element set, size --> {}", elementSet.size());
         }
         return (elementSet);
     }
 
+    /**
+     * The catalogue is immutable, so every enumeration of it (and every page
+     * read from it) sees the same set of Topics, however the cache changes in
+     * the meantime.
+     *
+     * @return A snapshot of the registered Topics
+     */
+    public TopicCatalogue getTopicCatalogue() {
+        return (this.catalogue);
+    }
+
+    /**
+     * @param query The selection criteria (e.g. TopicQuery.ALL.ofType(TopicTypeEnum.DATASET_TOPIC))
+     * @return A lazy stream of the selected Topics (as of the time of the call), in name order
+     */
+    public Stream<Topic> streamTopics(TopicQuery query) {
+        LOG.debug(".streamTopics(): Entry, query --> {}", query);
+        return (this.catalogue.stream(query));
+    }
+
+    /**
+     * For paging over a single, consistent snapshot use getTopicCatalogue().page() throughout.
+     *
+     * @param query The selection criteria
+     * @param pageToken The next page token of the previous page, or null for the first page
+     * @param pageSize The maximum number of Topics on the page
+     * @return The page, read from the current catalogue
+     */
+    public TopicPage getTopicPage(TopicQuery query, String pageToken, int pageSize) {
+        LOG.debug(".getTopicPage(): Entry, query --> {}, pageToken --> {}, pageSize --> {}", query, pageToken, pageSize);
+        TopicPage topicPage = this.catalogue.page(query, pageToken, pageSize);
+        LOG.debug(".getTopicPage(): Exit, topicPage --> {}", topicPage);
+        return (topicPage);
+    }
+
+    /**
+     * @param topicID The identifier of the Topic
+     * @return The Topic (its highest registered version, if there are several), or null if it isn't registered
+     */
     public Topic getTopic(FDNToken topicID) {
         LOG.debug(".getTopic(): Entry, nodeID --> {}", topicID);
         if (topicID == null) {
             LOG.debug(".getTopic(): Exit, provided a null nodeID , so returning null");
             return (null);
         }
-        if (this.dataSetCache.containsKey(topicID)) {
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.CACHE_GET_TOPIC);
+        Topic retrievedElement = this.versionIndex.getLatest(topicID);
+        metrics.recordLookup(TopicRegistryOperationEnum.CACHE_GET_TOPIC, startNanos, retrievedElement != null);
+        if (retrievedElement != null) {
             LOG.trace(".getTopic(): Element found!!! WooHoo!");
-            Topic retrievedElement = this.dataSetCache.get(topicID);
             LOG.debug(".getTopic(): Exit, returning element --> {}", retrievedElement);
             return (retrievedElement);
         } else {
@@ -133,32 +319,126 @@ public class TopicCacheDM {
         }
     }
 
+    /**
+     * @param topicID The Topic
+     * @return The int ID of the Topic - the same ID the TopicSubscriptionMapDM uses - or
+     * IdentifierInterner.NO_ID if it has never been registered or subscribed to
+     */
+    public int getTopicId(TopicToken topicID) {
+        return (this.topicIds.lookup(topicID));
+    }
+
+    /**
+     * @param topicId The ID of the Topic (see getTopicId())
+     * @return The Topic, or null if no Topic is (currently) registered under the ID
+     */
+    public Topic getTopic(int topicId) {
+        return (this.dataSetCache.get(topicId));
+    }
+
+    /**
+     * This function returns the containment hierarchy of a Topic: the Topic
+     * itself at [0], its containing Topic at [1], and so on up to the
+     * outermost (Sector) Topic. The hierarchy is materialised when the Topic
+     * (or an ancestor) is registered, so this is a single lookup.
+     *
+     * @param topicID The identifier of the Topic
+     * @return An immutable (level --> Topic) map, empty if the Topic is unknown
+     */
     public Map<Integer, Topic> getTopicContainmentHierarchy(FDNToken topicID) {
         LOG.debug(".getTopicContainmentHierarchy(): Entry, nodeID --> {}", topicID);
-        HashMap<Integer, Topic> topicHierarchy = new HashMap<Integer, Topic>();
-        if (topicID == null) {
-            return (topicHierarchy);
-        }
-        boolean hasContainer = true;
-        int counter = 0;
-        FDNToken currentTopic = topicID;
-        while (hasContainer) {
-            Topic currentElement = dataSetCache.get(currentTopic);
-            if (currentElement == null) {
-                hasContainer = false;
-            } else {
-                topicHierarchy.put(counter, currentElement);
-                counter++;
-                if (!currentElement.hasContainingDataset()) {
-                    hasContainer = false;
-                } else {
-                    currentTopic = currentElement.getContainingDataset();
-                }
-            }
+        TopicContainmentPath containmentPath = containmentIndex.getContainmentPath(topicID);
+        if (containmentPath == null) {
+            LOG.debug(".getTopicContainmentHierarchy(): Exit, no hierarchy for the nodeID");
+            return (Collections.emptyMap());
         }
         if (LOG.isDebugEnabled()) {
-            LOG.debug(".getTopicContainmentHierarchy(): Exit, retrieved Heirarchy, depth --> {}", topicHierarchy.size());
+            LOG.debug(".getTopicContainmentHierarchy(): Exit, retrieved Heirarchy, depth --> {}", containmentPath.getDepth());
+        }
+        return (containmentPath.asMap());
+    }
+
+    /**
+     * @param topicID The identifier of the Topic
+     * @return The (materialised) containment path of the Topic, or null if the Topic is unknown
+     */
+    public TopicContainmentPath getTopicContainmentPath(FDNToken topicID) {
+        return (containmentIndex.getContainmentPath(topicID));
+    }
+
+    /**
+     * @param topicID The identifier of the containing Topic (e.g. a Sector or Topic Group)
+     * @return All Topics contained (at any depth) within it, outermost first
+     */
+    public List<Topic> getContainedTopics(FDNToken topicID) {
+        LOG.debug(".getContainedTopics(): Entry, topicID --> {}", topicID);
+        List<Topic> containedTopics = containmentIndex.getDescendants(topicID);
+        LOG.debug(".getContainedTopics(): Exit, contained topic count --> {}", containedTopics.size());
+        return (containedTopics);
+    }
+
+    /**
+     * @param topicID The identifier of the Topic
+     * @return The highest registered version of the Topic, or null if no version is registered
+     */
+    public Topic getLatestTopic(FDNToken topicID) {
+        LOG.debug(".getLatestTopic(): Entry, topicID --> {}", topicID);
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.CACHE_GET_LATEST_TOPIC);
+        Topic latestTopic = versionIndex.getLatest(topicID);
+        metrics.recordLookup(TopicRegistryOperationEnum.CACHE_GET_LATEST_TOPIC, startNanos, latestTopic != null);
+        LOG.debug(".getLatestTopic(): Exit, latestTopic --> {}", latestTopic);
+        return (latestTopic);
+    }
+
+    /**
+     * @param topicID The identifier of the Topic
+     * @param versionRange The acceptable versions (see TopicVersionRange)
+     * @return The highest registered version of the Topic within the range, or null if there is none
+     */
+    public Topic getLatestTopic(FDNToken topicID, TopicVersionRange versionRange) {
+        LOG.debug(".getLatestTopic(): Entry, topicID --> {}, versionRange --> {}", topicID, versionRange);
+        if (versionRange == null) {
+            throw (new IllegalArgumentException(".getLatestTopic(): versionRange is null"));
+        }
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.CACHE_GET_LATEST_TOPIC);
+        Topic latestTopic = versionIndex.getLatest(topicID, versionRange);
+        metrics.recordLookup(TopicRegistryOperationEnum.CACHE_GET_LATEST_TOPIC, startNanos, latestTopic != null);
+        LOG.debug(".getLatestTopic(): Exit, latestTopic --> {}", latestTopic);
+        return (latestTopic);
+    }
+
+    /**
+     * This function returns the highest registered version of a Topic that is
+     * compatible with the given one - i.e. the same major version (or, for
+     * 0.y.z versions, the same minor version) and no older.
+     *
+     * @param topicID The Topic (identifier and version)
+     * @return The latest compatible Topic, or null if there is none
+     */
+    public Topic getLatestCompatibleTopic(TopicToken topicID) {
+        LOG.debug(".getLatestCompatibleTopic(): Entry, topicID --> {}", topicID);
+        if (topicID == null) {
+            throw (new IllegalArgumentException(".getLatestCompatibleTopic(): topicID is null"));
+        }
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.CACHE_GET_LATEST_TOPIC);
+        Topic latestTopic = versionIndex.getLatest(topicID.getIdentifier(), TopicVersionRange.compatibleWith(TopicVersion.parse(topicID.getVersion())));
+        metrics.recordLookup(TopicRegistryOperationEnum.CACHE_GET_LATEST_TOPIC, startNanos, latestTopic != null);
+        LOG.debug(".getLatestCompatibleTopic(): Exit, latestTopic --> {}", latestTopic);
+        return (latestTopic);
+    }
+
+    /**
+     * @param topicID The identifier of the Topic
+     * @param versionRange The versions of interest (see TopicVersionRange)
+     * @return The registered versions of the Topic within the range, oldest first
+     */
+    public List<Topic> getTopicVersions(FDNToken topicID, TopicVersionRange versionRange) {
+        LOG.debug(".getTopicVersions(): Entry, topicID --> {}, versionRange --> {}", topicID, versionRange);
+        if (versionRange == null) {
+            throw (new IllegalArgumentException(".getTopicVersions(): versionRange is null"));
         }
-        return (topicHierarchy);
+        List<Topic> topicVersions = versionIndex.getVersions(topicID, versionRange);
+        LOG.debug(".getTopicVersions(): Exit, version count --> {}", topicVersions.size());
+        return (topicVersions);
     }
 }
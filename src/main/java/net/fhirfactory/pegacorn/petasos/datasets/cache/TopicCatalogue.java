@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+/**
+ * An immutable snapshot of the registered Topics, indexed by name and by
+ * topicType.
+ * <p>
+ * Both indexes are persistent (path copying) AVL trees keyed on the catalogue
+ * key of a Topic - its name (the '/' joined RDN values of its identifier),
+ * then its RDN qualifiers and then its version - so registering or removing a
+ * Topic creates a new catalogue in O(log n), sharing every untouched node with
+ * the previous one. Topics whose names coincide but whose RDN qualifiers
+ * differ are distinct entries.
+ * Holding a catalogue therefore costs nothing, and enumerating it - by
+ * Stream, Iterator or page - walks the trees lazily and is unaffected by any
+ * later registration or removal. Name prefix and subtree queries are key range
+ * scans; topicType queries scan the tree of that type alone.
+ */
+public final class TopicCatalogue {
+
+    public static final TopicCatalogue EMPTY = new TopicCatalogue(null, new EnumMap<TopicTypeEnum, Node>(TopicTypeEnum.class), 0, 0L);
+
+    // Sorts below every other character, so a Topic's qualifiers/versions sort together, ahead of its contained Topics
+    private static final char VERSION_SEPARATOR = '\u0000';
+    private static final String SEGMENT_SEPARATOR = TopicSubscriptionTrie.SEGMENT_SEPARATOR;
+
+    private final Node byName;
+    private final EnumMap<TopicTypeEnum, Node> byType;
+    private final int size;
+    private final long version;
+
+    private TopicCatalogue(Node byName, EnumMap<TopicTypeEnum, Node> byType, int size, long version) {
+        this.byName = byName;
+        this.byType = byType;
+        this.size = size;
+        this.version = version;
+    }
+
+    /**
+     * @return The number of Topics in the catalogue
+     */
+    public int size() {
+        return (size);
+    }
+
+    public boolean isEmpty() {
+        return (size == 0);
+    }
+
+    /**
+     * @return The number of registrations/removals applied to produce this catalogue
+     */
+    public long getVersion() {
+        return (version);
+    }
+
+    /**
+     * @param newTopic The Topic to be added
+     * @param previousTopic The Topic it replaces (the Topic registered under the same TopicToken), or null
+     * @return A catalogue with the Topic added/replaced
+     */
+    TopicCatalogue with(Topic newTopic, Topic previousTopic) {
+        String key = catalogueKeyOf(newTopic);
+        EnumMap<TopicTypeEnum, Node> newByType = byType.clone();
+        if (previousTopic != null && previousTopic.getTopicType() != null) {
+            newByType.put(previousTopic.getTopicType(), Node.remove(newByType.get(previousTopic.getTopicType()), key));
+        }
+        if (newTopic.getTopicType() != null) {
+            newByType.put(newTopic.getTopicType(), Node.put(newByType.get(newTopic.getTopicType()), key, newTopic));
+        }
+        int newSize = (previousTopic == null) ? size + 1 : size;
+        return (new TopicCatalogue(Node.put(byName, key, newTopic), newByType, newSize, version + 1));
+    }
+
+    /**
+     * @param removedTopic The Topic to be removed
+     * @return A catalogue without the Topic
+     */
+    TopicCatalogue without(Topic removedTopic) {
+        String key = catalogueKeyOf(removedTopic);
+        if (Node.get(byName, key) == null) {
+            return (this);
+        }
+        EnumMap<TopicTypeEnum, Node> newByType = byType;
+        if (removedTopic.getTopicType() != null) {
+            newByType = byType.clone();
+            newByType.put(removedTopic.getTopicType(), Node.remove(newByType.get(removedTopic.getTopicType()), key));
+        }
+        return (new TopicCatalogue(Node.remove(byName, key), newByType, size - 1, version + 1));
+    }
+
+    /**
+     * @return An unmodifiable Set view of the catalogue (which, as the catalogue is immutable, never changes)
+     */
+    public Set<Topic> asSet() {
+        return (new AbstractSet<Topic>() {
+            @Override
+            public Iterator<Topic> iterator() {
+                return (TopicCatalogue.this.iterator(TopicQuery.ALL));
+            }
+
+            @Override
+            public int size() {
+                return (size);
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Topic) || !((Topic) o).hasIdentifier()) {
+                    return (false);
+                }
+                return (Objects.equals(Node.get(byName, catalogueKeyOf((Topic) o)), o));
+            }
+        });
+    }
+
+    /**
+     * @param query The selection criteria
+     * @return A lazy iterator over the selected Topics, in name (then version) order
+     */
+    public Iterator<Topic> iterator(TopicQuery query) {
+        return (iterator(query, null));
+    }
+
+    /**
+     * @param query The selection criteria
+     * @return A lazy (sequential) stream of the selected Topics, in name (then version) order
+     */
+    public Stream<Topic> stream(TopicQuery query) {
+        Spliterator<Topic> spliterator = Spliterators.spliteratorUnknownSize(iterator(query),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL | Spliterator.IMMUTABLE);
+        return (StreamSupport.stream(spliterator, false));
+    }
+
+    /**
+     * @param query The selection criteria
+     * @param pageToken The next page token of the previous page, or null for the first page
+     * @param pageSize The maximum number of Topics on the page
+     * @return The page
+     */
+    public TopicPage page(TopicQuery query, String pageToken, int pageSize) {
+        if (pageSize <= 0) {
+            throw (new IllegalArgumentException(".page(): pageSize must be positive"));
+        }
+        Iterator<Topic> selected = iterator(query, pageToken);
+        ArrayList<Topic> topics = new ArrayList<Topic>(Math.min(pageSize, size));
+        while (topics.size() < pageSize && selected.hasNext()) {
+            topics.add(selected.next());
+        }
+        String nextPageToken = (selected.hasNext()) ? catalogueKeyOf(topics.get(topics.size() - 1)) : null;
+        return (new TopicPage(topics, nextPageToken, version));
+    }
+
+    private Iterator<Topic> iterator(TopicQuery query, String afterKey) {
+        if (query == null) {
+            throw (new IllegalArgumentException(".iterator(): query is null"));
+        }
+        Node root = (query.getTopicType() == null) ? byName : byType.get(query.getTopicType());
+        List<String[]> keyRanges = keyRangesOf(query, afterKey);
+        Predicate<String> keyFilter = null;
+        if (query.getSubtreeRoot() != null) {
+            // The key ranges select by name, which other Topics (with other qualifiers) can share with the subtree
+            String rootQualifiers = qualifiersOf(new FDN(query.getSubtreeRoot()).getRDNSet());
+            keyFilter = key -> isWithin(qualifiersOfKey(key), rootQualifiers);
+        }
+        return (new RangeIterator(root, keyRanges, keyFilter, query.getFilter()));
+    }
+
+    /**
+     * @return The catalogue key of the Topic: its name, then its RDN qualifiers ('/' joined), then its version
+     */
+    static String catalogueKeyOf(Topic topic) {
+        ArrayList<RDN> rdnSet = new FDN(topic.getIdentifier()).getRDNSet();
+        StringBuilder key = new StringBuilder(nameOf(rdnSet));
+        key.append(VERSION_SEPARATOR).append(qualifiersOf(rdnSet)).append(VERSION_SEPARATOR);
+        if (topic.getVersion() != null) {
+            key.append(topic.getVersion());
+        }
+        return (key.toString());
+    }
+
+    private static String nameOf(FDNToken topicID) {
+        return (nameOf(new FDN(topicID).getRDNSet()));
+    }
+
+    private static String nameOf(List<RDN> rdnSet) {
+        StringBuilder name = new StringBuilder();
+        for (RDN rdn : rdnSet) {
+            if (name.length() > 0) {
+                name.append(SEGMENT_SEPARATOR);
+            }
+            name.append(rdn.getNameValue());
+        }
+        return (name.toString());
+    }
+
+    private static String qualifiersOf(List<RDN> rdnSet) {
+        StringBuilder qualifiers = new StringBuilder();
+        for (int counter = 0; counter < rdnSet.size(); counter++) {
+            if (counter > 0) {
+                qualifiers.append(SEGMENT_SEPARATOR);
+            }
+            qualifiers.append(rdnSet.get(counter).getNameQualifier());
+        }
+        return (qualifiers.toString());
+    }
+
+    private static String qualifiersOfKey(String key) {
+        return (key.substring(key.indexOf(VERSION_SEPARATOR) + 1, key.lastIndexOf(VERSION_SEPARATOR)));
+    }
+
+    private static boolean isWithin(String qualifiers, String rootQualifiers) {
+        return (qualifiers.startsWith(rootQualifiers)
+                && (qualifiers.length() == rootQualifiers.length() || qualifiers.startsWith(SEGMENT_SEPARATOR, rootQualifiers.length())));
+    }
+
+    /**
+     * Translates the subtree/name prefix criteria of the query into [from, to) key ranges
+     * (a null bound being unbounded), in ascending order.
+     */
+    private static List<String[]> keyRangesOf(TopicQuery query, String afterKey) {
+        ArrayList<String[]> keyRanges = new ArrayList<String[]>();
+        if (query.getSubtreeRoot() != null) {
+            String rootName = nameOf(query.getSubtreeRoot());
+            // The root itself (any version) and then everything beneath it
+            keyRanges.add(new String[]{rootName + VERSION_SEPARATOR, successorOf(rootName + VERSION_SEPARATOR)});
+            keyRanges.add(new String[]{rootName + SEGMENT_SEPARATOR, successorOf(rootName + SEGMENT_SEPARATOR)});
+        } else {
+            keyRanges.add(new String[]{null, null});
+        }
+        if (query.getNamePrefix() != null && !query.getNamePrefix().isEmpty()) {
+            intersect(keyRanges, query.getNamePrefix(), successorOf(query.getNamePrefix()));
+        }
+        if (afterKey != null) {
+            // The smallest key greater than afterKey
+            intersect(keyRanges, afterKey + VERSION_SEPARATOR, null);
+        }
+        return (keyRanges);
+    }
+
+    private static void intersect(List<String[]> keyRanges, String from, String to) {
+        Iterator<String[]> rangeIterator = keyRanges.iterator();
+        while (rangeIterator.hasNext()) {
+            String[] range = rangeIterator.next();
+            if (range[0] == null || (from != null && from.compareTo(range[0]) > 0)) {
+                range[0] = from;
+            }
+            if (range[1] == null || (to != null && to.compareTo(range[1]) < 0)) {
+                range[1] = to;
+            }
+            if (range[0] != null && range[1] != null && range[0].compareTo(range[1]) >= 0) {
+                rangeIterator.remove();
+            }
+        }
+    }
+
+    /**
+     * @return The smallest string greater than every string starting with the prefix, or null if there is none
+     */
+    private static String successorOf(String prefix) {
+        int lastIndex = prefix.length() - 1;
+        while (lastIndex >= 0 && prefix.charAt(lastIndex) == Character.MAX_VALUE) {
+            lastIndex--;
+        }
+        if (lastIndex < 0) {
+            return (null);
+        }
+        return (prefix.substring(0, lastIndex) + (char) (prefix.charAt(lastIndex) + 1));
+    }
+
+    /**
+     * Walks the [from, to) key ranges of a tree in order, keeping only the path
+     * from the current node back up to the root (so O(log n) state).
+     */
+    private static final class RangeIterator implements Iterator<Topic> {
+
+        private final Node root;
+        private final List<String[]> keyRanges;
+        private final Predicate<String> keyFilter;
+        private final Predicate<Topic> filter;
+        private final ArrayDeque<Node> path = new ArrayDeque<Node>();
+        private int rangeIndex = -1;
+        private Topic nextTopic;
+
+        RangeIterator(Node root, List<String[]> keyRanges, Predicate<String> keyFilter, Predicate<Topic> filter) {
+            this.root = root;
+            this.keyRanges = keyRanges;
+            this.keyFilter = keyFilter;
+            this.filter = filter;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return (nextTopic != null);
+        }
+
+        @Override
+        public Topic next() {
+            if (nextTopic == null) {
+                throw (new NoSuchElementException());
+            }
+            Topic currentTopic = nextTopic;
+            advance();
+            return (currentTopic);
+        }
+
+        private void advance() {
+            nextTopic = null;
+            while (nextTopic == null) {
+                if (path.isEmpty() && !startNextRange()) {
+                    return;
+                }
+                Node node = path.pop();
+                String to = keyRanges.get(rangeIndex)[1];
+                if (to != null && node.key.compareTo(to) >= 0) {
+                    path.clear();
+                    continue;
+                }
+                pushLeftmost(node.right, null);
+                if ((keyFilter == null || keyFilter.test(node.key)) && (filter == null || filter.test(node.topic))) {
+                    nextTopic = node.topic;
+                }
+            }
+        }
+
+        private boolean startNextRange() {
+            while (++rangeIndex < keyRanges.size()) {
+                pushLeftmost(root, keyRanges.get(rangeIndex)[0]);
+                if (!path.isEmpty()) {
+                    return (true);
+                }
+            }
+            return (false);
+        }
+
+        // Pushes the nodes (with a key >= from) on the way down to the smallest such key
+        private void pushLeftmost(Node node, String from) {
+            while (node != null) {
+                if (from != null && node.key.compareTo(from) < 0) {
+                    node = node.right;
+                } else {
+                    path.push(node);
+                    node = node.left;
+                }
+            }
+        }
+    }
+
+    /**
+     * An immutable AVL tree node; every update returns a new root, copying only the nodes on the updated path.
+     */
+    private static final class Node {
+
+        final String key;
+        final Topic topic;
+        final Node left;
+        final Node right;
+        final int height;
+
+        private Node(String key, Topic topic, Node left, Node right) {
+            this.key = key;
+            this.topic = topic;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(heightOf(left), heightOf(right)) + 1;
+        }
+
+        static Topic get(Node node, String key) {
+            while (node != null) {
+                int comparison = key.compareTo(node.key);
+                if (comparison == 0) {
+                    return (node.topic);
+                }
+                node = (comparison < 0) ? node.left : node.right;
+            }
+            return (null);
+        }
+
+        static Node put(Node node, String key, Topic topic) {
+            if (node == null) {
+                return (new Node(key, topic, null, null));
+            }
+            int comparison = key.compareTo(node.key);
+            if (comparison == 0) {
+                return (new Node(key, topic, node.left, node.right));
+            }
+            if (comparison < 0) {
+                return (balance(node.key, node.topic, put(node.left, key, topic), node.right));
+            }
+            return (balance(node.key, node.topic, node.left, put(node.right, key, topic)));
+        }
+
+        static Node remove(Node node, String key) {
+            if (node == null) {
+                return (null);
+            }
+            int comparison = key.compareTo(node.key);
+            if (comparison < 0) {
+                Node newLeft = remove(node.left, key);
+                return ((newLeft == node.left) ? node : balance(node.key, node.topic, newLeft, node.right));
+            }
+            if (comparison > 0) {
+                Node newRight = remove(node.right, key);
+                return ((newRight == node.right) ? node : balance(node.key, node.topic, node.left, newRight));
+            }
+            if (node.left == null) {
+                return (node.right);
+            }
+            if (node.right == null) {
+                return (node.left);
+            }
+            Node successor = node.right;
+            while (successor.left != null) {
+                successor = successor.left;
+            }
+            return (balance(successor.key, successor.topic, node.left, remove(node.right, successor.key)));
+        }
+
+        private static int heightOf(Node node) {
+            return ((node == null) ? 0 : node.height);
+        }
+
+        private static Node balance(String key, Topic topic, Node left, Node right) {
+            int skew = heightOf(left) - heightOf(right);
+            if (skew > 1) {
+                if (heightOf(left.left) < heightOf(left.right)) {
+                    left = rotateLeft(left.key, left.topic, left.left, left.right);
+                }
+                return (new Node(left.key, left.topic, left.left, new Node(key, topic, left.right, right)));
+            }
+            if (skew < -1) {
+                if (heightOf(right.right) < heightOf(right.left)) {
+                    right = rotateRight(right.key, right.topic, right.left, right.right);
+                }
+                return (new Node(right.key, right.topic, new Node(key, topic, left, right.left), right.right));
+            }
+            return (new Node(key, topic, left, right));
+        }
+
+        private static Node rotateLeft(String key, Topic topic, Node left, Node right) {
+            return (new Node(right.key, right.topic, new Node(key, topic, left, right.left), right.right));
+        }
+
+        private static Node rotateRight(String key, Topic topic, Node left, Node right) {
+            return (new Node(left.key, left.topic, left.left, new Node(key, topic, left.right, right)));
+        }
+    }
+}
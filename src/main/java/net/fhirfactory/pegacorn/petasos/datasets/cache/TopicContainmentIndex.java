@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+
+/**
+ * Maintains the materialised containment path (see TopicContainmentPath) of
+ * every registered Topic, plus a (containing Topic --> contained Topics)
+ * index used both to answer descendant queries and to incrementally rebuild
+ * the paths beneath a Topic that is (re)registered or removed.
+ * <p>
+ * Contained Topics registered before their container are retained, so the
+ * paths are completed once the container turns up.
+ * <p>
+ * The index is keyed by identifier (FDNToken), but tracks every registered
+ * version of it: the path of an identifier is that of its most recently
+ * registered version, and removing one version falls back to the most recent
+ * of those remaining - the path only goes once the last version is removed.
+ * <p>
+ * Path lookups are lock-free; writes (and descendant queries) are serialised
+ * on the index.
+ */
+public class TopicContainmentIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicContainmentIndex.class);
+
+    private final ConcurrentHashMap<FDNToken, TopicContainmentPath> containmentPaths;
+    private final ConcurrentHashMap<FDNToken, Set<FDNToken>> containedTopics;
+    // The registered versions of each identifier, in registration order (guarded by the index)
+    private final HashMap<FDNToken, ArrayList<Topic>> registeredVersions;
+
+    public TopicContainmentIndex() {
+        this.containmentPaths = new ConcurrentHashMap<FDNToken, TopicContainmentPath>();
+        this.containedTopics = new ConcurrentHashMap<FDNToken, Set<FDNToken>>();
+        this.registeredVersions = new HashMap<FDNToken, ArrayList<Topic>>();
+    }
+
+    public TopicContainmentPath getContainmentPath(FDNToken topicID) {
+        if (topicID == null) {
+            return (null);
+        }
+        return (containmentPaths.get(topicID));
+    }
+
+    public synchronized void addTopic(Topic topic) {
+        ArrayList<Topic> versions = registeredVersions.computeIfAbsent(topic.getIdentifier(), key -> new ArrayList<Topic>(1));
+        // A re-registration of a version replaces it
+        TopicToken topicToken = topic.getTopicToken();
+        versions.removeIf(version -> version.getTopicToken().equals(topicToken));
+        versions.add(topic);
+        indexTopic(topic);
+    }
+
+    private void indexTopic(Topic topic) {
+        FDNToken topicID = topic.getIdentifier();
+        TopicContainmentPath previousPath = containmentPaths.get(topicID);
+        if ((previousPath != null) && previousPath.getTopic().hasContainingDataset()) {
+            // The Topic may have moved, detach it from its previous container
+            detachFromContainer(previousPath.getTopic().getContainingDataset(), topicID);
+        }
+        if (topic.hasContainingDataset()) {
+            containedTopics.computeIfAbsent(topic.getContainingDataset(), key -> new LinkedHashSet<FDNToken>()).add(topicID);
+        }
+        containmentPaths.put(topicID, TopicContainmentPath.of(topic, containerPathOf(topic)));
+        rebuildContainedPaths(topicID);
+    }
+
+    /**
+     * Removes the Topic (version) from the index. If other versions of the
+     * identifier remain registered, the path falls back to the most recently
+     * registered of them.
+     */
+    public synchronized void removeTopic(Topic topic) {
+        FDNToken topicID = topic.getIdentifier();
+        ArrayList<Topic> versions = registeredVersions.get(topicID);
+        if ((versions == null) || !versions.removeIf(version -> version == topic)) {
+            LOG.trace(".removeTopic(): Topic not (or no longer) indexed under --> {}", topicID);
+            return;
+        }
+        TopicContainmentPath currentPath = containmentPaths.get(topicID);
+        if (!versions.isEmpty()) {
+            if ((currentPath == null) || (currentPath.getTopic() == topic)) {
+                indexTopic(versions.get(versions.size() - 1));
+            }
+            return;
+        }
+        registeredVersions.remove(topicID);
+        containmentPaths.remove(topicID);
+        if (topic.hasContainingDataset()) {
+            detachFromContainer(topic.getContainingDataset(), topicID);
+        }
+        rebuildContainedPaths(topicID);
+    }
+
+    /**
+     * @return The Topics contained (at any depth) within the identified Topic, outermost first
+     */
+    public synchronized List<Topic> getDescendants(FDNToken topicID) {
+        if ((topicID == null) || !containedTopics.containsKey(topicID)) {
+            return (Collections.emptyList());
+        }
+        ArrayList<Topic> descendants = new ArrayList<Topic>();
+        ArrayDeque<FDNToken> pending = new ArrayDeque<FDNToken>();
+        pending.add(topicID);
+        while (!pending.isEmpty()) {
+            Set<FDNToken> currentContained = containedTopics.get(pending.poll());
+            if (currentContained == null) {
+                continue;
+            }
+            for (FDNToken containedID : currentContained) {
+                TopicContainmentPath containedPath = containmentPaths.get(containedID);
+                if (containedPath != null) {
+                    descendants.add(containedPath.getTopic());
+                    pending.add(containedID);
+                }
+            }
+        }
+        return (descendants);
+    }
+
+    private TopicContainmentPath containerPathOf(Topic topic) {
+        if (!topic.hasContainingDataset()) {
+            return (null);
+        }
+        return (containmentPaths.get(topic.getContainingDataset()));
+    }
+
+    private void detachFromContainer(FDNToken containerID, FDNToken topicID) {
+        Set<FDNToken> siblings = containedTopics.get(containerID);
+        if (siblings != null) {
+            siblings.remove(topicID);
+            if (siblings.isEmpty()) {
+                containedTopics.remove(containerID);
+            }
+        }
+    }
+
+    private void rebuildContainedPaths(FDNToken topicID) {
+        ArrayDeque<FDNToken> pending = new ArrayDeque<FDNToken>();
+        pending.add(topicID);
+        int rebuiltCount = 0;
+        while (!pending.isEmpty()) {
+            FDNToken currentID = pending.poll();
+            Set<FDNToken> currentContained = containedTopics.get(currentID);
+            if (currentContained == null) {
+                continue;
+            }
+            TopicContainmentPath currentPath = containmentPaths.get(currentID);
+            for (FDNToken containedID : currentContained) {
+                TopicContainmentPath containedPath = containmentPaths.get(containedID);
+                if (containedPath != null) {
+                    containmentPaths.put(containedID, TopicContainmentPath.of(containedPath.getTopic(), currentPath));
+                    rebuiltCount++;
+                    pending.add(containedID);
+                }
+            }
+        }
+        if (rebuiltCount > 0) {
+            LOG.trace(".rebuildContainedPaths(): Rebuilt paths beneath --> {}, count --> {}", topicID, rebuiltCount);
+        }
+    }
+}
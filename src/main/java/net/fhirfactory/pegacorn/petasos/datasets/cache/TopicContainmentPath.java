@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+
+/**
+ * The (materialised) containment hierarchy of a Topic: the Topic itself at
+ * level 0, its containing Topic at level 1, and so on up to the outermost
+ * registered container (normally the Sector) at level getDepth()-1.
+ * <p>
+ * Paths are immutable, they are rebuilt by the TopicContainmentIndex whenever
+ * the Topic or one of its ancestors is (re)registered or removed.
+ */
+public final class TopicContainmentPath {
+
+    private final Topic[] path;
+    private final Map<Integer, Topic> hierarchyView;
+
+    TopicContainmentPath(Topic[] path) {
+        this.path = path;
+        this.hierarchyView = new HierarchyView();
+    }
+
+    static TopicContainmentPath of(Topic topic, TopicContainmentPath containerPath) {
+        if (containerPath == null) {
+            return (new TopicContainmentPath(new Topic[]{topic}));
+        }
+        Topic[] newPath = new Topic[containerPath.path.length + 1];
+        newPath[0] = topic;
+        System.arraycopy(containerPath.path, 0, newPath, 1, containerPath.path.length);
+        return (new TopicContainmentPath(newPath));
+    }
+
+    public Topic getTopic() {
+        return (path[0]);
+    }
+
+    public int getDepth() {
+        return (path.length);
+    }
+
+    /**
+     * @param level 0 for the Topic itself, 1 for its container, etc.
+     * @return The Topic at that level (or null if the hierarchy is not that deep)
+     */
+    public Topic getLevel(int level) {
+        if (level < 0 || level >= path.length) {
+            return (null);
+        }
+        return (path[level]);
+    }
+
+    /**
+     * @param level 0 for the outermost container (e.g. the Sector), 1 for the next (e.g. the Category), etc.
+     * @return The Topic at that level (or null if the hierarchy is not that deep)
+     */
+    public Topic getLevelFromRoot(int level) {
+        return (getLevel(path.length - 1 - level));
+    }
+
+    /**
+     * @return An immutable (level --> Topic) view, as per TopicCacheDM.getTopicContainmentHierarchy()
+     */
+    public Map<Integer, Topic> asMap() {
+        return (hierarchyView);
+    }
+
+    private final class HierarchyView extends AbstractMap<Integer, Topic> {
+
+        @Override
+        public Topic get(Object key) {
+            if (key instanceof Integer) {
+                return (getLevel((Integer) key));
+            }
+            return (null);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return (get(key) != null);
+        }
+
+        @Override
+        public int size() {
+            return (path.length);
+        }
+
+        @Override
+        public Set<Entry<Integer, Topic>> entrySet() {
+            return (new AbstractSet<Entry<Integer, Topic>>() {
+                @Override
+                public Iterator<Entry<Integer, Topic>> iterator() {
+                    return (new Iterator<Entry<Integer, Topic>>() {
+                        private int cursor = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return (cursor < path.length);
+                        }
+
+                        @Override
+                        public Entry<Integer, Topic> next() {
+                            if (cursor >= path.length) {
+                                throw (new NoSuchElementException());
+                            }
+                            Entry<Integer, Topic> entry = new SimpleImmutableEntry<Integer, Topic>(cursor, path[cursor]);
+                            cursor++;
+                            return (entry);
+                        }
+                    });
+                }
+
+                @Override
+                public int size() {
+                    return (path.length);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.Collections;
+import java.util.List;
+
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+
+/**
+ * A single page of the Topics selected by a TopicQuery, in catalogue (name,
+ * then version) order. The next page token is opaque; handing it back to the
+ * same TopicCatalogue resumes the enumeration immediately after this page, and
+ * handing it to a later catalogue resumes it from the same position within
+ * the (since changed) catalogue.
+ */
+public final class TopicPage {
+
+    private final List<Topic> topics;
+    private final String nextPageToken;
+    private final long catalogueVersion;
+
+    TopicPage(List<Topic> topics, String nextPageToken, long catalogueVersion) {
+        this.topics = Collections.unmodifiableList(topics);
+        this.nextPageToken = nextPageToken;
+        this.catalogueVersion = catalogueVersion;
+    }
+
+    public List<Topic> getTopics() {
+        return (topics);
+    }
+
+    /**
+     * @return The token of the following page, or null if this is the last page
+     */
+    public String getNextPageToken() {
+        return (nextPageToken);
+    }
+
+    public boolean hasNextPage() {
+        return (nextPageToken != null);
+    }
+
+    /**
+     * @return The version of the TopicCatalogue the page was read from
+     */
+    public long getCatalogueVersion() {
+        return (catalogueVersion);
+    }
+
+    @Override
+    public String toString() {
+        return ("TopicPage{size=" + topics.size() + ", hasNextPage=" + hasNextPage() + ", catalogueVersion=" + catalogueVersion + "}");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.function.Predicate;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+/**
+ * An (immutable) selection of Topics from a TopicCatalogue. The topicType,
+ * subtree root and name prefix criteria are each answered from an index of the
+ * catalogue; the filter predicate (if any) is then applied to the Topics the
+ * indexes select. For example:
+ * <pre>
+ * TopicQuery.ALL.ofType(TopicTypeEnum.DATASET_TOPIC).under(hl7FhirGroupID).withNamePrefix("Health/General/HL7-FHIR/R4/Pat")
+ * </pre>
+ */
+public final class TopicQuery {
+
+    public static final TopicQuery ALL = new TopicQuery(null, null, null, null);
+
+    private final TopicTypeEnum topicType;
+    private final FDNToken subtreeRoot;
+    private final String namePrefix;
+    private final Predicate<Topic> filter;
+
+    private TopicQuery(TopicTypeEnum topicType, FDNToken subtreeRoot, String namePrefix, Predicate<Topic> filter) {
+        this.topicType = topicType;
+        this.subtreeRoot = subtreeRoot;
+        this.namePrefix = namePrefix;
+        this.filter = filter;
+    }
+
+    /**
+     * @param topicType Only Topics of this type are selected
+     */
+    public TopicQuery ofType(TopicTypeEnum topicType) {
+        if (topicType == null) {
+            throw (new IllegalArgumentException(".ofType(): topicType is null"));
+        }
+        return (new TopicQuery(topicType, subtreeRoot, namePrefix, filter));
+    }
+
+    /**
+     * @param subtreeRoot Only this Topic, and Topics beneath it in the FDN hierarchy, are selected
+     */
+    public TopicQuery under(FDNToken subtreeRoot) {
+        if (subtreeRoot == null) {
+            throw (new IllegalArgumentException(".under(): subtreeRoot is null"));
+        }
+        return (new TopicQuery(topicType, subtreeRoot, namePrefix, filter));
+    }
+
+    /**
+     * @param namePrefix Only Topics whose name - the '/' joined RDN values of the
+     *        identifier (see TopicSubscriptionTrie.segmentsOf()) - starts with
+     *        this prefix are selected
+     */
+    public TopicQuery withNamePrefix(String namePrefix) {
+        if (namePrefix == null) {
+            throw (new IllegalArgumentException(".withNamePrefix(): namePrefix is null"));
+        }
+        return (new TopicQuery(topicType, subtreeRoot, namePrefix, filter));
+    }
+
+    /**
+     * @param filter Only Topics (already selected by the other criteria) the predicate accepts are selected
+     */
+    public TopicQuery matching(Predicate<Topic> filter) {
+        if (filter == null) {
+            throw (new IllegalArgumentException(".matching(): filter is null"));
+        }
+        return (new TopicQuery(topicType, subtreeRoot, namePrefix, (this.filter == null) ? filter : this.filter.and(filter)));
+    }
+
+    public TopicTypeEnum getTopicType() {
+        return (topicType);
+    }
+
+    public FDNToken getSubtreeRoot() {
+        return (subtreeRoot);
+    }
+
+    public String getNamePrefix() {
+        return (namePrefix);
+    }
+
+    public Predicate<Topic> getFilter() {
+        return (filter);
+    }
+
+    @Override
+    public String toString() {
+        return ("TopicQuery{topicType=" + topicType + ", subtreeRoot=" + subtreeRoot + ", namePrefix=" + namePrefix + ", filtered=" + (filter != null) + "}");
+    }
+}
@@ -26,7 +26,17 @@ import ca.uhn.fhir.rest.annotation.Transaction;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventLog;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventTypeEnum;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryMetrics;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryOperationEnum;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersion;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
 
 import net.fhirfactory.pegacorn.petasos.model.topology.NodeElement;
 import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
@@ -41,20 +51,179 @@ import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
 public class TopicSubscriptionMapDM {
 	private static final Logger LOG = LoggerFactory.getLogger(TopicSubscriptionMapDM.class);
 	
-	ConcurrentHashMap<TopicToken, Set<NodeElementIdentifier>> distributionList;
+	/*
+	 * Topics and subscribers are interned to dense int IDs (and canonical instances), the
+	 * subscription tables below are indexed directly by the Topic ID. Topic IDs come from the
+	 * interner shared with the TopicCacheDM, so every registered Topic already has one.
+	 */
+	@Inject
+	TopicIdentifierInterner topicIds;
+	IdentifierInterner<NodeElementIdentifier> subscriberIds;
+
+	/*
+	 * Each Topic maps to the FanOutGroup of its subscribers, i.e. the one immutable snapshot shared
+	 * by every Topic with the same subscribers (see FanOutGroupTable). Groups are never mutated in
+	 * place: addSubscriber()/removeSubscriber() move the Topic to the neighbouring group (atomically,
+	 * per Topic) - so getSubscriberSet() is a lock-free, allocation-free read, and the memory held
+	 * scales with the number of distinct subscriber sets rather than Topics x subscribers.
+	 */
+	DenseIdTable<FanOutGroup> distributionList;
+	FanOutGroupTable fanOutGroups;
+
+	/*
+	 * The reverse index: subscriber ID --> IDs of the Topics it subscribes to. Kept consistent with
+	 * the distributionList by making all subscription changes under the subscriptionWriteLock. The
+	 * per-subscriber sets are mutable (so a WUP with many subscriptions doesn't pay a copy per
+	 * subscribe), hence they are only ever read under the lock as well.
+	 */
+	DenseIdTable<IntIdSet> subscriptionsBySubscriber;
+	private final Object subscriptionWriteLock = new Object();
+
+	/*
+	 * The exact subscriptions made by a SubscriptionLease (see addLeasedSubscriber()), each as
+	 * (Topic ID << 32 | subscriber ID). They last only as long as the lease, so are left out of
+	 * forEachPermanentSubscription() - and hence out of the snapshot, the journal and any export.
+	 * Changed under the subscriptionWriteLock.
+	 */
+	Set<Long> leasedSubscriptions;
+
+	/*
+	 * A counting Bloom filter of the Topics in the distributionList (see SubscribedTopicFilter), so that
+	 * while there are only exact subscriptions, a lookup of a Topic nobody subscribes to - most of the UoW
+	 * traffic - is answered without touching the topicIds map. Maintained under the subscriptionWriteLock,
+	 * and replaced by one twice the size when full. Each probe is recorded as a SUBSCRIPTION_FILTER lookup
+	 * (a hit being a Topic ruled out by the filter), and each Topic it passes on as a SUBSCRIPTION_FILTER_PASS
+	 * lookup (a miss being a false positive).
+	 */
+	volatile SubscribedTopicFilter subscribedTopicFilter;
+
+	/*
+	 * Hierarchical/wildcard subscriptions (see TopicSubscriptionTrie), plus the per-Topic result of
+	 * merging them with the exact (and version range) subscriptions - itself a (hash-consed)
+	 * FanOutGroup. A resolved entry is only valid while the pattern generation, and the exact group
+	 * and version range snapshot it was built from, are unchanged.
+	 */
+	TopicSubscriptionTrie patternSubscriptions;
+	DenseIdTable<ResolvedSubscriberSet> resolvedSubscriberCache;
+	AtomicLong patternGeneration;
+
+	/*
+	 * Version range subscriptions (e.g. "any 0.6.x"), per Topic identifier. A change swaps the
+	 * identifier's snapshot, which invalidates only the resolved entries of that identifier's
+	 * versions - registering (or resolving) a new version never touches the other entries.
+	 */
+	ConcurrentHashMap<FDNToken, VersionRangeSubscriptions> versionRangeSubscriptions;
+
+	/*
+	 * Every subscription change is published (under the subscriptionWriteLock, so in the order it
+	 * was applied) to the shared TopicRegistryEventLog. Outside a container, the DM uses a log of its own.
+	 */
+	@Inject
+	TopicRegistryEventLog eventLog;
+
+	// Operation counts/latencies, lookup hit/miss and fan-out are recorded to the shared TopicRegistryMetrics
+	@Inject
+	TopicRegistryMetrics metrics;
 	
     public TopicSubscriptionMapDM(){
-        distributionList = new ConcurrentHashMap<TopicToken, Set<NodeElementIdentifier>>();
+        this(new TopicIdentifierInterner());
     }
 
+    /**
+     * Outside a container, the DM shares the given interner with its TopicCacheDM.
+     *
+     * @param topicIds The TopicToken interner
+     */
+    public TopicSubscriptionMapDM(TopicIdentifierInterner topicIds){
+        this.topicIds = topicIds;
+        subscriberIds = new IdentifierInterner<NodeElementIdentifier>();
+        distributionList = new DenseIdTable<FanOutGroup>();
+        fanOutGroups = new FanOutGroupTable(subscriberIds);
+        subscriptionsBySubscriber = new DenseIdTable<IntIdSet>();
+        leasedSubscriptions = ConcurrentHashMap.newKeySet();
+        subscribedTopicFilter = new SubscribedTopicFilter(SubscribedTopicFilter.MINIMUM_CAPACITY);
+        patternSubscriptions = new TopicSubscriptionTrie();
+        resolvedSubscriberCache = new DenseIdTable<ResolvedSubscriberSet>();
+        patternGeneration = new AtomicLong(0);
+        versionRangeSubscriptions = new ConcurrentHashMap<FDNToken, VersionRangeSubscriptions>();
+        eventLog = new TopicRegistryEventLog();
+        metrics = new TopicRegistryMetrics();
+    }
+
+    /**
+     * @return The log to which this DM publishes its subscription changes
+     */
+    public TopicRegistryEventLog getEventLog(){
+		return(eventLog);
+	}
+
+    /**
+     * @return The metrics this DM records its operations to
+     */
+    public TopicRegistryMetrics getMetrics(){
+		return(metrics);
+	}
+
+    /**
+     * @return The number of Topics with at least one exact subscription
+     */
+    public int getSubscribedTopicCount(){
+		return(distributionList.size());
+	}
+
+    /**
+     * @return The size of the filter of subscribed Topics, in bytes
+     */
+    public long getSubscribedTopicFilterSize(){
+		return(subscribedTopicFilter.getSizeInBytes());
+	}
+
+    /**
+     * @return The number of distinct (non-empty) subscriber sets in use, i.e. FanOutGroups
+     */
+    public int getFanOutGroupCount(){
+		return(fanOutGroups.size());
+	}
+
+    /**
+     * @return The number of distinct WUPs with at least one exact subscription
+     */
+    public int getSubscriberCount(){
+		return(subscriptionsBySubscriber.size());
+	}
+
+    /**
+     * @return The number of distinct hierarchical/wildcard patterns subscribed to
+     */
+    public int getPatternSubscriptionCount(){
+		return(patternSubscriptions.getPatternCount());
+	}
+
+    /**
+     * @return The number of Topic identifiers with version range subscriptions
+     */
+    public int getVersionRangeTopicCount(){
+		return(versionRangeSubscriptions.size());
+	}
+
     /**
      * This function retrieves the list (FDNTokenSet) of WUPs that are interested in 
  receiving the identified uowPayloadTopicID (FDNToken).
+     * <p>
+     * The returned Set is an immutable snapshot of the subscribers at the time of the call,
+     * it is safe to iterate (without copying) while other threads (un)subscribe. Topics with the
+     * same subscribers share the one snapshot (see getFanOutGroup()), whose iteration order is the
+     * subscription order of the first Topic to have that set of subscribers.
      * 
      * @param topicID The FDNToken representing the UoW (Ingres) Payload Topic that we want to know which WUPs are interested in
-     * @return The set of WUPs wanting to receive this payload type.
+     * @return The (immutable) set of WUPs wanting to receive this payload type.
      */
      public Set<NodeElementIdentifier> getSubscriberSet(TopicToken topicID){
+    	// The filter miss is the hot path, so is recorded (as a SUBSCRIPTION_FILTER hit) and nothing else
+    	if((topicID != null) && isUnsubscribed(topicID)) {
+    		return(ImmutableSubscriberSet.EMPTY);
+    	}
+    	long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_GET_SUBSCRIBER_SET);
     	LOG.debug(".getSubscriberSet(): Entry");
     	if(LOG.isDebugEnabled()){
     		if(topicID != null){
@@ -62,14 +231,16 @@ public class TopicSubscriptionMapDM {
 				LOG.debug(".getSubscriberSet(): topicID (TopicToken).version --> {}", topicID.getVersion());
 			}
 		}
-    	if(distributionList.isEmpty()) {
-    		LOG.debug("getSubscriberSet(): Exit, empty list so can't match");
-    		return(new HashSet<NodeElementIdentifier>());
+    	if(topicID == null) {
+    		LOG.debug("getSubscriberSet(): Exit, null topicID so can't match");
+    		recordSubscriberLookup(startNanos, ImmutableSubscriberSet.EMPTY);
+    		return(ImmutableSubscriberSet.EMPTY);
     	}
-   		Set<NodeElementIdentifier> interestedWUPSet = this.distributionList.get(topicID);
-    	if(interestedWUPSet == null ){
+   		ImmutableSubscriberSet interestedWUPSet = lookupSubscriberSet(topicID);
+   		recordSubscriberLookup(startNanos, interestedWUPSet);
+    	if(interestedWUPSet.isEmpty()){
 			LOG.debug(".getSubscriberSet(): Couldn't find any associated FDNTokenSet elements (i.e. couldn't find any interested WUPs), returning an empty set");
-			return(new HashSet<NodeElementIdentifier>());
+			return(ImmutableSubscriberSet.EMPTY);
     	} else {
     		if(LOG.isDebugEnabled()) {
 				LOG.debug(".getSubscriberSet(): Exit, returning associated FDNSet of the WUPs interested:");
@@ -84,6 +255,205 @@ public class TopicSubscriptionMapDM {
 		}
     }
     
+    private void recordSubscriberLookup(long startNanos, ImmutableSubscriberSet subscribers){
+		metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_GET_SUBSCRIBER_SET, startNanos, !subscribers.isEmpty());
+		metrics.recordFanOut(subscribers.size());
+	}
+
+    /**
+     * This function retrieves the subscriber sets of a batch of Topics in a single pass. Repeated
+     * Topics within the batch are only resolved once.
+     *
+     * @param topicIDs The Topics (null entries are ignored)
+     * @return The (immutable) subscriber set of each distinct Topic, in batch order
+     */
+    public Map<TopicToken, Set<NodeElementIdentifier>> getSubscriberSets(Collection<TopicToken> topicIDs){
+		if(topicIDs == null){
+			throw(new IllegalArgumentException(".getSubscriberSets(): topicIDs is null"));
+		}
+		LOG.debug(".getSubscriberSets(): Entry, batch size --> {}", topicIDs.size());
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_GET_SUBSCRIBER_SETS);
+		LinkedHashMap<TopicToken, Set<NodeElementIdentifier>> subscriberSets = new LinkedHashMap<TopicToken, Set<NodeElementIdentifier>>();
+		for(TopicToken topicID : topicIDs){
+			if(topicID != null){
+				subscriberSets.computeIfAbsent(topicID, currentTopic -> isUnsubscribed(currentTopic) ? ImmutableSubscriberSet.EMPTY : lookupSubscriberSet(currentTopic));
+			}
+		}
+		metrics.record(TopicRegistryOperationEnum.SUBSCRIPTION_GET_SUBSCRIBER_SETS, startNanos);
+		LOG.debug(".getSubscriberSets(): Exit, distinct topics --> {}", subscriberSets.size());
+		return(subscriberSets);
+	}
+
+    /**
+     * This function resolves a batch of Topics and inverts the result, grouping the Topics by the
+     * WUP subscribed to them - so a caller can make one (bulk) delivery per WUP rather than one
+     * per message.
+     *
+     * @param topicIDs The Topics (null entries are ignored)
+     * @return For each interested WUP, the distinct Topics (from the batch) it is subscribed to
+     */
+    public Map<NodeElementIdentifier, Set<TopicToken>> getTopicSetsBySubscriber(Collection<TopicToken> topicIDs){
+		Map<TopicToken, Set<NodeElementIdentifier>> subscriberSets = getSubscriberSets(topicIDs);
+		LinkedHashMap<NodeElementIdentifier, Set<TopicToken>> topicSets = new LinkedHashMap<NodeElementIdentifier, Set<TopicToken>>();
+		for(Map.Entry<TopicToken, Set<NodeElementIdentifier>> subscriberSetEntry : subscriberSets.entrySet()){
+			for(NodeElementIdentifier subscriber : subscriberSetEntry.getValue()){
+				topicSets.computeIfAbsent(subscriber, currentSubscriber -> new LinkedHashSet<TopicToken>()).add(subscriberSetEntry.getKey());
+			}
+		}
+		LOG.debug(".getTopicSetsBySubscriber(): Exit, interested subscribers --> {}", topicSets.size());
+		return(topicSets);
+	}
+
+    /**
+     * The fast path for a Topic nobody subscribes to: while there are only exact subscriptions, a
+     * Topic ruled out by the subscribedTopicFilter can have no subscribers.
+     */
+    private boolean isUnsubscribed(TopicToken topicID){
+		if(!onlyExactSubscriptions()){
+			return(false);
+		}
+		boolean ruledOut = !subscribedTopicFilter.mightContain(topicID);
+		metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_FILTER, ruledOut);
+		return(ruledOut);
+	}
+
+    private ImmutableSubscriberSet lookupSubscriberSet(TopicToken topicID){
+		return(lookupFanOutGroup(topicID).getSubscribers());
+	}
+
+    private FanOutGroup lookupFanOutGroup(TopicToken topicID){
+		boolean exactOnly = onlyExactSubscriptions();
+		int topicId = topicIds.lookup(topicID);
+		FanOutGroup group;
+		if(topicId != IdentifierInterner.NO_ID){
+			group = resolveFanOutGroup(topicId);
+		} else if(exactOnly){
+			group = FanOutGroupTable.EMPTY_GROUP;
+		} else {
+			// Pattern/range subscriptions can match a Topic that was never registered or subscribed to. It
+			// is matched each time rather than interned, so arbitrary lookups can't grow the topicIds table.
+			VersionRangeSubscriptions rangeSubscriptions = lookupRangeSubscriptions(topicID);
+			group = matchFanOutGroup(topicID, FanOutGroupTable.EMPTY_GROUP, (rangeSubscriptions == null) ? null : rangeSubscriptions.snapshot);
+		}
+		if(exactOnly){
+			metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_FILTER_PASS, !group.isEmpty());
+		}
+		return(group);
+	}
+
+    /**
+     * This function retrieves the FanOutGroup of a Topic - the (shared) group of every WUP interested
+     * in it, whether by exact, hierarchical/wildcard or version range subscription. Topics with the
+     * same subscribers share a group, and so a group ID and a routing plan.
+     *
+     * @param topicID The Topic
+     * @return The group (FanOutGroup.getGroupId() 0, with no subscribers, if nobody is interested)
+     */
+    public FanOutGroup getFanOutGroup(TopicToken topicID){
+		if(topicID == null){
+			throw(new IllegalArgumentException(".getFanOutGroup(): topicID is null"));
+		}
+		if(isUnsubscribed(topicID)){
+			return(FanOutGroupTable.EMPTY_GROUP);
+		}
+		return(lookupFanOutGroup(topicID));
+	}
+
+    /**
+     * @param topicID The Topic
+     * @return The (cached, immutable) routing plan of the Topic's FanOutGroup
+     */
+    public FanOutRoutingPlan getRoutingPlan(TopicToken topicID){
+		return(getFanOutGroup(topicID).getRoutingPlan());
+	}
+
+    /**
+     * This function retrieves the WUPs interested in a Topic, identified by the (int) ID assigned to
+     * it by getTopicId()/internTopicId() - avoiding the TopicToken hash lookup altogether.
+     *
+     * @param topicId The ID of the Topic
+     * @return The (immutable) set of WUPs wanting to receive this payload type.
+     */
+    public Set<NodeElementIdentifier> getSubscriberSet(int topicId){
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_GET_SUBSCRIBER_SET);
+		ImmutableSubscriberSet interestedWUPSet = ImmutableSubscriberSet.EMPTY;
+		if((topicId >= 0) && (topicId < topicIds.size())){
+			interestedWUPSet = resolveSubscriberSet(topicId);
+		}
+		recordSubscriberLookup(startNanos, interestedWUPSet);
+		return(interestedWUPSet);
+	}
+
+    /**
+     * @param topicID The Topic
+     * @return The int ID assigned to the Topic, or IdentifierInterner.NO_ID if it has never been registered or subscribed to
+     */
+    public int getTopicId(TopicToken topicID){
+		return(topicIds.lookup(topicID));
+	}
+
+    /**
+     * @param topicID The Topic
+     * @return The int ID assigned to the Topic (assigning one if necessary), for use with getSubscriberSet(int)
+     */
+    public int internTopicId(TopicToken topicID){
+		if(topicID == null){
+			throw(new IllegalArgumentException(".internTopicId(): topicID is null"));
+		}
+		return(topicIds.intern(topicID));
+	}
+
+    private ImmutableSubscriberSet resolveSubscriberSet(int topicId){
+		return(resolveFanOutGroup(topicId).getSubscribers());
+	}
+
+    private FanOutGroup resolveFanOutGroup(int topicId){
+		FanOutGroup exactGroup = this.distributionList.get(topicId);
+		if(exactGroup == null){
+			exactGroup = FanOutGroupTable.EMPTY_GROUP;
+		}
+		if(onlyExactSubscriptions()){
+			return(exactGroup);
+		}
+		long generation = patternGeneration.get();
+		ResolvedSubscriberSet resolvedSet = resolvedSubscriberCache.get(topicId);
+		if((resolvedSet != null) && resolvedSet.isCurrent(generation, exactGroup)){
+			metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_RESOLVE, true);
+			return(resolvedSet.getGroup());
+		}
+		// Only the (re)resolutions are timed, a cache hit is just the lookup above
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_RESOLVE);
+		TopicToken topicID = topicIds.resolve(topicId);
+		VersionRangeSubscriptions rangeSubscriptions = lookupRangeSubscriptions(topicID);
+		VersionRangeSubscriberSet rangeSnapshot = (rangeSubscriptions == null) ? null : rangeSubscriptions.snapshot;
+		FanOutGroup matchedGroup = matchFanOutGroup(topicID, exactGroup, rangeSnapshot);
+		resolvedSubscriberCache.put(topicId, new ResolvedSubscriberSet(generation, exactGroup, rangeSubscriptions, rangeSnapshot, matchedGroup));
+		metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_RESOLVE, startNanos, false);
+		return(matchedGroup);
+	}
+
+    private VersionRangeSubscriptions lookupRangeSubscriptions(TopicToken topicID){
+		return(versionRangeSubscriptions.isEmpty() ? null : versionRangeSubscriptions.get(topicID.getIdentifier()));
+	}
+
+    private FanOutGroup matchFanOutGroup(TopicToken topicID, FanOutGroup exactGroup, VersionRangeSubscriberSet rangeSnapshot){
+		LOG.trace(".matchFanOutGroup(): Resolving hierarchical/wildcard/version range subscriptions for topic --> {}", topicID);
+		ImmutableSubscriberSet matchedSet = exactGroup.getSubscribers();
+		if(!patternSubscriptions.isEmpty()){
+			String[] topicSegments = TopicSubscriptionTrie.segmentsOf(topicID.getIdentifier());
+			matchedSet = matchedSet.withAll(patternSubscriptions.match(topicSegments));
+		}
+		if(rangeSnapshot != null){
+			matchedSet = matchedSet.withAll(rangeSnapshot.match(TopicVersion.parse(topicID.getVersion())));
+		}
+		// Nothing matched beyond the exact subscriptions, so the Topic stays in its exact group
+		return((matchedSet == exactGroup.getSubscribers()) ? exactGroup : fanOutGroups.intern(matchedSet));
+	}
+
+    private boolean onlyExactSubscriptions(){
+		return(patternSubscriptions.isEmpty() && versionRangeSubscriptions.isEmpty());
+	}
+
     /**
      * This function establishes a link between a Payload Type and a WUP that is interested in
      * processing/using it.
@@ -93,6 +463,23 @@ public class TopicSubscriptionMapDM {
      */
     @Transaction
     public void addSubscriber(TopicToken topic, NodeElementIdentifier subscriberNode) {
+		addSubscriber(topic, subscriberNode, false);
+    }
+
+    /**
+     * As per addSubscriber(), for a subscription made by a SubscriptionLease: it is published as a
+     * leased SUBSCRIBER_ADDED event and left out of forEachPermanentSubscription(), until (unless)
+     * addSubscriber() makes it permanent. If the WUP is already subscribed to the Topic, nothing changes.
+     *
+     * @param topic The Topic
+     * @param subscriberNode The WUP holding the lease
+     */
+    @Transaction
+    public void addLeasedSubscriber(TopicToken topic, NodeElementIdentifier subscriberNode) {
+		addSubscriber(topic, subscriberNode, true);
+    }
+
+    private void addSubscriber(TopicToken topic, NodeElementIdentifier subscriberNode, boolean leased) {
     	if(LOG.isDebugEnabled()){
     		LOG.debug(".addSubscriber(): Entry");
 			if(topic != null){
@@ -106,16 +493,44 @@ public class TopicSubscriptionMapDM {
     	if((topic==null) || (subscriberNode==null)) {
     		throw(new IllegalArgumentException(".addSubscriber(): topic or subscriberInstanceID is null"));
     	}
-		Set<NodeElementIdentifier> interestedWUPSet = this.distributionList.get(topic);
-		if(interestedWUPSet != null) {
-    		LOG.trace(".addSubscriber(): Adding subscriber to existing map for topic --> {}", topic);
-			interestedWUPSet.add(subscriberNode);
-    	} else {
-			LOG.trace(".addSubscriber(): Topic Subscription Map: Created new Distribution List and Added Subscriber");
-			interestedWUPSet = new LinkedHashSet<NodeElementIdentifier> ();
-			interestedWUPSet.add(subscriberNode);
-    		this.distributionList.put(topic, interestedWUPSet);
-    	}
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_SUBSCRIBER);
+		int topicId = topicIds.intern(topic);
+		int subscriberId = subscriberIds.intern(subscriberNode);
+		NodeElementIdentifier canonicalSubscriber = subscriberIds.resolve(subscriberId);
+		ImmutableSubscriberSet interestedWUPSet;
+		synchronized(subscriptionWriteLock) {
+			FanOutGroup previousGroup = this.distributionList.get(topicId);
+			if(previousGroup == null){
+				// Into the filter before the subscription becomes visible, so the filter never rules it out
+				addToSubscribedTopicFilter(topicIds.resolve(topicId));
+			}
+			FanOutGroup interestedGroup = this.distributionList.compute(topicId, currentGroup -> {
+				if(currentGroup == null){
+					LOG.trace(".addSubscriber(): Topic Subscription Map: Created new Distribution List and Added Subscriber");
+					return(fanOutGroups.with(FanOutGroupTable.EMPTY_GROUP, subscriberId, canonicalSubscriber));
+				}
+				LOG.trace(".addSubscriber(): Moving topic to the next fan-out group --> {}", topic);
+				return(fanOutGroups.with(currentGroup, subscriberId, canonicalSubscriber));
+			});
+			interestedWUPSet = interestedGroup.getSubscribers();
+			if(interestedGroup != previousGroup) {
+				IntIdSet subscribedTopics = this.subscriptionsBySubscriber.get(subscriberId);
+				if(subscribedTopics == null){
+					subscribedTopics = new IntIdSet();
+					this.subscriptionsBySubscriber.put(subscriberId, subscribedTopics);
+				}
+				subscribedTopics.add(topicId);
+				if(leased){
+					leasedSubscriptions.add(subscriptionKeyOf(topicId, subscriberId));
+					eventLog.publishLeasedSubscriberAdded(topicIds.resolve(topicId), canonicalSubscriber);
+				} else {
+					eventLog.publish(TopicRegistryEventTypeEnum.SUBSCRIBER_ADDED, null, topicIds.resolve(topicId), null, canonicalSubscriber);
+				}
+			} else if(!leased) {
+				makePermanent(topicId, subscriberId, canonicalSubscriber);
+			}
+		}
+		metrics.record(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_SUBSCRIBER, startNanos);
 		if(LOG.isDebugEnabled()) {
 			LOG.debug(".addSubscriber(): Exit, here is the Subscription list for the Topic:");
 			int count = 0;
@@ -127,6 +542,67 @@ public class TopicSubscriptionMapDM {
 		}
     }
     
+    /**
+     * This function subscribes a set of WUPs to a Topic in one step (e.g. when restoring the subscriptions
+     * from a snapshot): the Topic moves straight to the FanOutGroup of its resulting subscribers, rather
+     * than through one intermediate group per subscriber as per repeated addSubscriber() calls.
+     *
+     * @param topic The Topic
+     * @param subscriberNodes The WUPs interested in the Topic
+     */
+    @Transaction
+    public void addSubscribers(TopicToken topic, Collection<NodeElementIdentifier> subscriberNodes) {
+		LOG.debug(".addSubscribers(): Entry, topic --> {}", topic);
+		if((topic==null) || (subscriberNodes==null)) {
+			throw(new IllegalArgumentException(".addSubscribers(): topic or subscriberNodes is null"));
+		}
+		ImmutableSubscriberSet addedSubscribers = ImmutableSubscriberSet.of(subscriberNodes);
+		if(addedSubscribers.isEmpty()){
+			LOG.debug(".addSubscribers(): Exit, no subscribers");
+			return;
+		}
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_SUBSCRIBER);
+		int topicId = topicIds.intern(topic);
+		int[] subscriberIdSet = new int[addedSubscribers.size()];
+		ImmutableSubscriberSet canonicalSubscribers = ImmutableSubscriberSet.EMPTY;
+		int counter = 0;
+		for(NodeElementIdentifier subscriberNode : addedSubscribers){
+			subscriberIdSet[counter] = subscriberIds.intern(subscriberNode);
+			canonicalSubscribers = canonicalSubscribers.with(subscriberIds.resolve(subscriberIdSet[counter]));
+			counter++;
+		}
+		synchronized(subscriptionWriteLock) {
+			FanOutGroup previousGroup = this.distributionList.get(topicId);
+			ImmutableSubscriberSet previousSubscribers = ImmutableSubscriberSet.EMPTY;
+			if(previousGroup == null){
+				addToSubscribedTopicFilter(topicIds.resolve(topicId));
+			} else {
+				previousSubscribers = previousGroup.getSubscribers();
+			}
+			ImmutableSubscriberSet interestedWUPSet = previousSubscribers.withAll(canonicalSubscribers);
+			if(interestedWUPSet != previousSubscribers) {
+				this.distributionList.put(topicId, fanOutGroups.intern(interestedWUPSet));
+			}
+			counter = 0;
+			for(NodeElementIdentifier canonicalSubscriber : canonicalSubscribers){
+				int subscriberId = subscriberIdSet[counter++];
+				if(previousSubscribers.contains(canonicalSubscriber)){
+					makePermanent(topicId, subscriberId, canonicalSubscriber);
+				} else {
+					IntIdSet subscribedTopics = this.subscriptionsBySubscriber.get(subscriberId);
+					if(subscribedTopics == null){
+						subscribedTopics = new IntIdSet();
+						this.subscriptionsBySubscriber.put(subscriberId, subscribedTopics);
+					}
+					subscribedTopics.add(topicId);
+					eventLog.publish(TopicRegistryEventTypeEnum.SUBSCRIBER_ADDED, null, topicIds.resolve(topicId), null, canonicalSubscriber);
+				}
+			}
+		}
+		metrics.record(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_SUBSCRIBER, startNanos);
+		LOG.debug(".addSubscribers(): Exit, subscribers --> {}", addedSubscribers.size());
+	}
+
     /**
      * Remove a Subscriber from the Topic Subscription list
      * 
@@ -139,56 +615,487 @@ public class TopicSubscriptionMapDM {
     	if((topic==null) || (subscriberInstanceID==null)) {
     		throw(new IllegalArgumentException(".removeSubscriber(): topic or subscriberInstanceID is null"));
     	}
-		boolean found = false;
-		TopicToken currentToken = null;
-		Enumeration<TopicToken> topicEnumerator = distributionList.keys();
-		while(topicEnumerator.hasMoreElements()){
-			currentToken = topicEnumerator.nextElement();
-			if(currentToken.equals(topic)){
-				LOG.trace(".removeSubscriber(): Found Topic in Subscription Cache");
-				found = true;
-				break;
-			}
-		}
-		if(found) {
-    		LOG.trace(".removeSubscriber(): Removing Subscriber from topic --> {}", topic);
-			Set<NodeElementIdentifier> payloadDistributionList = this.distributionList.get(currentToken);
-			Iterator<NodeElementIdentifier> nodeIterator = payloadDistributionList.iterator();
-			while(nodeIterator.hasNext()){
-				NodeElementIdentifier currentNode = nodeIterator.next();
-				if(currentNode.equals(subscriberInstanceID)){
-					LOG.trace(".removeSubscriber(): Found Subscriber in Subscription List, removing");
-					payloadDistributionList.remove(currentNode);
-					LOG.debug(".removeSubscriber(): Exit, removed the subscriberInstanceID from the topic");
-					LOG.trace("Topic Subscription Map: (Remove Subscriber) Topic [{}] <-- Subscriber [{}]", currentToken, subscriberInstanceID);
-					break;
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_REMOVE_SUBSCRIBER);
+		int topicId = topicIds.lookup(topic);
+		if((topicId == IdentifierInterner.NO_ID) || (this.distributionList.get(topicId) == null)) {
+    		LOG.debug(".removeSubscriber(): Exit, Could not find Topic in Subscriber Cache");
+    		metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_REMOVE_SUBSCRIBER, startNanos, false);
+    		return;
+    	}
+		LOG.trace(".removeSubscriber(): Removing Subscriber from topic --> {}", topic);
+		boolean removed;
+		synchronized(subscriptionWriteLock) {
+			removed = removeFromDistributionList(topicId, subscriberInstanceID);
+			if(removed) {
+				int subscriberId = subscriberIds.lookup(subscriberInstanceID);
+				IntIdSet subscribedTopics = this.subscriptionsBySubscriber.get(subscriberId);
+				if((subscribedTopics != null) && subscribedTopics.remove(topicId) && subscribedTopics.isEmpty()){
+					this.subscriptionsBySubscriber.put(subscriberId, null);
 				}
+				eventLog.publish(TopicRegistryEventTypeEnum.SUBSCRIBER_REMOVED, null, topicIds.resolve(topicId), null, subscriberInstanceID);
 			}
-    	} else {
-    		LOG.debug(".removeSubscriber(): Exit, Could not find Subscriber in Subscriber Cache for Topic");
-    		return;
+		}
+		metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_REMOVE_SUBSCRIBER, startNanos, removed);
+		if(removed) {
+			LOG.trace("Topic Subscription Map: (Remove Subscriber) Topic [{}] <-- Subscriber [{}]", topic, subscriberInstanceID);
+			LOG.debug(".removeSubscriber(): Exit, removed the subscriberInstanceID from the topic");
+		} else {
+			LOG.debug(".removeSubscriber(): Exit, Could not find Subscriber in Subscriber Cache for Topic");
+		}
+    }
+
+    // Callers must hold the subscriptionWriteLock
+    private boolean removeFromDistributionList(int topicId, NodeElementIdentifier subscriber){
+		boolean[] removed = new boolean[1];
+		int subscriberId = subscriberIds.lookup(subscriber);
+		if(subscriberId == IdentifierInterner.NO_ID){
+			return(false);
+		}
+		this.distributionList.compute(topicId, currentGroup -> {
+			if(currentGroup == null){
+				return(null);
+			}
+			FanOutGroup reducedGroup = fanOutGroups.without(currentGroup, subscriberId, subscriber);
+			removed[0] = (reducedGroup != currentGroup);
+			// An empty group carries no information, so drop the Topic entry altogether
+			return(reducedGroup.isEmpty() ? null : reducedGroup);
+		});
+		if(removed[0] && !leasedSubscriptions.isEmpty()){
+			leasedSubscriptions.remove(subscriptionKeyOf(topicId, subscriberId));
+		}
+		if(removed[0] && (this.distributionList.get(topicId) == null)){
+			subscribedTopicFilter.remove(topicIds.resolve(topicId));
+		}
+		return(removed[0]);
+	}
+
+    // Callers must hold the subscriptionWriteLock
+    private void makePermanent(int topicId, int subscriberId, NodeElementIdentifier subscriber){
+		if(!leasedSubscriptions.isEmpty() && leasedSubscriptions.remove(subscriptionKeyOf(topicId, subscriberId))){
+			LOG.trace(".makePermanent(): Leased subscription made permanent, topic --> {}, subscriber --> {}", topicIds.resolve(topicId), subscriber);
+			eventLog.publish(TopicRegistryEventTypeEnum.SUBSCRIBER_ADDED, null, topicIds.resolve(topicId), null, subscriber);
+		}
+	}
+
+    private static long subscriptionKeyOf(int topicId, int subscriberId){
+		return(((long) topicId << 32) | (subscriberId & 0xFFFFFFFFL));
+	}
+
+    // Callers must hold the subscriptionWriteLock
+    private void addToSubscribedTopicFilter(TopicToken topic){
+		SubscribedTopicFilter filter = subscribedTopicFilter;
+		if(!filter.isFull()){
+			filter.add(topic);
+			return;
+		}
+		SubscribedTopicFilter largerFilter = new SubscribedTopicFilter(filter.getCapacity() * 2);
+		distributionList.forEach((group, topicId) -> largerFilter.add(topicIds.resolve(topicId)));
+		largerFilter.add(topic);
+		LOG.debug(".addToSubscribedTopicFilter(): Resized the subscribed Topic filter, capacity --> {}, bytes --> {}", largerFilter.getCapacity(), largerFilter.getSizeInBytes());
+		subscribedTopicFilter = largerFilter;
+	}
+
+    /**
+     * This function removes every subscription (exact, hierarchical/wildcard and version range) held by a WUP, e.g.
+     * when the WUP (or its node) has failed. The cost is proportional to the number of Topics the WUP
+     * subscribes to, not to the size of the subscription map.
+     *
+     * @param subscriberInstanceID The WUP whose subscriptions are to be removed
+     * @return The number of subscriptions removed
+     */
+    @Transaction
+    public int removeAllSubscriptions(NodeElementIdentifier subscriberInstanceID) {
+    	LOG.debug(".removeAllSubscriptions(): Entry, subscriberInstanceID --> {}", subscriberInstanceID);
+    	if(subscriberInstanceID==null) {
+    		throw(new IllegalArgumentException(".removeAllSubscriptions(): subscriberInstanceID is null"));
+    	}
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_REMOVE_ALL_SUBSCRIPTIONS);
+		int removedCount = 0;
+		int subscriberId = subscriberIds.lookup(subscriberInstanceID);
+		if(subscriberId != IdentifierInterner.NO_ID) {
+			synchronized(subscriptionWriteLock) {
+				IntIdSet subscribedTopics = this.subscriptionsBySubscriber.put(subscriberId, null);
+				if(subscribedTopics != null) {
+					for(int topicId : subscribedTopics.toArray()) {
+						if(removeFromDistributionList(topicId, subscriberInstanceID)) {
+							eventLog.publish(TopicRegistryEventTypeEnum.SUBSCRIBER_REMOVED, null, topicIds.resolve(topicId), null, subscriberInstanceID);
+							removedCount++;
+						}
+					}
+				}
+			}
+		}
+		for(String topicPattern : getSubscribedPatterns(subscriberInstanceID)) {
+			removePatternSubscriber(TopicSubscriptionTrie.parsePattern(topicPattern), subscriberInstanceID);
+			removedCount++;
+		}
+		for(Map.Entry<FDNToken, List<TopicVersionRange>> subscribedRanges : getSubscribedVersionRanges(subscriberInstanceID).entrySet()) {
+			for(TopicVersionRange versionRange : subscribedRanges.getValue()) {
+				if(removeVersionRangeSubscription(subscribedRanges.getKey(), versionRange, subscriberInstanceID)) {
+					removedCount++;
+				}
+			}
+		}
+		metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_REMOVE_ALL_SUBSCRIPTIONS, startNanos, removedCount > 0);
+		LOG.debug(".removeAllSubscriptions(): Exit, removed subscriptions --> {}", removedCount);
+		return(removedCount);
+    }
+
+    /**
+     * @param topic The Topic
+     * @param subscriberInstanceID The WUP
+     * @return true if the WUP is (exactly) subscribed to the Topic - ignoring hierarchical/wildcard and version range subscriptions
+     */
+    public boolean hasSubscriber(TopicToken topic, NodeElementIdentifier subscriberInstanceID) {
+		int topicId = topicIds.lookup(topic);
+		if(topicId == IdentifierInterner.NO_ID) {
+			return(false);
+		}
+		FanOutGroup exactGroup = this.distributionList.get(topicId);
+		return((exactGroup != null) && exactGroup.getSubscribers().contains(subscriberInstanceID));
+	}
+
+    /**
+     * @param topic The Topic
+     * @param subscriberInstanceID The WUP
+     * @return true if the WUP's (exact) subscription to the Topic was made by a SubscriptionLease, and not since made permanent
+     */
+    public boolean isLeasedSubscriber(TopicToken topic, NodeElementIdentifier subscriberInstanceID) {
+		if(leasedSubscriptions.isEmpty()) {
+			return(false);
+		}
+		int topicId = topicIds.lookup(topic);
+		int subscriberId = subscriberIds.lookup(subscriberInstanceID);
+		if((topicId == IdentifierInterner.NO_ID) || (subscriberId == IdentifierInterner.NO_ID)) {
+			return(false);
+		}
+		return(leasedSubscriptions.contains(subscriptionKeyOf(topicId, subscriberId)));
+	}
+
+    /**
+     * @param subscriberInstanceID The WUP
+     * @return The Topics the WUP is (exactly) subscribed to
+     */
+    public Set<TopicToken> getSubscribedTopics(NodeElementIdentifier subscriberInstanceID) {
+		LinkedHashSet<TopicToken> subscribedTopics = new LinkedHashSet<TopicToken>();
+		synchronized(subscriptionWriteLock) {
+			IntIdSet subscribedTopicIds = this.subscriptionsBySubscriber.get(subscriberIds.lookup(subscriberInstanceID));
+			if(subscribedTopicIds != null) {
+				subscribedTopicIds.forEach(topicId -> subscribedTopics.add(topicIds.resolve(topicId)));
+			}
+		}
+		return(subscribedTopics);
+	}
+
+    /**
+     * @param subscriberInstanceID The WUP
+     * @return The hierarchical/wildcard patterns the WUP is subscribed to (in normalised form)
+     */
+    public List<String> getSubscribedPatterns(NodeElementIdentifier subscriberInstanceID) {
+		if(patternSubscriptions.isEmpty()) {
+			return(Collections.emptyList());
+		}
+		return(patternSubscriptions.getPatterns(subscriberInstanceID));
+	}
+
+    /**
+     * This function subscribes a WUP to every Topic matching a hierarchical/wildcard pattern,
+     * e.g. "InformationTechnology/CollaborationServices/Matrix/ClientServerAPI/**" (see
+     * TopicSubscriptionTrie for the pattern syntax). Pattern subscriptions apply to all versions
+     * of the matching Topics.
+     *
+     * @param topicPattern The '/' separated Topic pattern
+     * @param subscriberNode The WUP that is interested in the matching Topics
+     */
+    @Transaction
+    public void addPatternSubscriber(String topicPattern, NodeElementIdentifier subscriberNode) {
+    	LOG.debug(".addPatternSubscriber(): Entry, topicPattern --> {}, subscriberNode --> {}", topicPattern, subscriberNode);
+    	if((topicPattern==null) || (subscriberNode==null)) {
+    		throw(new IllegalArgumentException(".addPatternSubscriber(): topicPattern or subscriberNode is null"));
+    	}
+		addPatternSubscriber(TopicSubscriptionTrie.parsePattern(topicPattern), subscriberIds.canonical(subscriberNode));
+		LOG.debug(".addPatternSubscriber(): Exit");
+    }
+
+    /**
+     * This function subscribes a WUP to the identified Topic and every Topic contained (at any
+     * depth) within it - e.g. all the Topics of a Sector, Category or Topic Group.
+     *
+     * @param containingTopicID The identifier of the containing Topic
+     * @param subscriberNode The WUP that is interested in the Topic hierarchy
+     */
+    @Transaction
+    public void addHierarchySubscriber(FDNToken containingTopicID, NodeElementIdentifier subscriberNode) {
+    	LOG.debug(".addHierarchySubscriber(): Entry, containingTopicID --> {}, subscriberNode --> {}", containingTopicID, subscriberNode);
+    	if((containingTopicID==null) || (subscriberNode==null)) {
+    		throw(new IllegalArgumentException(".addHierarchySubscriber(): containingTopicID or subscriberNode is null"));
+    	}
+		addPatternSubscriber(hierarchyPatternOf(containingTopicID), subscriberIds.canonical(subscriberNode));
+		LOG.debug(".addHierarchySubscriber(): Exit");
+    }
+
+    @Transaction
+    public void removePatternSubscriber(String topicPattern, NodeElementIdentifier subscriberNode) {
+    	LOG.debug(".removePatternSubscriber(): Entry, topicPattern --> {}, subscriberNode --> {}", topicPattern, subscriberNode);
+    	if((topicPattern==null) || (subscriberNode==null)) {
+    		throw(new IllegalArgumentException(".removePatternSubscriber(): topicPattern or subscriberNode is null"));
+    	}
+		removePatternSubscriber(TopicSubscriptionTrie.parsePattern(topicPattern), subscriberNode);
+		LOG.debug(".removePatternSubscriber(): Exit");
+    }
+
+    @Transaction
+    public void removeHierarchySubscriber(FDNToken containingTopicID, NodeElementIdentifier subscriberNode) {
+    	LOG.debug(".removeHierarchySubscriber(): Entry, containingTopicID --> {}, subscriberNode --> {}", containingTopicID, subscriberNode);
+    	if((containingTopicID==null) || (subscriberNode==null)) {
+    		throw(new IllegalArgumentException(".removeHierarchySubscriber(): containingTopicID or subscriberNode is null"));
+    	}
+		removePatternSubscriber(hierarchyPatternOf(containingTopicID), subscriberNode);
+		LOG.debug(".removeHierarchySubscriber(): Exit");
+    }
+
+    private List<String> hierarchyPatternOf(FDNToken containingTopicID){
+		return(TopicSubscriptionTrie.parsePattern(TopicSubscriptionTrie.hierarchyPatternOf(containingTopicID)));
+	}
+
+    private void addPatternSubscriber(List<String> patternSegments, NodeElementIdentifier subscriberNode){
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_PATTERN_SUBSCRIBER);
+		synchronized(subscriptionWriteLock) {
+			if(patternSubscriptions.addSubscriber(patternSegments, subscriberNode)){
+				invalidateResolvedSubscriberSets();
+				eventLog.publish(TopicRegistryEventTypeEnum.PATTERN_SUBSCRIBER_ADDED, null, null, String.join(TopicSubscriptionTrie.SEGMENT_SEPARATOR, patternSegments), subscriberNode);
+			}
+		}
+		metrics.record(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_PATTERN_SUBSCRIBER, startNanos);
+	}
+
+    private void removePatternSubscriber(List<String> patternSegments, NodeElementIdentifier subscriberNode){
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_REMOVE_PATTERN_SUBSCRIBER);
+		boolean removed;
+		synchronized(subscriptionWriteLock) {
+			removed = patternSubscriptions.removeSubscriber(patternSegments, subscriberNode);
+			if(removed){
+				invalidateResolvedSubscriberSets();
+				eventLog.publish(TopicRegistryEventTypeEnum.PATTERN_SUBSCRIBER_REMOVED, null, null, String.join(TopicSubscriptionTrie.SEGMENT_SEPARATOR, patternSegments), subscriberNode);
+			}
+		}
+		metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_REMOVE_PATTERN_SUBSCRIBER, startNanos, removed);
+		if(!removed){
+			LOG.debug(".removePatternSubscriber(): Could not find Subscriber for pattern --> {}", patternSegments);
+		}
+	}
+
+    /**
+     * This function subscribes a WUP to every version of a Topic within a version range - e.g.
+     * "0.6.x" or "^0.6.1" (see TopicVersionRange for the range syntax) - including versions
+     * registered after the subscription is made.
+     *
+     * @param topicID The identifier of the Topic
+     * @param versionRange The versions the WUP is interested in
+     * @param subscriberNode The WUP that is interested in the matching Topic versions
+     */
+    @Transaction
+    public void addVersionRangeSubscriber(FDNToken topicID, TopicVersionRange versionRange, NodeElementIdentifier subscriberNode) {
+    	LOG.debug(".addVersionRangeSubscriber(): Entry, topicID --> {}, versionRange --> {}, subscriberNode --> {}", topicID, versionRange, subscriberNode);
+    	if((topicID==null) || (versionRange==null) || (subscriberNode==null)) {
+    		throw(new IllegalArgumentException(".addVersionRangeSubscriber(): topicID, versionRange or subscriberNode is null"));
     	}
-		LOG.debug(".removeSubscriber(): Exit, Could not find Topic in Subscriber Cache");
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_VERSION_RANGE_SUBSCRIBER);
+		NodeElementIdentifier canonicalSubscriber = subscriberIds.canonical(subscriberNode);
+		synchronized(subscriptionWriteLock) {
+			VersionRangeSubscriptions rangeSubscriptions = versionRangeSubscriptions.get(topicID);
+			if(rangeSubscriptions == null){
+				rangeSubscriptions = new VersionRangeSubscriptions();
+				rangeSubscriptions.snapshot = VersionRangeSubscriberSet.EMPTY.with(versionRange, canonicalSubscriber);
+				versionRangeSubscriptions.put(topicID, rangeSubscriptions);
+				// Entries resolved before the identifier had any range subscriptions don't refer to it
+				invalidateResolvedSubscriberSets();
+			} else {
+				VersionRangeSubscriberSet previousSnapshot = rangeSubscriptions.snapshot;
+				rangeSubscriptions.snapshot = previousSnapshot.with(versionRange, canonicalSubscriber);
+				if(rangeSubscriptions.snapshot == previousSnapshot){
+					metrics.record(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_VERSION_RANGE_SUBSCRIBER, startNanos);
+					LOG.debug(".addVersionRangeSubscriber(): Exit, already subscribed");
+					return;
+				}
+			}
+			eventLog.publish(TopicRegistryEventTypeEnum.VERSION_RANGE_SUBSCRIBER_ADDED, null, new TopicToken(topicID, null), null, versionRange, canonicalSubscriber);
+		}
+		metrics.record(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_VERSION_RANGE_SUBSCRIBER, startNanos);
+		LOG.debug(".addVersionRangeSubscriber(): Exit");
     }
 
+    @Transaction
+    public void removeVersionRangeSubscriber(FDNToken topicID, TopicVersionRange versionRange, NodeElementIdentifier subscriberNode) {
+    	LOG.debug(".removeVersionRangeSubscriber(): Entry, topicID --> {}, versionRange --> {}, subscriberNode --> {}", topicID, versionRange, subscriberNode);
+    	if((topicID==null) || (versionRange==null) || (subscriberNode==null)) {
+    		throw(new IllegalArgumentException(".removeVersionRangeSubscriber(): topicID, versionRange or subscriberNode is null"));
+    	}
+		long startNanos = metrics.startTimer(TopicRegistryOperationEnum.SUBSCRIPTION_REMOVE_VERSION_RANGE_SUBSCRIBER);
+		boolean removed = removeVersionRangeSubscription(topicID, versionRange, subscriberNode);
+		metrics.recordLookup(TopicRegistryOperationEnum.SUBSCRIPTION_REMOVE_VERSION_RANGE_SUBSCRIBER, startNanos, removed);
+		LOG.debug(".removeVersionRangeSubscriber(): Exit, removed --> {}", removed);
+    }
+
+    private boolean removeVersionRangeSubscription(FDNToken topicID, TopicVersionRange versionRange, NodeElementIdentifier subscriberNode){
+		synchronized(subscriptionWriteLock) {
+			VersionRangeSubscriptions rangeSubscriptions = versionRangeSubscriptions.get(topicID);
+			if(rangeSubscriptions == null){
+				return(false);
+			}
+			VersionRangeSubscriberSet previousSnapshot = rangeSubscriptions.snapshot;
+			rangeSubscriptions.snapshot = previousSnapshot.without(versionRange, subscriberNode);
+			if(rangeSubscriptions.snapshot == previousSnapshot){
+				return(false);
+			}
+			if(rangeSubscriptions.snapshot.isEmpty()){
+				// Resolved entries still referring to the holder see its (now empty) snapshot has changed
+				versionRangeSubscriptions.remove(topicID);
+			}
+			eventLog.publish(TopicRegistryEventTypeEnum.VERSION_RANGE_SUBSCRIBER_REMOVED, null, new TopicToken(topicID, null), null, versionRange, subscriberNode);
+			return(true);
+		}
+	}
+
+    /**
+     * @param subscriberInstanceID The WUP
+     * @return The version ranges the WUP is subscribed to, per Topic identifier
+     */
+    public Map<FDNToken, List<TopicVersionRange>> getSubscribedVersionRanges(NodeElementIdentifier subscriberInstanceID) {
+		if(versionRangeSubscriptions.isEmpty()) {
+			return(Collections.emptyMap());
+		}
+		LinkedHashMap<FDNToken, List<TopicVersionRange>> subscribedRanges = new LinkedHashMap<FDNToken, List<TopicVersionRange>>();
+		for(Map.Entry<FDNToken, VersionRangeSubscriptions> rangeEntry : versionRangeSubscriptions.entrySet()) {
+			rangeEntry.getValue().snapshot.forEach((versionRange, subscribers) -> {
+				if(subscribers.contains(subscriberInstanceID)) {
+					subscribedRanges.computeIfAbsent(rangeEntry.getKey(), identifier -> new ArrayList<TopicVersionRange>()).add(versionRange);
+				}
+			});
+		}
+		return(subscribedRanges);
+	}
+
+    /**
+     * This function applies a batch of subscription changes (made by the given Runnable, through the
+     * methods of this DM) under a single hold of the write lock - so no other change is interleaved
+     * with them, and their events are contiguous in the TopicRegistryEventLog.
+     *
+     * @param changes The changes
+     * @return The version of the TopicRegistryEventLog following the batch (i.e. its next version)
+     */
+    public long applyBatch(Runnable changes){
+		if(changes == null){
+			throw(new IllegalArgumentException(".applyBatch(): changes is null"));
+		}
+		synchronized(subscriptionWriteLock) {
+			changes.run();
+			return(eventLog.getNextVersion());
+		}
+	}
+
+    private void invalidateResolvedSubscriberSets(){
+		patternGeneration.incrementAndGet();
+		resolvedSubscriberCache.clear();
+	}
+
+    /**
+     * Hands every Topic with exact subscriptions, and its (immutable) subscriber snapshot, to the consumer.
+     */
+    public void forEachSubscription(BiConsumer<TopicToken, Set<NodeElementIdentifier>> consumer){
+		distributionList.forEach((group, topicId) -> consumer.accept(topicIds.resolve(topicId), group.getSubscribers()));
+	}
+
+    /**
+     * As per forEachSubscription(), less the leased subscriptions (see addLeasedSubscriber()) - i.e. the
+     * subscriptions to persist or export. Topics with only leased subscribers are skipped.
+     */
+    public void forEachPermanentSubscription(BiConsumer<TopicToken, Set<NodeElementIdentifier>> consumer){
+		distributionList.forEach((group, topicId) -> {
+			ImmutableSubscriberSet subscribers = group.getSubscribers();
+			if(!leasedSubscriptions.isEmpty()) {
+				for(NodeElementIdentifier subscriber : group.getSubscribers()) {
+					if(leasedSubscriptions.contains(subscriptionKeyOf(topicId, subscriberIds.lookup(subscriber)))) {
+						subscribers = subscribers.without(subscriber);
+					}
+				}
+			}
+			if(!subscribers.isEmpty()) {
+				consumer.accept(topicIds.resolve(topicId), subscribers);
+			}
+		});
+	}
+
+    /**
+     * Hands every hierarchical/wildcard pattern (in normalised form), and its subscribers, to the consumer.
+     */
+    public void forEachPatternSubscription(BiConsumer<String, Set<NodeElementIdentifier>> consumer){
+		patternSubscriptions.forEachPattern(consumer::accept);
+	}
+
+    /**
+     * Hands every version range subscription - Topic identifier, range and subscribers - to the visitor.
+     */
+    public void forEachVersionRangeSubscription(VersionRangeSubscriptionVisitor visitor){
+		for(Map.Entry<FDNToken, VersionRangeSubscriptions> rangeEntry : versionRangeSubscriptions.entrySet()) {
+			rangeEntry.getValue().snapshot.forEach((versionRange, subscribers) -> visitor.visit(rangeEntry.getKey(), versionRange, subscribers));
+		}
+	}
+
+    @FunctionalInterface
+    public interface VersionRangeSubscriptionVisitor {
+		void visit(FDNToken topicID, TopicVersionRange versionRange, Set<NodeElementIdentifier> subscribers);
+	}
+
     public void printAllSubscriptionSets(){
     	if(!LOG.isDebugEnabled()){
     		return;
 		}
-    	Enumeration<TopicToken> topicEnumerator = distributionList.keys();
     	LOG.debug(".printAllSubscriptionSets(): Printing ALL Subscription Lists");
-    	while(topicEnumerator.hasMoreElements()){
-    		TopicToken currentToken = topicEnumerator.nextElement();
-    		LOG.debug(".printAllSubscriptionSets(): Topic (TopicToken) --> {}", currentToken);
-			Set<NodeElementIdentifier> subscribers = getSubscriberSet(currentToken);
-			if(subscribers != null){
-				Iterator<NodeElementIdentifier> currentNodeIdentifierIterator = subscribers.iterator();
-				while(currentNodeIdentifierIterator.hasNext()){
-					LOG.debug(".printAllSubscriptionSets(): Subscriber --> {}", currentNodeIdentifierIterator.next());
-				}
+    	distributionList.forEach((group, topicId) -> {
+    		LOG.debug(".printAllSubscriptionSets(): Topic (TopicToken) --> {}, fan-out group --> {}", topicIds.resolve(topicId), group.getGroupId());
+			for(NodeElementIdentifier currentSubscriber : group.getSubscribers()){
+				LOG.debug(".printAllSubscriptionSets(): Subscriber --> {}", currentSubscriber);
 			}
+		});
+	}
+
+	/**
+	 * The merged (exact + hierarchical/wildcard + version range) fan-out group of a Topic, plus what it was built from.
+	 */
+	static final class ResolvedSubscriberSet {
+		private final long patternGeneration;
+		private final FanOutGroup exactGroup;
+		private final VersionRangeSubscriptions rangeSubscriptions;
+		private final VersionRangeSubscriberSet rangeSnapshot;
+		private final FanOutGroup group;
+
+		ResolvedSubscriberSet(long patternGeneration, FanOutGroup exactGroup, VersionRangeSubscriptions rangeSubscriptions,
+				VersionRangeSubscriberSet rangeSnapshot, FanOutGroup group){
+			this.patternGeneration = patternGeneration;
+			this.exactGroup = exactGroup;
+			this.rangeSubscriptions = rangeSubscriptions;
+			this.rangeSnapshot = rangeSnapshot;
+			this.group = group;
+		}
 
+		// Groups are hash-consed, so a Topic that returns to an earlier exact group finds its entry current again
+		boolean isCurrent(long currentPatternGeneration, FanOutGroup currentExactGroup){
+			return((patternGeneration == currentPatternGeneration) && (exactGroup == currentExactGroup)
+					&& ((rangeSubscriptions == null) || (rangeSubscriptions.snapshot == rangeSnapshot)));
 		}
+
+		FanOutGroup getGroup(){
+			return(group);
+		}
+	}
+
+	/**
+	 * The (swappable) version range subscriptions of a single Topic identifier. Resolved entries
+	 * hold on to the holder, so checking them is a reference comparison rather than a map lookup.
+	 */
+	static final class VersionRangeSubscriptions {
+		volatile VersionRangeSubscriberSet snapshot = VersionRangeSubscriberSet.EMPTY;
 	}
 
 }
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * A prefix trie of (hierarchical/wildcard) Topic subscriptions, keyed on the
+ * RDN values of the Topic FDN - i.e. Sector / Category / Definer / Topic Group
+ * / Topic / Sub-Topic.
+ * <p>
+ * A subscription pattern is a '/' separated list of segments, where each
+ * segment is either a literal RDN value, "*" (matches exactly one segment) or
+ * "**" (matches zero or more segments). For example:
+ * <ul>
+ * <li>InformationTechnology/CollaborationServices/Matrix/ClientServerAPI/** -
+ * everything beneath (and including) the ClientServerAPI topic group</li>
+ * <li>Health/General/HL7-FHIR/*&#47;Patient - any Patient topic directly
+ * beneath an HL7-FHIR topic group</li>
+ * </ul>
+ * Resolving the subscribers of a concrete Topic walks the trie once per FDN
+ * segment (plus any "*"/"**" branches), so the cost is proportional to the
+ * depth of the Topic rather than the number of subscriptions. Consecutive "**"
+ * segments are collapsed into one, and a match visits each (trie node, Topic
+ * depth) pair at most once, so patterns with several "**" segments are bounded
+ * by (trie nodes x Topic depth) rather than backtracking combinatorially.
+ * <p>
+ * Reads are lock-free; writes are serialised on the trie itself.
+ */
+public class TopicSubscriptionTrie {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicSubscriptionTrie.class);
+
+    public static final String SEGMENT_SEPARATOR = "/";
+    public static final String SINGLE_SEGMENT_WILDCARD = "*";
+    public static final String MULTI_SEGMENT_WILDCARD = "**";
+
+    private final TrieNode root;
+    private volatile int patternCount;
+
+    public TopicSubscriptionTrie() {
+        this.root = new TrieNode();
+        this.patternCount = 0;
+    }
+
+    /**
+     * Splits a subscription pattern into its segments, collapsing consecutive
+     * "**" segments (which match the same Topics as a single "**").
+     *
+     * @param pattern The '/' separated pattern
+     * @return The (non-empty) segment list
+     */
+    public static List<String> parsePattern(String pattern) {
+        if (pattern == null) {
+            throw (new IllegalArgumentException(".parsePattern(): pattern is null"));
+        }
+        ArrayList<String> segments = new ArrayList<String>();
+        for (String segment : pattern.split(SEGMENT_SEPARATOR)) {
+            if (!segment.isEmpty() && !isRepeatedMultiWildcard(segments, segment)) {
+                segments.add(segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            throw (new IllegalArgumentException(".parsePattern(): pattern has no segments --> " + pattern));
+        }
+        return (segments);
+    }
+
+    private static boolean isRepeatedMultiWildcard(List<String> previousSegments, String segment) {
+        return (MULTI_SEGMENT_WILDCARD.equals(segment)
+                && !previousSegments.isEmpty()
+                && MULTI_SEGMENT_WILDCARD.equals(previousSegments.get(previousSegments.size() - 1)));
+    }
+
+    private static List<String> collapseMultiWildcards(List<String> patternSegments) {
+        ArrayList<String> collapsed = null;
+        for (int counter = 0; counter < patternSegments.size(); counter++) {
+            String segment = patternSegments.get(counter);
+            if (collapsed == null) {
+                if (isRepeatedMultiWildcard(patternSegments.subList(0, counter), segment)) {
+                    collapsed = new ArrayList<String>(patternSegments.subList(0, counter));
+                }
+            } else if (!isRepeatedMultiWildcard(collapsed, segment)) {
+                collapsed.add(segment);
+            }
+        }
+        return ((collapsed == null) ? patternSegments : collapsed);
+    }
+
+    /**
+     * Extracts the (RDN value) segments of a Topic FDN.
+     *
+     * @param topicID The Topic identifier
+     * @return The segments, from the Sector downwards
+     */
+    public static String[] segmentsOf(FDNToken topicID) {
+        ArrayList<RDN> rdnSet = new FDN(topicID).getRDNSet();
+        String[] segments = new String[rdnSet.size()];
+        for (int counter = 0; counter < segments.length; counter++) {
+            segments[counter] = rdnSet.get(counter).getNameValue();
+        }
+        return (segments);
+    }
+
+    /**
+     * Builds the pattern matching a Topic and every Topic contained within it.
+     *
+     * @param topicID The identifier of the containing Topic
+     * @return The pattern, i.e. the Topic's segments followed by "**"
+     */
+    public static String hierarchyPatternOf(FDNToken topicID) {
+        StringBuilder pattern = new StringBuilder();
+        for (String segment : segmentsOf(topicID)) {
+            pattern.append(segment).append(SEGMENT_SEPARATOR);
+        }
+        return (pattern.append(MULTI_SEGMENT_WILDCARD).toString());
+    }
+
+    public boolean isEmpty() {
+        return (patternCount == 0);
+    }
+
+    public int getPatternCount() {
+        return (patternCount);
+    }
+
+    /**
+     * @return true if the subscriber was not already registered against the pattern
+     */
+    public synchronized boolean addSubscriber(List<String> patternSegments, NodeElementIdentifier subscriber) {
+        LOG.debug(".addSubscriber(): Entry, patternSegments --> {}, subscriber --> {}", patternSegments, subscriber);
+        if ((patternSegments == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".addSubscriber(): patternSegments or subscriber is null"));
+        }
+        TrieNode currentNode = root;
+        for (String segment : collapseMultiWildcards(patternSegments)) {
+            currentNode = currentNode.children.computeIfAbsent(segment, key -> new TrieNode());
+        }
+        ImmutableSubscriberSet previousSet = currentNode.subscribers;
+        currentNode.subscribers = previousSet.with(subscriber);
+        if (previousSet.isEmpty()) {
+            patternCount++;
+        }
+        boolean added = (currentNode.subscribers != previousSet);
+        LOG.debug(".addSubscriber(): Exit, added --> {}, patternCount --> {}", added, patternCount);
+        return (added);
+    }
+
+    /**
+     * @return true if the subscriber was registered against the pattern (and has now been removed)
+     */
+    public synchronized boolean removeSubscriber(List<String> patternSegments, NodeElementIdentifier subscriber) {
+        LOG.debug(".removeSubscriber(): Entry, patternSegments --> {}, subscriber --> {}", patternSegments, subscriber);
+        if ((patternSegments == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".removeSubscriber(): patternSegments or subscriber is null"));
+        }
+        boolean removed = removeSubscriber(root, collapseMultiWildcards(patternSegments), 0, subscriber);
+        LOG.debug(".removeSubscriber(): Exit, removed --> {}, patternCount --> {}", removed, patternCount);
+        return (removed);
+    }
+
+    private boolean removeSubscriber(TrieNode node, List<String> patternSegments, int depth, NodeElementIdentifier subscriber) {
+        if (depth == patternSegments.size()) {
+            ImmutableSubscriberSet previousSet = node.subscribers;
+            node.subscribers = previousSet.without(subscriber);
+            if (node.subscribers == previousSet) {
+                return (false);
+            }
+            if (node.subscribers.isEmpty()) {
+                patternCount--;
+            }
+            return (true);
+        }
+        String segment = patternSegments.get(depth);
+        TrieNode child = node.children.get(segment);
+        if (child == null) {
+            return (false);
+        }
+        boolean removed = removeSubscriber(child, patternSegments, depth + 1, subscriber);
+        if (removed && child.subscribers.isEmpty() && child.children.isEmpty()) {
+            node.children.remove(segment);
+        }
+        return (removed);
+    }
+
+    /**
+     * @param subscriber The subscriber
+     * @return Every pattern (in normalised, '/' joined form) the subscriber is registered against
+     */
+    public synchronized List<String> getPatterns(NodeElementIdentifier subscriber) {
+        ArrayList<String> patterns = new ArrayList<String>();
+        collectPatterns(root, new ArrayList<String>(), subscriber, patterns);
+        return (patterns);
+    }
+
+    private void collectPatterns(TrieNode node, ArrayList<String> currentSegments, NodeElementIdentifier subscriber, List<String> patterns) {
+        if (node.subscribers.contains(subscriber)) {
+            patterns.add(String.join(SEGMENT_SEPARATOR, currentSegments));
+        }
+        for (Map.Entry<String, TrieNode> childEntry : node.children.entrySet()) {
+            currentSegments.add(childEntry.getKey());
+            collectPatterns(childEntry.getValue(), currentSegments, subscriber, patterns);
+            currentSegments.remove(currentSegments.size() - 1);
+        }
+    }
+
+    /**
+     * Hands every (normalised) pattern and its subscribers to the consumer.
+     */
+    public synchronized void forEachPattern(BiConsumer<String, ImmutableSubscriberSet> consumer) {
+        forEachPattern(root, new ArrayList<String>(), consumer);
+    }
+
+    private void forEachPattern(TrieNode node, ArrayList<String> currentSegments, BiConsumer<String, ImmutableSubscriberSet> consumer) {
+        if (!node.subscribers.isEmpty()) {
+            consumer.accept(String.join(SEGMENT_SEPARATOR, currentSegments), node.subscribers);
+        }
+        for (Map.Entry<String, TrieNode> childEntry : node.children.entrySet()) {
+            currentSegments.add(childEntry.getKey());
+            forEachPattern(childEntry.getValue(), currentSegments, consumer);
+            currentSegments.remove(currentSegments.size() - 1);
+        }
+    }
+
+    /**
+     * Collects the subscribers of every pattern matching the given Topic.
+     *
+     * @param topicSegments The segments of a concrete Topic FDN (see {@link #segmentsOf(FDNToken)})
+     * @return The union of the matching subscriber sets
+     */
+    public ImmutableSubscriberSet match(String[] topicSegments) {
+        if (isEmpty() || topicSegments == null) {
+            return (ImmutableSubscriberSet.EMPTY);
+        }
+        TrieMatch trieMatch = new TrieMatch(topicSegments);
+        trieMatch.match(root, 0);
+        return (trieMatch.accumulated);
+    }
+
+    /**
+     * The state of a single match: the subscribers found so far and, once a
+     * "**" branch has been taken (before which every (node, depth) pair is
+     * reached by exactly one path), the pairs already visited.
+     */
+    private static final class TrieMatch {
+        final String[] topicSegments;
+        ImmutableSubscriberSet accumulated = ImmutableSubscriberSet.EMPTY;
+        IdentityHashMap<TrieNode, BitSet> visited;
+
+        TrieMatch(String[] topicSegments) {
+            this.topicSegments = topicSegments;
+        }
+
+        void match(TrieNode node, int depth) {
+            if (visited != null) {
+                BitSet visitedDepths = visited.computeIfAbsent(node, key -> new BitSet(topicSegments.length + 1));
+                if (visitedDepths.get(depth)) {
+                    return;
+                }
+                visitedDepths.set(depth);
+            }
+            TrieNode multiWildcard = node.children.get(MULTI_SEGMENT_WILDCARD);
+            if (multiWildcard != null) {
+                if (visited == null) {
+                    visited = new IdentityHashMap<TrieNode, BitSet>();
+                }
+                // "**" consumes zero or more of the remaining segments
+                for (int skip = depth; skip <= topicSegments.length; skip++) {
+                    match(multiWildcard, skip);
+                }
+            }
+            if (depth == topicSegments.length) {
+                accumulated = accumulated.withAll(node.subscribers);
+                return;
+            }
+            TrieNode literal = node.children.get(topicSegments[depth]);
+            if (literal != null) {
+                match(literal, depth + 1);
+            }
+            TrieNode singleWildcard = node.children.get(SINGLE_SEGMENT_WILDCARD);
+            if (singleWildcard != null) {
+                match(singleWildcard, depth + 1);
+            }
+        }
+    }
+
+    private static final class TrieNode {
+        final ConcurrentHashMap<String, TrieNode> children = new ConcurrentHashMap<String, TrieNode>();
+        volatile ImmutableSubscriberSet subscribers = ImmutableSubscriberSet.EMPTY;
+    }
+}
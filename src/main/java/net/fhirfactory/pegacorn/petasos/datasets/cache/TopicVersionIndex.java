@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersion;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+
+/**
+ * The versions registered under each Topic identifier, held in version order
+ * (see TopicVersion) - so "latest", "latest within a range" and range queries
+ * are logarithmic in the number of versions of the identifier, and adding a
+ * version only touches that identifier's entry.
+ * <p>
+ * Reads are lock-free; writers are expected to be serialised by the owning DM.
+ *
+ * @param <V> The value type (e.g. the Topic)
+ */
+public class TopicVersionIndex<V> {
+
+    private final ConcurrentHashMap<FDNToken, ConcurrentSkipListMap<TopicVersion, V>> versionsByIdentifier;
+
+    public TopicVersionIndex() {
+        this.versionsByIdentifier = new ConcurrentHashMap<FDNToken, ConcurrentSkipListMap<TopicVersion, V>>();
+    }
+
+    public void put(TopicToken topicID, V value) {
+        if ((topicID == null) || (topicID.getIdentifier() == null) || (value == null)) {
+            throw (new IllegalArgumentException(".put(): topicID, its identifier or value is null"));
+        }
+        versionsByIdentifier.computeIfAbsent(topicID.getIdentifier(), identifier -> new ConcurrentSkipListMap<TopicVersion, V>())
+                .put(TopicVersion.parse(topicID.getVersion()), value);
+    }
+
+    public void remove(TopicToken topicID) {
+        if ((topicID == null) || (topicID.getIdentifier() == null)) {
+            return;
+        }
+        versionsByIdentifier.computeIfPresent(topicID.getIdentifier(), (identifier, versions) -> {
+            versions.remove(TopicVersion.parse(topicID.getVersion()));
+            return (versions.isEmpty() ? null : versions);
+        });
+    }
+
+    /**
+     * @return The value registered under the highest version of the identifier, or null
+     */
+    public V getLatest(FDNToken identifier) {
+        NavigableMap<TopicVersion, V> versions = versionsOf(identifier);
+        Map.Entry<TopicVersion, V> latestEntry = versions.lastEntry();
+        return ((latestEntry == null) ? null : latestEntry.getValue());
+    }
+
+    /**
+     * @return The value registered under the highest version of the identifier within the range, or null
+     */
+    public V getLatest(FDNToken identifier, TopicVersionRange range) {
+        if (range == null) {
+            throw (new IllegalArgumentException(".getLatest(): range is null"));
+        }
+        Map.Entry<TopicVersion, V> latestEntry = range.restrict(versionsOf(identifier)).lastEntry();
+        return ((latestEntry == null) ? null : latestEntry.getValue());
+    }
+
+    /**
+     * @return The values registered under the versions of the identifier within the range, oldest first
+     */
+    public List<V> getVersions(FDNToken identifier, TopicVersionRange range) {
+        if (range == null) {
+            throw (new IllegalArgumentException(".getVersions(): range is null"));
+        }
+        return (new ArrayList<V>(range.restrict(versionsOf(identifier)).values()));
+    }
+
+    /**
+     * @return The number of distinct identifiers with at least one version
+     */
+    public int getIdentifierCount() {
+        return (versionsByIdentifier.size());
+    }
+
+    public void clear() {
+        versionsByIdentifier.clear();
+    }
+
+    private NavigableMap<TopicVersion, V> versionsOf(FDNToken identifier) {
+        if (identifier == null) {
+            return (Collections.emptyNavigableMap());
+        }
+        NavigableMap<TopicVersion, V> versions = versionsByIdentifier.get(identifier);
+        return ((versions == null) ? Collections.emptyNavigableMap() : versions);
+    }
+}
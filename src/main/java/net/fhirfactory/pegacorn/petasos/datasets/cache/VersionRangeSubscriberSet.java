@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersion;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * An immutable snapshot of the version range subscriptions against a single
+ * Topic identifier - i.e. (TopicVersionRange, subscribers) pairs. As per
+ * ImmutableSubscriberSet, a change builds a new snapshot, so a snapshot's
+ * identity tells a reader whether anything has changed since it last looked.
+ * <p>
+ * An identifier typically carries only a handful of distinct ranges, so
+ * matching is a scan of the ranges.
+ */
+final class VersionRangeSubscriberSet {
+
+    static final VersionRangeSubscriberSet EMPTY = new VersionRangeSubscriberSet(new TopicVersionRange[0], new ImmutableSubscriberSet[0]);
+
+    private final TopicVersionRange[] ranges;
+    private final ImmutableSubscriberSet[] subscribers;
+
+    private VersionRangeSubscriberSet(TopicVersionRange[] ranges, ImmutableSubscriberSet[] subscribers) {
+        this.ranges = ranges;
+        this.subscribers = subscribers;
+    }
+
+    /**
+     * @return The snapshot with the subscriber added to the range (or this snapshot, if it already was)
+     */
+    VersionRangeSubscriberSet with(TopicVersionRange range, NodeElementIdentifier subscriber) {
+        int rangeIndex = indexOf(range);
+        if (rangeIndex < 0) {
+            TopicVersionRange[] newRanges = Arrays.copyOf(ranges, ranges.length + 1);
+            ImmutableSubscriberSet[] newSubscribers = Arrays.copyOf(subscribers, subscribers.length + 1);
+            newRanges[ranges.length] = range;
+            newSubscribers[subscribers.length] = ImmutableSubscriberSet.EMPTY.with(subscriber);
+            return (new VersionRangeSubscriberSet(newRanges, newSubscribers));
+        }
+        ImmutableSubscriberSet rangeSubscribers = subscribers[rangeIndex].with(subscriber);
+        if (rangeSubscribers == subscribers[rangeIndex]) {
+            return (this);
+        }
+        ImmutableSubscriberSet[] newSubscribers = subscribers.clone();
+        newSubscribers[rangeIndex] = rangeSubscribers;
+        return (new VersionRangeSubscriberSet(ranges, newSubscribers));
+    }
+
+    /**
+     * @return The snapshot with the subscriber removed from the range (or this snapshot, if it wasn't subscribed)
+     */
+    VersionRangeSubscriberSet without(TopicVersionRange range, NodeElementIdentifier subscriber) {
+        int rangeIndex = indexOf(range);
+        if (rangeIndex < 0) {
+            return (this);
+        }
+        ImmutableSubscriberSet rangeSubscribers = subscribers[rangeIndex].without(subscriber);
+        if (rangeSubscribers == subscribers[rangeIndex]) {
+            return (this);
+        }
+        if (!rangeSubscribers.isEmpty()) {
+            ImmutableSubscriberSet[] newSubscribers = subscribers.clone();
+            newSubscribers[rangeIndex] = rangeSubscribers;
+            return (new VersionRangeSubscriberSet(ranges, newSubscribers));
+        }
+        if (ranges.length == 1) {
+            return (EMPTY);
+        }
+        TopicVersionRange[] newRanges = new TopicVersionRange[ranges.length - 1];
+        ImmutableSubscriberSet[] newSubscribers = new ImmutableSubscriberSet[subscribers.length - 1];
+        System.arraycopy(ranges, 0, newRanges, 0, rangeIndex);
+        System.arraycopy(ranges, rangeIndex + 1, newRanges, rangeIndex, newRanges.length - rangeIndex);
+        System.arraycopy(subscribers, 0, newSubscribers, 0, rangeIndex);
+        System.arraycopy(subscribers, rangeIndex + 1, newSubscribers, rangeIndex, newSubscribers.length - rangeIndex);
+        return (new VersionRangeSubscriberSet(newRanges, newSubscribers));
+    }
+
+    /**
+     * @return The union of the subscribers of every range containing the version
+     */
+    ImmutableSubscriberSet match(TopicVersion version) {
+        ImmutableSubscriberSet matchedSet = ImmutableSubscriberSet.EMPTY;
+        for (int counter = 0; counter < ranges.length; counter++) {
+            if (ranges[counter].contains(version)) {
+                matchedSet = matchedSet.withAll(subscribers[counter]);
+            }
+        }
+        return (matchedSet);
+    }
+
+    boolean isEmpty() {
+        return (ranges.length == 0);
+    }
+
+    void forEach(BiConsumer<TopicVersionRange, ImmutableSubscriberSet> consumer) {
+        for (int counter = 0; counter < ranges.length; counter++) {
+            consumer.accept(ranges[counter], subscribers[counter]);
+        }
+    }
+
+    private int indexOf(TopicVersionRange range) {
+        for (int counter = 0; counter < ranges.length; counter++) {
+            if (ranges[counter].equals(range)) {
+                return (counter);
+            }
+        }
+        return (-1);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cluster;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionTrie;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * The key of a single (Topic, Topic pattern or Topic version range, Subscriber) pair within the
+ * replicated subscription cache. Keying on the pair (rather than holding a
+ * subscriber set per Topic) means concurrent subscriptions to the same Topic
+ * from different nodes never conflict.
+ */
+public final class ClusteredSubscriptionKey implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TopicToken topic;
+    private final String topicPattern;
+    private final TopicVersionRange versionRange;
+    private final NodeElementIdentifier subscriber;
+
+    private ClusteredSubscriptionKey(TopicToken topic, String topicPattern, TopicVersionRange versionRange, NodeElementIdentifier subscriber) {
+        this.topic = topic;
+        this.topicPattern = topicPattern;
+        this.versionRange = versionRange;
+        this.subscriber = subscriber;
+    }
+
+    public static ClusteredSubscriptionKey forTopic(TopicToken topic, NodeElementIdentifier subscriber) {
+        return (new ClusteredSubscriptionKey(topic, null, null, subscriber));
+    }
+
+    /**
+     * The topic of a version range key carries only the identifier (its version is null).
+     */
+    public static ClusteredSubscriptionKey forVersionRange(FDNToken topicID, TopicVersionRange versionRange, NodeElementIdentifier subscriber) {
+        return (new ClusteredSubscriptionKey(new TopicToken(topicID, null), null, versionRange, subscriber));
+    }
+
+    /**
+     * The pattern is normalised (see TopicSubscriptionTrie.parsePattern()), so equivalent spellings
+     * of a pattern share a key.
+     */
+    public static ClusteredSubscriptionKey forPattern(String topicPattern, NodeElementIdentifier subscriber) {
+        String normalisedPattern = String.join(TopicSubscriptionTrie.SEGMENT_SEPARATOR, TopicSubscriptionTrie.parsePattern(topicPattern));
+        return (new ClusteredSubscriptionKey(null, normalisedPattern, null, subscriber));
+    }
+
+    public boolean isPattern() {
+        return (topicPattern != null);
+    }
+
+    public boolean isVersionRange() {
+        return (versionRange != null);
+    }
+
+    public TopicVersionRange getVersionRange() {
+        return (versionRange);
+    }
+
+    public TopicToken getTopic() {
+        return (topic);
+    }
+
+    public String getTopicPattern() {
+        return (topicPattern);
+    }
+
+    public NodeElementIdentifier getSubscriber() {
+        return (subscriber);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return (true);
+        }
+        if (!(o instanceof ClusteredSubscriptionKey)) {
+            return (false);
+        }
+        ClusteredSubscriptionKey other = (ClusteredSubscriptionKey) o;
+        return (Objects.equals(topic, other.topic)
+                && Objects.equals(topicPattern, other.topicPattern)
+                && Objects.equals(versionRange, other.versionRange)
+                && Objects.equals(subscriber, other.subscriber));
+    }
+
+    @Override
+    public int hashCode() {
+        return (Objects.hash(topic, topicPattern, versionRange, subscriber));
+    }
+
+    @Override
+    public String toString() {
+        return ("ClusteredSubscriptionKey{topic=" + topic + ", topicPattern=" + topicPattern + ", versionRange=" + versionRange + ", subscriber=" + subscriber + "}");
+    }
+}
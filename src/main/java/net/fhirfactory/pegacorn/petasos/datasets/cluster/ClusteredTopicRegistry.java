@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cluster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.infinispan.Cache;
+import org.infinispan.commons.marshall.JavaSerializationMarshaller;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionTrie;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * The (optional) clustered mode of the Topic and Subscription registries.
+ * <p>
+ * When enabled, Topic registrations and subscriptions are written to a pair
+ * of replicated (REPL_SYNC) Infinispan caches rather than directly to the
+ * local TopicCacheDM/TopicSubscriptionMapDM. A listener on each node applies
+ * every replicated change to its local data managers, which therefore act as
+ * the near-cache: all reads (including the subscriber lookup hot path) stay
+ * local. Because replication is synchronous and the listeners are
+ * synchronous, a write returns only once every node has applied it - or
+ * fails once the replication timeout expires - which bounds the propagation
+ * time.
+ * <p>
+ * On joining, a node first publishes (putIfAbsent) whatever its data managers
+ * already hold - e.g. Topics from the TopicFileLoader, or state recovered by
+ * the TopicRegistryJournal - so that it can be removed cluster-wide later; it
+ * then seeds its data managers from the replicated state. A removal of
+ * something the replicas don't hold is applied to the local data managers.
+ * <p>
+ * Clustered mode is enabled via the {@value #CLUSTER_ENABLED_PROPERTY}
+ * system property; the JGroups stack, cluster name and replication timeout
+ * can be set via {@value #CLUSTER_JGROUPS_PROPERTY},
+ * {@value #CLUSTER_NAME_PROPERTY} and {@value #CLUSTER_TIMEOUT_PROPERTY}.
+ * Multiple nodes can be run in one JVM over the
+ * {@value #LOOPBACK_JGROUPS_CONFIGURATION} stack (each with its own data
+ * managers, see {@link #ClusteredTopicRegistry(TopicCacheDM, TopicSubscriptionMapDM)}).
+ * <p>
+ * Topics, TopicTokens and NodeElementIdentifiers are replicated using Java
+ * serialization (restricted to the pegacorn model and java.util classes).
+ */
+@ApplicationScoped
+public class ClusteredTopicRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClusteredTopicRegistry.class);
+
+    public static final String CLUSTER_ENABLED_PROPERTY = "petasos.datasets.cluster.enabled";
+    public static final String CLUSTER_NAME_PROPERTY = "petasos.datasets.cluster.name";
+    public static final String CLUSTER_JGROUPS_PROPERTY = "petasos.datasets.cluster.jgroups";
+    public static final String CLUSTER_TIMEOUT_PROPERTY = "petasos.datasets.cluster.replication-timeout-ms";
+
+    public static final String DEFAULT_CLUSTER_NAME = "petasos-datasets";
+    public static final String DEFAULT_JGROUPS_CONFIGURATION = "default-configs/default-jgroups-tcp.xml";
+    public static final String LOOPBACK_JGROUPS_CONFIGURATION = "petasos-datasets-jgroups-loopback.xml";
+    public static final long DEFAULT_REPLICATION_TIMEOUT_MILLIS = 5000L;
+
+    static final String TOPIC_CACHE_NAME = "petasos-datasets-topics";
+    static final String SUBSCRIPTION_CACHE_NAME = "petasos-datasets-subscriptions";
+
+    @Inject
+    TopicCacheDM topicSetCache;
+
+    @Inject
+    TopicSubscriptionMapDM subscriptionCache;
+
+    private EmbeddedCacheManager cacheManager;
+    private Cache<TopicToken, Topic> topicReplica;
+    private Cache<ClusteredSubscriptionKey, Boolean> subscriptionReplica;
+    private volatile boolean enabled;
+
+    public ClusteredTopicRegistry() {
+        this.enabled = false;
+    }
+
+    /**
+     * Creates a registry (node) over the given data managers, e.g. to run
+     * several nodes within one JVM.
+     */
+    public ClusteredTopicRegistry(TopicCacheDM topicSetCache, TopicSubscriptionMapDM subscriptionCache) {
+        this();
+        this.topicSetCache = topicSetCache;
+        this.subscriptionCache = subscriptionCache;
+    }
+
+    @PostConstruct
+    public void initialise() {
+        LOG.debug(".initialise(): Entry");
+        if (Boolean.getBoolean(CLUSTER_ENABLED_PROPERTY)) {
+            String clusterName = System.getProperty(CLUSTER_NAME_PROPERTY, DEFAULT_CLUSTER_NAME);
+            String jgroupsConfiguration = System.getProperty(CLUSTER_JGROUPS_PROPERTY, DEFAULT_JGROUPS_CONFIGURATION);
+            long replicationTimeout = Long.getLong(CLUSTER_TIMEOUT_PROPERTY, DEFAULT_REPLICATION_TIMEOUT_MILLIS);
+            start(clusterName, jgroupsConfiguration, replicationTimeout);
+        } else {
+            LOG.debug(".initialise(): Clustered mode is not enabled");
+        }
+        LOG.debug(".initialise(): Exit");
+    }
+
+    /**
+     * Joins the cluster, publishes the local state, seeds the local data
+     * managers from the replicated state and starts applying replicated changes.
+     *
+     * @param clusterName The cluster to join
+     * @param jgroupsConfiguration The JGroups stack (file or classpath resource)
+     * @param replicationTimeoutMillis The maximum time a write waits for the other nodes
+     */
+    public synchronized void start(String clusterName, String jgroupsConfiguration, long replicationTimeoutMillis) {
+        LOG.debug(".start(): Entry, clusterName --> {}, jgroupsConfiguration --> {}", clusterName, jgroupsConfiguration);
+        if (enabled) {
+            throw (new IllegalStateException(".start(): registry is already clustered"));
+        }
+        if ((topicSetCache == null) || (subscriptionCache == null)) {
+            throw (new IllegalStateException(".start(): topicSetCache or subscriptionCache is null"));
+        }
+        GlobalConfigurationBuilder globalConfiguration = GlobalConfigurationBuilder.defaultClusteredBuilder();
+        globalConfiguration.transport()
+                .clusterName(clusterName)
+                .addProperty("configurationFile", jgroupsConfiguration);
+        globalConfiguration.serialization()
+                .marshaller(new JavaSerializationMarshaller())
+                .whiteList()
+                .addRegexps("net\\.fhirfactory\\.pegacorn\\..*", "java\\.util\\..*");
+        ConfigurationBuilder replicaConfiguration = new ConfigurationBuilder();
+        replicaConfiguration.clustering()
+                .cacheMode(CacheMode.REPL_SYNC)
+                .remoteTimeout(replicationTimeoutMillis, TimeUnit.MILLISECONDS);
+        cacheManager = new DefaultCacheManager(globalConfiguration.build());
+        cacheManager.defineConfiguration(TOPIC_CACHE_NAME, replicaConfiguration.build());
+        cacheManager.defineConfiguration(SUBSCRIPTION_CACHE_NAME, replicaConfiguration.build());
+        topicReplica = cacheManager.getCache(TOPIC_CACHE_NAME);
+        subscriptionReplica = cacheManager.getCache(SUBSCRIPTION_CACHE_NAME);
+        // Before listening, so publishing doesn't re-apply the local state to the local data managers
+        publishLocalState();
+        topicReplica.addListener(new TopicReplicaListener());
+        subscriptionReplica.addListener(new SubscriptionReplicaListener());
+        seedFromReplicas();
+        enabled = true;
+        LOG.info(".start(): Joined cluster --> {}, members --> {}", clusterName, cacheManager.getMembers());
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        LOG.debug(".stop(): Entry");
+        if (cacheManager != null) {
+            enabled = false;
+            cacheManager.stop();
+            cacheManager = null;
+            topicReplica = null;
+            subscriptionReplica = null;
+        }
+        LOG.debug(".stop(): Exit");
+    }
+
+    public boolean isEnabled() {
+        return (enabled);
+    }
+
+    public void registerTopic(Topic newTopic) {
+        LOG.debug(".registerTopic(): Entry, newTopic --> {}", newTopic);
+        if ((newTopic == null) || !newTopic.hasIdentifier()) {
+            throw (new IllegalArgumentException(".registerTopic(): newTopic is null or has a bad Identifier"));
+        }
+        topicReplica.put(newTopic.getTopicToken(), newTopic);
+    }
+
+    /**
+     * Registers a batch of Topics (e.g. an import) with a single replicated write.
+     */
+    public void registerTopics(Collection<Topic> newTopics) {
+        LOG.debug(".registerTopics(): Entry");
+        if (newTopics == null) {
+            throw (new IllegalArgumentException(".registerTopics(): newTopics is null"));
+        }
+        HashMap<TopicToken, Topic> topicBatch = new HashMap<TopicToken, Topic>();
+        for (Topic newTopic : newTopics) {
+            if ((newTopic == null) || !newTopic.hasIdentifier()) {
+                throw (new IllegalArgumentException(".registerTopics(): a Topic is null or has a bad Identifier"));
+            }
+            topicBatch.put(newTopic.getTopicToken(), newTopic);
+        }
+        topicReplica.putAll(topicBatch);
+    }
+
+    public void unregisterTopic(TopicToken topicID) {
+        LOG.debug(".unregisterTopic(): Entry, topicID --> {}", topicID);
+        if (topicID == null) {
+            throw (new IllegalArgumentException(".unregisterTopic(): topicID is null"));
+        }
+        if (topicReplica.remove(topicID) == null) {
+            LOG.debug(".unregisterTopic(): Topic isn't replicated, removing it locally");
+            topicSetCache.removeTopic(topicID);
+        }
+    }
+
+    public void addSubscriber(TopicToken topic, NodeElementIdentifier subscriber) {
+        LOG.debug(".addSubscriber(): Entry, topic --> {}, subscriber --> {}", topic, subscriber);
+        if ((topic == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".addSubscriber(): topic or subscriber is null"));
+        }
+        subscriptionReplica.put(ClusteredSubscriptionKey.forTopic(topic, subscriber), Boolean.TRUE);
+    }
+
+    /**
+     * As per addSubscriber(), for a subscription made by a SubscriptionLease (replicated as a FALSE
+     * value, which a later addSubscriber() overwrites with TRUE, i.e. makes permanent).
+     */
+    public void addLeasedSubscriber(TopicToken topic, NodeElementIdentifier subscriber) {
+        LOG.debug(".addLeasedSubscriber(): Entry, topic --> {}, subscriber --> {}", topic, subscriber);
+        if ((topic == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".addLeasedSubscriber(): topic or subscriber is null"));
+        }
+        subscriptionReplica.putIfAbsent(ClusteredSubscriptionKey.forTopic(topic, subscriber), Boolean.FALSE);
+    }
+
+    /**
+     * Adds a batch of (permanent) subscriptions (e.g. an import) with a single replicated write.
+     */
+    public void addSubscriptions(Collection<ClusteredSubscriptionKey> subscriptions) {
+        LOG.debug(".addSubscriptions(): Entry");
+        if (subscriptions == null) {
+            throw (new IllegalArgumentException(".addSubscriptions(): subscriptions is null"));
+        }
+        HashMap<ClusteredSubscriptionKey, Boolean> subscriptionBatch = new HashMap<ClusteredSubscriptionKey, Boolean>();
+        for (ClusteredSubscriptionKey subscription : subscriptions) {
+            subscriptionBatch.put(subscription, Boolean.TRUE);
+        }
+        subscriptionReplica.putAll(subscriptionBatch);
+    }
+
+    public void removeSubscriber(TopicToken topic, NodeElementIdentifier subscriber) {
+        LOG.debug(".removeSubscriber(): Entry, topic --> {}, subscriber --> {}", topic, subscriber);
+        if ((topic == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".removeSubscriber(): topic or subscriber is null"));
+        }
+        removeSubscription(ClusteredSubscriptionKey.forTopic(topic, subscriber));
+    }
+
+    public void addPatternSubscriber(String topicPattern, NodeElementIdentifier subscriber) {
+        LOG.debug(".addPatternSubscriber(): Entry, topicPattern --> {}, subscriber --> {}", topicPattern, subscriber);
+        if ((topicPattern == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".addPatternSubscriber(): topicPattern or subscriber is null"));
+        }
+        subscriptionReplica.put(ClusteredSubscriptionKey.forPattern(topicPattern, subscriber), Boolean.TRUE);
+    }
+
+    public void removePatternSubscriber(String topicPattern, NodeElementIdentifier subscriber) {
+        LOG.debug(".removePatternSubscriber(): Entry, topicPattern --> {}, subscriber --> {}", topicPattern, subscriber);
+        if ((topicPattern == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".removePatternSubscriber(): topicPattern or subscriber is null"));
+        }
+        removeSubscription(ClusteredSubscriptionKey.forPattern(topicPattern, subscriber));
+    }
+
+    public void addHierarchySubscriber(FDNToken containingTopicID, NodeElementIdentifier subscriber) {
+        addPatternSubscriber(TopicSubscriptionTrie.hierarchyPatternOf(containingTopicID), subscriber);
+    }
+
+    public void removeHierarchySubscriber(FDNToken containingTopicID, NodeElementIdentifier subscriber) {
+        removePatternSubscriber(TopicSubscriptionTrie.hierarchyPatternOf(containingTopicID), subscriber);
+    }
+
+    public void addVersionRangeSubscriber(FDNToken topicID, TopicVersionRange versionRange, NodeElementIdentifier subscriber) {
+        LOG.debug(".addVersionRangeSubscriber(): Entry, topicID --> {}, versionRange --> {}, subscriber --> {}", topicID, versionRange, subscriber);
+        if ((topicID == null) || (versionRange == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".addVersionRangeSubscriber(): topicID, versionRange or subscriber is null"));
+        }
+        subscriptionReplica.put(ClusteredSubscriptionKey.forVersionRange(topicID, versionRange, subscriber), Boolean.TRUE);
+    }
+
+    public void removeVersionRangeSubscriber(FDNToken topicID, TopicVersionRange versionRange, NodeElementIdentifier subscriber) {
+        LOG.debug(".removeVersionRangeSubscriber(): Entry, topicID --> {}, versionRange --> {}, subscriber --> {}", topicID, versionRange, subscriber);
+        if ((topicID == null) || (versionRange == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".removeVersionRangeSubscriber(): topicID, versionRange or subscriber is null"));
+        }
+        removeSubscription(ClusteredSubscriptionKey.forVersionRange(topicID, versionRange, subscriber));
+    }
+
+    /**
+     * Removes every subscription held by the subscriber, cluster-wide. The subscriptions are taken
+     * from the local (replicated) reverse index, so this does not scan the replicated cache.
+     *
+     * @return The number of subscriptions removed
+     */
+    public int removeAllSubscriptions(NodeElementIdentifier subscriber) {
+        LOG.debug(".removeAllSubscriptions(): Entry, subscriber --> {}", subscriber);
+        if (subscriber == null) {
+            throw (new IllegalArgumentException(".removeAllSubscriptions(): subscriber is null"));
+        }
+        int removedCount = 0;
+        for (TopicToken subscribedTopic : subscriptionCache.getSubscribedTopics(subscriber)) {
+            removeSubscription(ClusteredSubscriptionKey.forTopic(subscribedTopic, subscriber));
+            removedCount++;
+        }
+        for (String subscribedPattern : subscriptionCache.getSubscribedPatterns(subscriber)) {
+            removeSubscription(ClusteredSubscriptionKey.forPattern(subscribedPattern, subscriber));
+            removedCount++;
+        }
+        for (Map.Entry<FDNToken, List<TopicVersionRange>> subscribedRanges : subscriptionCache.getSubscribedVersionRanges(subscriber).entrySet()) {
+            for (TopicVersionRange subscribedRange : subscribedRanges.getValue()) {
+                removeSubscription(ClusteredSubscriptionKey.forVersionRange(subscribedRanges.getKey(), subscribedRange, subscriber));
+                removedCount++;
+            }
+        }
+        LOG.debug(".removeAllSubscriptions(): Exit, removed subscriptions --> {}", removedCount);
+        return (removedCount);
+    }
+
+    // A subscription only the local data managers hold (e.g. made before joining) is removed locally
+    private void removeSubscription(ClusteredSubscriptionKey subscription) {
+        if (subscriptionReplica.remove(subscription) == null) {
+            LOG.debug(".removeSubscription(): Subscription isn't replicated, removing it locally --> {}", subscription);
+            applySubscriptionRemoved(subscription);
+        }
+    }
+
+    //
+    // Applying replicated state to the local (near-cache) data managers
+    //
+
+    private void publishLocalState() {
+        int publishedCount = 0;
+        for (Topic localTopic : topicSetCache.getTopicSet()) {
+            if (topicReplica.putIfAbsent(localTopic.getTopicToken(), localTopic) == null) {
+                publishedCount++;
+            }
+        }
+        ArrayList<ClusteredSubscriptionKey> localSubscriptions = new ArrayList<ClusteredSubscriptionKey>();
+        ArrayList<ClusteredSubscriptionKey> localLeasedSubscriptions = new ArrayList<ClusteredSubscriptionKey>();
+        subscriptionCache.forEachSubscription((topic, subscribers) -> {
+            for (NodeElementIdentifier subscriber : subscribers) {
+                if (subscriptionCache.isLeasedSubscriber(topic, subscriber)) {
+                    localLeasedSubscriptions.add(ClusteredSubscriptionKey.forTopic(topic, subscriber));
+                } else {
+                    localSubscriptions.add(ClusteredSubscriptionKey.forTopic(topic, subscriber));
+                }
+            }
+        });
+        subscriptionCache.forEachPatternSubscription((topicPattern, subscribers) -> {
+            for (NodeElementIdentifier subscriber : subscribers) {
+                localSubscriptions.add(ClusteredSubscriptionKey.forPattern(topicPattern, subscriber));
+            }
+        });
+        subscriptionCache.forEachVersionRangeSubscription((topicID, versionRange, subscribers) -> {
+            for (NodeElementIdentifier subscriber : subscribers) {
+                localSubscriptions.add(ClusteredSubscriptionKey.forVersionRange(topicID, versionRange, subscriber));
+            }
+        });
+        for (ClusteredSubscriptionKey localSubscription : localSubscriptions) {
+            if (subscriptionReplica.putIfAbsent(localSubscription, Boolean.TRUE) == null) {
+                publishedCount++;
+            }
+        }
+        for (ClusteredSubscriptionKey localLeasedSubscription : localLeasedSubscriptions) {
+            if (subscriptionReplica.putIfAbsent(localLeasedSubscription, Boolean.FALSE) == null) {
+                publishedCount++;
+            }
+        }
+        LOG.debug(".publishLocalState(): Published local entries --> {}", publishedCount);
+    }
+
+    private void seedFromReplicas() {
+        ArrayList<Topic> replicatedTopics = new ArrayList<Topic>(topicReplica.values());
+        topicSetCache.addTopics(replicatedTopics);
+        for (Topic replicatedTopic : replicatedTopics) {
+            linkToContainingTopic(replicatedTopic);
+        }
+        for (Map.Entry<ClusteredSubscriptionKey, Boolean> subscription : subscriptionReplica.entrySet()) {
+            applySubscriptionAdded(subscription.getKey(), subscription.getValue());
+        }
+        LOG.debug(".seedFromReplicas(): Seeded topics --> {}, subscriptions --> {}", replicatedTopics.size(), subscriptionReplica.size());
+    }
+
+    private void applyTopicAdded(Topic topic) {
+        topicSetCache.addTopic(topic);
+        linkToContainingTopic(topic);
+    }
+
+    // The replicated (or re-written) containing Topic may already carry the link
+    private void linkToContainingTopic(Topic topic) {
+        if (topic.hasContainingDataset()) {
+            Topic containingTopic = topicSetCache.getTopic(topic.getContainingDataset());
+            if ((containingTopic != null) && !containingTopic.getContainedTopics().contains(topic.getIdentifier())) {
+                containingTopic.addContainedTopic(topic.getIdentifier());
+            }
+        }
+    }
+
+    private void applySubscriptionAdded(ClusteredSubscriptionKey subscription, Boolean permanent) {
+        if (Boolean.FALSE.equals(permanent)) {
+            subscriptionCache.addLeasedSubscriber(subscription.getTopic(), subscription.getSubscriber());
+        } else if (subscription.isPattern()) {
+            subscriptionCache.addPatternSubscriber(subscription.getTopicPattern(), subscription.getSubscriber());
+        } else if (subscription.isVersionRange()) {
+            subscriptionCache.addVersionRangeSubscriber(subscription.getTopic().getIdentifier(), subscription.getVersionRange(), subscription.getSubscriber());
+        } else {
+            subscriptionCache.addSubscriber(subscription.getTopic(), subscription.getSubscriber());
+        }
+    }
+
+    private void applySubscriptionRemoved(ClusteredSubscriptionKey subscription) {
+        if (subscription.isPattern()) {
+            subscriptionCache.removePatternSubscriber(subscription.getTopicPattern(), subscription.getSubscriber());
+        } else if (subscription.isVersionRange()) {
+            subscriptionCache.removeVersionRangeSubscriber(subscription.getTopic().getIdentifier(), subscription.getVersionRange(), subscription.getSubscriber());
+        } else {
+            subscriptionCache.removeSubscriber(subscription.getTopic(), subscription.getSubscriber());
+        }
+    }
+
+    @Listener
+    public class TopicReplicaListener {
+
+        @CacheEntryCreated
+        @CacheEntryModified
+        public void onTopicWritten(CacheEntryEvent<TopicToken, Topic> event) {
+            if (event.isPre()) {
+                return;
+            }
+            LOG.trace(".onTopicWritten(): Applying replicated Topic --> {}", event.getKey());
+            applyTopicAdded(event.getValue());
+        }
+
+        @CacheEntryRemoved
+        public void onTopicRemoved(CacheEntryRemovedEvent<TopicToken, Topic> event) {
+            if (event.isPre()) {
+                return;
+            }
+            LOG.trace(".onTopicRemoved(): Applying replicated Topic removal --> {}", event.getKey());
+            topicSetCache.removeTopic(event.getKey());
+        }
+    }
+
+    @Listener
+    public class SubscriptionReplicaListener {
+
+        // Modified when a leased subscription is made permanent
+        @CacheEntryCreated
+        @CacheEntryModified
+        public void onSubscriptionAdded(CacheEntryEvent<ClusteredSubscriptionKey, Boolean> event) {
+            if (event.isPre()) {
+                return;
+            }
+            LOG.trace(".onSubscriptionAdded(): Applying replicated subscription --> {}", event.getKey());
+            applySubscriptionAdded(event.getKey(), event.getValue());
+        }
+
+        @CacheEntryRemoved
+        public void onSubscriptionRemoved(CacheEntryRemovedEvent<ClusteredSubscriptionKey, Boolean> event) {
+            if (event.isPre()) {
+                return;
+            }
+            LOG.trace(".onSubscriptionRemoved(): Applying replicated subscription removal --> {}", event.getKey());
+            applySubscriptionRemoved(event.getKey());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.events;
+
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * A single (immutable) change to the Topic or Subscription registries.
+ * <p>
+ * Depending upon the event type, the event carries the Topic (TOPIC_*),
+ * the TopicToken (TOPIC_*, SUBSCRIBER_*, and - identifier only -
+ * VERSION_RANGE_SUBSCRIBER_*), the Topic pattern (PATTERN_SUBSCRIBER_*), the
+ * version range (VERSION_RANGE_SUBSCRIBER_*) and the subscriber (*SUBSCRIBER_*). The version is assigned by the TopicRegistryEventLog
+ * and increases monotonically across all events.
+ * <p>
+ * A SUBSCRIBER_ADDED event of a subscription made by a SubscriptionLease is
+ * flagged as leased: the subscription lasts only as long as the lease, so is
+ * not persisted (or exported). If it is later made permanent, a second,
+ * unflagged SUBSCRIBER_ADDED event is published.
+ */
+public final class TopicRegistryEvent {
+
+    private final long version;
+    private final TopicRegistryEventTypeEnum eventType;
+    private final Topic topic;
+    private final TopicToken topicToken;
+    private final String topicPattern;
+    private final TopicVersionRange versionRange;
+    private final NodeElementIdentifier subscriber;
+    private final boolean leased;
+
+    TopicRegistryEvent(long version, TopicRegistryEventTypeEnum eventType, Topic topic, TopicToken topicToken, String topicPattern, TopicVersionRange versionRange,
+            NodeElementIdentifier subscriber, boolean leased) {
+        this.version = version;
+        this.eventType = eventType;
+        this.topic = topic;
+        this.topicToken = topicToken;
+        this.topicPattern = topicPattern;
+        this.versionRange = versionRange;
+        this.subscriber = subscriber;
+        this.leased = leased;
+    }
+
+    public long getVersion() {
+        return (version);
+    }
+
+    public TopicRegistryEventTypeEnum getEventType() {
+        return (eventType);
+    }
+
+    public Topic getTopic() {
+        return (topic);
+    }
+
+    public TopicToken getTopicToken() {
+        return (topicToken);
+    }
+
+    public String getTopicPattern() {
+        return (topicPattern);
+    }
+
+    public TopicVersionRange getVersionRange() {
+        return (versionRange);
+    }
+
+    public NodeElementIdentifier getSubscriber() {
+        return (subscriber);
+    }
+
+    public boolean isLeased() {
+        return (leased);
+    }
+
+    @Override
+    public String toString() {
+        return ("TopicRegistryEvent{version=" + version + ", eventType=" + eventType + ", topicToken=" + topicToken
+                + ", topicPattern=" + topicPattern + ", versionRange=" + versionRange + ", subscriber=" + subscriber + ", leased=" + leased + "}");
+    }
+}
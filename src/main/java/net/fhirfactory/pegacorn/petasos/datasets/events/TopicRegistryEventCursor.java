@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.events;
+
+import java.util.function.Consumer;
+
+/**
+ * A single consumer's position within the TopicRegistryEventLog. Cursors are
+ * not thread-safe - each consuming thread should hold its own.
+ */
+public class TopicRegistryEventCursor {
+
+    private final TopicRegistryEventLog eventLog;
+    private long nextVersion;
+
+    TopicRegistryEventCursor(TopicRegistryEventLog eventLog, long nextVersion) {
+        this.eventLog = eventLog;
+        this.nextVersion = nextVersion;
+    }
+
+    /**
+     * Hands the next (up to maxEvents) published events, in version order, to the consumer.
+     *
+     * @param consumer The recipient of the events
+     * @param maxEvents The maximum number of events to hand over
+     * @return The number of events handed over
+     * @throws IllegalStateException if the cursor has been overrun (its next event has been
+     * overwritten) - the consumer should rebuild its view and reposition the cursor
+     */
+    public int poll(Consumer<TopicRegistryEvent> consumer, int maxEvents) {
+        int count = 0;
+        while (count < maxEvents) {
+            TopicRegistryEvent event = eventLog.read(nextVersion);
+            if (event == null) {
+                break;
+            }
+            consumer.accept(event);
+            nextVersion++;
+            count++;
+        }
+        return (count);
+    }
+
+    public boolean isOverrun() {
+        return (nextVersion < eventLog.getOldestRetainedVersion());
+    }
+
+    /**
+     * @return The version of the next event this cursor will return
+     */
+    public long getNextVersion() {
+        return (nextVersion);
+    }
+
+    /**
+     * Repositions the cursor, e.g. after rebuilding a view following an overrun.
+     */
+    public void seek(long version) {
+        if (version < 0) {
+            throw (new IllegalArgumentException(".seek(): version is negative"));
+        }
+        this.nextVersion = version;
+    }
+
+    /**
+     * Repositions the cursor after the latest published event.
+     */
+    public void seekToLatest() {
+        this.nextVersion = eventLog.getNextVersion();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.events;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * A bounded, lock-free ring buffer of the changes made to the Topic and
+ * Subscription registries (see TopicRegistryEvent).
+ * <p>
+ * Publishing never blocks: each event is assigned the next version and
+ * written into its slot, overwriting the event published one capacity
+ * earlier. Any number of consumers read the log independently, each through
+ * its own TopicRegistryEventCursor, so a consumer can maintain a derived
+ * view (e.g. a routing table) incrementally and resume from the last version
+ * it applied. A consumer that falls more than one capacity behind is told it
+ * has been overrun and must rebuild its view from the registries.
+ * <p>
+ * The capacity (rounded up to a power of two) can be set via the
+ * {@value #CAPACITY_PROPERTY} system property.
+ */
+@ApplicationScoped
+public class TopicRegistryEventLog {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicRegistryEventLog.class);
+
+    public static final String CAPACITY_PROPERTY = "petasos.datasets.events.capacity";
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    private final AtomicReferenceArray<TopicRegistryEvent> ring;
+    private final int mask;
+    private final AtomicLong nextVersion;
+
+    public TopicRegistryEventLog() {
+        this(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+    }
+
+    public TopicRegistryEventLog(int capacity) {
+        if (capacity <= 0) {
+            throw (new IllegalArgumentException(".TopicRegistryEventLog(): capacity must be positive"));
+        }
+        int ringSize = Integer.highestOneBit(capacity);
+        if (ringSize < capacity) {
+            ringSize = ringSize << 1;
+        }
+        this.ring = new AtomicReferenceArray<TopicRegistryEvent>(ringSize);
+        this.mask = ringSize - 1;
+        this.nextVersion = new AtomicLong(0);
+    }
+
+    public TopicRegistryEvent publish(TopicRegistryEventTypeEnum eventType, Topic topic, TopicToken topicToken, String topicPattern, NodeElementIdentifier subscriber) {
+        return (publish(eventType, topic, topicToken, topicPattern, null, subscriber));
+    }
+
+    public TopicRegistryEvent publish(TopicRegistryEventTypeEnum eventType, Topic topic, TopicToken topicToken, String topicPattern, TopicVersionRange versionRange, NodeElementIdentifier subscriber) {
+        return (publish(eventType, topic, topicToken, topicPattern, versionRange, subscriber, false));
+    }
+
+    /**
+     * Publishes the SUBSCRIBER_ADDED event of a subscription made by a SubscriptionLease.
+     */
+    public TopicRegistryEvent publishLeasedSubscriberAdded(TopicToken topicToken, NodeElementIdentifier subscriber) {
+        return (publish(TopicRegistryEventTypeEnum.SUBSCRIBER_ADDED, null, topicToken, null, null, subscriber, true));
+    }
+
+    private TopicRegistryEvent publish(TopicRegistryEventTypeEnum eventType, Topic topic, TopicToken topicToken, String topicPattern, TopicVersionRange versionRange,
+            NodeElementIdentifier subscriber, boolean leased) {
+        long version = nextVersion.getAndIncrement();
+        TopicRegistryEvent event = new TopicRegistryEvent(version, eventType, topic, topicToken, topicPattern, versionRange, subscriber, leased);
+        ring.set((int) (version & mask), event);
+        LOG.trace(".publish(): Published --> {}", event);
+        return (event);
+    }
+
+    /**
+     * @return The version the next published event will be given
+     */
+    public long getNextVersion() {
+        return (nextVersion.get());
+    }
+
+    /**
+     * @return The oldest version that is still retained in the log
+     */
+    public long getOldestRetainedVersion() {
+        return (Math.max(0, nextVersion.get() - ring.length()));
+    }
+
+    public int getCapacity() {
+        return (ring.length());
+    }
+
+    /**
+     * @return A cursor positioned after the latest published event (i.e. it sees only future events)
+     */
+    public TopicRegistryEventCursor newCursor() {
+        return (new TopicRegistryEventCursor(this, nextVersion.get()));
+    }
+
+    /**
+     * @param fromVersion The first version the cursor is to return
+     * @return A cursor positioned at the given version
+     */
+    public TopicRegistryEventCursor newCursor(long fromVersion) {
+        if (fromVersion < 0) {
+            throw (new IllegalArgumentException(".newCursor(): fromVersion is negative"));
+        }
+        return (new TopicRegistryEventCursor(this, fromVersion));
+    }
+
+    /**
+     * Reads the event with the given version.
+     *
+     * @return The event, or null if it has not been published (yet)
+     * @throws IllegalStateException if the event has already been overwritten
+     */
+    TopicRegistryEvent read(long version) {
+        if (version >= nextVersion.get()) {
+            return (null);
+        }
+        TopicRegistryEvent event = ring.get((int) (version & mask));
+        if ((event == null) || (event.getVersion() < version)) {
+            // The version has been claimed, but the publisher hasn't written the slot yet
+            return (null);
+        }
+        if (event.getVersion() > version) {
+            throw (new IllegalStateException(".read(): version " + version + " has been overwritten, oldest retained version is " + getOldestRetainedVersion()));
+        }
+        return (event);
+    }
+}
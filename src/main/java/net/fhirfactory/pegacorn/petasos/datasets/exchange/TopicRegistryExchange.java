@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.exchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredSubscriptionKey;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredTopicRegistry;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * Exports the Topic catalogue (TopicCacheDM) and/or the subscriptions
+ * (TopicSubscriptionMapDM) in a compact binary exchange format, and bulk
+ * imports such a file - e.g. to hand a catalogue from one node or
+ * environment to another, in place of the TopicsFile.json.
+ * <p>
+ * The JSON repeats its keys ("topicType", "topicName", "version",
+ * "containedElements") for every Topic. The exchange format instead holds
+ * each distinct string once, in a string table, and each FDN as a chain of
+ * RDN nodes in a node table (each node referring to its parent node by
+ * index), so a Topic is written as its node, its type and version string
+ * indexes and - as it is nearly always the parent of its own node - a single
+ * byte for its containing Topic. Subscriber lists are written as ascending
+ * gaps between subscriber indexes. Every count and index is a varint (see
+ * TopicRegistryExchangeCodec).
+ * <p>
+ * Layout (the sections present being given by the section flags, 1 = Topics,
+ * 2 = subscriptions; every section is prefixed with its byte length so a
+ * reader can slice it out of the file without decoding it):
+ * <pre>
+ * magic (int, "PDTX"), format version, section flags
+ * strings: count, longest UTF-8 length, { UTF-8 length, bytes }
+ * RDN nodes: count, { parent node + 1 (0 = outermost RDN), qualifier string + 1, value string + 1 }
+ * Topics: count, { node, type string + 1, version string + 1, container (0 = none, 1 = parent of the node, else node + 2) }
+ * subscriptions: subscriber count, { node }
+ *     subscribed Topic count, { node, version string + 1, subscriber count, { subscriber index gap } }
+ *     pattern count, { pattern string, subscriber count, { subscriber index gap } }
+ *     version range count, { node, range string, subscriber count, { subscriber index gap } }
+ * CRC32 (int) of all of the above
+ * </pre>
+ */
+@ApplicationScoped
+public class TopicRegistryExchange {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicRegistryExchange.class);
+
+    @Inject
+    TopicCacheDM topicSetCache;
+
+    @Inject
+    TopicSubscriptionMapDM subscriptionCache;
+
+    @Inject
+    ClusteredTopicRegistry clusteredRegistry;
+
+    public TopicRegistryExchange() {
+    }
+
+    /**
+     * Creates an exchange over the given data managers (e.g. outside a container), importing into
+     * them directly.
+     */
+    public TopicRegistryExchange(TopicCacheDM topicSetCache, TopicSubscriptionMapDM subscriptionCache) {
+        this(topicSetCache, subscriptionCache, null);
+    }
+
+    /**
+     * Creates an exchange over the given data managers, importing through the clustered registry
+     * whenever it is enabled.
+     */
+    public TopicRegistryExchange(TopicCacheDM topicSetCache, TopicSubscriptionMapDM subscriptionCache, ClusteredTopicRegistry clusteredRegistry) {
+        this.topicSetCache = topicSetCache;
+        this.subscriptionCache = subscriptionCache;
+        this.clusteredRegistry = clusteredRegistry;
+    }
+
+    /**
+     * Exports the Topic catalogue (as of a single TopicCatalogue snapshot).
+     *
+     * @return The number of Topics written
+     */
+    public int exportTopics(OutputStream output) throws IOException {
+        return (export(output, TopicRegistryExchangeCodec.TOPICS_SECTION));
+    }
+
+    /**
+     * Exports the exact, hierarchical/wildcard and version range subscriptions.
+     *
+     * @return The number of subscribed Topics, patterns and version ranges written
+     */
+    public int exportSubscriptions(OutputStream output) throws IOException {
+        return (export(output, TopicRegistryExchangeCodec.SUBSCRIPTIONS_SECTION));
+    }
+
+    /**
+     * Exports both the Topic catalogue and the subscriptions, in a single file.
+     *
+     * @return The number of Topics, subscribed Topics, patterns and version ranges written
+     */
+    public int exportRegistry(OutputStream output) throws IOException {
+        return (export(output, TopicRegistryExchangeCodec.TOPICS_SECTION | TopicRegistryExchangeCodec.SUBSCRIPTIONS_SECTION));
+    }
+
+    private int export(OutputStream output, int sections) throws IOException {
+        LOG.debug(".export(): Entry, sections --> {}", sections);
+        if (output == null) {
+            throw (new IllegalArgumentException(".export(): output is null"));
+        }
+        long startTime = System.nanoTime();
+        TopicRegistryExchangeWriter writer = new TopicRegistryExchangeWriter();
+        if ((sections & TopicRegistryExchangeCodec.TOPICS_SECTION) != 0) {
+            for (Topic topic : topicSetCache.getTopicCatalogue().asSet()) {
+                writer.addTopic(topic);
+            }
+        }
+        if ((sections & TopicRegistryExchangeCodec.SUBSCRIPTIONS_SECTION) != 0) {
+            SubscriptionCollector collector = new SubscriptionCollector(writer);
+            subscriptionCache.forEachPermanentSubscription(collector::addSubscription);
+            subscriptionCache.forEachPatternSubscription(collector::addPatternSubscription);
+            subscriptionCache.forEachVersionRangeSubscription(collector::addVersionRangeSubscription);
+            collector.rethrow();
+        }
+        writer.writeTo(output, sections);
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000L;
+        LOG.debug(".export(): Exit, entries --> {}, elapsed (ms) --> {}", writer.getEntryCount(), elapsedMillis);
+        return (writer.getEntryCount());
+    }
+
+    /**
+     * Memory-maps an exchange file and imports it (see importRegistry(ByteBuffer)).
+     */
+    public int importRegistry(Path exchangeFile) throws IOException {
+        if (exchangeFile == null) {
+            throw (new IllegalArgumentException(".importRegistry(): exchangeFile is null"));
+        }
+        try (FileChannel exchangeChannel = FileChannel.open(exchangeFile, StandardOpenOption.READ)) {
+            MappedByteBuffer exchange = exchangeChannel.map(FileChannel.MapMode.READ_ONLY, 0, exchangeChannel.size());
+            return (importRegistry(exchange));
+        }
+    }
+
+    /**
+     * Imports whichever of the Topic catalogue and the subscriptions the
+     * exchange file holds. The whole file is decoded (and verified) before
+     * anything is installed; the Topics are then installed as a single
+     * TopicCacheDM batch (so catalogue readers see all of them or none), and
+     * the subscriptions as a single TopicSubscriptionMapDM batch. As per
+     * addTopic()/addSubscriber(), existing entries are updated rather than
+     * replaced wholesale.
+     * <p>
+     * When the ClusteredTopicRegistry is enabled, the Topics and the
+     * subscriptions are instead each written to the replicated caches in a
+     * single write, and reach the local data managers (as on every other node)
+     * through the replication - they are then applied entry by entry, rather
+     * than as a batch.
+     *
+     * @param exchange The exchange file, from its position to its limit (which are left untouched)
+     * @return The number of Topics, subscribed Topics, patterns and version ranges imported
+     * @throws IOException If the buffer does not hold a (supported, intact) exchange file
+     */
+    public int importRegistry(ByteBuffer exchange) throws IOException {
+        LOG.debug(".importRegistry(): Entry");
+        long startTime = System.nanoTime();
+        TopicRegistryExchangeReader reader = TopicRegistryExchangeReader.open(exchange);
+        List<Topic> topics = reader.readTopics();
+        SubscriptionInstaller installer = new SubscriptionInstaller();
+        int subscriptionCount = reader.readSubscriptions(installer);
+        if ((clusteredRegistry != null) && clusteredRegistry.isEnabled()) {
+            if (!topics.isEmpty()) {
+                clusteredRegistry.registerTopics(topics);
+            }
+            if (subscriptionCount > 0) {
+                clusteredRegistry.addSubscriptions(installer.subscriptions);
+            }
+        } else {
+            if (!topics.isEmpty()) {
+                topicSetCache.applyBatch(() -> topicSetCache.addTopics(topics));
+            }
+            if (subscriptionCount > 0) {
+                subscriptionCache.applyBatch(installer::install);
+            }
+        }
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000L;
+        LOG.info(".importRegistry(): Exit, imported Topics --> {}, subscriptions --> {}, elapsed (ms) --> {}", topics.size(), subscriptionCount, elapsedMillis);
+        return (topics.size() + subscriptionCount);
+    }
+
+    /**
+     * Hands the subscription visitors' entries to the writer, holding on to the
+     * first IOException (which the visitors can't throw) for rethrowing.
+     */
+    private static final class SubscriptionCollector {
+        private final TopicRegistryExchangeWriter writer;
+        private IOException failure;
+
+        SubscriptionCollector(TopicRegistryExchangeWriter writer) {
+            this.writer = writer;
+        }
+
+        void addSubscription(TopicToken topic, Set<NodeElementIdentifier> subscribers) {
+            try {
+                if (failure == null) {
+                    writer.addSubscription(topic, subscribers);
+                }
+            } catch (IOException ioException) {
+                failure = ioException;
+            }
+        }
+
+        void addPatternSubscription(String topicPattern, Set<NodeElementIdentifier> subscribers) {
+            try {
+                if (failure == null) {
+                    writer.addPatternSubscription(topicPattern, subscribers);
+                }
+            } catch (IOException ioException) {
+                failure = ioException;
+            }
+        }
+
+        void addVersionRangeSubscription(FDNToken topicID, TopicVersionRange versionRange, Set<NodeElementIdentifier> subscribers) {
+            try {
+                if (failure == null) {
+                    writer.addVersionRangeSubscription(topicID, versionRange, subscribers);
+                }
+            } catch (IOException ioException) {
+                failure = ioException;
+            }
+        }
+
+        void rethrow() throws IOException {
+            if (failure != null) {
+                throw (failure);
+            }
+        }
+    }
+
+    /**
+     * Holds the decoded subscriptions until they are installed (within a TopicSubscriptionMapDM batch,
+     * or as a single ClusteredTopicRegistry write).
+     */
+    private final class SubscriptionInstaller implements TopicRegistryExchangeReader.SubscriptionVisitor {
+        private final ArrayList<ClusteredSubscriptionKey> subscriptions = new ArrayList<ClusteredSubscriptionKey>();
+
+        @Override
+        public void visitSubscription(TopicToken topic, List<NodeElementIdentifier> subscribers) {
+            for (NodeElementIdentifier subscriber : subscribers) {
+                subscriptions.add(ClusteredSubscriptionKey.forTopic(topic, subscriber));
+            }
+        }
+
+        @Override
+        public void visitPatternSubscription(String topicPattern, List<NodeElementIdentifier> subscribers) {
+            for (NodeElementIdentifier subscriber : subscribers) {
+                subscriptions.add(ClusteredSubscriptionKey.forPattern(topicPattern, subscriber));
+            }
+        }
+
+        @Override
+        public void visitVersionRangeSubscription(FDNToken topicID, TopicVersionRange versionRange, List<NodeElementIdentifier> subscribers) {
+            for (NodeElementIdentifier subscriber : subscribers) {
+                subscriptions.add(ClusteredSubscriptionKey.forVersionRange(topicID, versionRange, subscriber));
+            }
+        }
+
+        void install() {
+            for (ClusteredSubscriptionKey subscription : subscriptions) {
+                if (subscription.isPattern()) {
+                    subscriptionCache.addPatternSubscriber(subscription.getTopicPattern(), subscription.getSubscriber());
+                } else if (subscription.isVersionRange()) {
+                    subscriptionCache.addVersionRangeSubscriber(subscription.getTopic().getIdentifier(), subscription.getVersionRange(), subscription.getSubscriber());
+                } else {
+                    subscriptionCache.addSubscriber(subscription.getTopic(), subscription.getSubscriber());
+                }
+            }
+        }
+    }
+}
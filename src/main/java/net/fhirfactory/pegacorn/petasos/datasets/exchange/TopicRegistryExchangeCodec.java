@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.exchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The primitive encodings of the Topic registry exchange format.
+ * <p>
+ * Counts, lengths and table indexes are written as unsigned LEB128 varints
+ * (7 bits per byte, low-order group first, high bit set on every byte but
+ * the last), so the small values that dominate an exchange file take a
+ * single byte. A nullable table reference is written as its index + 1, with
+ * 0 meaning null. Strings are written as a varint UTF-8 byte length followed
+ * by the bytes.
+ */
+final class TopicRegistryExchangeCodec {
+
+    static final int EXCHANGE_MAGIC = 0x50445458; // "PDTX"
+    static final int FORMAT_VERSION = 1;
+
+    static final int TOPICS_SECTION = 0x1;
+    static final int SUBSCRIPTIONS_SECTION = 0x2;
+
+    static final int NULL_REFERENCE = 0;
+
+    // A Topic's container reference: none, the parent of its own FDN node (the usual case), or FDN node (reference - 2)
+    static final int NO_CONTAINER = 0;
+    static final int PARENT_CONTAINER = 1;
+    static final int CONTAINER_NODE_OFFSET = 2;
+
+    private static final int MAX_VARINT_BYTES = 5;
+
+    private TopicRegistryExchangeCodec() {
+    }
+
+    static void writeVarInt(OutputStream output, int value) throws IOException {
+        if (value < 0) {
+            throw (new IllegalArgumentException(".writeVarInt(): value is negative --> " + value));
+        }
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value = value >>> 7;
+        }
+        output.write(value);
+    }
+
+    static int readVarInt(ByteBuffer input) throws IOException {
+        int value = 0;
+        for (int counter = 0; counter < MAX_VARINT_BYTES; counter++) {
+            byte nextByte = input.get();
+            value = value | ((nextByte & 0x7F) << (7 * counter));
+            if (nextByte >= 0) {
+                if (value < 0) {
+                    throw (new IOException(".readVarInt(): varint is out of range"));
+                }
+                return (value);
+            }
+        }
+        throw (new IOException(".readVarInt(): varint is longer than " + MAX_VARINT_BYTES + " bytes"));
+    }
+
+    static void writeReference(OutputStream output, int index) throws IOException {
+        writeVarInt(output, index + 1);
+    }
+
+    /**
+     * @return The index referred to, or -1 for null
+     */
+    static int readReference(ByteBuffer input) throws IOException {
+        return (readVarInt(input) - 1);
+    }
+
+    static void writeString(OutputStream output, String value) throws IOException {
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(output, valueBytes.length);
+        output.write(valueBytes);
+    }
+
+    /**
+     * Decodes a string straight out of the buffer's backing array where it
+     * has one (e.g. a heap buffer), otherwise via the scratch array.
+     *
+     * @param scratch A reusable array, at least as long as the longest string
+     */
+    static String readString(ByteBuffer input, byte[] scratch) throws IOException {
+        int length = readVarInt(input);
+        if (length > input.remaining()) {
+            throw (new IOException(".readString(): string overruns its section, length --> " + length));
+        }
+        String value;
+        if (input.hasArray()) {
+            value = new String(input.array(), input.arrayOffset() + input.position(), length, StandardCharsets.UTF_8);
+            input.position(input.position() + length);
+        } else {
+            input.get(scratch, 0, length);
+            value = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+        return (value);
+    }
+}
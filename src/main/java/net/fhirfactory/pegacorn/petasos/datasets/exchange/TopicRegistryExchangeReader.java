@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.exchange;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * Reads a Topic registry exchange file (see TopicRegistryExchange for the
+ * layout) straight out of a ByteBuffer - e.g. a memory-mapped file - without
+ * copying it: each section is a slice of the buffer, strings are decoded from
+ * the buffer's backing array (or, for a direct buffer, through one scratch
+ * array sized to the longest string), and each distinct String, RDN and
+ * FDNToken is created once and shared by every Topic and subscription that
+ * uses it.
+ * <p>
+ * The string and RDN node tables are decoded when the reader is opened, the
+ * Topic and subscription sections each time they are read. A reader is not
+ * thread-safe.
+ */
+public final class TopicRegistryExchangeReader {
+
+    private static final int HEADER_LENGTH = 4;
+    private static final int CHECKSUM_LENGTH = 4;
+
+    private final String[] strings;
+    private final int[] nodeParents;
+    private final int[] nodeQualifiers;
+    private final int[] nodeValues;
+    private final RDN[] nodeRDNs;
+    private final FDNToken[] nodeTokens;
+    private final ByteBuffer topicSection;
+    private final ByteBuffer subscriptionSection;
+
+    private TopicRegistryExchangeReader(String[] strings, int[] nodeParents, int[] nodeQualifiers, int[] nodeValues, ByteBuffer topicSection, ByteBuffer subscriptionSection) {
+        this.strings = strings;
+        this.nodeParents = nodeParents;
+        this.nodeQualifiers = nodeQualifiers;
+        this.nodeValues = nodeValues;
+        this.nodeRDNs = new RDN[nodeParents.length];
+        this.nodeTokens = new FDNToken[nodeParents.length];
+        this.topicSection = topicSection;
+        this.subscriptionSection = subscriptionSection;
+    }
+
+    /**
+     * Verifies the exchange file's checksum and decodes its string and RDN node
+     * tables. The buffer's position and limit are left untouched.
+     *
+     * @param exchange The exchange file, from its position to its limit
+     * @return A reader over the file
+     * @throws IOException If the buffer does not hold a (supported, intact) exchange file
+     */
+    public static TopicRegistryExchangeReader open(ByteBuffer exchange) throws IOException {
+        if (exchange == null) {
+            throw (new IllegalArgumentException(".open(): exchange is null"));
+        }
+        ByteBuffer input = exchange.slice();
+        if (input.limit() < HEADER_LENGTH + CHECKSUM_LENGTH) {
+            throw (new IOException(".open(): exchange file is truncated"));
+        }
+        int storedChecksum = input.getInt(input.limit() - CHECKSUM_LENGTH);
+        input.limit(input.limit() - CHECKSUM_LENGTH);
+        CRC32 exchangeChecksum = new CRC32();
+        exchangeChecksum.update(input.duplicate());
+        if ((int) exchangeChecksum.getValue() != storedChecksum) {
+            throw (new IOException(".open(): exchange file checksum mismatch"));
+        }
+        try {
+            int magic = input.getInt();
+            int formatVersion = TopicRegistryExchangeCodec.readVarInt(input);
+            if ((magic != TopicRegistryExchangeCodec.EXCHANGE_MAGIC) || (formatVersion != TopicRegistryExchangeCodec.FORMAT_VERSION)) {
+                throw (new IOException(".open(): not a (supported) Topic registry exchange file"));
+            }
+            int sections = TopicRegistryExchangeCodec.readVarInt(input);
+
+            ByteBuffer stringSection = nextSection(input);
+            String[] strings = new String[TopicRegistryExchangeCodec.readVarInt(stringSection)];
+            int longestStringLength = TopicRegistryExchangeCodec.readVarInt(stringSection);
+            byte[] scratch = stringSection.hasArray() ? null : new byte[longestStringLength];
+            for (int counter = 0; counter < strings.length; counter++) {
+                strings[counter] = TopicRegistryExchangeCodec.readString(stringSection, scratch);
+            }
+
+            ByteBuffer nodeSection = nextSection(input);
+            int nodeCount = TopicRegistryExchangeCodec.readVarInt(nodeSection);
+            int[] nodeParents = new int[nodeCount];
+            int[] nodeQualifiers = new int[nodeCount];
+            int[] nodeValues = new int[nodeCount];
+            for (int counter = 0; counter < nodeCount; counter++) {
+                nodeParents[counter] = TopicRegistryExchangeCodec.readReference(nodeSection);
+                nodeQualifiers[counter] = checkString(strings, TopicRegistryExchangeCodec.readReference(nodeSection));
+                nodeValues[counter] = checkString(strings, TopicRegistryExchangeCodec.readReference(nodeSection));
+                // Parents precede their children, which also rules out cycles
+                if (nodeParents[counter] >= counter) {
+                    throw (new IOException(".open(): RDN node refers forward to its parent, node --> " + counter));
+                }
+            }
+
+            ByteBuffer topicSection = null;
+            if ((sections & TopicRegistryExchangeCodec.TOPICS_SECTION) != 0) {
+                topicSection = nextSection(input);
+            }
+            ByteBuffer subscriptionSection = null;
+            if ((sections & TopicRegistryExchangeCodec.SUBSCRIPTIONS_SECTION) != 0) {
+                subscriptionSection = nextSection(input);
+            }
+            return (new TopicRegistryExchangeReader(strings, nodeParents, nodeQualifiers, nodeValues, topicSection, subscriptionSection));
+        } catch (BufferUnderflowException truncated) {
+            throw (new IOException(".open(): exchange file is truncated", truncated));
+        }
+    }
+
+    private static ByteBuffer nextSection(ByteBuffer input) throws IOException {
+        int sectionLength = TopicRegistryExchangeCodec.readVarInt(input);
+        if (sectionLength > input.remaining()) {
+            throw (new IOException(".nextSection(): section overruns the exchange file, length --> " + sectionLength));
+        }
+        ByteBuffer section = input.slice();
+        section.limit(sectionLength);
+        input.position(input.position() + sectionLength);
+        return (section);
+    }
+
+    private static int checkString(String[] strings, int index) throws IOException {
+        if (index >= strings.length) {
+            throw (new IOException(".checkString(): string index out of range --> " + index));
+        }
+        return (index);
+    }
+
+    public boolean hasTopics() {
+        return (topicSection != null);
+    }
+
+    public boolean hasSubscriptions() {
+        return (subscriptionSection != null);
+    }
+
+    public int getStringCount() {
+        return (strings.length);
+    }
+
+    public int getNodeCount() {
+        return (nodeParents.length);
+    }
+
+    /**
+     * Decodes the Topics, in the order they were exported. As per the
+     * TopicFileLoader, each Topic's containing Topic (where it is within the
+     * exchange file) already has the Topic amongst its contained Topics - every
+     * version of the container, and each identifier only once.
+     *
+     * @return The Topics (empty if the file has no Topic section)
+     * @throws IOException If the Topic section is malformed
+     */
+    public List<Topic> readTopics() throws IOException {
+        if (topicSection == null) {
+            return (new ArrayList<Topic>());
+        }
+        ByteBuffer input = topicSection.duplicate();
+        try {
+            int topicCount = TopicRegistryExchangeCodec.readVarInt(input);
+            ArrayList<Topic> topics = new ArrayList<Topic>(topicCount);
+            int[] containerNodes = new int[topicCount];
+            // Every version of a Topic shares its node
+            HashMap<Integer, List<Topic>> topicsByNode = new HashMap<Integer, List<Topic>>();
+            for (int counter = 0; counter < topicCount; counter++) {
+                int topicNode = checkNode(TopicRegistryExchangeCodec.readVarInt(input));
+                String topicType = stringAt(TopicRegistryExchangeCodec.readReference(input));
+                String version = stringAt(TopicRegistryExchangeCodec.readReference(input));
+                int containerReference = TopicRegistryExchangeCodec.readVarInt(input);
+                Topic topic = new Topic();
+                topic.setIdentifier(tokenOf(topicNode));
+                if (topicType != null) {
+                    try {
+                        topic.setTopicType(TopicTypeEnum.valueOf(topicType));
+                    } catch (IllegalArgumentException unknownType) {
+                        throw (new IOException(".readTopics(): Unknown topicType --> " + topicType));
+                    }
+                }
+                topic.setVersion(version);
+                if (containerReference == TopicRegistryExchangeCodec.NO_CONTAINER) {
+                    containerNodes[counter] = -1;
+                } else if (containerReference == TopicRegistryExchangeCodec.PARENT_CONTAINER) {
+                    containerNodes[counter] = checkNode(nodeParents[topicNode]);
+                } else {
+                    containerNodes[counter] = checkNode(containerReference - TopicRegistryExchangeCodec.CONTAINER_NODE_OFFSET);
+                }
+                if (containerNodes[counter] != -1) {
+                    topic.setContainingDataset(tokenOf(containerNodes[counter]));
+                }
+                topicsByNode.computeIfAbsent(topicNode, key -> new ArrayList<Topic>(1)).add(topic);
+                topics.add(topic);
+            }
+            for (int counter = 0; counter < topicCount; counter++) {
+                List<Topic> containerVersions = topicsByNode.get(containerNodes[counter]);
+                if (containerVersions == null) {
+                    continue;
+                }
+                FDNToken containedID = topics.get(counter).getIdentifier();
+                for (Topic container : containerVersions) {
+                    // Each version of the contained Topic links the same identifier
+                    if (!container.getContainedTopics().contains(containedID)) {
+                        container.addContainedTopic(containedID);
+                    }
+                }
+            }
+            return (topics);
+        } catch (BufferUnderflowException truncated) {
+            throw (new IOException(".readTopics(): Topic section is truncated", truncated));
+        }
+    }
+
+    /**
+     * Hands every subscription in the exchange file to the visitor.
+     *
+     * @return The number of subscribed Topics, patterns and version ranges visited
+     * @throws IOException If the subscription section is malformed
+     */
+    public int readSubscriptions(SubscriptionVisitor visitor) throws IOException {
+        if (visitor == null) {
+            throw (new IllegalArgumentException(".readSubscriptions(): visitor is null"));
+        }
+        if (subscriptionSection == null) {
+            return (0);
+        }
+        ByteBuffer input = subscriptionSection.duplicate();
+        try {
+            NodeElementIdentifier[] subscribers = new NodeElementIdentifier[TopicRegistryExchangeCodec.readVarInt(input)];
+            for (int counter = 0; counter < subscribers.length; counter++) {
+                subscribers[counter] = new NodeElementIdentifier(tokenOf(checkNode(TopicRegistryExchangeCodec.readVarInt(input))));
+            }
+            int subscribedTopicCount = TopicRegistryExchangeCodec.readVarInt(input);
+            for (int counter = 0; counter < subscribedTopicCount; counter++) {
+                FDNToken topicID = tokenOf(checkNode(TopicRegistryExchangeCodec.readVarInt(input)));
+                String version = stringAt(TopicRegistryExchangeCodec.readReference(input));
+                visitor.visitSubscription(new TopicToken(topicID, version), readSubscribers(input, subscribers));
+            }
+            int patternCount = TopicRegistryExchangeCodec.readVarInt(input);
+            for (int counter = 0; counter < patternCount; counter++) {
+                String pattern = stringAt(TopicRegistryExchangeCodec.readVarInt(input));
+                visitor.visitPatternSubscription(pattern, readSubscribers(input, subscribers));
+            }
+            int versionRangeCount = TopicRegistryExchangeCodec.readVarInt(input);
+            for (int counter = 0; counter < versionRangeCount; counter++) {
+                FDNToken topicID = tokenOf(checkNode(TopicRegistryExchangeCodec.readVarInt(input)));
+                TopicVersionRange versionRange;
+                try {
+                    versionRange = TopicVersionRange.parse(stringAt(TopicRegistryExchangeCodec.readVarInt(input)));
+                } catch (IllegalArgumentException badRange) {
+                    throw (new IOException(".readSubscriptions(): bad version range", badRange));
+                }
+                visitor.visitVersionRangeSubscription(topicID, versionRange, readSubscribers(input, subscribers));
+            }
+            return (subscribedTopicCount + patternCount + versionRangeCount);
+        } catch (BufferUnderflowException truncated) {
+            throw (new IOException(".readSubscriptions(): subscription section is truncated", truncated));
+        }
+    }
+
+    private List<NodeElementIdentifier> readSubscribers(ByteBuffer input, NodeElementIdentifier[] subscribers) throws IOException {
+        int subscriberCount = TopicRegistryExchangeCodec.readVarInt(input);
+        ArrayList<NodeElementIdentifier> subscriberList = new ArrayList<NodeElementIdentifier>(subscriberCount);
+        int index = 0;
+        for (int counter = 0; counter < subscriberCount; counter++) {
+            index += TopicRegistryExchangeCodec.readVarInt(input);
+            if (index >= subscribers.length) {
+                throw (new IOException(".readSubscribers(): subscriber index out of range --> " + index));
+            }
+            subscriberList.add(subscribers[index]);
+        }
+        return (subscriberList);
+    }
+
+    private int checkNode(int node) throws IOException {
+        if ((node < 0) || (node >= nodeParents.length)) {
+            throw (new IOException(".checkNode(): RDN node index out of range --> " + node));
+        }
+        return (node);
+    }
+
+    private String stringAt(int index) throws IOException {
+        if (index == -1) {
+            return (null);
+        }
+        return (strings[checkString(strings, index)]);
+    }
+
+    /**
+     * @return The FDNToken of the given node, i.e. the RDNs on the path from the outermost node down to it
+     */
+    private FDNToken tokenOf(int node) {
+        FDNToken token = nodeTokens[node];
+        if (token != null) {
+            return (token);
+        }
+        int depth = 0;
+        for (int ancestor = node; ancestor != -1; ancestor = nodeParents[ancestor]) {
+            depth++;
+        }
+        int[] path = new int[depth];
+        for (int ancestor = node; ancestor != -1; ancestor = nodeParents[ancestor]) {
+            path[--depth] = ancestor;
+        }
+        FDN fdn = new FDN();
+        for (int pathNode : path) {
+            fdn.appendRDN(rdnOf(pathNode));
+        }
+        token = fdn.getToken();
+        nodeTokens[node] = token;
+        return (token);
+    }
+
+    private RDN rdnOf(int node) {
+        RDN rdn = nodeRDNs[node];
+        if (rdn == null) {
+            rdn = new RDN(stringAtUnchecked(nodeQualifiers[node]), stringAtUnchecked(nodeValues[node]));
+            nodeRDNs[node] = rdn;
+        }
+        return (rdn);
+    }
+
+    // The node table's string indexes were range checked when it was decoded
+    private String stringAtUnchecked(int index) {
+        return (index == -1 ? null : strings[index]);
+    }
+
+    /**
+     * The recipient of the subscriptions read from an exchange file.
+     */
+    public interface SubscriptionVisitor {
+
+        void visitSubscription(TopicToken topic, List<NodeElementIdentifier> subscribers);
+
+        void visitPatternSubscription(String topicPattern, List<NodeElementIdentifier> subscribers);
+
+        void visitVersionRangeSubscription(FDNToken topicID, TopicVersionRange versionRange, List<NodeElementIdentifier> subscribers);
+    }
+}
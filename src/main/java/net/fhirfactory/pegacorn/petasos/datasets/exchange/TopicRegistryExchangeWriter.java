@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.exchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * Builds the tables of an exchange file from the Topics and subscriptions
+ * added to it, then writes the whole file in one go (see
+ * TopicRegistryExchange for the layout).
+ * <p>
+ * Every FDN (Topic, container and subscriber identifiers alike) is broken
+ * into a tree of RDN nodes, each node holding the index of its parent node
+ * and the string indexes of its own qualifier and value - so the Sector,
+ * Category, Definer and Topic Group prefixes shared by thousands of Topics
+ * are each written once, and a Topic costs a handful of varints.
+ */
+final class TopicRegistryExchangeWriter {
+
+    private final ArrayList<String> strings = new ArrayList<String>();
+    private final HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+    private int longestStringLength = 0;
+
+    private final ArrayList<int[]> nodes = new ArrayList<int[]>();
+    private final HashMap<NodeKey, Integer> nodeIndexes = new HashMap<NodeKey, Integer>();
+    private final HashMap<FDNToken, Integer> fdnNodes = new HashMap<FDNToken, Integer>();
+
+    private final ArrayList<Integer> subscriberNodes = new ArrayList<Integer>();
+    private final HashMap<NodeElementIdentifier, Integer> subscriberIndexes = new HashMap<NodeElementIdentifier, Integer>();
+
+    private final ByteArrayOutputStream topicSection = new ByteArrayOutputStream();
+    private int topicCount = 0;
+    private final ByteArrayOutputStream subscribedTopicSection = new ByteArrayOutputStream();
+    private int subscribedTopicCount = 0;
+    private final ByteArrayOutputStream patternSection = new ByteArrayOutputStream();
+    private int patternCount = 0;
+    private final ByteArrayOutputStream versionRangeSection = new ByteArrayOutputStream();
+    private int versionRangeCount = 0;
+
+    void addTopic(Topic topic) throws IOException {
+        int topicNode = addFDN(topic.getIdentifier());
+        TopicRegistryExchangeCodec.writeVarInt(topicSection, topicNode);
+        TopicRegistryExchangeCodec.writeReference(topicSection, addString(topic.getTopicType() == null ? null : topic.getTopicType().name()));
+        TopicRegistryExchangeCodec.writeReference(topicSection, addString(topic.getVersion()));
+        if (!topic.hasContainingDataset()) {
+            TopicRegistryExchangeCodec.writeVarInt(topicSection, TopicRegistryExchangeCodec.NO_CONTAINER);
+        } else {
+            int containerNode = addFDN(topic.getContainingDataset());
+            if (containerNode == nodes.get(topicNode)[0]) {
+                TopicRegistryExchangeCodec.writeVarInt(topicSection, TopicRegistryExchangeCodec.PARENT_CONTAINER);
+            } else {
+                TopicRegistryExchangeCodec.writeVarInt(topicSection, containerNode + TopicRegistryExchangeCodec.CONTAINER_NODE_OFFSET);
+            }
+        }
+        topicCount++;
+    }
+
+    void addSubscription(TopicToken topic, Collection<NodeElementIdentifier> subscribers) throws IOException {
+        TopicRegistryExchangeCodec.writeVarInt(subscribedTopicSection, addFDN(topic.getIdentifier()));
+        TopicRegistryExchangeCodec.writeReference(subscribedTopicSection, addString(topic.getVersion()));
+        writeSubscribers(subscribedTopicSection, subscribers);
+        subscribedTopicCount++;
+    }
+
+    void addPatternSubscription(String pattern, Collection<NodeElementIdentifier> subscribers) throws IOException {
+        TopicRegistryExchangeCodec.writeVarInt(patternSection, addString(pattern));
+        writeSubscribers(patternSection, subscribers);
+        patternCount++;
+    }
+
+    void addVersionRangeSubscription(FDNToken topicID, TopicVersionRange versionRange, Collection<NodeElementIdentifier> subscribers) throws IOException {
+        TopicRegistryExchangeCodec.writeVarInt(versionRangeSection, addFDN(topicID));
+        TopicRegistryExchangeCodec.writeVarInt(versionRangeSection, addString(versionRange.toString()));
+        writeSubscribers(versionRangeSection, subscribers);
+        versionRangeCount++;
+    }
+
+    /**
+     * Writes the subscriber indexes in ascending order, each (after the first) as the gap from its predecessor.
+     */
+    private void writeSubscribers(OutputStream section, Collection<NodeElementIdentifier> subscribers) throws IOException {
+        int[] indexes = new int[subscribers.size()];
+        int counter = 0;
+        for (NodeElementIdentifier subscriber : subscribers) {
+            indexes[counter++] = addSubscriber(subscriber);
+        }
+        Arrays.sort(indexes);
+        TopicRegistryExchangeCodec.writeVarInt(section, indexes.length);
+        int previousIndex = 0;
+        for (int index : indexes) {
+            TopicRegistryExchangeCodec.writeVarInt(section, index - previousIndex);
+            previousIndex = index;
+        }
+    }
+
+    /**
+     * @return The number of Topics, subscribed Topics, patterns and version ranges added
+     */
+    int getEntryCount() {
+        return (topicCount + subscribedTopicCount + patternCount + versionRangeCount);
+    }
+
+    /**
+     * Writes the exchange file (the sections present being given by the section flags).
+     */
+    void writeTo(OutputStream output, int sections) throws IOException {
+        CheckedOutputStream checkedOutput = new CheckedOutputStream(output, new CRC32());
+        DataOutputStream dataOutput = new DataOutputStream(checkedOutput);
+        dataOutput.writeInt(TopicRegistryExchangeCodec.EXCHANGE_MAGIC);
+        TopicRegistryExchangeCodec.writeVarInt(dataOutput, TopicRegistryExchangeCodec.FORMAT_VERSION);
+        TopicRegistryExchangeCodec.writeVarInt(dataOutput, sections);
+
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        TopicRegistryExchangeCodec.writeVarInt(section, strings.size());
+        TopicRegistryExchangeCodec.writeVarInt(section, longestStringLength);
+        for (String value : strings) {
+            TopicRegistryExchangeCodec.writeString(section, value);
+        }
+        writeSection(dataOutput, section);
+
+        section.reset();
+        TopicRegistryExchangeCodec.writeVarInt(section, nodes.size());
+        for (int[] node : nodes) {
+            TopicRegistryExchangeCodec.writeReference(section, node[0]);
+            TopicRegistryExchangeCodec.writeReference(section, node[1]);
+            TopicRegistryExchangeCodec.writeReference(section, node[2]);
+        }
+        writeSection(dataOutput, section);
+
+        if ((sections & TopicRegistryExchangeCodec.TOPICS_SECTION) != 0) {
+            section.reset();
+            TopicRegistryExchangeCodec.writeVarInt(section, topicCount);
+            topicSection.writeTo(section);
+            writeSection(dataOutput, section);
+        }
+        if ((sections & TopicRegistryExchangeCodec.SUBSCRIPTIONS_SECTION) != 0) {
+            section.reset();
+            TopicRegistryExchangeCodec.writeVarInt(section, subscriberNodes.size());
+            for (int subscriberNode : subscriberNodes) {
+                TopicRegistryExchangeCodec.writeVarInt(section, subscriberNode);
+            }
+            TopicRegistryExchangeCodec.writeVarInt(section, subscribedTopicCount);
+            subscribedTopicSection.writeTo(section);
+            TopicRegistryExchangeCodec.writeVarInt(section, patternCount);
+            patternSection.writeTo(section);
+            TopicRegistryExchangeCodec.writeVarInt(section, versionRangeCount);
+            versionRangeSection.writeTo(section);
+            writeSection(dataOutput, section);
+        }
+        dataOutput.flush();
+        new DataOutputStream(output).writeInt((int) checkedOutput.getChecksum().getValue());
+        output.flush();
+    }
+
+    private static void writeSection(OutputStream output, ByteArrayOutputStream section) throws IOException {
+        TopicRegistryExchangeCodec.writeVarInt(output, section.size());
+        section.writeTo(output);
+    }
+
+    /**
+     * @return The string's index, or -1 for null
+     */
+    private int addString(String value) {
+        if (value == null) {
+            return (-1);
+        }
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = strings.size();
+            stringIndexes.put(value, index);
+            strings.add(value);
+            // An upper bound on the UTF-8 length, which spares encoding every string twice
+            longestStringLength = Math.max(longestStringLength, value.length() * 3);
+        }
+        return (index);
+    }
+
+    /**
+     * @return The index of the FDN's (innermost) RDN node
+     */
+    private int addFDN(FDNToken token) {
+        Integer fdnNode = fdnNodes.get(token);
+        if (fdnNode != null) {
+            return (fdnNode);
+        }
+        List<RDN> rdnSet = new FDN(token).getRDNSet();
+        if (rdnSet.isEmpty()) {
+            throw (new IllegalArgumentException(".addFDN(): FDN has no RDNs --> " + token));
+        }
+        int parentNode = -1;
+        for (RDN rdn : rdnSet) {
+            NodeKey key = new NodeKey(parentNode, addString(rdn.getNameQualifier()), addString(rdn.getNameValue()));
+            Integer node = nodeIndexes.get(key);
+            if (node == null) {
+                node = nodes.size();
+                nodeIndexes.put(key, node);
+                nodes.add(new int[]{key.parentNode, key.qualifier, key.value});
+            }
+            parentNode = node;
+        }
+        fdnNodes.put(token, parentNode);
+        return (parentNode);
+    }
+
+    private int addSubscriber(NodeElementIdentifier subscriber) {
+        Integer index = subscriberIndexes.get(subscriber);
+        if (index == null) {
+            index = subscriberNodes.size();
+            subscriberIndexes.put(subscriber, index);
+            subscriberNodes.add(addFDN(subscriber));
+        }
+        return (index);
+    }
+
+    private static final class NodeKey {
+        final int parentNode;
+        final int qualifier;
+        final int value;
+
+        NodeKey(int parentNode, int qualifier, int value) {
+            this.parentNode = parentNode;
+            this.qualifier = qualifier;
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NodeKey)) {
+                return (false);
+            }
+            NodeKey other = (NodeKey) o;
+            return (parentNode == other.parentNode && qualifier == other.qualifier && value == other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((parentNode * 31 + qualifier) * 31 + value);
+        }
+    }
+}
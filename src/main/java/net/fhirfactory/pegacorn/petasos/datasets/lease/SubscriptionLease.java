@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.lease;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * A time-bounded subscription of a WUP to a Topic: unless it is renewed
+ * (by the WUP's heartbeat) within its TTL, the SubscriptionLeaseManager
+ * removes the subscription - provided the lease made it, rather than the WUP
+ * already holding a permanent subscription to the Topic.
+ * <p>
+ * The lease's state is a single deadline (System.nanoTime() based), with
+ * two reserved values marking an expired or released lease. Renewal is a
+ * compare-and-set of the deadline - so it takes no lock, and can't race the
+ * expiry of the lease: whichever of the two moves the deadline first wins,
+ * and a renewal that loses reports the lease as no longer held.
+ */
+public final class SubscriptionLease {
+
+    private static final long EXPIRED = Long.MIN_VALUE;
+    private static final long RELEASED = Long.MIN_VALUE + 1;
+
+    private final TopicToken topic;
+    private final NodeElementIdentifier subscriber;
+    private final boolean subscriptionOwner;
+    private volatile long ttlNanos;
+    private final AtomicLong deadline;
+
+    // Owned by the SubscriptionLeaseTimingWheel (i.e. the ticker thread)
+    SubscriptionLease wheelNext;
+    long wheelTick;
+
+    SubscriptionLease(TopicToken topic, NodeElementIdentifier subscriber, boolean subscriptionOwner, long ttlNanos, long nowNanos) {
+        this.topic = topic;
+        this.subscriber = subscriber;
+        this.subscriptionOwner = subscriptionOwner;
+        this.ttlNanos = ttlNanos;
+        this.deadline = new AtomicLong(nowNanos + ttlNanos);
+    }
+
+    public TopicToken getTopic() {
+        return (topic);
+    }
+
+    public NodeElementIdentifier getSubscriber() {
+        return (subscriber);
+    }
+
+    /**
+     * @return true if the lease made the subscription (so its expiry removes it), false if the WUP
+     * already held a permanent subscription - which outlives the lease
+     */
+    public boolean isSubscriptionOwner() {
+        return (subscriptionOwner);
+    }
+
+    public long getTtlMillis() {
+        return (TimeUnit.NANOSECONDS.toMillis(ttlNanos));
+    }
+
+    /**
+     * @return true until the lease expires or is released
+     */
+    public boolean isHeld() {
+        return (isHeld(deadline.get()));
+    }
+
+    /**
+     * @return The time left before the lease expires (0 once it is no longer held)
+     */
+    public long getRemainingMillis() {
+        long currentDeadline = deadline.get();
+        if (!isHeld(currentDeadline)) {
+            return (0L);
+        }
+        return (Math.max(0L, TimeUnit.NANOSECONDS.toMillis(currentDeadline - System.nanoTime())));
+    }
+
+    long getDeadline() {
+        return (deadline.get());
+    }
+
+    static boolean isHeld(long deadlineValue) {
+        return ((deadlineValue != EXPIRED) && (deadlineValue != RELEASED));
+    }
+
+    /**
+     * Pushes the deadline out to a full TTL from now (never pulling it in).
+     *
+     * @return false if the lease has already expired or been released
+     */
+    boolean renew(long nowNanos) {
+        long newDeadline = nowNanos + ttlNanos;
+        while (true) {
+            long currentDeadline = deadline.get();
+            if (!isHeld(currentDeadline)) {
+                return (false);
+            }
+            if ((newDeadline - currentDeadline <= 0) || deadline.compareAndSet(currentDeadline, newDeadline)) {
+                return (true);
+            }
+        }
+    }
+
+    /**
+     * Changes the TTL, and renews the lease with it.
+     *
+     * @return false if the lease has already expired or been released
+     */
+    boolean renew(long newTtlNanos, long nowNanos) {
+        this.ttlNanos = newTtlNanos;
+        return (renew(nowNanos));
+    }
+
+    /**
+     * Expires the lease, provided it hasn't been renewed since its deadline was read.
+     *
+     * @param observedDeadline The (passed) deadline the caller read
+     * @return true if the lease is now expired
+     */
+    boolean expire(long observedDeadline) {
+        return (isHeld(observedDeadline) && deadline.compareAndSet(observedDeadline, EXPIRED));
+    }
+
+    /**
+     * @return true if the lease was held (and is now released)
+     */
+    boolean release() {
+        return (isHeld(deadline.getAndSet(RELEASED)));
+    }
+
+    @Override
+    public String toString() {
+        return ("SubscriptionLease{topic=" + topic + ", subscriber=" + subscriber + ", ttlMillis=" + getTtlMillis() + ", held=" + isHeld() + ", subscriptionOwner=" + subscriptionOwner + "}");
+    }
+}
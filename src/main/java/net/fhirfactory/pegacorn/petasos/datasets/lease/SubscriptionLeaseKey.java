@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.lease;
+
+import java.util.Objects;
+
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * The key of a lease within the SubscriptionLeaseManager: the (Topic, Subscriber) pair.
+ * The hash is computed once, as it is used both for the lease map and to pick the lock stripe.
+ */
+final class SubscriptionLeaseKey {
+
+    private final TopicToken topic;
+    private final NodeElementIdentifier subscriber;
+    private final int hash;
+
+    SubscriptionLeaseKey(TopicToken topic, NodeElementIdentifier subscriber) {
+        this.topic = topic;
+        this.subscriber = subscriber;
+        this.hash = Objects.hash(topic, subscriber);
+    }
+
+    TopicToken getTopic() {
+        return (topic);
+    }
+
+    NodeElementIdentifier getSubscriber() {
+        return (subscriber);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return (true);
+        }
+        if (!(o instanceof SubscriptionLeaseKey)) {
+            return (false);
+        }
+        SubscriptionLeaseKey other = (SubscriptionLeaseKey) o;
+        return ((hash == other.hash)
+                && topic.equals(other.topic)
+                && subscriber.equals(other.subscriber));
+    }
+
+    @Override
+    public int hashCode() {
+        return (hash);
+    }
+
+    @Override
+    public String toString() {
+        return ("SubscriptionLeaseKey{topic=" + topic + ", subscriber=" + subscriber + "}");
+    }
+}
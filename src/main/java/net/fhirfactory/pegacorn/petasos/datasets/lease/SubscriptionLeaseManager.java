@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.lease;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredTopicRegistry;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryMetrics;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryOperationEnum;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * Leased (time-bounded) subscriptions: a WUP subscribes with a TTL and
+ * renews the lease with its heartbeat, so that if the WUP dies without
+ * unsubscribing, its subscriptions are removed once its leases run out -
+ * rather than messages being routed to it forever.
+ * <p>
+ * Renewal is the hot path (every heartbeat renews every lease of the WUP),
+ * so it is a lookup and a compare-and-set of the lease's deadline, with no
+ * lock and no change to any shared structure. Expiry is driven by a
+ * hierarchical timing wheel owned by a single ticker thread: a new lease is
+ * handed to the ticker through a lock-free queue and placed in the wheel at
+ * its deadline; when the wheel reaches it, a lease that has been renewed in
+ * the meantime is simply placed again at its new deadline, and one that
+ * hasn't is expired. So there are no per-lease timers and no scans of the
+ * leases - each lease costs O(1) per TTL, however many leases there are.
+ * <p>
+ * An expired lease's subscription is removed just as TopicIM.removeSubscriber()
+ * would remove it (through the ClusteredTopicRegistry when that is enabled),
+ * so the removal is published to the TopicRegistryEventLog as a
+ * SUBSCRIBER_REMOVED event. Only a subscription the lease made is removed: a
+ * lease acquired while the WUP already holds a permanent subscription to the
+ * Topic leaves it in place when it expires (see
+ * SubscriptionLease.isSubscriptionOwner()). Acquiring, releasing and expiring
+ * the lease of a given Topic and subscriber are serialised on a lock stripe,
+ * so an expiry can never remove a subscription that has just been re-leased.
+ * <p>
+ * Leases subscribe and unsubscribe synchronously, bypassing the
+ * TopicRegistryWritePipeline by design: a subscription must be in place by
+ * the time acquireLease() returns, and its removal must happen under the
+ * lease's lock stripe - a queued change could otherwise be applied after the
+ * lease has been re-acquired. TopicIM releases the lease before queueing a
+ * permanent change to the same subscription, so the two never conflict.
+ * <p>
+ * Leases are held in memory only, so the subscriptions they make are added
+ * as leased subscriptions (see TopicSubscriptionMapDM.addLeasedSubscriber()):
+ * they are published to the event log, but are not journalled, snapshotted
+ * or exported - a leased subscription never comes back after a restart or
+ * an import without its lease. Making the subscription permanent (i.e.
+ * TopicIM.addTopicSubscriber()) turns it into an ordinary one.
+ * <p>
+ * The wheel advances every
+ * {@value #TICK_MILLIS_PROPERTY} milliseconds (default {@value #DEFAULT_TICK_MILLIS}),
+ * which bounds how late a lease can expire.
+ */
+@ApplicationScoped
+public class SubscriptionLeaseManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionLeaseManager.class);
+
+    public static final String TICK_MILLIS_PROPERTY = "petasos.datasets.leases.tick-millis";
+    public static final long DEFAULT_TICK_MILLIS = 100L;
+
+    private static final int LOCK_STRIPE_COUNT = 64;
+    private static final long TICKER_STOP_TIMEOUT_MILLIS = 30000L;
+
+    @Inject
+    TopicSubscriptionMapDM subscriptionCache;
+
+    @Inject
+    ClusteredTopicRegistry clusteredRegistry;
+
+    @Inject
+    TopicRegistryMetrics metrics;
+
+    private final ConcurrentHashMap<SubscriptionLeaseKey, SubscriptionLease> leases;
+    private final ConcurrentHashMap<NodeElementIdentifier, Set<SubscriptionLease>> leasesBySubscriber;
+    private final ConcurrentLinkedQueue<SubscriptionLease> newLeases;
+    private final Object[] lockStripes;
+    private final LongAdder expiredCount;
+    private final long tickNanos;
+    private final long originNanos;
+
+    // Owned by the ticker thread
+    private final SubscriptionLeaseTimingWheel wheel;
+    private final ArrayList<SubscriptionLease> dueLeases;
+
+    private volatile Thread ticker;
+    private volatile boolean running;
+
+    public SubscriptionLeaseManager() {
+        this(Long.getLong(TICK_MILLIS_PROPERTY, DEFAULT_TICK_MILLIS));
+    }
+
+    private SubscriptionLeaseManager(long tickMillis) {
+        if (tickMillis <= 0) {
+            throw (new IllegalArgumentException(".SubscriptionLeaseManager(): tickMillis must be positive"));
+        }
+        this.leases = new ConcurrentHashMap<SubscriptionLeaseKey, SubscriptionLease>();
+        this.leasesBySubscriber = new ConcurrentHashMap<NodeElementIdentifier, Set<SubscriptionLease>>();
+        this.newLeases = new ConcurrentLinkedQueue<SubscriptionLease>();
+        this.lockStripes = new Object[LOCK_STRIPE_COUNT];
+        for (int stripe = 0; stripe < LOCK_STRIPE_COUNT; stripe++) {
+            lockStripes[stripe] = new Object();
+        }
+        this.expiredCount = new LongAdder();
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.originNanos = System.nanoTime();
+        this.wheel = new SubscriptionLeaseTimingWheel(0L);
+        this.dueLeases = new ArrayList<SubscriptionLease>();
+        this.running = false;
+    }
+
+    /**
+     * Creates a lease manager over the given data manager (e.g. outside a container).
+     *
+     * @param tickMillis The interval at which the timing wheel advances
+     */
+    public SubscriptionLeaseManager(TopicSubscriptionMapDM subscriptionCache, ClusteredTopicRegistry clusteredRegistry, long tickMillis) {
+        this(tickMillis);
+        this.subscriptionCache = subscriptionCache;
+        this.clusteredRegistry = clusteredRegistry;
+        this.metrics = subscriptionCache.getMetrics();
+    }
+
+    public void onStartup(@Observes @Initialized(ApplicationScoped.class) Object initEvent) {
+        LOG.debug(".onStartup(): Entry");
+        start();
+        LOG.debug(".onStartup(): Exit");
+    }
+
+    /**
+     * Starts the ticker (leases acquired beforehand are only expired once it is running).
+     */
+    public synchronized void start() {
+        LOG.debug(".start(): Entry");
+        if (running) {
+            throw (new IllegalStateException(".start(): lease manager is already started"));
+        }
+        if ((subscriptionCache == null) || (clusteredRegistry == null)) {
+            throw (new IllegalStateException(".start(): subscriptionCache or clusteredRegistry is null"));
+        }
+        this.running = true;
+        this.ticker = new Thread(this::runTicker, "petasos-datasets-lease-ticker");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+        LOG.info(".start(): Started the lease ticker, tick (ms) --> {}", TimeUnit.NANOSECONDS.toMillis(tickNanos));
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        LOG.debug(".stop(): Entry");
+        if (!running) {
+            LOG.debug(".stop(): Exit, lease manager is not started");
+            return;
+        }
+        this.running = false;
+        LockSupport.unpark(ticker);
+        try {
+            ticker.join(TICKER_STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        LOG.info(".stop(): Stopped the lease ticker, leases --> {}, expired --> {}", leases.size(), expiredCount.sum());
+    }
+
+    public boolean isRunning() {
+        return (running);
+    }
+
+    /**
+     * @return The number of leases currently held
+     */
+    public int getLeaseCount() {
+        return (leases.size());
+    }
+
+    /**
+     * @return The number of leases expired since the lease manager was created
+     */
+    public long getExpiredCount() {
+        return (expiredCount.sum());
+    }
+
+    /**
+     * Subscribes a WUP to a Topic for (at least) the given TTL. If the WUP
+     * already holds a lease on the Topic, it is renewed with the new TTL
+     * instead.
+     *
+     * @param topic The Topic
+     * @param subscriber The WUP
+     * @param ttlMillis The time the subscription lasts without being renewed
+     * @return The lease
+     */
+    public SubscriptionLease acquireLease(TopicToken topic, NodeElementIdentifier subscriber, long ttlMillis) {
+        LOG.debug(".acquireLease(): Entry, topic --> {}, subscriber --> {}, ttlMillis --> {}", topic, subscriber, ttlMillis);
+        if ((topic == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".acquireLease(): topic or subscriber is null"));
+        }
+        if (ttlMillis <= 0) {
+            throw (new IllegalArgumentException(".acquireLease(): ttlMillis must be positive"));
+        }
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.LEASE_ACQUIRE);
+        long ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        SubscriptionLeaseKey leaseKey = new SubscriptionLeaseKey(topic, subscriber);
+        SubscriptionLease lease;
+        synchronized (lockFor(leaseKey)) {
+            lease = leases.get(leaseKey);
+            if ((lease == null) || !lease.renew(ttlNanos, System.nanoTime())) {
+                // A lease replacing one that has just expired (but not yet been removed) takes over its subscription
+                boolean subscriptionOwner = ((lease != null) && lease.isSubscriptionOwner()) || !subscriptionCache.hasSubscriber(topic, subscriber);
+                if (subscriptionOwner) {
+                    // Subscribe first, so a failure leaves no lease behind
+                    addSubscription(topic, subscriber);
+                }
+                SubscriptionLease newLease = new SubscriptionLease(topic, subscriber, subscriptionOwner, ttlNanos, System.nanoTime());
+                leases.put(leaseKey, newLease);
+                leasesBySubscriber.compute(subscriber, (key, subscriberLeases) -> {
+                    Set<SubscriptionLease> updatedLeases = (subscriberLeases == null) ? ConcurrentHashMap.<SubscriptionLease>newKeySet() : subscriberLeases;
+                    updatedLeases.add(newLease);
+                    return (updatedLeases);
+                });
+                newLeases.add(newLease);
+                lease = newLease;
+            }
+        }
+        metrics.record(TopicRegistryOperationEnum.LEASE_ACQUIRE, startNanos);
+        LOG.debug(".acquireLease(): Exit, lease --> {}", lease);
+        return (lease);
+    }
+
+    /**
+     * Renews the WUP's lease on a Topic (without taking any lock).
+     *
+     * @return false if the WUP holds no lease on the Topic (e.g. it has expired), so must subscribe again
+     */
+    public boolean renewLease(TopicToken topic, NodeElementIdentifier subscriber) {
+        if ((topic == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".renewLease(): topic or subscriber is null"));
+        }
+        SubscriptionLease lease = leases.get(new SubscriptionLeaseKey(topic, subscriber));
+        boolean renewed = (lease != null) && lease.renew(System.nanoTime());
+        metrics.recordLookup(TopicRegistryOperationEnum.LEASE_RENEW, renewed);
+        return (renewed);
+    }
+
+    /**
+     * Renews every lease held by the WUP (i.e. its heartbeat), without taking any lock.
+     *
+     * @return The number of leases renewed
+     */
+    public int renewLeases(NodeElementIdentifier subscriber) {
+        if (subscriber == null) {
+            throw (new IllegalArgumentException(".renewLeases(): subscriber is null"));
+        }
+        Set<SubscriptionLease> subscriberLeases = leasesBySubscriber.get(subscriber);
+        if (subscriberLeases == null) {
+            metrics.recordLookup(TopicRegistryOperationEnum.LEASE_RENEW, false);
+            return (0);
+        }
+        long nowNanos = System.nanoTime();
+        int renewedCount = 0;
+        for (SubscriptionLease lease : subscriberLeases) {
+            if (lease.renew(nowNanos)) {
+                renewedCount++;
+            }
+        }
+        metrics.recordLookup(TopicRegistryOperationEnum.LEASE_RENEW, renewedCount > 0);
+        return (renewedCount);
+    }
+
+    /**
+     * Releases the WUP's lease on a Topic, leaving the subscription itself in
+     * place (e.g. because the WUP has unsubscribed, or has made the
+     * subscription permanent).
+     *
+     * @return true if the WUP held a lease on the Topic
+     */
+    public boolean releaseLease(TopicToken topic, NodeElementIdentifier subscriber) {
+        LOG.debug(".releaseLease(): Entry, topic --> {}, subscriber --> {}", topic, subscriber);
+        if ((topic == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".releaseLease(): topic or subscriber is null"));
+        }
+        SubscriptionLeaseKey leaseKey = new SubscriptionLeaseKey(topic, subscriber);
+        if (!leases.containsKey(leaseKey)) {
+            return (false);
+        }
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.LEASE_RELEASE);
+        boolean released = false;
+        synchronized (lockFor(leaseKey)) {
+            SubscriptionLease lease = leases.remove(leaseKey);
+            if (lease != null) {
+                forget(lease);
+                // The lease stays in the wheel until its deadline, where the ticker drops it
+                released = lease.release();
+            }
+        }
+        metrics.record(TopicRegistryOperationEnum.LEASE_RELEASE, startNanos);
+        LOG.debug(".releaseLease(): Exit, released --> {}", released);
+        return (released);
+    }
+
+    /**
+     * Releases every lease held by the WUP, leaving its subscriptions in place.
+     *
+     * @return The number of leases released
+     */
+    public int releaseLeases(NodeElementIdentifier subscriber) {
+        if (subscriber == null) {
+            throw (new IllegalArgumentException(".releaseLeases(): subscriber is null"));
+        }
+        Set<SubscriptionLease> subscriberLeases = leasesBySubscriber.get(subscriber);
+        if (subscriberLeases == null) {
+            return (0);
+        }
+        int releasedCount = 0;
+        for (SubscriptionLease lease : subscriberLeases.toArray(new SubscriptionLease[0])) {
+            if (releaseLease(lease.getTopic(), subscriber)) {
+                releasedCount++;
+            }
+        }
+        return (releasedCount);
+    }
+
+    private void runTicker() {
+        LOG.debug(".runTicker(): Entry");
+        while (running) {
+            LockSupport.parkNanos(tickNanos);
+            try {
+                processTicks(System.nanoTime());
+            } catch (RuntimeException failure) {
+                LOG.error(".runTicker(): Could not process the lease wheel", failure);
+            }
+        }
+        LOG.debug(".runTicker(): Exit");
+    }
+
+    /**
+     * Places the newly acquired leases in the wheel, then advances the wheel
+     * to the given time - expiring every lease due by then that hasn't been
+     * renewed. Only ever called by the ticker (or, with the ticker not
+     * running, a single thread standing in for it).
+     *
+     * @return The number of leases expired
+     */
+    int processTicks(long nowNanos) {
+        SubscriptionLease newLease = newLeases.poll();
+        while (newLease != null) {
+            long deadline = newLease.getDeadline();
+            if (SubscriptionLease.isHeld(deadline)) {
+                wheel.schedule(newLease, dueTickOf(deadline));
+            }
+            newLease = newLeases.poll();
+        }
+        wheel.advanceTo((nowNanos - originNanos) / tickNanos, dueLeases::add);
+        int expiredInTick = 0;
+        for (SubscriptionLease lease : dueLeases) {
+            long deadline = lease.getDeadline();
+            // A renewal racing the expiry makes it fail, so re-read the deadline until one or the other wins
+            while (SubscriptionLease.isHeld(deadline)) {
+                if (deadline - nowNanos > 0) {
+                    wheel.schedule(lease, dueTickOf(deadline));
+                    break;
+                }
+                if (lease.expire(deadline)) {
+                    expireLease(lease);
+                    expiredInTick++;
+                    break;
+                }
+                deadline = lease.getDeadline();
+            }
+        }
+        dueLeases.clear();
+        if (expiredInTick > 0) {
+            LOG.debug(".processTicks(): Expired leases --> {}", expiredInTick);
+        }
+        return (expiredInTick);
+    }
+
+    private long dueTickOf(long deadlineNanos) {
+        long sinceOrigin = deadlineNanos - originNanos;
+        return ((sinceOrigin + tickNanos - 1) / tickNanos);
+    }
+
+    private void expireLease(SubscriptionLease lease) {
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.LEASE_EXPIRE);
+        SubscriptionLeaseKey leaseKey = new SubscriptionLeaseKey(lease.getTopic(), lease.getSubscriber());
+        synchronized (lockFor(leaseKey)) {
+            // If the lease has been replaced (re-acquired) since it expired, the subscription belongs to the new lease
+            if (!leases.remove(leaseKey, lease)) {
+                return;
+            }
+            forget(lease);
+            // A permanent subscription the WUP held before it took the lease outlives the lease, as does
+            // one made permanent while the lease was still held (e.g. by a queued TopicIM.addTopicSubscriberAsync())
+            if (lease.isSubscriptionOwner() && subscriptionCache.isLeasedSubscriber(lease.getTopic(), lease.getSubscriber())) {
+                try {
+                    removeSubscription(lease.getTopic(), lease.getSubscriber());
+                } catch (RuntimeException failure) {
+                    LOG.warn(".expireLease(): Could not remove the subscription of an expired lease --> {}", lease, failure);
+                }
+            }
+        }
+        expiredCount.increment();
+        metrics.record(TopicRegistryOperationEnum.LEASE_EXPIRE, startNanos);
+        LOG.trace(".expireLease(): Expired lease --> {}", lease);
+    }
+
+    private void forget(SubscriptionLease lease) {
+        leasesBySubscriber.computeIfPresent(lease.getSubscriber(), (key, subscriberLeases) -> {
+            subscriberLeases.remove(lease);
+            return (subscriberLeases.isEmpty() ? null : subscriberLeases);
+        });
+    }
+
+    private void addSubscription(TopicToken topic, NodeElementIdentifier subscriber) {
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.addLeasedSubscriber(topic, subscriber);
+        } else {
+            subscriptionCache.addLeasedSubscriber(topic, subscriber);
+        }
+    }
+
+    private void removeSubscription(TopicToken topic, NodeElementIdentifier subscriber) {
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.removeSubscriber(topic, subscriber);
+        } else {
+            subscriptionCache.removeSubscriber(topic, subscriber);
+        }
+    }
+
+    private Object lockFor(SubscriptionLeaseKey leaseKey) {
+        return (lockStripes[(leaseKey.hashCode() & 0x7FFFFFFF) % LOCK_STRIPE_COUNT]);
+    }
+}
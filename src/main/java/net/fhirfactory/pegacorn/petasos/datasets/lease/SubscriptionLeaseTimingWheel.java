@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.lease;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel of SubscriptionLeases: {@value #LEVEL_COUNT}
+ * wheels of {@value #SLOTS_PER_LEVEL} slots, each slot of a level spanning a
+ * whole revolution of the level beneath it. A lease due within
+ * {@value #SLOTS_PER_LEVEL} ticks sits in the innermost wheel, one due later
+ * in the outer wheel whose span covers it - and is cascaded inwards when the
+ * wheel reaches its slot - so scheduling a lease, and finding it when it
+ * falls due, are both O(1) whatever the number of leases.
+ * <p>
+ * Slots are intrusive singly linked lists (through the lease's wheelNext),
+ * so the wheel allocates nothing per lease. The wheel is not thread-safe: it
+ * is owned by the SubscriptionLeaseManager's ticker.
+ */
+final class SubscriptionLeaseTimingWheel {
+
+    static final int LEVEL_COUNT = 4;
+    static final int SLOTS_PER_LEVEL = 64;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOT_MASK = SLOTS_PER_LEVEL - 1;
+    // The furthest ahead a lease can be placed; later leases are placed at the horizon and rescheduled from there
+    private static final long HORIZON_TICKS = (1L << (SLOT_BITS * LEVEL_COUNT)) - 1;
+
+    private final SubscriptionLease[][] slots;
+    private long currentTick;
+    private int scheduledCount;
+
+    SubscriptionLeaseTimingWheel(long startTick) {
+        this.slots = new SubscriptionLease[LEVEL_COUNT][SLOTS_PER_LEVEL];
+        this.currentTick = startTick;
+        this.scheduledCount = 0;
+    }
+
+    long getCurrentTick() {
+        return (currentTick);
+    }
+
+    int getScheduledCount() {
+        return (scheduledCount);
+    }
+
+    /**
+     * Schedules the lease for the given tick (or, if that has already passed, the next tick).
+     */
+    void schedule(SubscriptionLease lease, long dueTick) {
+        place(lease, Math.max(dueTick, currentTick + 1));
+        scheduledCount++;
+    }
+
+    /**
+     * Advances the wheel, one tick at a time, to the given tick, handing each
+     * lease that falls due to the consumer (which may schedule it again).
+     */
+    void advanceTo(long targetTick, Consumer<SubscriptionLease> dueConsumer) {
+        while (currentTick < targetTick) {
+            currentTick++;
+            // Cascade the outer wheels whose slot boundary this tick crosses, outermost first
+            for (int level = LEVEL_COUNT - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                    SubscriptionLease cascaded = detach(level, slot);
+                    while (cascaded != null) {
+                        SubscriptionLease next = cascaded.wheelNext;
+                        place(cascaded, Math.max(cascaded.wheelTick, currentTick));
+                        cascaded = next;
+                    }
+                }
+            }
+            SubscriptionLease due = detach(0, (int) (currentTick & SLOT_MASK));
+            while (due != null) {
+                SubscriptionLease next = due.wheelNext;
+                due.wheelNext = null;
+                scheduledCount--;
+                dueConsumer.accept(due);
+                due = next;
+            }
+        }
+    }
+
+    private void place(SubscriptionLease lease, long dueTick) {
+        long delay = dueTick - currentTick;
+        if (delay > HORIZON_TICKS) {
+            dueTick = currentTick + HORIZON_TICKS;
+            delay = HORIZON_TICKS;
+        }
+        lease.wheelTick = dueTick;
+        int level = 0;
+        while ((level < LEVEL_COUNT - 1) && (delay >= (1L << (SLOT_BITS * (level + 1))))) {
+            level++;
+        }
+        int slot = (int) ((dueTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        lease.wheelNext = slots[level][slot];
+        slots[level][slot] = lease;
+    }
+
+    private SubscriptionLease detach(int level, int slot) {
+        SubscriptionLease head = slots[level][slot];
+        slots[level][slot] = null;
+        return (head);
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.loader;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+import javax.annotation.Priority;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+/**
+ * Loads the Topic catalogue (TopicsFile.json) into the TopicCacheDM at
+ * startup.
+ * <p>
+ * The file is read with the Jackson streaming parser in a single pass: each
+ * Topic is built (with its FDN and containment links) as soon as its own
+ * attributes have been read, and Topics are handed to the cache in batches -
+ * so the full catalogue is never held as an intermediate document tree. The
+ * file is expected to be in the shape produced by the Topic serialiser, i.e.
+ * "topicType", "topicName" and "version" precede "containedElements" within
+ * each element.
+ * <p>
+ * The catalogue is read from the file named by the
+ * {@value #TOPICS_FILE_PROPERTY} system property if set, otherwise from the
+ * {@value #TOPICS_FILE_RESOURCE} classpath resource.
+ * <p>
+ * The catalogue is loaded at startup priority {@value #STARTUP_PRIORITY},
+ * i.e. before the TopicRegistryJournal recovers the registries over it.
+ */
+@ApplicationScoped
+public class TopicFileLoader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicFileLoader.class);
+
+    public static final String TOPICS_FILE_PROPERTY = "petasos.datasets.topics.file";
+    public static final String TOPICS_FILE_RESOURCE = "/TopicsFile.json";
+
+    // The catalogue is loaded before anything else observing startup (e.g. the TopicRegistryJournal's recovery)
+    public static final int STARTUP_PRIORITY = 2000;
+
+    private static final String ROOT_ELEMENT_SET = "topicSectors";
+    private static final String TOPIC_TYPE = "topicType";
+    private static final String TOPIC_NAME = "topicName";
+    private static final String TOPIC_VERSION = "version";
+    private static final String CONTAINED_ELEMENTS = "containedElements";
+
+    private static final int INSTALL_BATCH_SIZE = 1024;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    @Inject
+    TopicCacheDM topicSetCache;
+
+    public TopicFileLoader() {
+    }
+
+    /**
+     * Creates a loader over the given cache (e.g. outside a container).
+     */
+    public TopicFileLoader(TopicCacheDM topicSetCache) {
+        this.topicSetCache = topicSetCache;
+    }
+
+    public void onStartup(@Observes @Priority(STARTUP_PRIORITY) @Initialized(ApplicationScoped.class) Object initEvent) {
+        LOG.debug(".onStartup(): Entry");
+        try {
+            loadDefaultTopicsFile();
+        } catch (IOException ioException) {
+            LOG.error(".onStartup(): Could not load the Topic catalogue --> {}", ioException.getMessage(), ioException);
+        }
+        LOG.debug(".onStartup(): Exit");
+    }
+
+    /**
+     * Loads the default Topic catalogue (see the class description).
+     *
+     * @return The number of Topics installed into the cache
+     * @throws IOException If the catalogue can't be read or parsed
+     */
+    public int loadDefaultTopicsFile() throws IOException {
+        String topicsFileName = System.getProperty(TOPICS_FILE_PROPERTY);
+        if (topicsFileName != null) {
+            LOG.info(".loadDefaultTopicsFile(): Loading Topic catalogue from file --> {}", topicsFileName);
+            try (InputStream topicsStream = new FileInputStream(topicsFileName)) {
+                return (loadTopics(topicsStream));
+            }
+        }
+        try (InputStream topicsStream = TopicFileLoader.class.getResourceAsStream(TOPICS_FILE_RESOURCE)) {
+            if (topicsStream == null) {
+                LOG.warn(".loadDefaultTopicsFile(): No Topic catalogue resource --> {}", TOPICS_FILE_RESOURCE);
+                return (0);
+            }
+            LOG.info(".loadDefaultTopicsFile(): Loading Topic catalogue from resource --> {}", TOPICS_FILE_RESOURCE);
+            return (loadTopics(topicsStream));
+        }
+    }
+
+    /**
+     * Streams a Topic catalogue into the TopicCacheDM.
+     *
+     * @param topicsStream The catalogue (JSON)
+     * @return The number of Topics installed into the cache
+     * @throws IOException If the catalogue can't be read or parsed
+     */
+    public int loadTopics(InputStream topicsStream) throws IOException {
+        LOG.debug(".loadTopics(): Entry");
+        long startTime = System.nanoTime();
+        ArrayList<Topic> installBatch = new ArrayList<Topic>(INSTALL_BATCH_SIZE);
+        int[] installedCount = new int[1];
+        parseTopics(topicsStream, topic -> {
+            installBatch.add(topic);
+            if (installBatch.size() >= INSTALL_BATCH_SIZE) {
+                topicSetCache.addTopics(installBatch);
+                installedCount[0] += installBatch.size();
+                installBatch.clear();
+            }
+        });
+        if (!installBatch.isEmpty()) {
+            topicSetCache.addTopics(installBatch);
+            installedCount[0] += installBatch.size();
+        }
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000L;
+        LOG.info(".loadTopics(): Exit, installed Topics --> {}, elapsed (ms) --> {}", installedCount[0], elapsedMillis);
+        return (installedCount[0]);
+    }
+
+    /**
+     * Streams a Topic catalogue, passing each Topic (parents before their
+     * contained Topics) to the consumer. The containment links are already
+     * established on the Topics handed over.
+     *
+     * @param topicsStream The catalogue (JSON)
+     * @param topicConsumer The recipient of the Topics
+     * @throws IOException If the catalogue can't be read or parsed
+     */
+    public void parseTopics(InputStream topicsStream, Consumer<Topic> topicConsumer) throws IOException {
+        if ((topicsStream == null) || (topicConsumer == null)) {
+            throw (new IllegalArgumentException(".parseTopics(): topicsStream or topicConsumer is null"));
+        }
+        try (JsonParser parser = jsonFactory.createParser(topicsStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw (new JsonParseException(parser, "Topic catalogue must be a JSON object"));
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (ROOT_ELEMENT_SET.equals(fieldName)) {
+                    parseElementArray(parser, null, topicConsumer);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void parseElementArray(JsonParser parser, Topic containingTopic, Consumer<Topic> topicConsumer) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_NULL) {
+            return;
+        }
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw (new JsonParseException(parser, "Expected an array of Topic elements"));
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            parseElement(parser, containingTopic, topicConsumer);
+        }
+    }
+
+    private void parseElement(JsonParser parser, Topic containingTopic, Consumer<Topic> topicConsumer) throws IOException {
+        String topicType = null;
+        String topicName = null;
+        String topicVersion = null;
+        Topic currentTopic = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken valueToken = parser.nextToken();
+            switch (fieldName) {
+                case TOPIC_TYPE:
+                    topicType = parser.getValueAsString();
+                    break;
+                case TOPIC_NAME:
+                    topicName = parser.getValueAsString();
+                    break;
+                case TOPIC_VERSION:
+                    topicVersion = (valueToken == JsonToken.VALUE_NULL) ? null : parser.getValueAsString();
+                    break;
+                case CONTAINED_ELEMENTS:
+                    if (currentTopic == null) {
+                        currentTopic = buildTopic(parser, containingTopic, topicType, topicName, topicVersion);
+                        topicConsumer.accept(currentTopic);
+                    }
+                    parseElementArray(parser, currentTopic, topicConsumer);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (currentTopic == null) {
+            topicConsumer.accept(buildTopic(parser, containingTopic, topicType, topicName, topicVersion));
+        }
+    }
+
+    private Topic buildTopic(JsonParser parser, Topic containingTopic, String topicType, String topicName, String topicVersion) throws IOException {
+        if ((topicType == null) || (topicName == null)) {
+            throw (new JsonParseException(parser, "Topic element is missing its topicType/topicName (or they follow containedElements)"));
+        }
+        TopicTypeEnum topicTypeValue;
+        try {
+            topicTypeValue = TopicTypeEnum.valueOf(topicType);
+        } catch (IllegalArgumentException unknownType) {
+            throw (new JsonParseException(parser, "Unknown topicType --> " + topicType));
+        }
+        FDN topicFDN;
+        if (containingTopic == null) {
+            topicFDN = new FDN();
+        } else {
+            topicFDN = new FDN(containingTopic.getIdentifier());
+        }
+        topicFDN.appendRDN(new RDN(topicType, topicName));
+        Topic newTopic = new Topic();
+        newTopic.setIdentifier(topicFDN.getToken());
+        newTopic.setTopicType(topicTypeValue);
+        newTopic.setVersion(topicVersion);
+        if (containingTopic != null) {
+            newTopic.setContainingDataset(containingTopic.getIdentifier());
+            // A catalogue may repeat an element, which then just re-registers the Topic
+            if (!containingTopic.getContainedTopics().contains(newTopic.getIdentifier())) {
+                containingTopic.addContainedTopic(newTopic.getIdentifier());
+            }
+        }
+        LOG.trace(".buildTopic(): Built Topic --> {}", newTopic);
+        return (newTopic);
+    }
+}
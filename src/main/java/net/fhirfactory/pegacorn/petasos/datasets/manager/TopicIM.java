@@ -22,7 +22,20 @@
 package net.fhirfactory.pegacorn.petasos.datasets.manager;
 
 import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.FanOutGroup;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.FanOutRoutingPlan;
 import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCatalogue;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicPage;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicQuery;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredTopicRegistry;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventLog;
+import net.fhirfactory.pegacorn.petasos.datasets.lease.SubscriptionLease;
+import net.fhirfactory.pegacorn.petasos.datasets.lease.SubscriptionLeaseManager;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryMetrics;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryOperationEnum;
+import net.fhirfactory.pegacorn.petasos.datasets.pipeline.TopicRegistryWritePipeline;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
 import net.fhirfactory.pegacorn.petasos.model.topology.NodeElement;
 import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
 import org.slf4j.Logger;
@@ -30,7 +43,12 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 import javax.enterprise.context.ApplicationScoped;
 import javax.transaction.Transactional;
 import net.fhirfactory.pegacorn.common.model.FDNTokenSet;
@@ -53,22 +71,123 @@ public class TopicIM {
     @Inject
     TopicSubscriptionMapDM subscriptionCache;
 
+    @Inject
+    ClusteredTopicRegistry clusteredRegistry;
+
+    @Inject
+    TopicRegistryMetrics metrics;
+
+    @Inject
+    TopicRegistryWritePipeline writePipeline;
+
+    @Inject
+    SubscriptionLeaseManager leaseManager;
+
     @Transactional
     public void registerTopic(Topic newElement) {
         LOG.debug(".registerTopic(): Entry, newElement --> {}", newElement);
-        topicSetCache.addTopic(newElement);
-        if (newElement.hasContainingDataset()) {
-            addContainedTopicToTopic(newElement.getContainingDataset(), newElement);
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.IM_REGISTER_TOPIC);
+        applyTopicRegistration(newElement);
+        metrics.record(TopicRegistryOperationEnum.IM_REGISTER_TOPIC, startNanos);
+    }
+
+    /**
+     * This function registers a Topic asynchronously, via the TopicRegistryWritePipeline (or, if the
+     * pipeline is not enabled, registers it synchronously).
+     *
+     * @param newElement The Topic to be registered
+     * @return A future completing, once the Topic is visible, with the TopicRegistryEventLog version following the registration
+     */
+    public CompletableFuture<Long> registerTopicAsync(Topic newElement) {
+        LOG.debug(".registerTopicAsync(): Entry, newElement --> {}", newElement);
+        if (writePipeline.isEnabled()) {
+            return (writePipeline.registerTopic(newElement));
+        }
+        return (applySynchronously(() -> applyTopicRegistration(newElement), topicSetCache.getEventLog()));
+    }
+
+    public CompletableFuture<Long> unregisterTopicAsync(TopicToken elementID) {
+        LOG.debug(".unregisterTopicAsync(): Entry, elementID --> {}", elementID);
+        if (writePipeline.isEnabled()) {
+            return (writePipeline.unregisterTopic(elementID));
         }
+        return (applySynchronously(() -> applyTopicUnregistration(elementID), topicSetCache.getEventLog()));
+    }
+
+    /**
+     * @return A future completing once every change made through the ...Async() functions before the call has been applied
+     */
+    public CompletableFuture<Void> flushAsyncChanges() {
+        return (writePipeline.flush());
+    }
+
+    /*
+     * The ...Async() functions apply a change (when the pipeline is not enabled) through these
+     * functions, rather than calling the @Transactional functions of this bean - a call on "this"
+     * bypasses the container's proxy, so would silently run without the transaction.
+     */
+
+    private void applyTopicRegistration(Topic newElement) {
+        if (clusteredRegistry.isEnabled()) {
+            // Applied locally (on every node) as the registration is replicated
+            clusteredRegistry.registerTopic(newElement);
+        } else {
+            topicSetCache.addTopic(newElement);
+            if (newElement.hasContainingDataset()) {
+                linkContainedTopic(newElement.getContainingDataset(), newElement);
+            }
+        }
+    }
+
+    private void applyTopicUnregistration(TopicToken elementID) {
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.unregisterTopic(elementID);
+        } else {
+            topicSetCache.removeTopic(elementID);
+        }
+    }
+
+    private void applySubscriberAddition(TopicToken contentTopicID, NodeElementIdentifier interestedNode) {
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.addSubscriber(contentTopicID, interestedNode);
+        } else {
+            subscriptionCache.addSubscriber(contentTopicID, interestedNode);
+        }
+    }
+
+    private void applySubscriberRemoval(TopicToken contentTopicID, NodeElementIdentifier interestedNode) {
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.removeSubscriber(contentTopicID, interestedNode);
+        } else {
+            subscriptionCache.removeSubscriber(contentTopicID, interestedNode);
+        }
+    }
+
+    private CompletableFuture<Long> applySynchronously(Runnable change, TopicRegistryEventLog eventLog) {
+        CompletableFuture<Long> changeFuture = new CompletableFuture<Long>();
+        try {
+            change.run();
+            changeFuture.complete(eventLog.getNextVersion());
+        } catch (RuntimeException failure) {
+            changeFuture.completeExceptionally(failure);
+        }
+        return (changeFuture);
     }
 
     @Transactional
     public void addContainedTopicToTopic(FDNToken topicID, Topic containedTopic) {
         LOG.debug(".addContainedTopicToTopic(), nodeID --> {}, containedNode --> {}", topicID, containedTopic);
-        Topic containingElement = getTopic(topicID);
+        linkContainedTopic(topicID, containedTopic);
+    }
+
+    private void linkContainedTopic(FDNToken topicID, Topic containedTopic) {
+        Topic containingElement = topicSetCache.getTopic(topicID);
         if (containingElement != null) {
             LOG.trace(".addContainedTopicToTopic(): Containing Topic exists, so add contained node!");
-            containingElement.addContainedTopic(containedTopic.getIdentifier());
+            // A re-registration of the contained Topic is already linked
+            if (!containingElement.getContainedTopics().contains(containedTopic.getIdentifier())) {
+                containingElement.addContainedTopic(containedTopic.getIdentifier());
+            }
         } else {
             LOG.trace(".addContainedTopicToTopic(): Containing Topic doesn't exist, so the containedNode is actually the Top node!");
         }
@@ -77,7 +196,9 @@ public class TopicIM {
     @Transactional
     public void unregisterTopic(TopicToken elementID) {
         LOG.debug(".unregisterTopic(): Entry, elementID --> {}", elementID);
-        topicSetCache.removeTopic(elementID);
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.IM_UNREGISTER_TOPIC);
+        applyTopicUnregistration(elementID);
+        metrics.record(TopicRegistryOperationEnum.IM_UNREGISTER_TOPIC, startNanos);
     }
 
     public Set<Topic> getTopicSet() {
@@ -85,6 +206,33 @@ public class TopicIM {
         return (topicSetCache.getTopicSet());
     }
 
+    /**
+     * @return An immutable snapshot of the registered Topics, to stream or page over consistently
+     */
+    public TopicCatalogue getTopicCatalogue() {
+        return (topicSetCache.getTopicCatalogue());
+    }
+
+    /**
+     * @param query The selection criteria (e.g. TopicQuery.ALL.ofType(TopicTypeEnum.DATASET_TOPIC))
+     * @return A lazy stream of the selected Topics, in name order
+     */
+    public Stream<Topic> streamTopics(TopicQuery query) {
+        LOG.debug(".streamTopics(): Entry, query --> {}", query);
+        return (topicSetCache.streamTopics(query));
+    }
+
+    /**
+     * @param query The selection criteria
+     * @param pageToken The next page token of the previous page, or null for the first page
+     * @param pageSize The maximum number of Topics on the page
+     * @return The page
+     */
+    public TopicPage getTopicPage(TopicQuery query, String pageToken, int pageSize) {
+        LOG.debug(".getTopicPage(): Entry, query --> {}, pageToken --> {}, pageSize --> {}", query, pageToken, pageSize);
+        return (topicSetCache.getTopicPage(query, pageToken, pageSize));
+    }
+
     public Topic getTopic(FDNToken nodeID) {
         LOG.debug(".getTopic(): Entry, nodeID --> {}", nodeID);
         Topic retrievedTopic = topicSetCache.getTopic(nodeID);
@@ -92,6 +240,34 @@ public class TopicIM {
         return (retrievedTopic);
     }
 
+    /**
+     * @param topicID The identifier of the Topic
+     * @return The highest registered version of the Topic, or null
+     */
+    public Topic getLatestTopic(FDNToken topicID) {
+        LOG.debug(".getLatestTopic(): Entry, topicID --> {}", topicID);
+        return (topicSetCache.getLatestTopic(topicID));
+    }
+
+    /**
+     * @param topicID The Topic (identifier and version)
+     * @return The highest registered version of the Topic compatible with the given version, or null
+     */
+    public Topic getLatestCompatibleTopic(TopicToken topicID) {
+        LOG.debug(".getLatestCompatibleTopic(): Entry, topicID --> {}", topicID);
+        return (topicSetCache.getLatestCompatibleTopic(topicID));
+    }
+
+    /**
+     * @param topicID The identifier of the Topic
+     * @param versionRange The versions of interest (e.g. "0.6.x", see TopicVersionRange)
+     * @return The registered versions of the Topic within the range, oldest first
+     */
+    public List<Topic> getTopicVersions(FDNToken topicID, String versionRange) {
+        LOG.debug(".getTopicVersions(): Entry, topicID --> {}, versionRange --> {}", topicID, versionRange);
+        return (topicSetCache.getTopicVersions(topicID, TopicVersionRange.parse(versionRange)));
+    }
+
     /**
      * This function retrieves the list (FDNTokenSet) of WUPs that are
  interested in receiving the identified uowPayloadTopicID (FDNToken).
@@ -107,6 +283,52 @@ public class TopicIM {
         return (subscribedTopicSet);
     }
 
+    /**
+     * This function retrieves the subscriber sets for a batch of Topics (e.g. the payload Topics of
+     * a batch of UoWs) in one pass, resolving each distinct Topic once.
+     *
+     * @param topicIDs The Topics of the batch
+     * @return The set of WUPs wanting to receive each (distinct) Topic.
+     */
+    public Map<TopicToken, Set<NodeElementIdentifier>> getSubscriberSets(Collection<TopicToken> topicIDs) {
+        LOG.debug(".getSubscriberSets(): Entry");
+        Map<TopicToken, Set<NodeElementIdentifier>> subscriberSets = subscriptionCache.getSubscriberSets(topicIDs);
+        LOG.debug(".getSubscriberSets(): Exit");
+        return (subscriberSets);
+    }
+
+    /**
+     * @param topicID The Topic
+     * @return The (shared) FanOutGroup of the WUPs interested in the Topic
+     */
+    public FanOutGroup getFanOutGroup(TopicToken topicID) {
+        LOG.debug(".getFanOutGroup(): Entry, topicID --> {}", topicID);
+        return (subscriptionCache.getFanOutGroup(topicID));
+    }
+
+    /**
+     * @param topicID The Topic
+     * @return The (cached, immutable) routing plan of the Topic's FanOutGroup
+     */
+    public FanOutRoutingPlan getRoutingPlan(TopicToken topicID) {
+        LOG.debug(".getRoutingPlan(): Entry, topicID --> {}", topicID);
+        return (subscriptionCache.getRoutingPlan(topicID));
+    }
+
+    /**
+     * This function resolves a batch of Topics and groups them by interested WUP, so that the caller
+     * can fan out a single (bulk) send per WUP.
+     *
+     * @param topicIDs The Topics of the batch
+     * @return For each interested WUP, the Topics (from the batch) it subscribes to.
+     */
+    public Map<NodeElementIdentifier, Set<TopicToken>> getTopicSetsBySubscriber(Collection<TopicToken> topicIDs) {
+        LOG.debug(".getTopicSetsBySubscriber(): Entry");
+        Map<NodeElementIdentifier, Set<TopicToken>> topicSets = subscriptionCache.getTopicSetsBySubscriber(topicIDs);
+        LOG.debug(".getTopicSetsBySubscriber(): Exit");
+        return (topicSets);
+    }
+
     /**
      * This function establishes a link between a Payload Type and a WUP that is interested in
      * processing/using it.
@@ -117,14 +339,229 @@ public class TopicIM {
     @Transactional
     public void addTopicSubscriber(TopicToken contentTopicID, NodeElementIdentifier interestedNode) {
         LOG.debug(".addSubscriberToUoWContentTopic(): Entry, contentTopicID --> {}, interestedNode --> {}", contentTopicID, interestedNode);
-        subscriptionCache.addSubscriber(contentTopicID, interestedNode);
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.IM_ADD_SUBSCRIBER);
+        // A permanent subscription supersedes any lease on it
+        leaseManager.releaseLease(contentTopicID, interestedNode);
+        applySubscriberAddition(contentTopicID, interestedNode);
+        metrics.record(TopicRegistryOperationEnum.IM_ADD_SUBSCRIBER, startNanos);
         LOG.debug(".addSubscriberToUoWContentTopic(): Exit");
     }
 
+    /**
+     * This function subscribes a WUP to a Topic for a limited time (its lease), which the WUP must
+     * keep renewing (see renewSubscriptionLeases()) - so that, should the WUP die without
+     * unsubscribing, the subscription is removed once the lease runs out.
+     *
+     * @param contentTopicID The contentTopicID (FDNToken) of the payload we have received from a WUP
+     * @param interestedNode The ID of the (Topology) Node that is interested in the payload type.
+     * @param leaseMillis The time the subscription lasts without being renewed
+     * @return The lease
+     */
+    public SubscriptionLease addTopicSubscriber(TopicToken contentTopicID, NodeElementIdentifier interestedNode, long leaseMillis) {
+        LOG.debug(".addTopicSubscriber(): Entry, contentTopicID --> {}, interestedNode --> {}, leaseMillis --> {}", contentTopicID, interestedNode, leaseMillis);
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.IM_ADD_SUBSCRIBER);
+        SubscriptionLease lease = leaseManager.acquireLease(contentTopicID, interestedNode, leaseMillis);
+        metrics.record(TopicRegistryOperationEnum.IM_ADD_SUBSCRIBER, startNanos);
+        LOG.debug(".addTopicSubscriber(): Exit, lease --> {}", lease);
+        return (lease);
+    }
+
+    /**
+     * This function renews a WUP's lease on a Topic subscription.
+     *
+     * @return false if the WUP holds no lease on the Topic (e.g. it has expired), so must subscribe again
+     */
+    public boolean renewSubscriptionLease(TopicToken contentTopicID, NodeElementIdentifier interestedNode) {
+        return (leaseManager.renewLease(contentTopicID, interestedNode));
+    }
+
+    /**
+     * This function renews every subscription lease held by a WUP (i.e. its heartbeat).
+     *
+     * @return The number of leases renewed
+     */
+    public int renewSubscriptionLeases(NodeElementIdentifier interestedNode) {
+        return (leaseManager.renewLeases(interestedNode));
+    }
+
+    /**
+     * This function subscribes a WUP to a Topic asynchronously, via the TopicRegistryWritePipeline (or,
+     * if the pipeline is not enabled, subscribes it synchronously).
+     *
+     * Any lease the WUP holds on the subscription is released once the queued subscription has been
+     * applied (not before, so the lease keeps covering the WUP until then).
+     *
+     * @return A future completing, once the subscription is visible, with the TopicRegistryEventLog version following it
+     */
+    public CompletableFuture<Long> addTopicSubscriberAsync(TopicToken contentTopicID, NodeElementIdentifier interestedNode) {
+        LOG.debug(".addTopicSubscriberAsync(): Entry, contentTopicID --> {}, interestedNode --> {}", contentTopicID, interestedNode);
+        if (writePipeline.isEnabled()) {
+            return (releaseLeaseOnCompletion(writePipeline.addSubscriber(contentTopicID, interestedNode), contentTopicID, interestedNode));
+        }
+        return (applySynchronously(() -> {
+            leaseManager.releaseLease(contentTopicID, interestedNode);
+            applySubscriberAddition(contentTopicID, interestedNode);
+        }, subscriptionCache.getEventLog()));
+    }
+
+    /**
+     * This function unsubscribes a WUP from a Topic asynchronously (see addTopicSubscriberAsync()).
+     */
+    public CompletableFuture<Long> removeSubscriberAsync(TopicToken contentTopicID, NodeElementIdentifier interestedNode) {
+        LOG.debug(".removeSubscriberAsync(): Entry, contentTopicID --> {}, interestedNode --> {}", contentTopicID, interestedNode);
+        if (writePipeline.isEnabled()) {
+            return (releaseLeaseOnCompletion(writePipeline.removeSubscriber(contentTopicID, interestedNode), contentTopicID, interestedNode));
+        }
+        return (applySynchronously(() -> {
+            leaseManager.releaseLease(contentTopicID, interestedNode);
+            applySubscriberRemoval(contentTopicID, interestedNode);
+        }, subscriptionCache.getEventLog()));
+    }
+
+    private CompletableFuture<Long> releaseLeaseOnCompletion(CompletableFuture<Long> changeFuture, TopicToken contentTopicID, NodeElementIdentifier interestedNode) {
+        // A failed change leaves the lease (and so the leased subscription) as it was
+        return (changeFuture.thenApply(version -> {
+            leaseManager.releaseLease(contentTopicID, interestedNode);
+            return (version);
+        }));
+    }
+
+    /**
+     * This function subscribes a WUP to every Topic matching a hierarchical/wildcard pattern
+     * (e.g. "InformationTechnology/CollaborationServices/Matrix/ClientServerAPI/**").
+     *
+     * @param topicPattern The '/' separated Topic pattern ("*" matches one level, "**" any number of levels)
+     * @param interestedNode The ID of the (Topology) Node that is interested in the matching Topics.
+     */
+    @Transactional
+    public void addTopicPatternSubscriber(String topicPattern, NodeElementIdentifier interestedNode) {
+        LOG.debug(".addTopicPatternSubscriber(): Entry, topicPattern --> {}, interestedNode --> {}", topicPattern, interestedNode);
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.addPatternSubscriber(topicPattern, interestedNode);
+        } else {
+            subscriptionCache.addPatternSubscriber(topicPattern, interestedNode);
+        }
+        LOG.debug(".addTopicPatternSubscriber(): Exit");
+    }
+
+    /**
+     * This function subscribes a WUP to the identified Topic and every Topic contained within it.
+     *
+     * @param containingTopicID The identifier of the containing Topic (e.g. a Sector, Category or Topic Group)
+     * @param interestedNode The ID of the (Topology) Node that is interested in the Topic hierarchy.
+     */
+    @Transactional
+    public void addTopicHierarchySubscriber(FDNToken containingTopicID, NodeElementIdentifier interestedNode) {
+        LOG.debug(".addTopicHierarchySubscriber(): Entry, containingTopicID --> {}, interestedNode --> {}", containingTopicID, interestedNode);
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.addHierarchySubscriber(containingTopicID, interestedNode);
+        } else {
+            subscriptionCache.addHierarchySubscriber(containingTopicID, interestedNode);
+        }
+        LOG.debug(".addTopicHierarchySubscriber(): Exit");
+    }
+
+    /**
+     * This function subscribes a WUP to every version of a Topic within a version range, including
+     * versions registered later - so a producer moving to a newer (compatible) version still
+     * reaches the WUP.
+     *
+     * @param topicID The identifier of the Topic
+     * @param versionRange The versions of interest, e.g. "0.6.x" or "^0.6.1" (see TopicVersionRange)
+     * @param interestedNode The ID of the (Topology) Node that is interested in the Topic versions.
+     */
+    @Transactional
+    public void addTopicVersionRangeSubscriber(FDNToken topicID, String versionRange, NodeElementIdentifier interestedNode) {
+        LOG.debug(".addTopicVersionRangeSubscriber(): Entry, topicID --> {}, versionRange --> {}, interestedNode --> {}", topicID, versionRange, interestedNode);
+        if (versionRange == null) {
+            throw (new IllegalArgumentException(".addTopicVersionRangeSubscriber(): versionRange is null"));
+        }
+        TopicVersionRange parsedRange = TopicVersionRange.parse(versionRange);
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.addVersionRangeSubscriber(topicID, parsedRange, interestedNode);
+        } else {
+            subscriptionCache.addVersionRangeSubscriber(topicID, parsedRange, interestedNode);
+        }
+        LOG.debug(".addTopicVersionRangeSubscriber(): Exit");
+    }
+
+    @Transactional
+    public void removeTopicVersionRangeSubscriber(FDNToken topicID, String versionRange, NodeElementIdentifier interestedNode) {
+        LOG.debug(".removeTopicVersionRangeSubscriber(): Entry, topicID --> {}, versionRange --> {}, interestedNode --> {}", topicID, versionRange, interestedNode);
+        if (versionRange == null) {
+            throw (new IllegalArgumentException(".removeTopicVersionRangeSubscriber(): versionRange is null"));
+        }
+        TopicVersionRange parsedRange = TopicVersionRange.parse(versionRange);
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.removeVersionRangeSubscriber(topicID, parsedRange, interestedNode);
+        } else {
+            subscriptionCache.removeVersionRangeSubscriber(topicID, parsedRange, interestedNode);
+        }
+        LOG.debug(".removeTopicVersionRangeSubscriber(): Exit");
+    }
+
+    @Transactional
+    public void removeTopicPatternSubscriber(String topicPattern, NodeElementIdentifier interestedNode) {
+        LOG.debug(".removeTopicPatternSubscriber(): Entry, topicPattern --> {}, interestedNode --> {}", topicPattern, interestedNode);
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.removePatternSubscriber(topicPattern, interestedNode);
+        } else {
+            subscriptionCache.removePatternSubscriber(topicPattern, interestedNode);
+        }
+        LOG.debug(".removeTopicPatternSubscriber(): Exit");
+    }
+
+    @Transactional
+    public void removeTopicHierarchySubscriber(FDNToken containingTopicID, NodeElementIdentifier interestedNode) {
+        LOG.debug(".removeTopicHierarchySubscriber(): Entry, containingTopicID --> {}, interestedNode --> {}", containingTopicID, interestedNode);
+        if (clusteredRegistry.isEnabled()) {
+            clusteredRegistry.removeHierarchySubscriber(containingTopicID, interestedNode);
+        } else {
+            subscriptionCache.removeHierarchySubscriber(containingTopicID, interestedNode);
+        }
+        LOG.debug(".removeTopicHierarchySubscriber(): Exit");
+    }
+
     @Transactional
     public void removeSubscriber(TopicToken contentTopicID, NodeElementIdentifier interestedNode) {
         LOG.debug(".removeSubscriber(): Entry, contentTopicID --> {}, interestedNode --> {}", contentTopicID, interestedNode);
-        subscriptionCache.removeSubscriber(contentTopicID, interestedNode);
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.IM_REMOVE_SUBSCRIBER);
+        leaseManager.releaseLease(contentTopicID, interestedNode);
+        applySubscriberRemoval(contentTopicID, interestedNode);
+        metrics.record(TopicRegistryOperationEnum.IM_REMOVE_SUBSCRIBER, startNanos);
         LOG.debug(".removeSubscriber(): Exit");
     }
+
+    /**
+     * This function removes every subscription held by a WUP (e.g. when the WUP or its node fails).
+     *
+     * @param interestedNode The ID of the (Topology) Node whose subscriptions are to be removed.
+     * @return The number of subscriptions removed
+     */
+    @Transactional
+    public int removeAllSubscriptions(NodeElementIdentifier interestedNode) {
+        LOG.debug(".removeAllSubscriptions(): Entry, interestedNode --> {}", interestedNode);
+        long startNanos = metrics.startTimer(TopicRegistryOperationEnum.IM_REMOVE_ALL_SUBSCRIPTIONS);
+        leaseManager.releaseLeases(interestedNode);
+        int removedCount;
+        if (clusteredRegistry.isEnabled()) {
+            removedCount = clusteredRegistry.removeAllSubscriptions(interestedNode);
+        } else {
+            removedCount = subscriptionCache.removeAllSubscriptions(interestedNode);
+        }
+        metrics.recordLookup(TopicRegistryOperationEnum.IM_REMOVE_ALL_SUBSCRIPTIONS, startNanos, removedCount > 0);
+        LOG.debug(".removeAllSubscriptions(): Exit, removedCount --> {}", removedCount);
+        return (removedCount);
+    }
+
+    /**
+     * This function retrieves the Topics a WUP is (exactly) subscribed to.
+     *
+     * @param interestedNode The ID of the (Topology) Node
+     * @return The Topics it subscribes to.
+     */
+    public Set<TopicToken> getSubscribedTopics(NodeElementIdentifier interestedNode) {
+        LOG.debug(".getSubscribedTopics(): Entry, interestedNode --> {}", interestedNode);
+        return (subscriptionCache.getSubscribedTopics(interestedNode));
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+/**
+ * An immutable copy of the distribution held by a StripedHistogram.
+ * Percentiles are reported as the highest value of the bucket they fall in,
+ * i.e. they never under-state a latency or fan-out.
+ */
+public final class HistogramSnapshot {
+
+    private final long[] bucketCounts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    HistogramSnapshot(long[] bucketCounts, long sum, long max) {
+        long bucketTotal = 0;
+        for (long bucketCount : bucketCounts) {
+            bucketTotal += bucketCount;
+        }
+        this.bucketCounts = bucketCounts;
+        // The buckets are the source of truth (the totals are updated separately, so may be a little ahead)
+        this.count = bucketTotal;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return (count);
+    }
+
+    public long getMax() {
+        return (max);
+    }
+
+    public double getMean() {
+        return ((count == 0) ? 0.0 : ((double) sum / count));
+    }
+
+    /**
+     * @param percentile The percentile, 0.0 to 100.0
+     * @return The value at (or just above) the percentile, 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return (0);
+        }
+        double boundedPercentile = Math.max(0.0, Math.min(percentile, 100.0));
+        long targetCount = Math.max(1, (long) Math.ceil((boundedPercentile / 100.0) * count));
+        long runningCount = 0;
+        for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+            runningCount += bucketCounts[bucket];
+            if (runningCount >= targetCount) {
+                return (Math.min(StripedHistogram.highestValueOf(bucket), max));
+            }
+        }
+        return (max);
+    }
+
+    public long getMedian() {
+        return (getValueAtPercentile(50.0));
+    }
+
+    public long get90thPercentile() {
+        return (getValueAtPercentile(90.0));
+    }
+
+    public long get99thPercentile() {
+        return (getValueAtPercentile(99.0));
+    }
+
+    public long get999thPercentile() {
+        return (getValueAtPercentile(99.9));
+    }
+
+    @Override
+    public String toString() {
+        return ("HistogramSnapshot{count=" + count + ", mean=" + getMean() + ", p50=" + getMedian() + ", p90=" + get90thPercentile()
+                + ", p99=" + get99thPercentile() + ", p99.9=" + get999thPercentile() + ", max=" + max + "}");
+    }
+}
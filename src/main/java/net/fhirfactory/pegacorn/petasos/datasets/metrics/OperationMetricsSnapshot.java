@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+/**
+ * The counters and latency distribution of a single operation, as of a TopicRegistryMetrics snapshot.
+ */
+public final class OperationMetricsSnapshot {
+
+    private final TopicRegistryOperationEnum operation;
+    private final long count;
+    private final long hits;
+    private final long misses;
+    private final HistogramSnapshot latencyNanos;
+
+    OperationMetricsSnapshot(TopicRegistryOperationEnum operation, long count, long hits, long misses, HistogramSnapshot latencyNanos) {
+        this.operation = operation;
+        this.count = count;
+        this.hits = hits;
+        this.misses = misses;
+        this.latencyNanos = latencyNanos;
+    }
+
+    public TopicRegistryOperationEnum getOperation() {
+        return (operation);
+    }
+
+    public long getCount() {
+        return (count);
+    }
+
+    public long getHits() {
+        return (hits);
+    }
+
+    public long getMisses() {
+        return (misses);
+    }
+
+    /**
+     * @return hits / (hits + misses), or NaN if the operation has never looked anything up
+     */
+    public double getHitRatio() {
+        long lookups = hits + misses;
+        return ((lookups == 0) ? Double.NaN : ((double) hits / lookups));
+    }
+
+    /**
+     * @return The latency distribution (in nanoseconds) of the timed calls
+     */
+    public HistogramSnapshot getLatencyNanos() {
+        return (latencyNanos);
+    }
+
+    @Override
+    public String toString() {
+        return ("OperationMetricsSnapshot{operation=" + operation + ", count=" + count + ", hits=" + hits + ", misses=" + misses
+                + ", latencyNanos=" + latencyNanos + "}");
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative long values (e.g. latencies in
+ * nanoseconds, or fan-out sizes) using HdrHistogram-style log-linear buckets:
+ * values below 2 x {@value #HALF_SUB_BUCKET_COUNT} have a bucket each, and
+ * every power-of-two range above that is split into
+ * {@value #HALF_SUB_BUCKET_COUNT} equal buckets - so any recorded value is
+ * reported to within ~3% of its true value, over the whole range, with a
+ * fixed number of buckets. Values above {@value #MAX_TRACKABLE_VALUE} are
+ * counted in the top bucket.
+ * <p>
+ * Recording is striped: each thread increments the buckets of one of a
+ * (small, power of two) number of stripes, chosen by its thread ID and
+ * allocated on first use, so concurrent recorders rarely touch the same
+ * cache line. A snapshot sums the stripes.
+ */
+public class StripedHistogram {
+
+    static final int SUB_BUCKET_BITS = 6;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+    static final long MAX_TRACKABLE_VALUE = (1L << 40) - 1;
+    static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    private static final int MAX_STRIPES = 16;
+    private static final int STRIPE_MASK = stripeCount() - 1;
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes;
+    private final LongAdder totalCount;
+    private final LongAdder totalValue;
+    private final LongAccumulator maxValue;
+
+    public StripedHistogram() {
+        this.stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPE_MASK + 1);
+        this.totalCount = new LongAdder();
+        this.totalValue = new LongAdder();
+        this.maxValue = new LongAccumulator(Long::max, 0L);
+    }
+
+    private static int stripeCount() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), MAX_STRIPES);
+        return (Integer.highestOneBit(Math.max(processors, 1) * 2 - 1));
+    }
+
+    /**
+     * @return The index of the bucket counting the (non-negative) value
+     */
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return ((int) value);
+        }
+        // value >> shift lies within [HALF_SUB_BUCKET_COUNT, SUB_BUCKET_COUNT)
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return (SUB_BUCKET_COUNT + ((shift - 1) * HALF_SUB_BUCKET_COUNT) + (int) ((value >>> shift) - HALF_SUB_BUCKET_COUNT));
+    }
+
+    /**
+     * @return The highest value counted by the bucket
+     */
+    static long highestValueOf(int bucketIndex) {
+        if (bucketIndex < SUB_BUCKET_COUNT) {
+            return (bucketIndex);
+        }
+        int offset = bucketIndex - SUB_BUCKET_COUNT;
+        int shift = (offset / HALF_SUB_BUCKET_COUNT) + 1;
+        long subBucket = (offset % HALF_SUB_BUCKET_COUNT) + HALF_SUB_BUCKET_COUNT;
+        return (((subBucket + 1) << shift) - 1);
+    }
+
+    public void record(long value) {
+        long boundedValue = (value < 0) ? 0 : Math.min(value, MAX_TRACKABLE_VALUE);
+        int stripeIndex = (int) Thread.currentThread().getId() & STRIPE_MASK;
+        AtomicLongArray stripe = stripes.get(stripeIndex);
+        if (stripe == null) {
+            stripes.compareAndSet(stripeIndex, null, new AtomicLongArray(BUCKET_COUNT));
+            stripe = stripes.get(stripeIndex);
+        }
+        stripe.getAndIncrement(bucketIndex(boundedValue));
+        totalCount.increment();
+        totalValue.add(boundedValue);
+        maxValue.accumulate(boundedValue);
+    }
+
+    public void reset() {
+        for (int counter = 0; counter < stripes.length(); counter++) {
+            stripes.set(counter, null);
+        }
+        totalCount.reset();
+        totalValue.reset();
+        maxValue.reset();
+    }
+
+    /**
+     * @return The (approximately point-in-time) distribution recorded so far
+     */
+    public HistogramSnapshot snapshot() {
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        for (int counter = 0; counter < stripes.length(); counter++) {
+            AtomicLongArray stripe = stripes.get(counter);
+            if (stripe != null) {
+                for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                    bucketCounts[bucket] += stripe.get(bucket);
+                }
+            }
+        }
+        return (new HistogramSnapshot(bucketCounts, totalValue.sum(), maxValue.get()));
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * The recording side of the Topic registry instrumentation: per-operation
+ * counts, hits/misses and latency histograms, plus the fan-out (subscriber
+ * count) of each subscriber lookup. Counters are LongAdders and histograms
+ * are StripedHistograms, so concurrent recorders don't contend on a shared
+ * cache line.
+ * <p>
+ * A recording call looks like:
+ * <pre>
+ * long startNanos = metrics.startTimer(operation);
+ * ... the operation ...
+ * metrics.recordLookup(operation, startNanos, found);
+ * </pre>
+ * Metrics are enabled unless {@value #ENABLED_PROPERTY} is set to false (at
+ * startup). The flag is a static final constant, so when it is false the JIT
+ * removes the recording calls altogether.
+ */
+@ApplicationScoped
+public class TopicRegistryMetrics {
+
+    public static final String ENABLED_PROPERTY = "petasos.datasets.metrics.enabled";
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+
+    public static final int LATENCY_SAMPLE_INTERVAL = 16;
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final LongAdder[] counts;
+    private final LongAdder[] hits;
+    private final LongAdder[] misses;
+    private final StripedHistogram[] latencies;
+    private final StripedHistogram lookupFanOut;
+
+    public TopicRegistryMetrics() {
+        int operationCount = TopicRegistryOperationEnum.values().length;
+        this.counts = new LongAdder[operationCount];
+        this.hits = new LongAdder[operationCount];
+        this.misses = new LongAdder[operationCount];
+        this.latencies = new StripedHistogram[operationCount];
+        for (int counter = 0; counter < operationCount; counter++) {
+            counts[counter] = new LongAdder();
+            hits[counter] = new LongAdder();
+            misses[counter] = new LongAdder();
+            latencies[counter] = new StripedHistogram();
+        }
+        this.lookupFanOut = new StripedHistogram();
+    }
+
+    public boolean isEnabled() {
+        return (ENABLED);
+    }
+
+    /**
+     * @return The start time to hand to record()/recordLookup(), or a "not timed" marker
+     */
+    public long startTimer(TopicRegistryOperationEnum operation) {
+        if (!ENABLED) {
+            return (NOT_TIMED);
+        }
+        if (operation.isSampled() && ((ThreadLocalRandom.current().nextInt() & (LATENCY_SAMPLE_INTERVAL - 1)) != 0)) {
+            return (NOT_TIMED);
+        }
+        return (System.nanoTime());
+    }
+
+    public void record(TopicRegistryOperationEnum operation, long startNanos) {
+        if (!ENABLED) {
+            return;
+        }
+        counts[operation.ordinal()].increment();
+        if (startNanos != NOT_TIMED) {
+            latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * As per record(), additionally counting whether the operation found what it was looking for.
+     */
+    public void recordLookup(TopicRegistryOperationEnum operation, long startNanos, boolean hit) {
+        if (!ENABLED) {
+            return;
+        }
+        record(operation, startNanos);
+        if (hit) {
+            hits[operation.ordinal()].increment();
+        } else {
+            misses[operation.ordinal()].increment();
+        }
+    }
+
+    /**
+     * As per recordLookup(), for an operation that isn't timed.
+     */
+    public void recordLookup(TopicRegistryOperationEnum operation, boolean hit) {
+        recordLookup(operation, NOT_TIMED, hit);
+    }
+
+    /**
+     * @param subscriberCount The number of subscribers a lookup returned
+     */
+    public void recordFanOut(int subscriberCount) {
+        if (!ENABLED) {
+            return;
+        }
+        lookupFanOut.record(subscriberCount);
+    }
+
+    public OperationMetricsSnapshot getOperationSnapshot(TopicRegistryOperationEnum operation) {
+        int index = operation.ordinal();
+        return (new OperationMetricsSnapshot(operation, counts[index].sum(), hits[index].sum(), misses[index].sum(), latencies[index].snapshot()));
+    }
+
+    /**
+     * @return The distribution of the number of subscribers returned per lookup
+     */
+    public HistogramSnapshot getLookupFanOutSnapshot() {
+        return (lookupFanOut.snapshot());
+    }
+
+    public void reset() {
+        for (int counter = 0; counter < counts.length; counter++) {
+            counts[counter].reset();
+            hits[counter].reset();
+            misses[counter].reset();
+            latencies[counter].reset();
+        }
+        lookupFanOut.reset();
+    }
+}
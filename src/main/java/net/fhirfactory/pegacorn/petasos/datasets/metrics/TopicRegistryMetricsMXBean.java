@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the Topic registry metrics (see TopicRegistryMetricsReporter).
+ * The per-operation attributes are keyed on the TopicRegistryOperationEnum
+ * name; latencies are in nanoseconds.
+ */
+public interface TopicRegistryMetricsMXBean {
+
+    boolean isEnabled();
+
+    int getTopicCount();
+
+    int getSubscribedTopicCount();
+
+    int getSubscriberCount();
+
+    int getPatternSubscriptionCount();
+
+    int getVersionRangeTopicCount();
+
+    int getFanOutGroupCount();
+
+    /**
+     * @return The size, in bytes, of the filter of subscribed Topics (see the SUBSCRIPTION_FILTER hit ratio)
+     */
+    long getSubscribedTopicFilterSize();
+
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Double> getHitRatios();
+
+    Map<String, Long> getMedianLatencies();
+
+    Map<String, Long> getP99Latencies();
+
+    Map<String, Long> getMaxLatencies();
+
+    /**
+     * @return The median, 90th, 99th percentile and maximum number of (exact) subscribers per subscribed Topic,
+     * as of the last refresh (see TopicRegistryMetricsReporter)
+     */
+    Map<String, Long> getTopicFanOut();
+
+    /**
+     * @return The median, 90th, 99th percentile and maximum number of subscribers returned per lookup
+     */
+    Map<String, Long> getLookupFanOut();
+
+    /**
+     * Zeroes the counters and histograms (the cardinalities are always current).
+     */
+    void reset();
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+
+/**
+ * The reading side of the Topic registry instrumentation: combines the
+ * recorded TopicRegistryMetrics with the (pulled, at read time) cardinality
+ * and fan-out of the data managers, as a TopicRegistryMetricsSnapshot or via
+ * JMX (registered as {@value #OBJECT_NAME} at startup, if metrics are enabled).
+ * <p>
+ * The per-Topic fan-out distribution takes a pass over every subscribed Topic,
+ * so it is cached and recomputed (by the first read after it goes stale) at
+ * most once per refresh interval - {@value #FAN_OUT_REFRESH_MILLIS_PROPERTY}
+ * milliseconds, default {@value #DEFAULT_FAN_OUT_REFRESH_MILLIS}.
+ */
+@ApplicationScoped
+public class TopicRegistryMetricsReporter implements TopicRegistryMetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicRegistryMetricsReporter.class);
+
+    public static final String OBJECT_NAME = "net.fhirfactory.pegacorn.petasos.datasets:type=TopicRegistryMetrics";
+
+    public static final String FAN_OUT_REFRESH_MILLIS_PROPERTY = "petasos.datasets.metrics.fan-out-refresh-ms";
+    public static final long DEFAULT_FAN_OUT_REFRESH_MILLIS = 10000L;
+
+    @Inject
+    TopicRegistryMetrics metrics;
+
+    @Inject
+    TopicCacheDM topicSetCache;
+
+    @Inject
+    TopicSubscriptionMapDM subscriptionCache;
+
+    private ObjectName registeredName;
+
+    private final long fanOutRefreshNanos;
+    // Guarded by "this"
+    private HistogramSnapshot topicFanOut;
+    private long topicFanOutNanos;
+
+    public TopicRegistryMetricsReporter() {
+        this(Long.getLong(FAN_OUT_REFRESH_MILLIS_PROPERTY, DEFAULT_FAN_OUT_REFRESH_MILLIS));
+    }
+
+    private TopicRegistryMetricsReporter(long fanOutRefreshMillis) {
+        if (fanOutRefreshMillis < 0) {
+            throw (new IllegalArgumentException(".TopicRegistryMetricsReporter(): fanOutRefreshMillis is negative"));
+        }
+        this.fanOutRefreshNanos = TimeUnit.MILLISECONDS.toNanos(fanOutRefreshMillis);
+    }
+
+    /**
+     * Creates a reporter over the given metrics and data managers (e.g. outside a container).
+     */
+    public TopicRegistryMetricsReporter(TopicRegistryMetrics metrics, TopicCacheDM topicSetCache, TopicSubscriptionMapDM subscriptionCache) {
+        this(metrics, topicSetCache, subscriptionCache, DEFAULT_FAN_OUT_REFRESH_MILLIS);
+    }
+
+    /**
+     * As above, recomputing the per-Topic fan-out distribution at most once per fanOutRefreshMillis.
+     */
+    public TopicRegistryMetricsReporter(TopicRegistryMetrics metrics, TopicCacheDM topicSetCache, TopicSubscriptionMapDM subscriptionCache, long fanOutRefreshMillis) {
+        this(fanOutRefreshMillis);
+        this.metrics = metrics;
+        this.topicSetCache = topicSetCache;
+        this.subscriptionCache = subscriptionCache;
+    }
+
+    public void onStartup(@Observes @Initialized(ApplicationScoped.class) Object initEvent) {
+        LOG.debug(".onStartup(): Entry");
+        if (!TopicRegistryMetrics.ENABLED) {
+            LOG.debug(".onStartup(): Exit, metrics are disabled");
+            return;
+        }
+        registerMBean();
+        LOG.debug(".onStartup(): Exit");
+    }
+
+    public synchronized void registerMBean() {
+        if (registeredName != null) {
+            return;
+        }
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mbeanServer.isRegistered(objectName)) {
+                mbeanServer.unregisterMBean(objectName);
+            }
+            mbeanServer.registerMBean(this, objectName);
+            registeredName = objectName;
+            LOG.info(".registerMBean(): Registered --> {}", OBJECT_NAME);
+        } catch (JMException jmException) {
+            LOG.warn(".registerMBean(): Could not register the metrics MBean --> {}", jmException.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public synchronized void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException jmException) {
+            LOG.debug(".unregisterMBean(): Could not unregister the metrics MBean --> {}", jmException.getMessage());
+        }
+        registeredName = null;
+    }
+
+    /**
+     * @return The current metrics, cardinalities and fan-out distributions
+     */
+    public TopicRegistryMetricsSnapshot getSnapshot() {
+        EnumMap<TopicRegistryOperationEnum, OperationMetricsSnapshot> operations = new EnumMap<TopicRegistryOperationEnum, OperationMetricsSnapshot>(TopicRegistryOperationEnum.class);
+        for (TopicRegistryOperationEnum operation : TopicRegistryOperationEnum.values()) {
+            operations.put(operation, metrics.getOperationSnapshot(operation));
+        }
+        return (new TopicRegistryMetricsSnapshot(System.currentTimeMillis(), metrics.isEnabled(), operations,
+                getTopicCount(), getSubscribedTopicCount(), getSubscriberCount(), getPatternSubscriptionCount(), getVersionRangeTopicCount(),
+                topicFanOutSnapshot(), metrics.getLookupFanOutSnapshot()));
+    }
+
+    private synchronized HistogramSnapshot topicFanOutSnapshot() {
+        long nowNanos = System.nanoTime();
+        if ((topicFanOut == null) || ((nowNanos - topicFanOutNanos) >= fanOutRefreshNanos)) {
+            StripedHistogram fanOut = new StripedHistogram();
+            subscriptionCache.forEachSubscription((topic, subscribers) -> fanOut.record(subscribers.size()));
+            topicFanOut = fanOut.snapshot();
+            topicFanOutNanos = nowNanos;
+        }
+        return (topicFanOut);
+    }
+
+    //
+    // TopicRegistryMetricsMXBean
+    //
+
+    @Override
+    public boolean isEnabled() {
+        return (metrics.isEnabled());
+    }
+
+    @Override
+    public int getTopicCount() {
+        return (topicSetCache.getTopicCount());
+    }
+
+    @Override
+    public int getSubscribedTopicCount() {
+        return (subscriptionCache.getSubscribedTopicCount());
+    }
+
+    @Override
+    public int getSubscriberCount() {
+        return (subscriptionCache.getSubscriberCount());
+    }
+
+    @Override
+    public int getPatternSubscriptionCount() {
+        return (subscriptionCache.getPatternSubscriptionCount());
+    }
+
+    @Override
+    public int getVersionRangeTopicCount() {
+        return (subscriptionCache.getVersionRangeTopicCount());
+    }
+
+    @Override
+    public int getFanOutGroupCount() {
+        return (subscriptionCache.getFanOutGroupCount());
+    }
+
+    @Override
+    public long getSubscribedTopicFilterSize() {
+        return (subscriptionCache.getSubscribedTopicFilterSize());
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        return (perOperation(OperationMetricsSnapshot::getCount));
+    }
+
+    @Override
+    public Map<String, Double> getHitRatios() {
+        LinkedHashMap<String, Double> hitRatios = new LinkedHashMap<String, Double>();
+        for (TopicRegistryOperationEnum operation : TopicRegistryOperationEnum.values()) {
+            double ratio = metrics.getOperationSnapshot(operation).getHitRatio();
+            if (!Double.isNaN(ratio)) {
+                hitRatios.put(operation.name(), ratio);
+            }
+        }
+        return (hitRatios);
+    }
+
+    @Override
+    public Map<String, Long> getMedianLatencies() {
+        return (perOperation(operation -> operation.getLatencyNanos().getMedian()));
+    }
+
+    @Override
+    public Map<String, Long> getP99Latencies() {
+        return (perOperation(operation -> operation.getLatencyNanos().get99thPercentile()));
+    }
+
+    @Override
+    public Map<String, Long> getMaxLatencies() {
+        return (perOperation(operation -> operation.getLatencyNanos().getMax()));
+    }
+
+    @Override
+    public Map<String, Long> getTopicFanOut() {
+        return (percentiles(topicFanOutSnapshot()));
+    }
+
+    @Override
+    public Map<String, Long> getLookupFanOut() {
+        return (percentiles(metrics.getLookupFanOutSnapshot()));
+    }
+
+    @Override
+    public void reset() {
+        LOG.info(".reset(): Resetting the Topic registry metrics");
+        metrics.reset();
+    }
+
+    private Map<String, Long> perOperation(ToLongFunction<OperationMetricsSnapshot> attribute) {
+        LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+        for (TopicRegistryOperationEnum operation : TopicRegistryOperationEnum.values()) {
+            values.put(operation.name(), attribute.applyAsLong(metrics.getOperationSnapshot(operation)));
+        }
+        return (values);
+    }
+
+    private static Map<String, Long> percentiles(HistogramSnapshot histogram) {
+        LinkedHashMap<String, Long> values = new LinkedHashMap<String, Long>();
+        values.put("count", histogram.getCount());
+        values.put("p50", histogram.getMedian());
+        values.put("p90", histogram.get90thPercentile());
+        values.put("p99", histogram.get99thPercentile());
+        values.put("max", histogram.getMax());
+        return (values);
+    }
+}
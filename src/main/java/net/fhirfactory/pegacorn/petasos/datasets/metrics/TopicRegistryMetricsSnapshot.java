@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A point-in-time view of the Topic registry metrics: the per-operation
+ * counters and latencies, the cardinality of the registries, and the fan-out
+ * distributions - both per subscribed Topic (as registered) and per lookup
+ * (as delivered).
+ */
+public final class TopicRegistryMetricsSnapshot {
+
+    private final long timestampMillis;
+    private final boolean enabled;
+    private final Map<TopicRegistryOperationEnum, OperationMetricsSnapshot> operations;
+    private final int topicCount;
+    private final int subscribedTopicCount;
+    private final int subscriberCount;
+    private final int patternSubscriptionCount;
+    private final int versionRangeTopicCount;
+    private final HistogramSnapshot topicFanOut;
+    private final HistogramSnapshot lookupFanOut;
+
+    TopicRegistryMetricsSnapshot(long timestampMillis, boolean enabled, EnumMap<TopicRegistryOperationEnum, OperationMetricsSnapshot> operations,
+            int topicCount, int subscribedTopicCount, int subscriberCount, int patternSubscriptionCount, int versionRangeTopicCount,
+            HistogramSnapshot topicFanOut, HistogramSnapshot lookupFanOut) {
+        this.timestampMillis = timestampMillis;
+        this.enabled = enabled;
+        this.operations = Collections.unmodifiableMap(operations);
+        this.topicCount = topicCount;
+        this.subscribedTopicCount = subscribedTopicCount;
+        this.subscriberCount = subscriberCount;
+        this.patternSubscriptionCount = patternSubscriptionCount;
+        this.versionRangeTopicCount = versionRangeTopicCount;
+        this.topicFanOut = topicFanOut;
+        this.lookupFanOut = lookupFanOut;
+    }
+
+    public long getTimestampMillis() {
+        return (timestampMillis);
+    }
+
+    /**
+     * @return false if recording is disabled (in which case only the cardinalities and Topic fan-out are populated)
+     */
+    public boolean isEnabled() {
+        return (enabled);
+    }
+
+    public Map<TopicRegistryOperationEnum, OperationMetricsSnapshot> getOperations() {
+        return (operations);
+    }
+
+    public OperationMetricsSnapshot getOperation(TopicRegistryOperationEnum operation) {
+        return (operations.get(operation));
+    }
+
+    /**
+     * @return The number of registered Topics (all versions)
+     */
+    public int getTopicCount() {
+        return (topicCount);
+    }
+
+    /**
+     * @return The number of Topics with at least one exact subscription
+     */
+    public int getSubscribedTopicCount() {
+        return (subscribedTopicCount);
+    }
+
+    /**
+     * @return The number of distinct subscribers with at least one exact subscription
+     */
+    public int getSubscriberCount() {
+        return (subscriberCount);
+    }
+
+    public int getPatternSubscriptionCount() {
+        return (patternSubscriptionCount);
+    }
+
+    /**
+     * @return The number of Topic identifiers with version range subscriptions
+     */
+    public int getVersionRangeTopicCount() {
+        return (versionRangeTopicCount);
+    }
+
+    /**
+     * @return The distribution of the number of (exact) subscribers per subscribed Topic
+     */
+    public HistogramSnapshot getTopicFanOut() {
+        return (topicFanOut);
+    }
+
+    /**
+     * @return The distribution of the number of subscribers returned per lookup
+     */
+    public HistogramSnapshot getLookupFanOut() {
+        return (lookupFanOut);
+    }
+
+    @Override
+    public String toString() {
+        return ("TopicRegistryMetricsSnapshot{timestampMillis=" + timestampMillis + ", enabled=" + enabled + ", topicCount=" + topicCount
+                + ", subscribedTopicCount=" + subscribedTopicCount + ", subscriberCount=" + subscriberCount
+                + ", patternSubscriptionCount=" + patternSubscriptionCount + ", versionRangeTopicCount=" + versionRangeTopicCount
+                + ", topicFanOut=" + topicFanOut + ", lookupFanOut=" + lookupFanOut + ", operations=" + operations.values() + "}");
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+/**
+ * The instrumented operations of the TopicIM and the Topic/Subscription data
+ * managers. Operations that look something up also count hits and misses.
+ * <p>
+ * The latency of a "sampled" operation (i.e. the very frequent, very cheap
+ * lookups) is only timed for one call in {@value TopicRegistryMetrics#LATENCY_SAMPLE_INTERVAL},
+ * so the cost of reading the clock doesn't dominate the operation being
+ * measured; its count (and hits/misses) are still exact.
+ */
+public enum TopicRegistryOperationEnum {
+    IM_REGISTER_TOPIC(false),
+    IM_UNREGISTER_TOPIC(false),
+    IM_ADD_SUBSCRIBER(false),
+    IM_REMOVE_SUBSCRIBER(false),
+    IM_REMOVE_ALL_SUBSCRIPTIONS(false),
+    PIPELINE_APPLY_TOPIC_BATCH(false),
+    PIPELINE_APPLY_SUBSCRIPTION_BATCH(false),
+    LEASE_ACQUIRE(false),
+    LEASE_RENEW(true),
+    LEASE_RELEASE(false),
+    LEASE_EXPIRE(false),
+    CACHE_ADD_TOPIC(false),
+    CACHE_REMOVE_TOPIC(false),
+    CACHE_GET_TOPIC(true),
+    CACHE_GET_LATEST_TOPIC(true),
+    SUBSCRIPTION_GET_SUBSCRIBER_SET(true),
+    SUBSCRIPTION_FILTER(true),
+    SUBSCRIPTION_FILTER_PASS(true),
+    SUBSCRIPTION_GET_SUBSCRIBER_SETS(false),
+    SUBSCRIPTION_RESOLVE(false),
+    SUBSCRIPTION_ADD_SUBSCRIBER(false),
+    SUBSCRIPTION_REMOVE_SUBSCRIBER(false),
+    SUBSCRIPTION_ADD_PATTERN_SUBSCRIBER(false),
+    SUBSCRIPTION_REMOVE_PATTERN_SUBSCRIBER(false),
+    SUBSCRIPTION_ADD_VERSION_RANGE_SUBSCRIBER(false),
+    SUBSCRIPTION_REMOVE_VERSION_RANGE_SUBSCRIBER(false),
+    SUBSCRIPTION_REMOVE_ALL_SUBSCRIPTIONS(false);
+
+    private final boolean sampled;
+
+    private TopicRegistryOperationEnum(boolean sampled) {
+        this.sampled = sampled;
+    }
+
+    public boolean isSampled() {
+        return (sampled);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.persistence;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.IdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+
+/**
+ * Re-establishes the containment links (Topic.getContainedTopics()) of the
+ * Topics recovered by the TopicRegistryJournal - which are not themselves
+ * journaled - without ever linking a contained Topic twice.
+ * <p>
+ * As per TopicIM.registerTopic(), a Topic is listed by the latest registered
+ * version of its containing Topic. A recovered Topic that replaces one
+ * already in the TopicCacheDM (e.g. loaded from the TopicsFile, or an earlier
+ * record for the same TopicToken) keeps the links of the one it replaces, so
+ * replaying a record more than once yields the same state.
+ */
+final class RecoveredTopicLinker {
+
+    private final TopicCacheDM topicSetCache;
+    // The contained Topics of each container linked so far, seeded from its own list
+    private final IdentityHashMap<Topic, Set<FDNToken>> containedTopics;
+
+    RecoveredTopicLinker(TopicCacheDM topicSetCache) {
+        this.topicSetCache = topicSetCache;
+        this.containedTopics = new IdentityHashMap<Topic, Set<FDNToken>>();
+    }
+
+    /**
+     * Copies the links of the Topic (if any) the recovered Topic is about to replace. Call before
+     * installing the recovered Topic in the TopicCacheDM.
+     */
+    void inheritLinks(Topic recoveredTopic) {
+        int topicId = topicSetCache.getTopicId(recoveredTopic.getTopicToken());
+        Topic replacedTopic = (topicId == IdentifierInterner.NO_ID) ? null : topicSetCache.getTopic(topicId);
+        if ((replacedTopic == null) || (replacedTopic == recoveredTopic)) {
+            return;
+        }
+        Set<FDNToken> recoveredLinks = linksOf(recoveredTopic);
+        for (FDNToken containedTopic : replacedTopic.getContainedTopics()) {
+            if (recoveredLinks.add(containedTopic)) {
+                recoveredTopic.addContainedTopic(containedTopic);
+            }
+        }
+    }
+
+    /**
+     * Lists the recovered Topic within its containing Topic. Call once the containing Topic is installed
+     * in the TopicCacheDM.
+     */
+    void linkToContainer(Topic recoveredTopic) {
+        if (!recoveredTopic.hasContainingDataset()) {
+            return;
+        }
+        Topic container = topicSetCache.getTopic(recoveredTopic.getContainingDataset());
+        if ((container != null) && linksOf(container).add(recoveredTopic.getIdentifier())) {
+            container.addContainedTopic(recoveredTopic.getIdentifier());
+        }
+    }
+
+    private Set<FDNToken> linksOf(Topic container) {
+        return (containedTopics.computeIfAbsent(container, currentContainer -> new HashSet<FDNToken>(currentContainer.getContainedTopics())));
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Priority;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEvent;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventCursor;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventLog;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventTypeEnum;
+import net.fhirfactory.pegacorn.petasos.datasets.loader.TopicFileLoader;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+
+/**
+ * The (optional) local persistence of the Topic and Subscription registries,
+ * so that a restarted node comes up with its Topics and subscriptions intact
+ * rather than waiting for every WUP to re-subscribe.
+ * <p>
+ * The journal follows the TopicRegistryEventLog and appends every change to a
+ * binary write-ahead log ({@value #WAL_FILE_NAME}); each record is length
+ * prefixed and CRC32 checked, so a torn tail (from a crash mid-append) is
+ * detected and discarded on recovery. Once the log exceeds the compaction
+ * threshold, the current state of the data managers is written to a snapshot
+ * ({@value #SNAPSHOT_FILE_NAME}, see TopicRegistrySnapshot) and the log is
+ * restarted. On startup the snapshot is memory-mapped and loaded, and then
+ * the log is replayed over it.
+ * <p>
+ * Every journaled change is an assignment (a Topic or subscription is present
+ * or absent), so replaying the log over a snapshot that already reflects
+ * some of its changes yields the same state. The snapshot and log carry a
+ * generation number, so a log written before the latest snapshot is never
+ * replayed over it. Containment links are not journaled; they are rebuilt as
+ * Topics are recovered, without linking a contained Topic twice (see
+ * RecoveredTopicLinker).
+ * <p>
+ * Recovery runs at startup priority {@value #STARTUP_PRIORITY}, after the
+ * TopicFileLoader has loaded the Topic catalogue: the recovered Topics
+ * replace the catalogue's (keeping their containment links), and the
+ * catalogue load itself is never journaled.
+ * <p>
+ * Journaling is asynchronous: a change returns to its caller once it is in
+ * the data managers, and is only appended to the log when the journal thread
+ * next polls the event logs (every {@value #JOURNAL_POLL_INTERVAL_MILLIS}
+ * milliseconds). The log is then forced to disk as per the
+ * JournalFsyncPolicyEnum - i.e. once per polled batch, or at most once per
+ * fsync interval. So a crash loses the changes of (up to) the last poll
+ * interval with JournalFsyncPolicyEnum.BATCH, and of the last poll plus fsync
+ * interval with JournalFsyncPolicyEnum.INTERVAL. A caller needing a
+ * durability point (e.g. before acknowledging a subscription) calls flush(),
+ * which returns once every change made before the call is on disk. If the
+ * journal falls so far behind that the event log overwrites changes it has
+ * not yet written, it compacts (which captures them) instead.
+ * <p>
+ * Recovery time is dominated by re-applying the snapshot through the data
+ * managers (their indexes, FanOutGroups and event logs are rebuilt, not
+ * mapped). On a single CPU with the serial collector, a snapshot of 222k
+ * Topics and 1M subscriptions takes about 2.5-3s to load once warm, so
+ * recovery of a registry that size is not sub-second.
+ * <p>
+ * Persistence is enabled by setting {@value #PERSISTENCE_DIRECTORY_PROPERTY};
+ * the fsync policy and interval, and the compaction threshold, can be set via
+ * {@value #FSYNC_POLICY_PROPERTY}, {@value #FSYNC_INTERVAL_PROPERTY} and
+ * {@value #COMPACTION_THRESHOLD_PROPERTY}.
+ */
+@ApplicationScoped
+public class TopicRegistryJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicRegistryJournal.class);
+
+    public static final String PERSISTENCE_DIRECTORY_PROPERTY = "petasos.datasets.persistence.directory";
+    public static final String FSYNC_POLICY_PROPERTY = "petasos.datasets.persistence.fsync";
+    public static final String FSYNC_INTERVAL_PROPERTY = "petasos.datasets.persistence.fsync-interval-ms";
+    public static final String COMPACTION_THRESHOLD_PROPERTY = "petasos.datasets.persistence.compaction-threshold-bytes";
+
+    // Recovery runs once the TopicFileLoader has loaded the Topic catalogue
+    public static final int STARTUP_PRIORITY = TopicFileLoader.STARTUP_PRIORITY + 100;
+
+    public static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 1000L;
+    public static final long DEFAULT_COMPACTION_THRESHOLD_BYTES = 64L * 1024L * 1024L;
+
+    public static final String SNAPSHOT_FILE_NAME = "topic-registry.snapshot";
+    public static final String WAL_FILE_NAME = "topic-registry.wal";
+
+    static final int WAL_MAGIC = 0x5044574C; // "PDWL"
+    static final int WAL_FORMAT_VERSION = 1;
+    static final int WAL_HEADER_LENGTH = 16;
+
+    static final byte RECORD_TOPIC_ADDED = 1;
+    static final byte RECORD_TOPIC_REMOVED = 2;
+    static final byte RECORD_SUBSCRIBER_ADDED = 3;
+    static final byte RECORD_SUBSCRIBER_REMOVED = 4;
+    static final byte RECORD_PATTERN_SUBSCRIBER_ADDED = 5;
+    static final byte RECORD_PATTERN_SUBSCRIBER_REMOVED = 6;
+    static final byte RECORD_VERSION_RANGE_SUBSCRIBER_ADDED = 7;
+    static final byte RECORD_VERSION_RANGE_SUBSCRIBER_REMOVED = 8;
+
+    static final long JOURNAL_POLL_INTERVAL_MILLIS = 10L;
+    private static final int JOURNAL_BATCH_SIZE = 4096;
+
+    @Inject
+    TopicCacheDM topicSetCache;
+
+    @Inject
+    TopicSubscriptionMapDM subscriptionCache;
+
+    private Path snapshotFile;
+    private Path walFile;
+    private JournalFsyncPolicyEnum fsyncPolicy;
+    private long fsyncIntervalNanos;
+    private long compactionThresholdBytes;
+    private long generation;
+    private FileChannel walChannel;
+    private List<TopicRegistryEventCursor> cursors;
+    private ScheduledExecutorService journalExecutor;
+    private boolean unforcedWrites;
+    private long lastForceNanos;
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream batchBuffer = new ByteArrayOutputStream();
+    private volatile boolean enabled;
+
+    public TopicRegistryJournal() {
+        this.enabled = false;
+    }
+
+    /**
+     * Creates a journal over the given data managers (e.g. outside a container).
+     */
+    public TopicRegistryJournal(TopicCacheDM topicSetCache, TopicSubscriptionMapDM subscriptionCache) {
+        this();
+        this.topicSetCache = topicSetCache;
+        this.subscriptionCache = subscriptionCache;
+    }
+
+    public void onStartup(@Observes @Priority(STARTUP_PRIORITY) @Initialized(ApplicationScoped.class) Object initEvent) {
+        LOG.debug(".onStartup(): Entry");
+        String directory = System.getProperty(PERSISTENCE_DIRECTORY_PROPERTY);
+        if (directory == null) {
+            LOG.debug(".onStartup(): Exit, persistence is not enabled");
+            return;
+        }
+        JournalFsyncPolicyEnum policy = JournalFsyncPolicyEnum.valueOf(System.getProperty(FSYNC_POLICY_PROPERTY, JournalFsyncPolicyEnum.BATCH.name()));
+        long fsyncInterval = Long.getLong(FSYNC_INTERVAL_PROPERTY, DEFAULT_FSYNC_INTERVAL_MILLIS);
+        long compactionThreshold = Long.getLong(COMPACTION_THRESHOLD_PROPERTY, DEFAULT_COMPACTION_THRESHOLD_BYTES);
+        start(Paths.get(directory), policy, fsyncInterval, compactionThreshold);
+        LOG.debug(".onStartup(): Exit");
+    }
+
+    /**
+     * Recovers the registries from the directory (if it holds a snapshot and/or
+     * log) and then starts journaling every subsequent change.
+     *
+     * @param directory The directory holding the snapshot and write-ahead log (created if need be)
+     * @param fsyncPolicy When the log is forced to disk
+     * @param fsyncIntervalMillis The maximum time between forces, for JournalFsyncPolicyEnum.INTERVAL
+     * @param compactionThresholdBytes The log size that triggers a compaction
+     */
+    public synchronized void start(Path directory, JournalFsyncPolicyEnum fsyncPolicy, long fsyncIntervalMillis, long compactionThresholdBytes) {
+        LOG.debug(".start(): Entry, directory --> {}, fsyncPolicy --> {}", directory, fsyncPolicy);
+        if (enabled) {
+            throw (new IllegalStateException(".start(): journal is already started"));
+        }
+        if ((directory == null) || (fsyncPolicy == null)) {
+            throw (new IllegalArgumentException(".start(): directory or fsyncPolicy is null"));
+        }
+        if ((topicSetCache == null) || (subscriptionCache == null)) {
+            throw (new IllegalStateException(".start(): topicSetCache or subscriptionCache is null"));
+        }
+        this.snapshotFile = directory.resolve(SNAPSHOT_FILE_NAME);
+        this.walFile = directory.resolve(WAL_FILE_NAME);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        this.compactionThresholdBytes = compactionThresholdBytes;
+        try {
+            Files.createDirectories(directory);
+            long startNanos = System.nanoTime();
+            HashMap<TopicToken, Topic> recoveredTopics = new HashMap<TopicToken, Topic>();
+            RecoveredTopicLinker topicLinker = new RecoveredTopicLinker(topicSetCache);
+            int snapshotCount = loadSnapshot(topicLinker, recoveredTopics);
+            int walCount = replayWal(topicLinker, recoveredTopics);
+            LOG.info(".start(): Recovered registries from --> {}, snapshot Topics --> {}, log records --> {}, Topics --> {}, elapsed (ms) --> {}",
+                    directory, snapshotCount, walCount, recoveredTopics.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        } catch (IOException ioException) {
+            throw (new UncheckedIOException(".start(): Could not recover registries from " + directory, ioException));
+        }
+        // The recovered state is already on disk, journal only what happens from here on
+        this.cursors = new ArrayList<TopicRegistryEventCursor>();
+        cursors.add(topicSetCache.getEventLog().newCursor());
+        if (subscriptionCache.getEventLog() != topicSetCache.getEventLog()) {
+            cursors.add(subscriptionCache.getEventLog().newCursor());
+        }
+        this.lastForceNanos = System.nanoTime();
+        this.journalExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread journalThread = new Thread(runnable, "petasos-datasets-journal");
+            journalThread.setDaemon(true);
+            return (journalThread);
+        });
+        journalExecutor.scheduleWithFixedDelay(this::journalPendingChanges, JOURNAL_POLL_INTERVAL_MILLIS, JOURNAL_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        enabled = true;
+        LOG.debug(".start(): Exit, generation --> {}", generation);
+    }
+
+    @PreDestroy
+    public void stop() {
+        LOG.debug(".stop(): Entry");
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            if (!enabled) {
+                return;
+            }
+            enabled = false;
+            executor = journalExecutor;
+            journalExecutor = null;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                journalChanges();
+                walChannel.force(false);
+                walChannel.close();
+            } catch (IOException ioException) {
+                LOG.error(".stop(): Could not close the write-ahead log --> {}", walFile, ioException);
+            }
+            walChannel = null;
+        }
+        LOG.debug(".stop(): Exit");
+    }
+
+    public boolean isEnabled() {
+        return (enabled);
+    }
+
+    /**
+     * Journals (and forces to disk) every change made so far, i.e. the synchronous
+     * durability point: once it returns, every change made before the call survives a crash.
+     */
+    public synchronized void flush() {
+        if (!enabled) {
+            throw (new IllegalStateException(".flush(): journal is not started"));
+        }
+        try {
+            journalChanges();
+            forceWal();
+        } catch (IOException ioException) {
+            throw (new UncheckedIOException(".flush(): Could not write the write-ahead log", ioException));
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current registries and restarts the write-ahead log.
+     */
+    public synchronized void compact() {
+        if (!enabled) {
+            throw (new IllegalStateException(".compact(): journal is not started"));
+        }
+        try {
+            compactJournal();
+        } catch (IOException ioException) {
+            throw (new UncheckedIOException(".compact(): Could not compact the journal", ioException));
+        }
+    }
+
+    //
+    // Journaling (on the journal thread)
+    //
+
+    private synchronized void journalPendingChanges() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            journalChanges();
+            if (fsyncPolicy == JournalFsyncPolicyEnum.BATCH || (System.nanoTime() - lastForceNanos) >= fsyncIntervalNanos) {
+                forceWal();
+            }
+            if (walChannel.size() > compactionThresholdBytes) {
+                compactJournal();
+            }
+        } catch (IOException | RuntimeException journalException) {
+            // Keep journaling subsequent changes - the next compaction will capture anything lost here
+            LOG.error(".journalPendingChanges(): Could not journal registry changes", journalException);
+        }
+    }
+
+    private void journalChanges() throws IOException {
+        for (TopicRegistryEventCursor cursor : cursors) {
+            int polledCount;
+            do {
+                batchBuffer.reset();
+                try {
+                    polledCount = cursor.poll(this::appendRecord, JOURNAL_BATCH_SIZE);
+                } catch (IllegalStateException overrunException) {
+                    LOG.warn(".journalChanges(): Journal overrun by the event log, compacting instead");
+                    compactJournal();
+                    return;
+                }
+                if (batchBuffer.size() > 0) {
+                    walChannel.write(ByteBuffer.wrap(batchBuffer.toByteArray()));
+                    unforcedWrites = true;
+                }
+            } while (polledCount == JOURNAL_BATCH_SIZE);
+        }
+    }
+
+    private void appendRecord(TopicRegistryEvent event) {
+        // A leased subscription lasts only as long as its (in memory) lease, so must not outlive a restart
+        if (event.isLeased()) {
+            return;
+        }
+        try {
+            recordBuffer.reset();
+            DataOutputStream recordOutput = new DataOutputStream(recordBuffer);
+            switch (event.getEventType()) {
+                case TOPIC_ADDED:
+                    recordOutput.writeByte(RECORD_TOPIC_ADDED);
+                    TopicRegistryRecordCodec.writeTopic(recordOutput, event.getTopic());
+                    break;
+                case TOPIC_REMOVED:
+                    recordOutput.writeByte(RECORD_TOPIC_REMOVED);
+                    TopicRegistryRecordCodec.writeTopicToken(recordOutput, event.getTopicToken());
+                    break;
+                case SUBSCRIBER_ADDED:
+                case SUBSCRIBER_REMOVED:
+                    recordOutput.writeByte(event.getEventType() == TopicRegistryEventTypeEnum.SUBSCRIBER_ADDED ? RECORD_SUBSCRIBER_ADDED : RECORD_SUBSCRIBER_REMOVED);
+                    TopicRegistryRecordCodec.writeTopicToken(recordOutput, event.getTopicToken());
+                    TopicRegistryRecordCodec.writeSubscriber(recordOutput, event.getSubscriber());
+                    break;
+                case PATTERN_SUBSCRIBER_ADDED:
+                case PATTERN_SUBSCRIBER_REMOVED:
+                    recordOutput.writeByte(event.getEventType() == TopicRegistryEventTypeEnum.PATTERN_SUBSCRIBER_ADDED ? RECORD_PATTERN_SUBSCRIBER_ADDED : RECORD_PATTERN_SUBSCRIBER_REMOVED);
+                    TopicRegistryRecordCodec.writeString(recordOutput, event.getTopicPattern());
+                    TopicRegistryRecordCodec.writeSubscriber(recordOutput, event.getSubscriber());
+                    break;
+                case VERSION_RANGE_SUBSCRIBER_ADDED:
+                case VERSION_RANGE_SUBSCRIBER_REMOVED:
+                    recordOutput.writeByte(event.getEventType() == TopicRegistryEventTypeEnum.VERSION_RANGE_SUBSCRIBER_ADDED ? RECORD_VERSION_RANGE_SUBSCRIBER_ADDED : RECORD_VERSION_RANGE_SUBSCRIBER_REMOVED);
+                    TopicRegistryRecordCodec.writeFDNToken(recordOutput, event.getTopicToken().getIdentifier());
+                    TopicRegistryRecordCodec.writeString(recordOutput, event.getVersionRange().toString());
+                    TopicRegistryRecordCodec.writeSubscriber(recordOutput, event.getSubscriber());
+                    break;
+                default:
+                    return;
+            }
+            recordOutput.flush();
+            CRC32 recordChecksum = new CRC32();
+            recordChecksum.update(recordBuffer.toByteArray());
+            DataOutputStream batchOutput = new DataOutputStream(batchBuffer);
+            batchOutput.writeInt(recordBuffer.size());
+            batchOutput.writeInt((int) recordChecksum.getValue());
+            recordBuffer.writeTo(batchOutput);
+            batchOutput.flush();
+        } catch (IOException ioException) {
+            throw (new UncheckedIOException(ioException));
+        }
+    }
+
+    private void forceWal() throws IOException {
+        if (unforcedWrites) {
+            walChannel.force(false);
+            unforcedWrites = false;
+        }
+        lastForceNanos = System.nanoTime();
+    }
+
+    private void compactJournal() throws IOException {
+        long startNanos = System.nanoTime();
+        // Every change published before this point is already applied to the data managers
+        long[] compactedVersions = new long[cursors.size()];
+        for (int counter = 0; counter < compactedVersions.length; counter++) {
+            compactedVersions[counter] = eventLogOf(counter).getNextVersion();
+        }
+        long newGeneration = generation + 1;
+        int snapshotCount = TopicRegistrySnapshot.write(snapshotFile, newGeneration, topicSetCache, subscriptionCache);
+        generation = newGeneration;
+        openWal(true);
+        for (int counter = 0; counter < compactedVersions.length; counter++) {
+            cursors.get(counter).seek(compactedVersions[counter]);
+        }
+        LOG.info(".compactJournal(): Compacted journal, generation --> {}, snapshot entries --> {}, elapsed (ms) --> {}",
+                generation, snapshotCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    private TopicRegistryEventLog eventLogOf(int cursorIndex) {
+        return (cursorIndex == 0 ? topicSetCache.getEventLog() : subscriptionCache.getEventLog());
+    }
+
+    private int loadSnapshot(RecoveredTopicLinker topicLinker, Map<TopicToken, Topic> recoveredTopics) throws IOException {
+        generation = 0;
+        if (!Files.exists(snapshotFile)) {
+            LOG.debug(".loadSnapshot(): No snapshot --> {}", snapshotFile);
+            return (0);
+        }
+        generation = TopicRegistrySnapshot.load(snapshotFile, topicSetCache, subscriptionCache, topicLinker, recoveredTopics);
+        return (recoveredTopics.size());
+    }
+
+    //
+    // Write-ahead log
+    //
+
+    private int replayWal(RecoveredTopicLinker topicLinker, Map<TopicToken, Topic> recoveredTopics) throws IOException {
+        if (!Files.exists(walFile)) {
+            openWal(true);
+            return (0);
+        }
+        long validLength;
+        int replayedCount = 0;
+        try (FileChannel replayChannel = FileChannel.open(walFile, StandardOpenOption.READ)) {
+            MappedByteBuffer wal = replayChannel.map(FileChannel.MapMode.READ_ONLY, 0, replayChannel.size());
+            if ((wal.limit() < WAL_HEADER_LENGTH) || (wal.getInt() != WAL_MAGIC) || (wal.getInt() != WAL_FORMAT_VERSION)) {
+                LOG.warn(".replayWal(): Discarding unreadable write-ahead log --> {}", walFile);
+                validLength = -1;
+            } else if (wal.getLong() != generation) {
+                // Written before the snapshot was taken, so the snapshot already reflects it
+                LOG.debug(".replayWal(): Discarding write-ahead log from a previous generation");
+                validLength = -1;
+            } else {
+                validLength = wal.position();
+                CRC32 recordChecksum = new CRC32();
+                while (wal.remaining() >= 8) {
+                    int recordLength = wal.getInt();
+                    int expectedChecksum = wal.getInt();
+                    if ((recordLength <= 0) || (recordLength > wal.remaining())) {
+                        break;
+                    }
+                    ByteBuffer record = wal.slice();
+                    record.limit(recordLength);
+                    recordChecksum.reset();
+                    recordChecksum.update(record.duplicate());
+                    if ((int) recordChecksum.getValue() != expectedChecksum) {
+                        break;
+                    }
+                    try {
+                        applyRecord(record, topicLinker, recoveredTopics);
+                    } catch (BufferUnderflowException | IllegalArgumentException badRecord) {
+                        LOG.warn(".replayWal(): Skipping unreadable record at --> {}", validLength, badRecord);
+                    }
+                    wal.position(wal.position() + recordLength);
+                    validLength = wal.position();
+                    replayedCount++;
+                }
+                if (validLength < wal.limit()) {
+                    LOG.warn(".replayWal(): Discarding torn write-ahead log tail, bytes --> {}", wal.limit() - validLength);
+                }
+            }
+        }
+        if (validLength < 0) {
+            openWal(true);
+        } else {
+            openWal(false);
+            walChannel.truncate(validLength);
+            walChannel.position(validLength);
+        }
+        return (replayedCount);
+    }
+
+    private void applyRecord(ByteBuffer record, RecoveredTopicLinker topicLinker, Map<TopicToken, Topic> recoveredTopics) {
+        byte recordType = record.get();
+        switch (recordType) {
+            case RECORD_TOPIC_ADDED:
+                Topic topic = TopicRegistryRecordCodec.readTopic(record);
+                recoveredTopics.put(topic.getTopicToken(), topic);
+                topicLinker.inheritLinks(topic);
+                topicSetCache.addTopic(topic);
+                topicLinker.linkToContainer(topic);
+                break;
+            case RECORD_TOPIC_REMOVED:
+                topicSetCache.removeTopic(TopicRegistryRecordCodec.readTopicToken(record));
+                break;
+            case RECORD_SUBSCRIBER_ADDED:
+                subscriptionCache.addSubscriber(TopicRegistryRecordCodec.readTopicToken(record), TopicRegistryRecordCodec.readSubscriber(record));
+                break;
+            case RECORD_SUBSCRIBER_REMOVED:
+                subscriptionCache.removeSubscriber(TopicRegistryRecordCodec.readTopicToken(record), TopicRegistryRecordCodec.readSubscriber(record));
+                break;
+            case RECORD_PATTERN_SUBSCRIBER_ADDED:
+                subscriptionCache.addPatternSubscriber(TopicRegistryRecordCodec.readString(record), TopicRegistryRecordCodec.readSubscriber(record));
+                break;
+            case RECORD_PATTERN_SUBSCRIBER_REMOVED:
+                subscriptionCache.removePatternSubscriber(TopicRegistryRecordCodec.readString(record), TopicRegistryRecordCodec.readSubscriber(record));
+                break;
+            case RECORD_VERSION_RANGE_SUBSCRIBER_ADDED:
+                subscriptionCache.addVersionRangeSubscriber(TopicRegistryRecordCodec.readFDNToken(record),
+                        TopicVersionRange.parse(TopicRegistryRecordCodec.readString(record)), TopicRegistryRecordCodec.readSubscriber(record));
+                break;
+            case RECORD_VERSION_RANGE_SUBSCRIBER_REMOVED:
+                subscriptionCache.removeVersionRangeSubscriber(TopicRegistryRecordCodec.readFDNToken(record),
+                        TopicVersionRange.parse(TopicRegistryRecordCodec.readString(record)), TopicRegistryRecordCodec.readSubscriber(record));
+                break;
+            default:
+                throw (new IllegalArgumentException(".applyRecord(): unknown record type --> " + recordType));
+        }
+    }
+
+    /**
+     * Opens the write-ahead log for appending, optionally restarting it (empty, with a header for the current generation).
+     */
+    private void openWal(boolean restart) throws IOException {
+        if (walChannel != null) {
+            walChannel.close();
+        }
+        if (restart) {
+            walChannel = FileChannel.open(walFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(WAL_HEADER_LENGTH);
+            header.putInt(WAL_MAGIC).putInt(WAL_FORMAT_VERSION).putLong(generation).flip();
+            walChannel.write(header);
+            walChannel.force(true);
+            unforcedWrites = false;
+        } else {
+            walChannel = FileChannel.open(walFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        }
+    }
+}
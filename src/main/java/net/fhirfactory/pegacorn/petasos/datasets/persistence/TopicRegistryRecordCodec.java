@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.persistence;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * The binary encoding of the values held in the journal and snapshot files.
+ * <p>
+ * Strings are written as an (unsigned short) UTF-8 byte length followed by
+ * the bytes, with 0xFFFF marking null. FDNTokens are written as their RDN
+ * count followed by each RDN's qualifier and value, so they can be rebuilt
+ * through FDN without depending upon the token's internal format. Values are
+ * written to a DataOutputStream and read (without copying the underlying
+ * file) from a ByteBuffer.
+ */
+final class TopicRegistryRecordCodec {
+
+    private static final int NULL_LENGTH = 0xFFFF;
+
+    private TopicRegistryRecordCodec() {
+    }
+
+    static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeShort(NULL_LENGTH);
+            return;
+        }
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        if (valueBytes.length >= NULL_LENGTH) {
+            throw (new IllegalArgumentException(".writeString(): value is too long to encode, length --> " + valueBytes.length));
+        }
+        output.writeShort(valueBytes.length);
+        output.write(valueBytes);
+    }
+
+    static String readString(ByteBuffer input) {
+        int length = Short.toUnsignedInt(input.getShort());
+        if (length == NULL_LENGTH) {
+            return (null);
+        }
+        byte[] valueBytes = new byte[length];
+        input.get(valueBytes);
+        return (new String(valueBytes, StandardCharsets.UTF_8));
+    }
+
+    static void writeFDNToken(DataOutputStream output, FDNToken token) throws IOException {
+        if (token == null) {
+            output.writeShort(NULL_LENGTH);
+            return;
+        }
+        ArrayList<RDN> rdnSet = new FDN(token).getRDNSet();
+        output.writeShort(rdnSet.size());
+        for (RDN rdn : rdnSet) {
+            writeString(output, rdn.getNameQualifier());
+            writeString(output, rdn.getNameValue());
+        }
+    }
+
+    static FDNToken readFDNToken(ByteBuffer input) {
+        int rdnCount = Short.toUnsignedInt(input.getShort());
+        if (rdnCount == NULL_LENGTH) {
+            return (null);
+        }
+        FDN fdn = new FDN();
+        for (int counter = 0; counter < rdnCount; counter++) {
+            String qualifier = readString(input);
+            String value = readString(input);
+            fdn.appendRDN(new RDN(qualifier, value));
+        }
+        return (fdn.getToken());
+    }
+
+    static void writeTopicToken(DataOutputStream output, TopicToken topicToken) throws IOException {
+        writeFDNToken(output, topicToken.getIdentifier());
+        writeString(output, topicToken.getVersion());
+    }
+
+    static TopicToken readTopicToken(ByteBuffer input) {
+        FDNToken identifier = readFDNToken(input);
+        String version = readString(input);
+        return (new TopicToken(identifier, version));
+    }
+
+    static void writeSubscriber(DataOutputStream output, NodeElementIdentifier subscriber) throws IOException {
+        writeFDNToken(output, subscriber);
+    }
+
+    static NodeElementIdentifier readSubscriber(ByteBuffer input) {
+        return (new NodeElementIdentifier(readFDNToken(input)));
+    }
+
+    /**
+     * Writes the Topic's own attributes. Contained Topics are not written - they
+     * are relinked (as per TopicIM.registerTopic()) when the Topics are read back.
+     */
+    static void writeTopic(DataOutputStream output, Topic topic) throws IOException {
+        writeFDNToken(output, topic.getIdentifier());
+        writeString(output, topic.getVersion());
+        writeString(output, topic.getTopicType() == null ? null : topic.getTopicType().name());
+        writeFDNToken(output, topic.getContainingDataset());
+    }
+
+    static Topic readTopic(ByteBuffer input) {
+        Topic topic = new Topic();
+        topic.setIdentifier(readFDNToken(input));
+        topic.setVersion(readString(input));
+        String topicType = readString(input);
+        if (topicType != null) {
+            topic.setTopicType(TopicTypeEnum.valueOf(topicType));
+        }
+        FDNToken containingDataset = readFDNToken(input);
+        if (containingDataset != null) {
+            topic.setContainingDataset(containingDataset);
+        }
+        return (topic);
+    }
+}
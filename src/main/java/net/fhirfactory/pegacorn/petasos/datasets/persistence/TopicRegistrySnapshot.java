@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * The snapshot file of the TopicRegistryJournal: the complete state of the
+ * TopicCacheDM and TopicSubscriptionMapDM at the time of a compaction.
+ * <p>
+ * Every string (RDN qualifiers and values, versions, Topic types, patterns)
+ * and every FDNToken (Topic, container and subscriber identifiers) is written
+ * once, into a table, and referred to by its index thereafter. A snapshot of
+ * N subscriptions is therefore dominated by N int subscriber indexes rather
+ * than N copies of the Topic and subscriber FDNs, and loading it creates each
+ * distinct String and FDNToken once (sharing the instances across every
+ * Topic and subscription that uses them).
+ * <p>
+ * Layout (all ints big-endian, index -1 meaning null - format version 1 has
+ * no version range section):
+ * <pre>
+ * magic, format version, generation (long)
+ * string count, { UTF-8 string }
+ * FDN count, { RDN count (short), { qualifier string index, value string index } }
+ * Topic count, { identifier FDN index, version string index, type string index, container FDN index }
+ * subscriber count, { FDN index }
+ * subscribed Topic count, { identifier FDN index, version string index, subscriber count, { subscriber index } }
+ * pattern count, { pattern string index, subscriber count, { subscriber index } }
+ * version range count, { identifier FDN index, range string index, subscriber count, { subscriber index } }
+ * CRC32 of all of the above
+ * </pre>
+ */
+final class TopicRegistrySnapshot {
+
+    static final int SNAPSHOT_MAGIC = 0x50445353; // "PDSS"
+    static final int FORMAT_VERSION = 2;
+
+    private static final int NO_INDEX = -1;
+
+    private TopicRegistrySnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the data managers aside, forces it to disk and then atomically moves it into place.
+     *
+     * @return The number of Topics, subscribed Topics, patterns and version ranges written
+     */
+    static int write(Path snapshotFile, long generation, TopicCacheDM topicSetCache, TopicSubscriptionMapDM subscriptionCache) throws IOException {
+        List<Topic> topicList = new ArrayList<Topic>(topicSetCache.getTopicSet());
+        ArrayList<TopicToken> subscribedTopics = new ArrayList<TopicToken>();
+        ArrayList<Set<NodeElementIdentifier>> topicSubscribers = new ArrayList<Set<NodeElementIdentifier>>();
+        subscriptionCache.forEachPermanentSubscription((topic, subscribers) -> {
+            subscribedTopics.add(topic);
+            topicSubscribers.add(subscribers);
+        });
+        ArrayList<String> patterns = new ArrayList<String>();
+        ArrayList<Set<NodeElementIdentifier>> patternSubscribers = new ArrayList<Set<NodeElementIdentifier>>();
+        subscriptionCache.forEachPatternSubscription((pattern, subscribers) -> {
+            patterns.add(pattern);
+            patternSubscribers.add(subscribers);
+        });
+        ArrayList<FDNToken> rangeTopics = new ArrayList<FDNToken>();
+        ArrayList<String> ranges = new ArrayList<String>();
+        ArrayList<Set<NodeElementIdentifier>> rangeSubscribers = new ArrayList<Set<NodeElementIdentifier>>();
+        subscriptionCache.forEachVersionRangeSubscription((topicID, versionRange, subscribers) -> {
+            rangeTopics.add(topicID);
+            ranges.add(versionRange.toString());
+            rangeSubscribers.add(subscribers);
+        });
+
+        // Pass 1: build the tables
+        SnapshotTables tables = new SnapshotTables();
+        for (Topic topic : topicList) {
+            tables.addFDN(topic.getIdentifier());
+            tables.addString(topic.getVersion());
+            tables.addString(topic.getTopicType() == null ? null : topic.getTopicType().name());
+            tables.addFDN(topic.getContainingDataset());
+        }
+        for (int counter = 0; counter < subscribedTopics.size(); counter++) {
+            tables.addFDN(subscribedTopics.get(counter).getIdentifier());
+            tables.addString(subscribedTopics.get(counter).getVersion());
+            tables.addSubscribers(topicSubscribers.get(counter));
+        }
+        for (int counter = 0; counter < patterns.size(); counter++) {
+            tables.addString(patterns.get(counter));
+            tables.addSubscribers(patternSubscribers.get(counter));
+        }
+        for (int counter = 0; counter < ranges.size(); counter++) {
+            tables.addFDN(rangeTopics.get(counter));
+            tables.addString(ranges.get(counter));
+            tables.addSubscribers(rangeSubscribers.get(counter));
+        }
+
+        // Pass 2: write the tables, then everything else by index
+        Path temporaryFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (OutputStream fileOutput = Files.newOutputStream(temporaryFile)) {
+            CheckedOutputStream checkedOutput = new CheckedOutputStream(new BufferedOutputStream(fileOutput, 1 << 16), new CRC32());
+            DataOutputStream output = new DataOutputStream(checkedOutput);
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeLong(generation);
+            output.writeInt(tables.strings.size());
+            for (String value : tables.strings) {
+                TopicRegistryRecordCodec.writeString(output, value);
+            }
+            output.writeInt(tables.fdns.size());
+            for (List<RDN> rdnSet : tables.fdns) {
+                output.writeShort(rdnSet.size());
+                for (RDN rdn : rdnSet) {
+                    output.writeInt(tables.stringIndex(rdn.getNameQualifier()));
+                    output.writeInt(tables.stringIndex(rdn.getNameValue()));
+                }
+            }
+            output.writeInt(topicList.size());
+            for (Topic topic : topicList) {
+                output.writeInt(tables.fdnIndex(topic.getIdentifier()));
+                output.writeInt(tables.stringIndex(topic.getVersion()));
+                output.writeInt(tables.stringIndex(topic.getTopicType() == null ? null : topic.getTopicType().name()));
+                output.writeInt(tables.fdnIndex(topic.getContainingDataset()));
+            }
+            output.writeInt(tables.subscribers.size());
+            for (NodeElementIdentifier subscriber : tables.subscribers) {
+                output.writeInt(tables.fdnIndex(subscriber));
+            }
+            output.writeInt(subscribedTopics.size());
+            for (int counter = 0; counter < subscribedTopics.size(); counter++) {
+                output.writeInt(tables.fdnIndex(subscribedTopics.get(counter).getIdentifier()));
+                output.writeInt(tables.stringIndex(subscribedTopics.get(counter).getVersion()));
+                writeSubscriberIndexes(output, tables, topicSubscribers.get(counter));
+            }
+            output.writeInt(patterns.size());
+            for (int counter = 0; counter < patterns.size(); counter++) {
+                output.writeInt(tables.stringIndex(patterns.get(counter)));
+                writeSubscriberIndexes(output, tables, patternSubscribers.get(counter));
+            }
+            output.writeInt(ranges.size());
+            for (int counter = 0; counter < ranges.size(); counter++) {
+                output.writeInt(tables.fdnIndex(rangeTopics.get(counter)));
+                output.writeInt(tables.stringIndex(ranges.get(counter)));
+                writeSubscriberIndexes(output, tables, rangeSubscribers.get(counter));
+            }
+            output.flush();
+            new DataOutputStream(fileOutput).writeInt((int) checkedOutput.getChecksum().getValue());
+        }
+        try (FileChannel temporaryChannel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+            temporaryChannel.force(true);
+        }
+        Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return (topicList.size() + subscribedTopics.size() + patterns.size() + ranges.size());
+    }
+
+    private static void writeSubscriberIndexes(DataOutputStream output, SnapshotTables tables, Set<NodeElementIdentifier> subscribers) throws IOException {
+        output.writeInt(subscribers.size());
+        for (NodeElementIdentifier subscriber : subscribers) {
+            output.writeInt(tables.subscriberIndex(subscriber));
+        }
+    }
+
+    /**
+     * Memory-maps the snapshot and loads it into the data managers.
+     *
+     * @param topicLinker Re-establishes the containment links of the Topics loaded
+     * @param recoveredTopics Populated with every Topic loaded (by TopicToken)
+     * @return The generation of the snapshot
+     * @throws IOException if the snapshot is unreadable or fails its checksum
+     */
+    static long load(Path snapshotFile, TopicCacheDM topicSetCache, TopicSubscriptionMapDM subscriptionCache, RecoveredTopicLinker topicLinker,
+            Map<TopicToken, Topic> recoveredTopics) throws IOException {
+        try (FileChannel snapshotChannel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            MappedByteBuffer snapshot = snapshotChannel.map(FileChannel.MapMode.READ_ONLY, 0, snapshotChannel.size());
+            if (snapshot.limit() < 20) {
+                throw (new IOException(".load(): snapshot is truncated --> " + snapshotFile));
+            }
+            ByteBuffer input = snapshot.duplicate();
+            input.limit(snapshot.limit() - 4);
+            CRC32 snapshotChecksum = new CRC32();
+            snapshotChecksum.update(input.duplicate());
+            if ((int) snapshotChecksum.getValue() != snapshot.getInt(snapshot.limit() - 4)) {
+                throw (new IOException(".load(): snapshot checksum mismatch --> " + snapshotFile));
+            }
+            int magic = input.getInt();
+            int formatVersion = input.getInt();
+            if ((magic != SNAPSHOT_MAGIC) || (formatVersion < 1) || (formatVersion > FORMAT_VERSION)) {
+                throw (new IOException(".load(): not a (supported) snapshot --> " + snapshotFile));
+            }
+            long generation = input.getLong();
+            String[] strings = new String[input.getInt()];
+            for (int counter = 0; counter < strings.length; counter++) {
+                strings[counter] = TopicRegistryRecordCodec.readString(input);
+            }
+            FDNToken[] fdns = new FDNToken[input.getInt()];
+            for (int counter = 0; counter < fdns.length; counter++) {
+                int rdnCount = Short.toUnsignedInt(input.getShort());
+                FDN fdn = new FDN();
+                for (int rdnCounter = 0; rdnCounter < rdnCount; rdnCounter++) {
+                    String qualifier = stringAt(strings, input.getInt());
+                    String value = stringAt(strings, input.getInt());
+                    fdn.appendRDN(new RDN(qualifier, value));
+                }
+                fdns[counter] = fdn.getToken();
+            }
+            Topic[] topics = new Topic[input.getInt()];
+            for (int counter = 0; counter < topics.length; counter++) {
+                Topic topic = new Topic();
+                topic.setIdentifier(fdns[input.getInt()]);
+                topic.setVersion(stringAt(strings, input.getInt()));
+                String topicType = stringAt(strings, input.getInt());
+                if (topicType != null) {
+                    topic.setTopicType(TopicTypeEnum.valueOf(topicType));
+                }
+                int containerIndex = input.getInt();
+                if (containerIndex != NO_INDEX) {
+                    topic.setContainingDataset(fdns[containerIndex]);
+                }
+                topics[counter] = topic;
+                recoveredTopics.put(topic.getTopicToken(), topic);
+                topicLinker.inheritLinks(topic);
+            }
+            topicSetCache.addTopics(Arrays.asList(topics));
+            for (Topic topic : topics) {
+                topicLinker.linkToContainer(topic);
+            }
+            NodeElementIdentifier[] subscribers = new NodeElementIdentifier[input.getInt()];
+            for (int counter = 0; counter < subscribers.length; counter++) {
+                subscribers[counter] = new NodeElementIdentifier(fdns[input.getInt()]);
+            }
+            int subscribedTopicCount = input.getInt();
+            ArrayList<NodeElementIdentifier> topicSubscribers = new ArrayList<NodeElementIdentifier>();
+            for (int counter = 0; counter < subscribedTopicCount; counter++) {
+                TopicToken topic = new TopicToken(fdns[input.getInt()], stringAt(strings, input.getInt()));
+                int subscriberCount = input.getInt();
+                topicSubscribers.clear();
+                for (int subscriberCounter = 0; subscriberCounter < subscriberCount; subscriberCounter++) {
+                    topicSubscribers.add(subscribers[input.getInt()]);
+                }
+                // Straight into the Topic's final FanOutGroup, rather than one move per subscriber
+                subscriptionCache.addSubscribers(topic, topicSubscribers);
+            }
+            int patternCount = input.getInt();
+            for (int counter = 0; counter < patternCount; counter++) {
+                String pattern = stringAt(strings, input.getInt());
+                int subscriberCount = input.getInt();
+                for (int subscriberCounter = 0; subscriberCounter < subscriberCount; subscriberCounter++) {
+                    subscriptionCache.addPatternSubscriber(pattern, subscribers[input.getInt()]);
+                }
+            }
+            int rangeCount = (formatVersion >= 2) ? input.getInt() : 0;
+            for (int counter = 0; counter < rangeCount; counter++) {
+                FDNToken topicID = fdns[input.getInt()];
+                TopicVersionRange versionRange = TopicVersionRange.parse(stringAt(strings, input.getInt()));
+                int subscriberCount = input.getInt();
+                for (int subscriberCounter = 0; subscriberCounter < subscriberCount; subscriberCounter++) {
+                    subscriptionCache.addVersionRangeSubscriber(topicID, versionRange, subscribers[input.getInt()]);
+                }
+            }
+            return (generation);
+        }
+    }
+
+    private static String stringAt(String[] strings, int index) {
+        return (index == NO_INDEX ? null : strings[index]);
+    }
+
+    /**
+     * The string, FDN and subscriber tables of a snapshot being written.
+     */
+    private static final class SnapshotTables {
+        final ArrayList<String> strings = new ArrayList<String>();
+        final HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+        final ArrayList<List<RDN>> fdns = new ArrayList<List<RDN>>();
+        final HashMap<FDNToken, Integer> fdnIndexes = new HashMap<FDNToken, Integer>();
+        final ArrayList<NodeElementIdentifier> subscribers = new ArrayList<NodeElementIdentifier>();
+        final HashMap<NodeElementIdentifier, Integer> subscriberIndexes = new HashMap<NodeElementIdentifier, Integer>();
+
+        void addString(String value) {
+            if ((value != null) && !stringIndexes.containsKey(value)) {
+                stringIndexes.put(value, strings.size());
+                strings.add(value);
+            }
+        }
+
+        void addFDN(FDNToken token) {
+            if ((token == null) || fdnIndexes.containsKey(token)) {
+                return;
+            }
+            ArrayList<RDN> rdnSet = new FDN(token).getRDNSet();
+            for (RDN rdn : rdnSet) {
+                addString(rdn.getNameQualifier());
+                addString(rdn.getNameValue());
+            }
+            fdnIndexes.put(token, fdns.size());
+            fdns.add(rdnSet);
+        }
+
+        void addSubscribers(Set<NodeElementIdentifier> topicSubscribers) {
+            for (NodeElementIdentifier subscriber : topicSubscribers) {
+                if (!subscriberIndexes.containsKey(subscriber)) {
+                    addFDN(subscriber);
+                    subscriberIndexes.put(subscriber, subscribers.size());
+                    subscribers.add(subscriber);
+                }
+            }
+        }
+
+        int stringIndex(String value) {
+            return (value == null ? NO_INDEX : stringIndexes.get(value));
+        }
+
+        int fdnIndex(FDNToken token) {
+            return (token == null ? NO_INDEX : fdnIndexes.get(token));
+        }
+
+        int subscriberIndex(NodeElementIdentifier subscriber) {
+            return (subscriberIndexes.get(subscriber));
+        }
+    }
+}
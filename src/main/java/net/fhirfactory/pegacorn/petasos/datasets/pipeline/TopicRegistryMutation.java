@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.pipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * A single enqueued change, plus the futures of the (earlier) changes it has
+ * superseded within its batch.
+ * <p>
+ * Every change is an assignment - a Topic or subscription is present or
+ * absent - so of several changes with the same coalescing key only the last
+ * needs applying; the earlier ones complete along with it.
+ */
+final class TopicRegistryMutation {
+
+    private final TopicRegistryMutationTypeEnum mutationType;
+    private final Topic topic;
+    private final TopicToken topicToken;
+    private final NodeElementIdentifier subscriber;
+    private final CompletableFuture<Long> future;
+    private List<CompletableFuture<Long>> supersededFutures;
+    private RuntimeException failure;
+
+    TopicRegistryMutation(TopicRegistryMutationTypeEnum mutationType, Topic topic, TopicToken topicToken, NodeElementIdentifier subscriber) {
+        this.mutationType = mutationType;
+        this.topic = topic;
+        this.topicToken = topicToken;
+        this.subscriber = subscriber;
+        this.future = new CompletableFuture<Long>();
+    }
+
+    TopicRegistryMutationTypeEnum getMutationType() {
+        return (mutationType);
+    }
+
+    Topic getTopic() {
+        return (topic);
+    }
+
+    TopicToken getTopicToken() {
+        return (topicToken);
+    }
+
+    NodeElementIdentifier getSubscriber() {
+        return (subscriber);
+    }
+
+    CompletableFuture<Long> getFuture() {
+        return (future);
+    }
+
+    /**
+     * @return The key shared by the changes this one supersedes (or is superseded by)
+     */
+    Object getCoalescingKey() {
+        switch (mutationType) {
+            case REGISTER_TOPIC:
+            case UNREGISTER_TOPIC:
+                return (topicToken);
+            case ADD_SUBSCRIBER:
+            case REMOVE_SUBSCRIBER:
+                return (Arrays.asList(topicToken, subscriber));
+            default:
+                // A flush never coalesces
+                return (this);
+        }
+    }
+
+    /**
+     * Takes over the futures of an earlier change with the same coalescing key.
+     */
+    void supersede(TopicRegistryMutation earlierMutation) {
+        if (supersededFutures == null) {
+            supersededFutures = new ArrayList<CompletableFuture<Long>>();
+        }
+        supersededFutures.add(earlierMutation.future);
+        if (earlierMutation.supersededFutures != null) {
+            supersededFutures.addAll(earlierMutation.supersededFutures);
+        }
+    }
+
+    void fail(RuntimeException failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * Completes this change's future, and those of the changes it superseded, with the registry
+     * version at which the change is visible (or with the failure recorded when applying it).
+     */
+    void complete(long version) {
+        if (failure != null) {
+            completeExceptionally(failure);
+            return;
+        }
+        future.complete(version);
+        if (supersededFutures != null) {
+            for (CompletableFuture<Long> supersededFuture : supersededFutures) {
+                supersededFuture.complete(version);
+            }
+        }
+    }
+
+    void completeExceptionally(Throwable cause) {
+        future.completeExceptionally(cause);
+        if (supersededFutures != null) {
+            for (CompletableFuture<Long> supersededFuture : supersededFutures) {
+                supersededFuture.completeExceptionally(cause);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return ("TopicRegistryMutation{mutationType=" + mutationType + ", topicToken=" + topicToken + ", subscriber=" + subscriber + "}");
+    }
+}
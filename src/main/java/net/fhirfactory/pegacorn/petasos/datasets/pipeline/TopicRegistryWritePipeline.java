@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.pipeline;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.Initialized;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredTopicRegistry;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryMetrics;
+import net.fhirfactory.pegacorn.petasos.datasets.metrics.TopicRegistryOperationEnum;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * The (optional) asynchronous write path of the Topic and Subscription
+ * registries, for bursts of registrations such as a mass WUP startup.
+ * <p>
+ * Callers enqueue a change and get back a CompletableFuture, which completes
+ * (with the TopicRegistryEventLog version following the change) once the
+ * change is visible to readers. Topic registrations go to a topic writer -
+ * so the containing Topics they link themselves into are only ever mutated
+ * by one thread - and subscription changes to a subscription writer; each
+ * applies its changes in the order they were enqueued. (Subscription changes
+ * all apply under the one TopicSubscriptionMapDM write lock, so more than one
+ * subscription writer would only take turns.)
+ * <p>
+ * Each writer drains its queue in batches and coalesces each batch, as only
+ * the last of several changes to the same subscription matters (e.g. an add
+ * followed by a remove is just the remove). A subscription change is
+ * independent of every other subscription, so it coalesces across the whole
+ * batch (keeping the position of the first change). A Topic registration is
+ * not - registering a Topic links it into its containing Topic, which must
+ * be registered by then - so Topic changes only coalesce with an immediately
+ * preceding change to the same Topic, and otherwise apply in order.
+ * <p>
+ * A batch is applied with a single hold of the data manager's write lock. For
+ * Topics (see TopicCacheDM.applyBatch()) the TopicCatalogue is published once,
+ * at the end of the batch, so catalogue readers see the registry before or
+ * after a batch of registrations, never part-way through. Subscription
+ * readers don't take the lock, so they see each change of a subscription
+ * batch as it is applied (each change is itself atomic); only the futures
+ * wait for the whole batch. When the ClusteredTopicRegistry is enabled,
+ * coalesced changes are instead replicated one by one.
+ * <p>
+ * A writer's queue is bounded: once a writer is {@value #WRITER_QUEUE_CAPACITY}
+ * changes behind, further changes are rejected - their future fails with a
+ * RejectedExecutionException - rather than the caller blocking, so callers
+ * can back off (or fall back to the synchronous TopicIM methods).
+ * <p>
+ * The pipeline is enabled by setting {@value #ENABLED_PROPERTY} to "true";
+ * the batch size can be set via {@value #BATCH_SIZE_PROPERTY}.
+ */
+@ApplicationScoped
+public class TopicRegistryWritePipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TopicRegistryWritePipeline.class);
+
+    public static final String ENABLED_PROPERTY = "petasos.datasets.pipeline.enabled";
+    public static final String BATCH_SIZE_PROPERTY = "petasos.datasets.pipeline.batch-size";
+
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    // Changes are rejected once a writer is this far behind
+    static final int WRITER_QUEUE_CAPACITY = 65536;
+    private static final long WRITER_POLL_INTERVAL_MILLIS = 100L;
+    private static final long WRITER_STOP_TIMEOUT_MILLIS = 30000L;
+
+    @Inject
+    TopicCacheDM topicSetCache;
+
+    @Inject
+    TopicSubscriptionMapDM subscriptionCache;
+
+    @Inject
+    ClusteredTopicRegistry clusteredRegistry;
+
+    @Inject
+    TopicRegistryMetrics metrics;
+
+    private volatile MutationWriter topicWriter;
+    private volatile MutationWriter subscriptionWriter;
+    private int batchSize;
+    private final LongAdder enqueuedCount = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private volatile boolean enabled;
+
+    public TopicRegistryWritePipeline() {
+        this.enabled = false;
+    }
+
+    /**
+     * Creates a pipeline over the given data managers (e.g. outside a container).
+     */
+    public TopicRegistryWritePipeline(TopicCacheDM topicSetCache, TopicSubscriptionMapDM subscriptionCache, ClusteredTopicRegistry clusteredRegistry) {
+        this();
+        this.topicSetCache = topicSetCache;
+        this.subscriptionCache = subscriptionCache;
+        this.clusteredRegistry = clusteredRegistry;
+        this.metrics = topicSetCache.getMetrics();
+    }
+
+    public void onStartup(@Observes @Initialized(ApplicationScoped.class) Object initEvent) {
+        LOG.debug(".onStartup(): Entry");
+        if (!Boolean.getBoolean(ENABLED_PROPERTY)) {
+            LOG.debug(".onStartup(): Exit, the write pipeline is not enabled");
+            return;
+        }
+        start(Integer.getInteger(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE));
+        LOG.debug(".onStartup(): Exit");
+    }
+
+    /**
+     * Starts the topic writer and the subscription writer.
+     *
+     * @param batchSize The maximum number of changes a writer applies at once
+     */
+    public synchronized void start(int batchSize) {
+        LOG.debug(".start(): Entry, batchSize --> {}", batchSize);
+        if (enabled) {
+            throw (new IllegalStateException(".start(): pipeline is already started"));
+        }
+        if (batchSize <= 0) {
+            throw (new IllegalArgumentException(".start(): batchSize must be positive"));
+        }
+        if ((topicSetCache == null) || (subscriptionCache == null) || (clusteredRegistry == null)) {
+            throw (new IllegalStateException(".start(): topicSetCache, subscriptionCache or clusteredRegistry is null"));
+        }
+        this.batchSize = batchSize;
+        this.topicWriter = new MutationWriter("petasos-datasets-topic-writer", TopicRegistryOperationEnum.PIPELINE_APPLY_TOPIC_BATCH);
+        this.subscriptionWriter = new MutationWriter("petasos-datasets-subscription-writer", TopicRegistryOperationEnum.PIPELINE_APPLY_SUBSCRIPTION_BATCH);
+        this.enabled = true;
+        topicWriter.start();
+        subscriptionWriter.start();
+        LOG.info(".start(): Started the write pipeline, batch size --> {}", batchSize);
+    }
+
+    /**
+     * Stops accepting changes, applies everything already enqueued and stops the writers.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        LOG.debug(".stop(): Entry");
+        if (!enabled) {
+            LOG.debug(".stop(): Exit, pipeline is not started");
+            return;
+        }
+        this.enabled = false;
+        topicWriter.stop();
+        subscriptionWriter.stop();
+        LOG.info(".stop(): Stopped the write pipeline, enqueued --> {}, coalesced --> {}, rejected --> {}", enqueuedCount.sum(), coalescedCount.sum(), rejectedCount.sum());
+    }
+
+    public boolean isEnabled() {
+        return (enabled);
+    }
+
+    /**
+     * @return The number of changes enqueued but not yet applied
+     */
+    public int getPendingCount() {
+        if (!enabled) {
+            return (0);
+        }
+        return (topicWriter.queue.size() + subscriptionWriter.queue.size());
+    }
+
+    /**
+     * @return The number of changes enqueued since the pipeline was created
+     */
+    public long getEnqueuedCount() {
+        return (enqueuedCount.sum());
+    }
+
+    /**
+     * @return The number of changes that were superseded (within their batch) by a later change, and so never applied
+     */
+    public long getCoalescedCount() {
+        return (coalescedCount.sum());
+    }
+
+    /**
+     * @return The number of changes rejected because their writer's queue was full
+     */
+    public long getRejectedCount() {
+        return (rejectedCount.sum());
+    }
+
+    /**
+     * Enqueues the registration of a Topic (which, as per TopicIM.registerTopic(), also links it into its containing Topic).
+     *
+     * @return A future completing with the TopicRegistryEventLog version following the registration
+     */
+    public CompletableFuture<Long> registerTopic(Topic newTopic) {
+        if ((newTopic == null) || !newTopic.hasIdentifier()) {
+            throw (new IllegalArgumentException(".registerTopic(): newTopic is null or has a bad Identifier"));
+        }
+        return (enqueue(topicWriter, new TopicRegistryMutation(TopicRegistryMutationTypeEnum.REGISTER_TOPIC, newTopic, newTopic.getTopicToken(), null)));
+    }
+
+    public CompletableFuture<Long> unregisterTopic(TopicToken topicID) {
+        if (topicID == null) {
+            throw (new IllegalArgumentException(".unregisterTopic(): topicID is null"));
+        }
+        return (enqueue(topicWriter, new TopicRegistryMutation(TopicRegistryMutationTypeEnum.UNREGISTER_TOPIC, null, topicID, null)));
+    }
+
+    public CompletableFuture<Long> addSubscriber(TopicToken topicID, NodeElementIdentifier subscriber) {
+        if ((topicID == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".addSubscriber(): topicID or subscriber is null"));
+        }
+        return (enqueue(subscriptionWriter, new TopicRegistryMutation(TopicRegistryMutationTypeEnum.ADD_SUBSCRIBER, null, topicID, subscriber)));
+    }
+
+    public CompletableFuture<Long> removeSubscriber(TopicToken topicID, NodeElementIdentifier subscriber) {
+        if ((topicID == null) || (subscriber == null)) {
+            throw (new IllegalArgumentException(".removeSubscriber(): topicID or subscriber is null"));
+        }
+        return (enqueue(subscriptionWriter, new TopicRegistryMutation(TopicRegistryMutationTypeEnum.REMOVE_SUBSCRIBER, null, topicID, subscriber)));
+    }
+
+    /**
+     * @return A future completing once every change enqueued before the call has been applied
+     */
+    public CompletableFuture<Void> flush() {
+        if (!enabled) {
+            return (CompletableFuture.completedFuture(null));
+        }
+        ArrayList<CompletableFuture<Long>> flushFutures = new ArrayList<CompletableFuture<Long>>();
+        flushFutures.add(enqueue(topicWriter, new TopicRegistryMutation(TopicRegistryMutationTypeEnum.FLUSH, null, null, null)));
+        flushFutures.add(enqueue(subscriptionWriter, new TopicRegistryMutation(TopicRegistryMutationTypeEnum.FLUSH, null, null, null)));
+        return (CompletableFuture.allOf(flushFutures.toArray(new CompletableFuture<?>[flushFutures.size()])));
+    }
+
+    private CompletableFuture<Long> enqueue(MutationWriter writer, TopicRegistryMutation mutation) {
+        if (!enabled || (writer == null)) {
+            mutation.completeExceptionally(new IllegalStateException("The write pipeline is not started"));
+            return (mutation.getFuture());
+        }
+        if (!writer.queue.offer(mutation)) {
+            rejectedCount.increment();
+            LOG.debug(".enqueue(): Writer queue is full, rejecting change --> {}", mutation);
+            mutation.completeExceptionally(new RejectedExecutionException("The write pipeline is " + WRITER_QUEUE_CAPACITY + " changes behind"));
+            return (mutation.getFuture());
+        }
+        enqueuedCount.increment();
+        // Raced with stop(): the writer may already have drained its queue for the last time
+        if (!enabled && writer.queue.remove(mutation)) {
+            mutation.completeExceptionally(new IllegalStateException("The write pipeline is not started"));
+        }
+        return (mutation.getFuture());
+    }
+
+    /**
+     * Coalesces a batch of subscription changes: of the changes sharing a coalescing key only the last
+     * is applied, in the position of the first (subscriptions are independent of one another, so the
+     * order of changes to different subscriptions doesn't matter).
+     */
+    List<TopicRegistryMutation> coalesceSubscriptions(List<TopicRegistryMutation> batch) {
+        LinkedHashMap<Object, TopicRegistryMutation> coalescedBatch = new LinkedHashMap<Object, TopicRegistryMutation>();
+        for (TopicRegistryMutation mutation : batch) {
+            TopicRegistryMutation earlierMutation = coalescedBatch.get(mutation.getCoalescingKey());
+            if (earlierMutation != null) {
+                mutation.supersede(earlierMutation);
+                coalescedCount.increment();
+            }
+            // Replacing the value of an existing key keeps the key's (first) position
+            coalescedBatch.put(mutation.getCoalescingKey(), mutation);
+        }
+        return (new ArrayList<TopicRegistryMutation>(coalescedBatch.values()));
+    }
+
+    /**
+     * Coalesces a batch of Topic changes: only a change immediately following one to the same Topic
+     * supersedes it, so every registration still applies after those enqueued before it (e.g. a
+     * containing Topic registered before its contents, however often either is re-registered).
+     */
+    List<TopicRegistryMutation> coalesceTopics(List<TopicRegistryMutation> batch) {
+        ArrayList<TopicRegistryMutation> coalescedBatch = new ArrayList<TopicRegistryMutation>(batch.size());
+        for (TopicRegistryMutation mutation : batch) {
+            int lastIndex = coalescedBatch.size() - 1;
+            if ((lastIndex >= 0) && coalescedBatch.get(lastIndex).getCoalescingKey().equals(mutation.getCoalescingKey())) {
+                mutation.supersede(coalescedBatch.get(lastIndex));
+                coalescedBatch.set(lastIndex, mutation);
+                coalescedCount.increment();
+            } else {
+                coalescedBatch.add(mutation);
+            }
+        }
+        return (coalescedBatch);
+    }
+
+    private void applyBatch(List<TopicRegistryMutation> batch, TopicRegistryOperationEnum operation) {
+        long startNanos = metrics.startTimer(operation);
+        List<TopicRegistryMutation> coalescedBatch = (operation == TopicRegistryOperationEnum.PIPELINE_APPLY_TOPIC_BATCH)
+                ? coalesceTopics(batch) : coalesceSubscriptions(batch);
+        long version;
+        if (clusteredRegistry.isEnabled()) {
+            // Each change is replicated (and applied, on every node) as it is written
+            for (TopicRegistryMutation mutation : coalescedBatch) {
+                applyClustered(mutation);
+            }
+            version = (operation == TopicRegistryOperationEnum.PIPELINE_APPLY_TOPIC_BATCH)
+                    ? topicSetCache.getEventLog().getNextVersion() : subscriptionCache.getEventLog().getNextVersion();
+        } else if (operation == TopicRegistryOperationEnum.PIPELINE_APPLY_TOPIC_BATCH) {
+            version = topicSetCache.applyBatch(() -> coalescedBatch.forEach(this::applyLocally));
+        } else {
+            version = subscriptionCache.applyBatch(() -> coalescedBatch.forEach(this::applyLocally));
+        }
+        // Completed outside the data managers' locks, so callbacks can't stall the writers of other threads
+        for (TopicRegistryMutation mutation : coalescedBatch) {
+            mutation.complete(version);
+        }
+        metrics.record(operation, startNanos);
+        LOG.trace(".applyBatch(): Applied batch, changes --> {}, after coalescing --> {}", batch.size(), coalescedBatch.size());
+    }
+
+    private void applyLocally(TopicRegistryMutation mutation) {
+        try {
+            switch (mutation.getMutationType()) {
+                case REGISTER_TOPIC:
+                    Topic newTopic = mutation.getTopic();
+                    topicSetCache.addTopic(newTopic);
+                    if (newTopic.hasContainingDataset()) {
+                        Topic containingTopic = topicSetCache.getTopic(newTopic.getContainingDataset());
+                        if ((containingTopic != null) && !containingTopic.getContainedTopics().contains(newTopic.getIdentifier())) {
+                            containingTopic.addContainedTopic(newTopic.getIdentifier());
+                        }
+                    }
+                    break;
+                case UNREGISTER_TOPIC:
+                    topicSetCache.removeTopic(mutation.getTopicToken());
+                    break;
+                case ADD_SUBSCRIBER:
+                    subscriptionCache.addSubscriber(mutation.getTopicToken(), mutation.getSubscriber());
+                    break;
+                case REMOVE_SUBSCRIBER:
+                    subscriptionCache.removeSubscriber(mutation.getTopicToken(), mutation.getSubscriber());
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException failure) {
+            LOG.warn(".applyLocally(): Could not apply change --> {}", mutation, failure);
+            mutation.fail(failure);
+        }
+    }
+
+    private void applyClustered(TopicRegistryMutation mutation) {
+        try {
+            switch (mutation.getMutationType()) {
+                case REGISTER_TOPIC:
+                    clusteredRegistry.registerTopic(mutation.getTopic());
+                    break;
+                case UNREGISTER_TOPIC:
+                    clusteredRegistry.unregisterTopic(mutation.getTopicToken());
+                    break;
+                case ADD_SUBSCRIBER:
+                    clusteredRegistry.addSubscriber(mutation.getTopicToken(), mutation.getSubscriber());
+                    break;
+                case REMOVE_SUBSCRIBER:
+                    clusteredRegistry.removeSubscriber(mutation.getTopicToken(), mutation.getSubscriber());
+                    break;
+                default:
+                    break;
+            }
+        } catch (RuntimeException failure) {
+            LOG.warn(".applyClustered(): Could not apply change --> {}", mutation, failure);
+            mutation.fail(failure);
+        }
+    }
+
+    /**
+     * A single writer thread and its queue.
+     */
+    private final class MutationWriter implements Runnable {
+
+        final LinkedBlockingQueue<TopicRegistryMutation> queue;
+        private final TopicRegistryOperationEnum operation;
+        private final Thread thread;
+
+        MutationWriter(String threadName, TopicRegistryOperationEnum operation) {
+            this.queue = new LinkedBlockingQueue<TopicRegistryMutation>(WRITER_QUEUE_CAPACITY);
+            this.operation = operation;
+            this.thread = new Thread(this, threadName);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void stop() {
+            try {
+                thread.join(WRITER_STOP_TIMEOUT_MILLIS);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            ArrayList<TopicRegistryMutation> abandoned = new ArrayList<TopicRegistryMutation>();
+            queue.drainTo(abandoned);
+            for (TopicRegistryMutation mutation : abandoned) {
+                mutation.completeExceptionally(new IllegalStateException("The write pipeline was stopped before the change was applied"));
+            }
+        }
+
+        @Override
+        public void run() {
+            ArrayList<TopicRegistryMutation> batch = new ArrayList<TopicRegistryMutation>(batchSize);
+            while (enabled || !queue.isEmpty()) {
+                try {
+                    TopicRegistryMutation firstMutation = queue.poll(WRITER_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (firstMutation == null) {
+                        continue;
+                    }
+                    batch.add(firstMutation);
+                    queue.drainTo(batch, batchSize - 1);
+                    applyBatch(batch, operation);
+                } catch (InterruptedException interrupted) {
+                    LOG.warn(".run(): Writer interrupted, abandoning its queue --> {}", thread.getName());
+                    return;
+                } catch (RuntimeException failure) {
+                    LOG.error(".run(): Could not apply batch --> {}", thread.getName(), failure);
+                    for (TopicRegistryMutation mutation : batch) {
+                        mutation.completeExceptionally(failure);
+                    }
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
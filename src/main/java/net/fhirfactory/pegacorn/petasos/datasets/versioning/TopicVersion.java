@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.versioning;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A parsed (comparable) Topic version, e.g. "0.6.1" or "4.0.1-SNAPSHOT".
+ * <p>
+ * The version is split on '.' into segments, with anything after the first
+ * '-' taken as a qualifier. Segments are compared in order - numeric segments
+ * numerically (so "0.10.0" follows "0.9.0"), numeric before non-numeric, and
+ * non-numeric segments lexically - and a version that is a (segment) prefix
+ * of another sorts before it. Where the segments are equal, a qualified
+ * version sorts before the unqualified release. Versions that are otherwise
+ * equal (e.g. "0.6.01" and "0.6.1") are ordered by their (trimmed) version
+ * strings, so only identical versions are equal. A null version (i.e. an
+ * unversioned Topic) sorts before every other version.
+ */
+public final class TopicVersion implements Comparable<TopicVersion>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String SEGMENT_SEPARATOR = ".";
+    public static final String QUALIFIER_SEPARATOR = "-";
+
+    public static final TopicVersion UNVERSIONED = new TopicVersion(null, new Object[0], null, false);
+
+    private final String version;
+    // Each segment is either a Long or a String
+    private final Object[] segments;
+    private final String qualifier;
+    // Sorts before every (qualified or not) version with the same segments, see preReleaseFloor()
+    private final boolean preReleaseFloor;
+
+    private TopicVersion(String version, Object[] segments, String qualifier, boolean preReleaseFloor) {
+        this.version = version;
+        this.segments = segments;
+        this.qualifier = qualifier;
+        this.preReleaseFloor = preReleaseFloor;
+    }
+
+    /**
+     * @param version The version string (may be null)
+     * @return The parsed version
+     */
+    public static TopicVersion parse(String version) {
+        if (version == null) {
+            return (UNVERSIONED);
+        }
+        String trimmedVersion = version.trim();
+        String qualifier = null;
+        int qualifierIndex = trimmedVersion.indexOf(QUALIFIER_SEPARATOR);
+        if (qualifierIndex >= 0) {
+            qualifier = trimmedVersion.substring(qualifierIndex + 1);
+            trimmedVersion = trimmedVersion.substring(0, qualifierIndex);
+        }
+        ArrayList<Object> segments = new ArrayList<Object>();
+        for (String segment : trimmedVersion.split("\\.")) {
+            if (segment.isEmpty()) {
+                throw (new IllegalArgumentException(".parse(): version has an empty segment --> " + version));
+            }
+            segments.add(isNumeric(segment) ? (Object) Long.valueOf(segment) : segment);
+        }
+        return (new TopicVersion(version.trim(), segments.toArray(), qualifier, false));
+    }
+
+    private static boolean isNumeric(String segment) {
+        if (segment.length() > 18) {
+            return (false);
+        }
+        for (int counter = 0; counter < segment.length(); counter++) {
+            if (!Character.isDigit(segment.charAt(counter))) {
+                return (false);
+            }
+        }
+        return (true);
+    }
+
+    /**
+     * @return The (trimmed) version string this was parsed from (null for UNVERSIONED)
+     */
+    public String getVersion() {
+        return (version);
+    }
+
+    public int getSegmentCount() {
+        return (segments.length);
+    }
+
+    /**
+     * @return true if the segment exists and is numeric
+     */
+    public boolean isNumericSegment(int index) {
+        return ((index < segments.length) && (segments[index] instanceof Long));
+    }
+
+    /**
+     * @return The numeric value of the segment
+     * @throws IllegalArgumentException if the segment is missing or not numeric
+     */
+    public long getNumericSegment(int index) {
+        if (!isNumericSegment(index)) {
+            throw (new IllegalArgumentException(".getNumericSegment(): segment is missing or not numeric, index --> " + index));
+        }
+        return ((Long) segments[index]);
+    }
+
+    public String getQualifier() {
+        return (qualifier);
+    }
+
+    /**
+     * Builds the (unqualified) version made up of the first segmentCount
+     * segments of this one, with the last of those incremented - e.g.
+     * "0.6.1".nextPrefix(2) is "0.7". This is the exclusive upper bound of the
+     * versions that share the given prefix.
+     *
+     * @param segmentCount The length of the prefix
+     * @return The version immediately following every version with this prefix
+     */
+    public TopicVersion nextPrefix(int segmentCount) {
+        if ((segmentCount <= 0) || !isNumericSegment(segmentCount - 1)) {
+            throw (new IllegalArgumentException(".nextPrefix(): prefix does not end in a numeric segment, segmentCount --> " + segmentCount));
+        }
+        Object[] prefixSegments = Arrays.copyOf(segments, segmentCount);
+        prefixSegments[segmentCount - 1] = ((Long) prefixSegments[segmentCount - 1]) + 1;
+        return (new TopicVersion(joinSegments(prefixSegments), prefixSegments, null, false));
+    }
+
+    /**
+     * Builds the bound that sorts after every version with fewer or lower
+     * segments, but before every version - including the qualified
+     * (pre-release) ones - with this version's segments. As an exclusive upper
+     * bound, it excludes this version and its pre-releases, e.g. "0.7" and
+     * "0.7-SNAPSHOT" (see TopicVersionRange).
+     *
+     * @return The pre-release floor of this version's segments
+     */
+    public TopicVersion preReleaseFloor() {
+        return (new TopicVersion(version, segments, null, true));
+    }
+
+    /**
+     * @return The (unqualified) version made up of the first segmentCount segments of this one
+     */
+    public TopicVersion prefix(int segmentCount) {
+        if ((segmentCount <= 0) || (segmentCount > segments.length)) {
+            throw (new IllegalArgumentException(".prefix(): bad segmentCount --> " + segmentCount));
+        }
+        Object[] prefixSegments = Arrays.copyOf(segments, segmentCount);
+        return (new TopicVersion(joinSegments(prefixSegments), prefixSegments, null, false));
+    }
+
+    private static String joinSegments(Object[] segments) {
+        StringBuilder joined = new StringBuilder();
+        for (int counter = 0; counter < segments.length; counter++) {
+            if (counter > 0) {
+                joined.append(SEGMENT_SEPARATOR);
+            }
+            joined.append(segments[counter]);
+        }
+        return (joined.toString());
+    }
+
+    @Override
+    public int compareTo(TopicVersion other) {
+        int commonLength = Math.min(segments.length, other.segments.length);
+        for (int counter = 0; counter < commonLength; counter++) {
+            int segmentOrder = compareSegments(segments[counter], other.segments[counter]);
+            if (segmentOrder != 0) {
+                return (segmentOrder);
+            }
+        }
+        if (segments.length != other.segments.length) {
+            return (Integer.compare(segments.length, other.segments.length));
+        }
+        if (preReleaseFloor || other.preReleaseFloor) {
+            return (Boolean.compare(other.preReleaseFloor, preReleaseFloor));
+        }
+        if (qualifier == null) {
+            if (other.qualifier != null) {
+                return (1);
+            }
+        } else if (other.qualifier == null) {
+            return (-1);
+        } else {
+            int qualifierOrder = qualifier.compareTo(other.qualifier);
+            if (qualifierOrder != 0) {
+                return (qualifierOrder);
+            }
+        }
+        // e.g. "0.6.01" and "0.6.1"
+        if (version == null) {
+            return ((other.version == null) ? 0 : -1);
+        }
+        if (other.version == null) {
+            return (1);
+        }
+        return (version.compareTo(other.version));
+    }
+
+    private static int compareSegments(Object segment, Object otherSegment) {
+        if (segment instanceof Long) {
+            if (otherSegment instanceof Long) {
+                return (Long.compare((Long) segment, (Long) otherSegment));
+            }
+            return (-1);
+        }
+        if (otherSegment instanceof Long) {
+            return (1);
+        }
+        return (((String) segment).compareTo((String) otherSegment));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return (true);
+        }
+        if (!(o instanceof TopicVersion)) {
+            return (false);
+        }
+        return (compareTo((TopicVersion) o) == 0);
+    }
+
+    @Override
+    public int hashCode() {
+        return ((31 * Arrays.hashCode(segments)) + ((qualifier == null) ? 0 : qualifier.hashCode()));
+    }
+
+    @Override
+    public String toString() {
+        if (version != null) {
+            return (version);
+        }
+        return ((segments.length == 0) ? "<unversioned>" : joinSegments(segments));
+    }
+}
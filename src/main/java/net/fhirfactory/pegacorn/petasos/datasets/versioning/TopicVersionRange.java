@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.versioning;
+
+import java.io.Serializable;
+import java.util.NavigableMap;
+import java.util.Objects;
+
+/**
+ * A (contiguous) range of Topic versions. A range is written as one of:
+ * <ul>
+ * <li>"1.0.0" - exactly that version</li>
+ * <li>"0.6.x" (or "0.6.*") - every version starting with the segments 0.6</li>
+ * <li>"^0.6.1" - every version compatible with 0.6.1, i.e. from 0.6.1 up to
+ * (but excluding) the next major version - or, for a 0.y.z version, the next
+ * minor version</li>
+ * <li>"[0.6.0,0.7.0)" - an interval, where '[' and ']' include the bound, '('
+ * and ')' exclude it and an empty bound is unbounded</li>
+ * <li>"*" - every version</li>
+ * </ul>
+ * An exclusive, unqualified upper bound also excludes the pre-releases of
+ * that version, so neither "0.6.x" nor "^0.6.1" contains "0.7-SNAPSHOT" (nor
+ * does "[0.6.0,0.7.0)" contain "0.7.0-SNAPSHOT").
+ * Whatever form it was parsed from, a range's toString() is its interval
+ * form, which parses back to an equal range.
+ */
+public final class TopicVersionRange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String ANY_VERSION = "*";
+    public static final String COMPATIBLE_PREFIX = "^";
+
+    public static final TopicVersionRange ALL = new TopicVersionRange(null, false, null, false);
+
+    private final TopicVersion lowerBound;
+    private final boolean lowerInclusive;
+    private final TopicVersion upperBound;
+    private final boolean upperInclusive;
+    // The bound actually applied: an exclusive, unqualified upper bound's pre-release floor
+    private final TopicVersion upperLimit;
+
+    private TopicVersionRange(TopicVersion lowerBound, boolean lowerInclusive, TopicVersion upperBound, boolean upperInclusive) {
+        TopicVersion upperLimit = upperBound;
+        if ((upperBound != null) && !upperInclusive && (upperBound.getQualifier() == null) && (upperBound.getSegmentCount() > 0)) {
+            upperLimit = upperBound.preReleaseFloor();
+        }
+        if ((lowerBound != null) && (upperLimit != null)) {
+            int boundOrder = lowerBound.compareTo(upperLimit);
+            if ((boundOrder > 0) || ((boundOrder == 0) && !(lowerInclusive && upperInclusive))) {
+                throw (new IllegalArgumentException(".TopicVersionRange(): range is empty, lowerBound --> " + lowerBound + ", upperBound --> " + upperBound));
+            }
+        }
+        this.lowerBound = lowerBound;
+        this.lowerInclusive = (lowerBound != null) && lowerInclusive;
+        this.upperBound = upperBound;
+        this.upperInclusive = (upperBound != null) && upperInclusive;
+        this.upperLimit = upperLimit;
+    }
+
+    public static TopicVersionRange exactly(TopicVersion version) {
+        if (version == null) {
+            throw (new IllegalArgumentException(".exactly(): version is null"));
+        }
+        return (new TopicVersionRange(version, true, version, true));
+    }
+
+    /**
+     * @param version The version
+     * @return The versions compatible with (i.e. not older than, and sharing the major version - or for 0.y.z, the minor version - of) the version
+     */
+    public static TopicVersionRange compatibleWith(TopicVersion version) {
+        if (version == null) {
+            throw (new IllegalArgumentException(".compatibleWith(): version is null"));
+        }
+        if (!version.isNumericSegment(0)) {
+            // No usable major version, so only the version itself is compatible
+            return (exactly(version));
+        }
+        int significantSegments = 1;
+        if ((version.getNumericSegment(0) == 0) && version.isNumericSegment(1)) {
+            significantSegments = 2;
+        }
+        return (new TopicVersionRange(version, true, version.nextPrefix(significantSegments), false));
+    }
+
+    public static TopicVersionRange between(TopicVersion lowerBound, boolean lowerInclusive, TopicVersion upperBound, boolean upperInclusive) {
+        return (new TopicVersionRange(lowerBound, lowerInclusive, upperBound, upperInclusive));
+    }
+
+    /**
+     * @param range The range, in any of the forms described above
+     * @return The parsed range
+     */
+    public static TopicVersionRange parse(String range) {
+        if (range == null) {
+            throw (new IllegalArgumentException(".parse(): range is null"));
+        }
+        String trimmedRange = range.trim();
+        if (trimmedRange.isEmpty()) {
+            throw (new IllegalArgumentException(".parse(): range is empty"));
+        }
+        if (trimmedRange.equals(ANY_VERSION)) {
+            return (ALL);
+        }
+        if (trimmedRange.startsWith(COMPATIBLE_PREFIX)) {
+            return (compatibleWith(TopicVersion.parse(trimmedRange.substring(COMPATIBLE_PREFIX.length()))));
+        }
+        char firstChar = trimmedRange.charAt(0);
+        if ((firstChar == '[') || (firstChar == '(')) {
+            return (parseInterval(range, trimmedRange));
+        }
+        if (trimmedRange.endsWith(".x") || trimmedRange.endsWith(".X") || trimmedRange.endsWith(".*")) {
+            TopicVersion prefix = TopicVersion.parse(trimmedRange.substring(0, trimmedRange.length() - 2));
+            if (prefix.getQualifier() != null) {
+                throw (new IllegalArgumentException(".parse(): a wildcard range cannot be qualified --> " + range));
+            }
+            return (new TopicVersionRange(prefix, true, prefix.nextPrefix(prefix.getSegmentCount()), false));
+        }
+        return (exactly(TopicVersion.parse(trimmedRange)));
+    }
+
+    private static TopicVersionRange parseInterval(String range, String trimmedRange) {
+        char lastChar = trimmedRange.charAt(trimmedRange.length() - 1);
+        int separatorIndex = trimmedRange.indexOf(',');
+        if (((lastChar != ']') && (lastChar != ')')) || (separatorIndex < 0)) {
+            throw (new IllegalArgumentException(".parse(): badly formed interval --> " + range));
+        }
+        String lowerText = trimmedRange.substring(1, separatorIndex).trim();
+        String upperText = trimmedRange.substring(separatorIndex + 1, trimmedRange.length() - 1).trim();
+        TopicVersion lowerBound = lowerText.isEmpty() ? null : TopicVersion.parse(lowerText);
+        TopicVersion upperBound = upperText.isEmpty() ? null : TopicVersion.parse(upperText);
+        return (new TopicVersionRange(lowerBound, trimmedRange.charAt(0) == '[', upperBound, lastChar == ']'));
+    }
+
+    public TopicVersion getLowerBound() {
+        return (lowerBound);
+    }
+
+    public boolean isLowerInclusive() {
+        return (lowerInclusive);
+    }
+
+    public TopicVersion getUpperBound() {
+        return (upperBound);
+    }
+
+    public boolean isUpperInclusive() {
+        return (upperInclusive);
+    }
+
+    public boolean contains(TopicVersion version) {
+        if (version == null) {
+            return (false);
+        }
+        if (lowerBound != null) {
+            int lowerOrder = version.compareTo(lowerBound);
+            if ((lowerOrder < 0) || ((lowerOrder == 0) && !lowerInclusive)) {
+                return (false);
+            }
+        }
+        if (upperLimit != null) {
+            int upperOrder = version.compareTo(upperLimit);
+            if ((upperOrder > 0) || ((upperOrder == 0) && !upperInclusive)) {
+                return (false);
+            }
+        }
+        return (true);
+    }
+
+    /**
+     * Restricts a version-ordered map to the versions within the range. The
+     * result is a view, so this is a logarithmic (rather than linear) operation.
+     *
+     * @param versions The version-ordered map
+     * @return The (view of the) entries whose version lies within the range
+     */
+    public <V> NavigableMap<TopicVersion, V> restrict(NavigableMap<TopicVersion, V> versions) {
+        if (versions.isEmpty()) {
+            return (versions);
+        }
+        NavigableMap<TopicVersion, V> restrictedVersions = versions;
+        if (lowerBound != null) {
+            restrictedVersions = restrictedVersions.tailMap(lowerBound, lowerInclusive);
+        }
+        if (upperLimit != null) {
+            restrictedVersions = restrictedVersions.headMap(upperLimit, upperInclusive);
+        }
+        return (restrictedVersions);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return (true);
+        }
+        if (!(o instanceof TopicVersionRange)) {
+            return (false);
+        }
+        TopicVersionRange other = (TopicVersionRange) o;
+        return (Objects.equals(lowerBound, other.lowerBound) && (lowerInclusive == other.lowerInclusive)
+                && Objects.equals(upperBound, other.upperBound) && (upperInclusive == other.upperInclusive));
+    }
+
+    @Override
+    public int hashCode() {
+        return (Objects.hash(lowerBound, lowerInclusive, upperBound, upperInclusive));
+    }
+
+    @Override
+    public String toString() {
+        return ((lowerInclusive ? "[" : "(") + ((lowerBound == null) ? "" : lowerBound.toString()) + ","
+                + ((upperBound == null) ? "" : upperBound.toString()) + (upperInclusive ? "]" : ")"));
+    }
+}
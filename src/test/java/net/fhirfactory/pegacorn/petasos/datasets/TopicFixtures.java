@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * Builds the Topics and subscribers used by the tests.
+ */
+public final class TopicFixtures {
+
+    public static final String VERSION = "1.0.0";
+
+    private TopicFixtures() {
+    }
+
+    /**
+     * @return A new (unregistered) Topic beneath the given container, at VERSION
+     */
+    public static Topic topic(Topic container, TopicTypeEnum topicType, String topicName) {
+        return (topic(container, topicType, topicName, VERSION));
+    }
+
+    public static Topic topic(Topic container, TopicTypeEnum topicType, String topicName, String version) {
+        FDN topicFDN = (container == null) ? new FDN() : new FDN(container.getIdentifier());
+        topicFDN.appendRDN(new RDN(topicType.name(), topicName));
+        Topic newTopic = new Topic();
+        newTopic.setIdentifier(topicFDN.getToken());
+        newTopic.setTopicType(topicType);
+        newTopic.setVersion(version);
+        if (container != null) {
+            newTopic.setContainingDataset(container.getIdentifier());
+        }
+        return (newTopic);
+    }
+
+    public static Topic sector(String sectorName) {
+        return (topic(null, TopicTypeEnum.DATASET_SECTOR, sectorName));
+    }
+
+    public static NodeElementIdentifier subscriber(String wupName) {
+        FDN subscriberFDN = new FDN();
+        subscriberFDN.appendRDN(new RDN("Site", "TestSite"));
+        subscriberFDN.appendRDN(new RDN("WUP", wupName));
+        return (new NodeElementIdentifier(subscriberFDN.getToken()));
+    }
+}
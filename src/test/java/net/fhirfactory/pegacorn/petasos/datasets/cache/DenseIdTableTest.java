@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class DenseIdTableTest {
+
+    @Test
+    public void growsToHoldAnyId() {
+        DenseIdTable<String> table = new DenseIdTable<String>();
+
+        assertThat(table.put(5, "five")).isNull();
+        assertThat(table.put(100000, "large")).isNull();
+
+        assertThat(table.get(5)).isEqualTo("five");
+        assertThat(table.get(100000)).isEqualTo("large");
+        assertThat(table.get(99999)).isNull();
+        assertThat(table.get(-1)).isNull();
+        assertThat(table.get(Integer.MAX_VALUE)).isNull();
+        assertThat(table.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void puttingNullRemovesTheEntry() {
+        DenseIdTable<String> table = new DenseIdTable<String>();
+        table.put(1, "one");
+
+        assertThat(table.put(1, "uno")).isEqualTo("one");
+        assertThat(table.size()).isEqualTo(1);
+        assertThat(table.put(1, null)).isEqualTo("uno");
+        assertThat(table.put(2, null)).isNull();
+        assertThat(table.isEmpty()).isTrue();
+        assertThatThrownBy(() -> table.put(-1, "negative")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void computeRemapsAtomically() {
+        DenseIdTable<Integer> table = new DenseIdTable<Integer>();
+
+        assertThat(table.compute(3, count -> (count == null) ? 1 : count + 1)).isEqualTo(1);
+        assertThat(table.compute(3, count -> (count == null) ? 1 : count + 1)).isEqualTo(2);
+        assertThat(table.size()).isEqualTo(1);
+        assertThat(table.compute(3, count -> null)).isNull();
+        assertThat(table.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void forEachVisitsPopulatedEntriesInIdOrder() {
+        DenseIdTable<String> table = new DenseIdTable<String>();
+        table.put(300, "c");
+        table.put(0, "a");
+        table.put(7, "b");
+        List<String> visited = new ArrayList<String>();
+        List<Integer> visitedIds = new ArrayList<Integer>();
+
+        table.forEach((value, id) -> {
+            visited.add(value);
+            visitedIds.add(id);
+        });
+
+        assertThat(visited).containsExactly("a", "b", "c");
+        assertThat(visitedIds).containsExactly(0, 7, 300);
+
+        table.clear();
+        assertThat(table.isEmpty()).isTrue();
+        assertThat(table.get(300)).isNull();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.common.model.FDN;
+import net.fhirfactory.pegacorn.common.model.RDN;
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class FanOutGroupTableTest {
+
+    private IdentifierInterner<NodeElementIdentifier> subscriberIds;
+    private FanOutGroupTable groupTable;
+
+    private NodeElementIdentifier wupA;
+    private NodeElementIdentifier wupB;
+    private NodeElementIdentifier wupC;
+
+    @BeforeEach
+    public void setUp() {
+        subscriberIds = new IdentifierInterner<NodeElementIdentifier>();
+        groupTable = new FanOutGroupTable(subscriberIds);
+        wupA = TopicFixtures.subscriber("A");
+        wupB = TopicFixtures.subscriber("B");
+        wupC = TopicFixtures.subscriber("C");
+    }
+
+    @Test
+    public void setsWithTheSameMembersShareAGroup() {
+        FanOutGroup abc = groupTable.intern(ImmutableSubscriberSet.of(Arrays.asList(wupA, wupB, wupC)));
+        FanOutGroup cba = groupTable.intern(ImmutableSubscriberSet.of(Arrays.asList(wupC, wupB, wupA)));
+
+        assertThat(cba).isSameAs(abc);
+        assertThat(abc.getSubscribers()).containsExactly(wupA, wupB, wupC);
+        assertThat(groupTable.intern(ImmutableSubscriberSet.EMPTY)).isSameAs(FanOutGroupTable.EMPTY_GROUP);
+        assertThat(groupTable.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void movesArriveAtTheInternedGroup() {
+        int idA = subscriberIds.intern(wupA);
+        int idB = subscriberIds.intern(wupB);
+
+        FanOutGroup a = groupTable.with(FanOutGroupTable.EMPTY_GROUP, idA, wupA);
+        FanOutGroup ab = groupTable.with(a, idB, wupB);
+
+        assertThat(ab).isSameAs(groupTable.intern(ImmutableSubscriberSet.of(Arrays.asList(wupB, wupA))));
+        assertThat(groupTable.with(ab, idA, wupA)).isSameAs(ab);
+        assertThat(groupTable.without(ab, idB, wupB)).isSameAs(a);
+        // The second time round the moves are cached
+        assertThat(groupTable.with(a, idB, wupB)).isSameAs(ab);
+        assertThat(groupTable.without(a, idA, wupA)).isSameAs(FanOutGroupTable.EMPTY_GROUP);
+        assertThat(groupTable.without(FanOutGroupTable.EMPTY_GROUP, idA, wupA)).isSameAs(FanOutGroupTable.EMPTY_GROUP);
+    }
+
+    @Test
+    public void tablesDoNotShareMovesFromTheEmptyGroup() {
+        IdentifierInterner<NodeElementIdentifier> otherSubscriberIds = new IdentifierInterner<NodeElementIdentifier>();
+        FanOutGroupTable otherGroupTable = new FanOutGroupTable(otherSubscriberIds);
+        int idA = subscriberIds.intern(wupA);
+        int idB = otherSubscriberIds.intern(wupB);
+        assertThat(idB).isEqualTo(idA);
+
+        FanOutGroup a = groupTable.with(FanOutGroupTable.EMPTY_GROUP, idA, wupA);
+        FanOutGroup b = otherGroupTable.with(FanOutGroupTable.EMPTY_GROUP, idB, wupB);
+
+        assertThat(a.getSubscribers()).containsExactly(wupA);
+        assertThat(b.getSubscribers()).containsExactly(wupB);
+    }
+
+    @Test
+    public void dataManagersKeepTheirOwnGroups() {
+        Topic sector = TopicFixtures.sector("Health");
+        TopicToken patient = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Patient").getTopicToken();
+        TopicToken encounter = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Encounter").getTopicToken();
+        TopicSubscriptionMapDM subscriptionCache = new TopicSubscriptionMapDM();
+        TopicSubscriptionMapDM otherSubscriptionCache = new TopicSubscriptionMapDM();
+
+        subscriptionCache.addSubscriber(patient, wupA);
+        otherSubscriptionCache.addSubscriber(patient, wupB);
+        subscriptionCache.addSubscriber(encounter, wupA);
+
+        assertThat(subscriptionCache.getSubscriberSet(patient)).containsExactly(wupA);
+        assertThat(otherSubscriptionCache.getSubscriberSet(patient)).containsExactly(wupB);
+        assertThat(subscriptionCache.getFanOutGroup(encounter)).isSameAs(subscriptionCache.getFanOutGroup(patient));
+        assertThat(subscriptionCache.getFanOutGroupCount()).isEqualTo(1);
+        assertThat(otherSubscriptionCache.getFanOutGroupCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void routingPlansGroupSubscribersByHostNode() {
+        FDN remoteFDN = new FDN();
+        remoteFDN.appendRDN(new RDN("Site", "RemoteSite"));
+        remoteFDN.appendRDN(new RDN("WUP", "R"));
+        NodeElementIdentifier wupR = new NodeElementIdentifier(remoteFDN.getToken());
+
+        FanOutRoutingPlan routingPlan = groupTable.intern(ImmutableSubscriberSet.of(Arrays.asList(wupA, wupR, wupB))).getRoutingPlan();
+
+        assertThat(routingPlan.getFanOut()).isEqualTo(3);
+        assertThat(routingPlan.getSubscribersByHostNode()).hasSize(2);
+        assertThat(routingPlan.getSubscribersByHostNode().get(FanOutRoutingPlan.hostNodeOf(wupA))).containsExactly(wupA, wupB);
+        assertThat(routingPlan.getSubscribersByHostNode().get(FanOutRoutingPlan.hostNodeOf(wupR))).containsExactly(wupR);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+public class IdentifierInternerTest {
+
+    @Test
+    public void idsAreDenseAndStable() {
+        IdentifierInterner<String> interner = new IdentifierInterner<String>();
+
+        for (int counter = 0; counter < 1000; counter++) {
+            assertThat(interner.intern("id-" + counter)).isEqualTo(counter);
+        }
+
+        assertThat(interner.size()).isEqualTo(1000);
+        assertThat(interner.intern("id-7")).isEqualTo(7);
+        assertThat(interner.lookup("id-999")).isEqualTo(999);
+        assertThat(interner.resolve(999)).isEqualTo("id-999");
+    }
+
+    @Test
+    public void lookupNeverInterns() {
+        IdentifierInterner<String> interner = new IdentifierInterner<String>();
+
+        assertThat(interner.lookup("unknown")).isEqualTo(IdentifierInterner.NO_ID);
+        assertThat(interner.lookup(null)).isEqualTo(IdentifierInterner.NO_ID);
+        assertThat(interner.resolve(IdentifierInterner.NO_ID)).isNull();
+        assertThat(interner.resolve(0)).isNull();
+        assertThat(interner.size()).isZero();
+        assertThatThrownBy(() -> interner.intern(null)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void canonicalReturnsTheFirstInstance() {
+        IdentifierInterner<String> interner = new IdentifierInterner<String>();
+        String first = new String("topic");
+        String second = new String("topic");
+
+        assertThat(interner.canonical(first)).isSameAs(first);
+        assertThat(interner.canonical(second)).isSameAs(first);
+    }
+
+    @Test
+    public void concurrentInterningAssignsOneIdPerIdentifier() throws Exception {
+        IdentifierInterner<String> interner = new IdentifierInterner<String>();
+        int threadCount = 4;
+        int identifierCount = 5000;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        CountDownLatch startSignal = new CountDownLatch(1);
+        try {
+            List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+            for (int thread = 0; thread < threadCount; thread++) {
+                results.add(executor.submit(() -> {
+                    startSignal.await();
+                    int[] ids = new int[identifierCount];
+                    for (int counter = 0; counter < identifierCount; counter++) {
+                        ids[counter] = interner.intern("id-" + counter);
+                    }
+                    return (ids);
+                }));
+            }
+            startSignal.countDown();
+            int[] expected = results.get(0).get();
+            for (Future<int[]> result : results) {
+                assertThat(result.get()).isEqualTo(expected);
+            }
+            HashSet<Integer> distinctIds = new HashSet<Integer>();
+            for (int counter = 0; counter < identifierCount; counter++) {
+                distinctIds.add(expected[counter]);
+                assertThat(interner.resolve(expected[counter])).isEqualTo("id-" + counter);
+            }
+            assertThat(distinctIds).hasSize(identifierCount);
+            assertThat(interner.size()).isEqualTo(identifierCount);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
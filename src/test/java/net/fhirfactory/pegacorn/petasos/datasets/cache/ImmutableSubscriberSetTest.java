@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class ImmutableSubscriberSetTest {
+
+    private final NodeElementIdentifier wupA = TopicFixtures.subscriber("A");
+    private final NodeElementIdentifier wupB = TopicFixtures.subscriber("B");
+    private final NodeElementIdentifier wupC = TopicFixtures.subscriber("C");
+
+    @Test
+    public void withAndWithoutLeaveTheOriginalUntouched() {
+        ImmutableSubscriberSet original = ImmutableSubscriberSet.EMPTY.with(wupA);
+        Iterator<NodeElementIdentifier> reader = original.iterator();
+
+        ImmutableSubscriberSet added = original.with(wupB);
+        ImmutableSubscriberSet removed = added.without(wupA);
+
+        assertThat(original).containsExactly(wupA);
+        assertThat(added).containsExactly(wupA, wupB);
+        assertThat(removed).containsExactly(wupB);
+        // An iterator over a snapshot is unaffected by later changes
+        assertThat(reader.next()).isEqualTo(wupA);
+        assertThat(reader.hasNext()).isFalse();
+    }
+
+    @Test
+    public void noOpChangesReturnTheSameSnapshot() {
+        ImmutableSubscriberSet subscribers = ImmutableSubscriberSet.of(Arrays.asList(wupA, wupB));
+
+        assertThat(subscribers.with(new NodeElementIdentifier(wupA))).isSameAs(subscribers);
+        assertThat(subscribers.without(wupC)).isSameAs(subscribers);
+        assertThat(subscribers.withAll(ImmutableSubscriberSet.EMPTY)).isSameAs(subscribers);
+        assertThat(subscribers.withAll(ImmutableSubscriberSet.EMPTY.with(wupB))).isSameAs(subscribers);
+        assertThat(ImmutableSubscriberSet.EMPTY.withAll(subscribers)).isSameAs(subscribers);
+        assertThat(subscribers.without(wupA).without(wupB)).isSameAs(ImmutableSubscriberSet.EMPTY);
+    }
+
+    @Test
+    public void withAllIsAnOrderedUnion() {
+        ImmutableSubscriberSet left = ImmutableSubscriberSet.of(Arrays.asList(wupA, wupB));
+        ImmutableSubscriberSet right = ImmutableSubscriberSet.of(Arrays.asList(wupC, wupB));
+
+        assertThat(left.withAll(right)).containsExactly(wupA, wupB, wupC);
+    }
+
+    @Test
+    public void ofDropsDuplicatesAndRejectsNulls() {
+        assertThat(ImmutableSubscriberSet.of(Arrays.asList(wupA, wupB, wupA))).containsExactly(wupA, wupB);
+        assertThat(ImmutableSubscriberSet.of(new HashSet<NodeElementIdentifier>())).isSameAs(ImmutableSubscriberSet.EMPTY);
+        assertThatThrownBy(() -> ImmutableSubscriberSet.of(Arrays.asList(wupA, null))).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ImmutableSubscriberSet.EMPTY.with(null)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void subscriberSetsHandedOutAreSnapshots() {
+        TopicSubscriptionMapDM subscriptionCache = new TopicSubscriptionMapDM();
+        TopicToken topic = new TopicToken(TopicFixtures.sector("Health").getIdentifier(), TopicFixtures.VERSION);
+        subscriptionCache.addSubscriber(topic, wupA);
+        Set<NodeElementIdentifier> snapshot = subscriptionCache.getSubscriberSet(topic);
+
+        subscriptionCache.addSubscriber(topic, wupB);
+        subscriptionCache.removeSubscriber(topic, wupA);
+
+        assertThat(snapshot).containsExactly(wupA);
+        assertThat(subscriptionCache.getSubscriberSet(topic)).containsExactly(wupB);
+    }
+
+    @Test
+    public void honoursTheSetContract() {
+        ImmutableSubscriberSet subscribers = ImmutableSubscriberSet.of(Arrays.asList(wupA, wupB));
+        HashSet<NodeElementIdentifier> expected = new HashSet<NodeElementIdentifier>(Arrays.asList(wupB, wupA));
+
+        assertThat(subscribers).isEqualTo(expected);
+        assertThat(subscribers.hashCode()).isEqualTo(expected.hashCode());
+        assertThatThrownBy(() -> subscribers.add(wupC)).isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> subscribers.iterator().remove()).isInstanceOf(UnsupportedOperationException.class);
+    }
+}
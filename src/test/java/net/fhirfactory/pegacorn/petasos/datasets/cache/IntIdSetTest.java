@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class IntIdSetTest {
+
+    @Test
+    public void addAndRemoveReportChanges() {
+        IntIdSet members = new IntIdSet();
+
+        assertThat(members.add(3)).isTrue();
+        assertThat(members.add(3)).isFalse();
+        assertThat(members.contains(3)).isTrue();
+        assertThat(members.remove(3)).isTrue();
+        assertThat(members.remove(3)).isFalse();
+        assertThat(members.remove(-1)).isFalse();
+        assertThat(members.contains(-1)).isFalse();
+        assertThat(members.isEmpty()).isTrue();
+        assertThatThrownBy(() -> members.add(-1)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void behavesLikeASetUnderRandomChurn() {
+        // Dense IDs in a narrow range collide and cluster, which exercises the backward-shift deletion
+        Random random = new Random(42);
+        IntIdSet members = new IntIdSet();
+        HashSet<Integer> expected = new HashSet<Integer>();
+        for (int counter = 0; counter < 100000; counter++) {
+            int member = random.nextInt(512);
+            if (random.nextInt(3) == 0) {
+                assertThat(members.remove(member)).isEqualTo(expected.remove(member));
+            } else {
+                assertThat(members.add(member)).isEqualTo(expected.add(member));
+            }
+        }
+
+        assertThat(members.size()).isEqualTo(expected.size());
+        for (int member = 0; member < 512; member++) {
+            assertThat(members.contains(member)).as("member " + member).isEqualTo(expected.contains(member));
+        }
+        List<Integer> visited = new ArrayList<Integer>();
+        members.forEach(visited::add);
+        assertThat(visited).containsExactlyInAnyOrderElementsOf(expected);
+        assertThat(members.toArray()).hasSize(expected.size());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class SubscribedTopicFilterTest {
+
+    @Test
+    public void addedTopicsAreNeverRuledOut() {
+        SubscribedTopicFilter filter = new SubscribedTopicFilter(SubscribedTopicFilter.MINIMUM_CAPACITY);
+        List<TopicToken> topics = topics("Subscribed", SubscribedTopicFilter.MINIMUM_CAPACITY);
+        for (TopicToken topic : topics) {
+            filter.add(topic);
+        }
+
+        for (TopicToken topic : topics) {
+            assertThat(filter.mightContain(topic)).isTrue();
+        }
+        assertThat(filter.isFull()).isFalse();
+    }
+
+    @Test
+    public void falsePositivesAreRareWhenFull() {
+        SubscribedTopicFilter filter = new SubscribedTopicFilter(SubscribedTopicFilter.MINIMUM_CAPACITY);
+        for (TopicToken topic : topics("Subscribed", SubscribedTopicFilter.MINIMUM_CAPACITY)) {
+            filter.add(topic);
+        }
+
+        int falsePositives = 0;
+        for (TopicToken topic : topics("Unsubscribed", 10000)) {
+            if (filter.mightContain(topic)) {
+                falsePositives++;
+            }
+        }
+
+        // About 0.5% expected
+        assertThat(falsePositives).isLessThan(200);
+    }
+
+    @Test
+    public void removedTopicsAreRuledOutAgain() {
+        SubscribedTopicFilter filter = new SubscribedTopicFilter(SubscribedTopicFilter.MINIMUM_CAPACITY);
+        List<TopicToken> topics = topics("Subscribed", 10);
+        for (TopicToken topic : topics) {
+            filter.add(topic);
+        }
+        for (TopicToken topic : topics.subList(0, 5)) {
+            filter.remove(topic);
+        }
+
+        for (TopicToken topic : topics.subList(5, 10)) {
+            assertThat(filter.mightContain(topic)).isTrue();
+        }
+        for (TopicToken topic : topics.subList(0, 5)) {
+            assertThat(filter.mightContain(topic)).isFalse();
+        }
+    }
+
+    @Test
+    public void sizedAtEightBytesPerTopic() {
+        assertThat(new SubscribedTopicFilter(0).getCapacity()).isEqualTo(SubscribedTopicFilter.MINIMUM_CAPACITY);
+        assertThat(new SubscribedTopicFilter(SubscribedTopicFilter.MINIMUM_CAPACITY).getSizeInBytes()).isEqualTo(SubscribedTopicFilter.MINIMUM_CAPACITY * 8L);
+        // Rounded up to a power of two counters
+        assertThat(new SubscribedTopicFilter(1500).getSizeInBytes()).isEqualTo(2048 * 8L);
+    }
+
+    @Test
+    public void subscriptionMapGrowsItsFilter() {
+        TopicSubscriptionMapDM subscriptionCache = new TopicSubscriptionMapDM();
+        NodeElementIdentifier wupA = TopicFixtures.subscriber("A");
+        long initialSize = subscriptionCache.getSubscribedTopicFilterSize();
+        List<TopicToken> topics = topics("Subscribed", SubscribedTopicFilter.MINIMUM_CAPACITY + 100);
+        for (TopicToken topic : topics) {
+            subscriptionCache.addSubscriber(topic, wupA);
+        }
+
+        assertThat(subscriptionCache.getSubscribedTopicFilterSize()).isEqualTo(initialSize * 2);
+        for (TopicToken topic : topics) {
+            assertThat(subscriptionCache.getSubscriberSet(topic)).containsExactly(wupA);
+        }
+    }
+
+    private static List<TopicToken> topics(String namePrefix, int count) {
+        Topic sector = TopicFixtures.sector("Health");
+        ArrayList<TopicToken> topics = new ArrayList<TopicToken>(count);
+        for (int counter = 0; counter < count; counter++) {
+            topics.add(TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, namePrefix + counter).getTopicToken());
+        }
+        return (topics);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+public class TopicCacheDMTest {
+
+    private TopicCacheDM topicSetCache;
+
+    private Topic sector;
+    private Topic patient;
+    private Topic patientV2;
+    private Topic encounter;
+    private Topic observation;
+
+    @BeforeEach
+    public void setUp() {
+        topicSetCache = new TopicCacheDM();
+        sector = TopicFixtures.sector("Health");
+        patient = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Patient");
+        patientV2 = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Patient", "2.0.0");
+        encounter = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Encounter");
+        observation = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Observation");
+        for (Topic topic : new Topic[]{sector, patient, patientV2, encounter, observation}) {
+            topicSetCache.addTopic(topic);
+        }
+    }
+
+    @Test
+    public void streamsSelectInNameThenVersionOrder() {
+        assertThat(select(TopicQuery.ALL.ofType(TopicTypeEnum.DATASET_TOPIC))).containsExactly(encounter, observation, patient, patientV2);
+        assertThat(select(TopicQuery.ALL.ofType(TopicTypeEnum.DATASET_TOPIC).matching(topic -> "2.0.0".equals(topic.getVersion()))))
+                .containsExactly(patientV2);
+    }
+
+    @Test
+    public void streamsReflectRemovals() {
+        topicSetCache.removeTopic(encounter.getTopicToken());
+
+        assertThat(select(TopicQuery.ALL.ofType(TopicTypeEnum.DATASET_TOPIC))).containsExactly(observation, patient, patientV2);
+    }
+
+    @Test
+    public void pagesResumeAfterTheLastTopicDespiteChanges() {
+        TopicQuery topics = TopicQuery.ALL.ofType(TopicTypeEnum.DATASET_TOPIC);
+        TopicPage firstPage = topicSetCache.getTopicPage(topics, null, 2);
+        assertThat(firstPage.getTopics()).containsExactly(encounter, observation);
+        assertThat(firstPage.hasNextPage()).isTrue();
+
+        // A Topic added before the page token, and one removed after it
+        Topic allergy = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Allergy");
+        topicSetCache.addTopic(allergy);
+        topicSetCache.removeTopic(patient.getTopicToken());
+        TopicPage secondPage = topicSetCache.getTopicPage(topics, firstPage.getNextPageToken(), 2);
+
+        assertThat(secondPage.getTopics()).containsExactly(patientV2);
+        assertThat(secondPage.hasNextPage()).isFalse();
+        assertThat(secondPage.getNextPageToken()).isNull();
+        assertThat(secondPage.getCatalogueVersion()).isGreaterThan(firstPage.getCatalogueVersion());
+    }
+
+    @Test
+    public void catalogueSnapshotsAreUnaffectedByLaterChanges() {
+        TopicCatalogue snapshot = topicSetCache.getTopicCatalogue();
+
+        topicSetCache.removeTopic(observation.getTopicToken());
+
+        assertThat(snapshot.asSet()).contains(observation);
+        assertThat(topicSetCache.getTopicCatalogue().asSet()).doesNotContain(observation);
+        assertThat(snapshot.size()).isEqualTo(topicSetCache.getTopicCatalogue().size() + 1);
+    }
+
+    @Test
+    public void invalidQueriesAreRejected() {
+        assertThatThrownBy(() -> topicSetCache.getTopicPage(TopicQuery.ALL, null, 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> topicSetCache.streamTopics(null)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TopicQuery.ALL.withNamePrefix(null)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private List<Topic> select(TopicQuery query) {
+        return (topicSetCache.streamTopics(query).collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+public class TopicCatalogueTest {
+
+    private Topic sector;
+    // The same RDN values as the category, under different RDN qualifiers
+    private Topic category;
+    private Topic definer;
+    private Topic categoryChild;
+    private Topic definerChild;
+    private TopicCatalogue catalogue;
+
+    @BeforeEach
+    public void setUp() {
+        sector = TopicFixtures.sector("Health");
+        category = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_CATEGORY, "Shared");
+        definer = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_DEFINER, "Shared");
+        categoryChild = TopicFixtures.topic(category, TopicTypeEnum.DATASET_DEFINER, "Child");
+        definerChild = TopicFixtures.topic(definer, TopicTypeEnum.DATASET_TOPIC, "Child");
+        catalogue = TopicCatalogue.EMPTY;
+        for (Topic topic : new Topic[]{sector, category, definer, categoryChild, definerChild}) {
+            catalogue = catalogue.with(topic, null);
+        }
+    }
+
+    @Test
+    public void topicsDifferingOnlyByQualifierAreDistinct() {
+        assertThat(catalogue.size()).isEqualTo(5);
+        assertThat(catalogue.asSet()).contains(category, definer, categoryChild, definerChild);
+        assertThat(TopicCatalogue.catalogueKeyOf(category)).isNotEqualTo(TopicCatalogue.catalogueKeyOf(definer));
+    }
+
+    @Test
+    public void removingOneKeepsTheOther() {
+        TopicCatalogue reduced = catalogue.without(definer);
+
+        assertThat(reduced.size()).isEqualTo(4);
+        assertThat(reduced.asSet()).contains(category).doesNotContain(definer);
+    }
+
+    @Test
+    public void subtreeQueriesRespectQualifiers() {
+        assertThat(select(TopicQuery.ALL.under(category.getIdentifier()))).containsExactly(category, categoryChild);
+        assertThat(select(TopicQuery.ALL.under(definer.getIdentifier()))).containsExactly(definer, definerChild);
+    }
+
+    @Test
+    public void namePrefixQueriesSelectEveryQualifier() {
+        assertThat(select(TopicQuery.ALL.withNamePrefix("Health/Shared/"))).containsExactlyInAnyOrder(categoryChild, definerChild);
+        assertThat(select(TopicQuery.ALL.ofType(TopicTypeEnum.DATASET_DEFINER).withNamePrefix("Health/Shared"))).containsExactlyInAnyOrder(definer, categoryChild);
+    }
+
+    @Test
+    public void pagingVisitsEveryTopicOnce() {
+        ArrayList<Topic> visited = new ArrayList<Topic>();
+        String pageToken = null;
+        do {
+            TopicPage page = catalogue.page(TopicQuery.ALL, pageToken, 2);
+            visited.addAll(page.getTopics());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+
+        assertThat(visited).containsExactlyElementsOf(select(TopicQuery.ALL));
+        assertThat(visited).hasSize(5).doesNotHaveDuplicates();
+    }
+
+    private List<Topic> select(TopicQuery query) {
+        return (catalogue.stream(query).collect(Collectors.toList()));
+    }
+}
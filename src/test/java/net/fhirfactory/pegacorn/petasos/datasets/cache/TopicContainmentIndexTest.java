@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+public class TopicContainmentIndexTest {
+
+    private Topic sector;
+    private Topic definerV1;
+    private Topic definerV2;
+    private Topic child;
+    private TopicContainmentIndex index;
+
+    @BeforeEach
+    public void setUp() {
+        sector = TopicFixtures.sector("Health");
+        definerV1 = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_DEFINER, "FHIR", "1.0.0");
+        definerV2 = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_DEFINER, "FHIR", "2.0.0");
+        child = TopicFixtures.topic(definerV1, TopicTypeEnum.DATASET_TOPIC, "Patient");
+        index = new TopicContainmentIndex();
+        index.addTopic(sector);
+        index.addTopic(definerV1);
+        index.addTopic(definerV2);
+        index.addTopic(child);
+    }
+
+    @Test
+    public void pathFollowsTheMostRecentlyRegisteredVersion() {
+        TopicContainmentPath path = index.getContainmentPath(child.getIdentifier());
+
+        assertThat(path.getDepth()).isEqualTo(3);
+        assertThat(path.getLevelFromRoot(0)).isSameAs(sector);
+        assertThat(path.getLevelFromRoot(1)).isSameAs(definerV2);
+        assertThat(path.getTopic()).isSameAs(child);
+    }
+
+    @Test
+    public void removingOneVersionKeepsThePath() {
+        index.removeTopic(definerV2);
+
+        assertThat(index.getContainmentPath(definerV1.getIdentifier()).getTopic()).isSameAs(definerV1);
+        assertThat(index.getContainmentPath(child.getIdentifier()).getLevelFromRoot(1)).isSameAs(definerV1);
+        assertThat(index.getDescendants(sector.getIdentifier())).contains(definerV1, child);
+    }
+
+    @Test
+    public void removingAnOlderVersionLeavesTheCurrentPath() {
+        index.removeTopic(definerV1);
+
+        assertThat(index.getContainmentPath(definerV2.getIdentifier()).getTopic()).isSameAs(definerV2);
+        assertThat(index.getContainmentPath(child.getIdentifier()).getLevelFromRoot(1)).isSameAs(definerV2);
+    }
+
+    @Test
+    public void removingTheLastVersionDropsThePath() {
+        index.removeTopic(definerV2);
+        index.removeTopic(definerV1);
+
+        assertThat(index.getContainmentPath(definerV1.getIdentifier())).isNull();
+        assertThat(index.getDescendants(sector.getIdentifier())).doesNotContain(definerV1, definerV2);
+    }
+
+    @Test
+    public void reRegisteringAVersionReplacesIt() {
+        Topic definerV2Again = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_DEFINER, "FHIR", "2.0.0");
+        index.addTopic(definerV2Again);
+
+        // The replaced instance is no longer registered, so removing it is a no-op
+        index.removeTopic(definerV2);
+        assertThat(index.getContainmentPath(definerV2.getIdentifier()).getTopic()).isSameAs(definerV2Again);
+
+        index.removeTopic(definerV2Again);
+        assertThat(index.getContainmentPath(definerV1.getIdentifier()).getTopic()).isSameAs(definerV1);
+    }
+
+    @Test
+    public void containedTopicsRegisteredFirstAreCompletedByTheirContainer() {
+        Topic otherSector = TopicFixtures.sector("Finance");
+        Topic category = TopicFixtures.topic(otherSector, TopicTypeEnum.DATASET_CATEGORY, "Billing");
+        Topic invoice = TopicFixtures.topic(category, TopicTypeEnum.DATASET_TOPIC, "Invoice");
+        index.addTopic(invoice);
+        index.addTopic(category);
+        assertThat(index.getContainmentPath(invoice.getIdentifier()).getDepth()).isEqualTo(2);
+
+        index.addTopic(otherSector);
+
+        TopicContainmentPath path = index.getContainmentPath(invoice.getIdentifier());
+        assertThat(path.getDepth()).isEqualTo(3);
+        assertThat(path.asMap()).containsExactly(entry(0, invoice), entry(1, category), entry(2, otherSector));
+        assertThat(path.getLevel(3)).isNull();
+        assertThat(index.getDescendants(otherSector.getIdentifier())).containsExactly(category, invoice);
+    }
+
+    @Test
+    public void removingAContainerShortensTheContainedPaths() {
+        index.removeTopic(sector);
+
+        assertThat(index.getContainmentPath(sector.getIdentifier())).isNull();
+        TopicContainmentPath path = index.getContainmentPath(child.getIdentifier());
+        assertThat(path.getDepth()).isEqualTo(2);
+        assertThat(path.getLevelFromRoot(0)).isSameAs(definerV2);
+    }
+}
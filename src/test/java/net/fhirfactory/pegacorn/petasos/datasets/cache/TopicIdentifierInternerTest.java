@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class TopicIdentifierInternerTest {
+
+    private TopicIdentifierInterner topicIds;
+    private TopicCacheDM topicSetCache;
+    private TopicSubscriptionMapDM subscriptionCache;
+
+    private Topic sector;
+    private Topic category;
+
+    @BeforeEach
+    public void setUp() {
+        topicIds = new TopicIdentifierInterner();
+        topicSetCache = new TopicCacheDM(topicIds);
+        subscriptionCache = new TopicSubscriptionMapDM(topicIds);
+        sector = TopicFixtures.sector("Sector");
+        category = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_CATEGORY, "Category");
+    }
+
+    @Test
+    public void bothManagersAssignTheSameId() {
+        topicSetCache.addTopic(sector);
+        topicSetCache.addTopic(category);
+        NodeElementIdentifier wup = TopicFixtures.subscriber("A");
+
+        subscriptionCache.addSubscriber(category.getTopicToken(), wup);
+
+        int categoryId = topicSetCache.getTopicId(category.getTopicToken());
+        assertThat(categoryId).isNotEqualTo(IdentifierInterner.NO_ID);
+        assertThat(subscriptionCache.getTopicId(category.getTopicToken())).isEqualTo(categoryId);
+        assertThat(subscriptionCache.getSubscriberSet(categoryId)).containsExactly(wup);
+        assertThat(topicSetCache.getTopic(categoryId)).isSameAs(category);
+    }
+
+    @Test
+    public void subscriptionsInternTopicsTheCatalogueCanResolve() {
+        subscriptionCache.addSubscriber(category.getTopicToken(), TopicFixtures.subscriber("A"));
+        topicSetCache.addTopic(category);
+
+        assertThat(topicSetCache.getTopicId(category.getTopicToken())).isEqualTo(subscriptionCache.getTopicId(category.getTopicToken()));
+        assertThat(topicIds.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void lookingUpUnknownTopicsDoesNotGrowTheInterner() {
+        NodeElementIdentifier wup = TopicFixtures.subscriber("A");
+        subscriptionCache.addHierarchySubscriber(sector.getIdentifier(), wup);
+        int internedBefore = topicIds.size();
+
+        for (int counter = 0; counter < 1000; counter++) {
+            Topic unknownTopic = TopicFixtures.topic(category, TopicTypeEnum.DATASET_DEFINER, "Definer" + counter);
+            assertThat(subscriptionCache.getSubscriberSet(unknownTopic.getTopicToken())).containsExactly(wup);
+        }
+
+        assertThat(topicIds.size()).isEqualTo(internedBefore);
+        assertThat(subscriptionCache.getTopicId(TopicFixtures.topic(category, TopicTypeEnum.DATASET_DEFINER, "Definer0").getTopicToken()))
+                .isEqualTo(IdentifierInterner.NO_ID);
+    }
+
+    @Test
+    public void registeredTopicsKeepTheirResolvedSubscribers() {
+        NodeElementIdentifier wup = TopicFixtures.subscriber("A");
+        topicSetCache.addTopic(category);
+        subscriptionCache.addHierarchySubscriber(sector.getIdentifier(), wup);
+
+        FanOutGroup firstLookup = subscriptionCache.getFanOutGroup(category.getTopicToken());
+
+        assertThat(firstLookup.getSubscribers()).containsExactly(wup);
+        assertThat(subscriptionCache.getFanOutGroup(category.getTopicToken())).isSameAs(firstLookup);
+    }
+}
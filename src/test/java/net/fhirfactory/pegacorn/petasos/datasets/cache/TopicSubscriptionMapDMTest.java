@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class TopicSubscriptionMapDMTest {
+
+    private TopicSubscriptionMapDM subscriptionCache;
+
+    private Topic sector;
+    private TopicToken patient;
+    private TopicToken encounter;
+    private TopicToken unsubscribed;
+    private NodeElementIdentifier wupA;
+    private NodeElementIdentifier wupB;
+
+    @BeforeEach
+    public void setUp() {
+        subscriptionCache = new TopicSubscriptionMapDM();
+        sector = TopicFixtures.sector("Health");
+        patient = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Patient").getTopicToken();
+        encounter = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Encounter").getTopicToken();
+        unsubscribed = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Observation").getTopicToken();
+        wupA = TopicFixtures.subscriber("A");
+        wupB = TopicFixtures.subscriber("B");
+    }
+
+    @Test
+    public void batchResolutionMatchesSingleLookups() {
+        subscriptionCache.addSubscriber(patient, wupA);
+        subscriptionCache.addSubscriber(patient, wupB);
+        subscriptionCache.addSubscriber(encounter, wupB);
+
+        Map<TopicToken, Set<NodeElementIdentifier>> subscriberSets = subscriptionCache.getSubscriberSets(Arrays.asList(encounter, patient, null, unsubscribed, encounter));
+
+        assertThat(subscriberSets.keySet()).containsExactly(encounter, patient, unsubscribed);
+        for (Map.Entry<TopicToken, Set<NodeElementIdentifier>> subscriberSet : subscriberSets.entrySet()) {
+            assertThat(subscriberSet.getValue()).isEqualTo(subscriptionCache.getSubscriberSet(subscriberSet.getKey()));
+        }
+        assertThat(subscriberSets.get(unsubscribed)).isSameAs(ImmutableSubscriberSet.EMPTY);
+        assertThatThrownBy(() -> subscriptionCache.getSubscriberSets(null)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void batchResolutionCanBeGroupedBySubscriber() {
+        subscriptionCache.addSubscriber(patient, wupA);
+        subscriptionCache.addSubscriber(patient, wupB);
+        subscriptionCache.addPatternSubscriber("Health/Encounter", wupB);
+
+        Map<NodeElementIdentifier, Set<TopicToken>> topicSets = subscriptionCache.getTopicSetsBySubscriber(Arrays.asList(patient, encounter, unsubscribed));
+
+        assertThat(topicSets).containsOnlyKeys(wupA, wupB);
+        assertThat(topicSets.get(wupA)).containsExactly(patient);
+        assertThat(topicSets.get(wupB)).containsExactly(patient, encounter);
+    }
+
+    @Test
+    public void reverseIndexTracksExactSubscriptions() {
+        subscriptionCache.addSubscriber(patient, wupA);
+        subscriptionCache.addSubscriber(encounter, wupA);
+        subscriptionCache.addSubscriber(encounter, wupB);
+
+        assertThat(subscriptionCache.getSubscribedTopics(wupA)).containsExactlyInAnyOrder(patient, encounter);
+        assertThat(subscriptionCache.getSubscribedTopics(wupB)).containsExactly(encounter);
+
+        subscriptionCache.removeSubscriber(encounter, wupA);
+        assertThat(subscriptionCache.getSubscribedTopics(wupA)).containsExactly(patient);
+        assertThat(subscriptionCache.getSubscribedTopics(TopicFixtures.subscriber("Unknown"))).isEmpty();
+    }
+
+    @Test
+    public void removeAllSubscriptionsRemovesEveryKind() {
+        subscriptionCache.addSubscriber(patient, wupA);
+        subscriptionCache.addSubscriber(encounter, wupA);
+        subscriptionCache.addSubscriber(encounter, wupB);
+        subscriptionCache.addHierarchySubscriber(sector.getIdentifier(), wupA);
+
+        assertThat(subscriptionCache.removeAllSubscriptions(wupA)).isEqualTo(3);
+
+        assertThat(subscriptionCache.getSubscribedTopics(wupA)).isEmpty();
+        assertThat(subscriptionCache.getSubscribedPatterns(wupA)).isEmpty();
+        assertThat(subscriptionCache.getSubscriberSet(patient)).isEmpty();
+        assertThat(subscriptionCache.getSubscriberSet(encounter)).containsExactly(wupB);
+        assertThat(subscriptionCache.getSubscriberSet(unsubscribed)).isEmpty();
+        assertThat(subscriptionCache.removeAllSubscriptions(wupA)).isZero();
+    }
+
+    @Test
+    public void versionRangeSubscriptionsMatchVersionsInRange() {
+        FDNToken patientID = patient.getIdentifier();
+        subscriptionCache.addVersionRangeSubscriber(patientID, TopicVersionRange.parse("^1.0.0"), wupA);
+
+        assertThat(subscriptionCache.getSubscriberSet(new TopicToken(patientID, "1.4.2"))).containsExactly(wupA);
+        assertThat(subscriptionCache.getSubscriberSet(new TopicToken(patientID, "2.0.0"))).isEmpty();
+        assertThat(subscriptionCache.getSubscriberSet(encounter)).isEmpty();
+        assertThat(subscriptionCache.getSubscribedVersionRanges(wupA)).containsOnlyKeys(patientID);
+
+        subscriptionCache.removeVersionRangeSubscriber(patientID, TopicVersionRange.parse("^1.0.0"), wupA);
+        assertThat(subscriptionCache.getSubscriberSet(new TopicToken(patientID, "1.4.2"))).isEmpty();
+        assertThat(subscriptionCache.getSubscribedVersionRanges(wupA)).isEmpty();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class TopicSubscriptionTrieTest {
+
+    private static final String[] PATIENT = {"Health", "General", "HL7-FHIR", "Resources", "Patient"};
+
+    private NodeElementIdentifier subscriber;
+    private TopicSubscriptionTrie trie;
+
+    @BeforeEach
+    public void setUp() {
+        subscriber = TopicFixtures.subscriber("Subscriber");
+        trie = new TopicSubscriptionTrie();
+    }
+
+    @Test
+    public void parsePatternCollapsesRepeatedMultiWildcards() {
+        assertThat(TopicSubscriptionTrie.parsePattern("Health/**/**/**/Patient")).containsExactly("Health", "**", "Patient");
+        assertThat(TopicSubscriptionTrie.parsePattern("/Health//*/**/")).containsExactly("Health", "*", "**");
+        assertThatThrownBy(() -> TopicSubscriptionTrie.parsePattern("//")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void wildcardsMatchAsDocumented() {
+        trie.addSubscriber(TopicSubscriptionTrie.parsePattern("Health/General/HL7-FHIR/*/Patient"), subscriber);
+
+        assertThat(trie.match(PATIENT).contains(subscriber)).isTrue();
+        assertThat(trie.match(new String[]{"Health", "General", "HL7-FHIR", "Patient"}).isEmpty()).isTrue();
+
+        NodeElementIdentifier hierarchySubscriber = TopicFixtures.subscriber("Hierarchy");
+        trie.addSubscriber(TopicSubscriptionTrie.parsePattern("Health/General/**"), hierarchySubscriber);
+        assertThat(trie.match(new String[]{"Health", "General"}).contains(hierarchySubscriber)).isTrue();
+        assertThat(trie.match(PATIENT).contains(hierarchySubscriber)).isTrue();
+        assertThat(trie.match(new String[]{"Health", "Other"}).contains(hierarchySubscriber)).isFalse();
+    }
+
+    @Test
+    public void unnormalisedSegmentsShareTheCollapsedPattern() {
+        assertThat(trie.addSubscriber(Arrays.asList("Health", "**", "**", "Patient"), subscriber)).isTrue();
+        assertThat(trie.addSubscriber(TopicSubscriptionTrie.parsePattern("Health/**/Patient"), subscriber)).isFalse();
+
+        assertThat(trie.getPatternCount()).isEqualTo(1);
+        assertThat(trie.getPatterns(subscriber)).containsExactly("Health/**/Patient");
+        assertThat(trie.removeSubscriber(Arrays.asList("Health", "**", "**", "**", "Patient"), subscriber)).isTrue();
+        assertThat(trie.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void manyMultiWildcardsDoNotBacktrack() {
+        StringBuilder pattern = new StringBuilder();
+        for (int counter = 0; counter < 16; counter++) {
+            pattern.append("**/x/");
+        }
+        trie.addSubscriber(TopicSubscriptionTrie.parsePattern(pattern.append("missing").toString()), subscriber);
+        String[] topicSegments = new String[64];
+        Arrays.fill(topicSegments, "x");
+
+        // Without memoisation this is C(64, 16) paths
+        ImmutableSubscriberSet matched = Assertions.assertTimeoutPreemptively(Duration.ofSeconds(5), () -> trie.match(topicSegments));
+        assertThat(matched.isEmpty()).isTrue();
+
+        topicSegments[63] = "missing";
+        assertThat(trie.match(topicSegments).contains(subscriber)).isTrue();
+    }
+}
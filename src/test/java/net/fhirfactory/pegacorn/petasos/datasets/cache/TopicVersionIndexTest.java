@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.common.model.FDNToken;
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+public class TopicVersionIndexTest {
+
+    private FDNToken patient;
+    private TopicVersionIndex<String> versionIndex;
+
+    @BeforeEach
+    public void setUp() {
+        patient = TopicFixtures.sector("Patient").getIdentifier();
+        versionIndex = new TopicVersionIndex<String>();
+        for (String version : new String[]{"4.0.1", "3.0.2", "4.10.0", "5.0.0-rc1"}) {
+            versionIndex.put(new TopicToken(patient, version), version);
+        }
+    }
+
+    @Test
+    public void latestIsTheHighestVersion() {
+        assertThat(versionIndex.getLatest(patient)).isEqualTo("5.0.0-rc1");
+        assertThat(versionIndex.getLatest(patient, TopicVersionRange.parse("^4.0.0"))).isEqualTo("4.10.0");
+        assertThat(versionIndex.getLatest(patient, TopicVersionRange.parse("[6.0,)"))).isNull();
+        assertThat(versionIndex.getLatest(TopicFixtures.sector("Unknown").getIdentifier())).isNull();
+    }
+
+    @Test
+    public void cacheResolvesAnIdentifierToTheLatestVersion() {
+        TopicCacheDM topicSetCache = new TopicCacheDM();
+        Topic sector = TopicFixtures.sector("Health");
+        for (String version : new String[]{"4.0.1", "4.10.0", "3.0.2"}) {
+            topicSetCache.addTopic(TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Patient", version));
+        }
+        FDNToken patientID = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Patient").getIdentifier();
+
+        assertThat(topicSetCache.getTopic(patientID).getVersion()).isEqualTo("4.10.0");
+        topicSetCache.removeTopic(new TopicToken(patientID, "4.10.0"));
+        assertThat(topicSetCache.getTopic(patientID).getVersion()).isEqualTo("4.0.1");
+    }
+
+    @Test
+    public void versionsAreReturnedOldestFirst() {
+        assertThat(versionIndex.getVersions(patient, TopicVersionRange.ALL)).containsExactly("3.0.2", "4.0.1", "4.10.0", "5.0.0-rc1");
+        assertThat(versionIndex.getVersions(patient, TopicVersionRange.parse("4.x"))).containsExactly("4.0.1", "4.10.0");
+    }
+
+    @Test
+    public void removingTheLastVersionForgetsTheIdentifier() {
+        versionIndex.remove(new TopicToken(patient, "5.0.0-rc1"));
+        assertThat(versionIndex.getLatest(patient)).isEqualTo("4.10.0");
+
+        for (String version : new String[]{"4.0.1", "3.0.2", "4.10.0"}) {
+            versionIndex.remove(new TopicToken(patient, version));
+        }
+        assertThat(versionIndex.getLatest(patient)).isNull();
+        assertThat(versionIndex.getIdentifierCount()).isZero();
+    }
+}
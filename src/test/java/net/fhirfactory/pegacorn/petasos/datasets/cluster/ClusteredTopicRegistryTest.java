@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.cluster;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicIdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.exchange.TopicRegistryExchange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * Runs several embedded registry nodes in one JVM, over the loopback JGroups stack.
+ */
+public class ClusteredTopicRegistryTest {
+
+    private static final long PROPAGATION_TIMEOUT_MILLIS = 10000L;
+
+    private final List<Node> nodes = new ArrayList<Node>();
+    private String clusterName;
+
+    private Topic sector;
+    private Topic category;
+    private NodeElementIdentifier wupA;
+    private NodeElementIdentifier wupB;
+
+    @BeforeEach
+    public void setUp() {
+        // A cluster per test, so a stopped test's nodes can't linger in the next one's view
+        clusterName = "petasos-datasets-test-" + System.nanoTime();
+        sector = TopicFixtures.sector("Health");
+        category = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_CATEGORY, "General");
+        wupA = TopicFixtures.subscriber("A");
+        wupB = TopicFixtures.subscriber("B");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (Node node : nodes) {
+            node.registry.stop();
+        }
+    }
+
+    @Test
+    public void registrationsReplicateToEveryNode() {
+        Node first = startNode();
+        Node second = startNode();
+        Node third = startNode();
+
+        first.registry.registerTopic(sector);
+        second.registry.registerTopic(category);
+
+        for (Node node : new Node[]{first, second, third}) {
+            awaitTrue(() -> node.hasTopic(category.getTopicToken()));
+            assertThat(node.topics.getTopicCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void subscriptionsReplicateToEveryNode() {
+        Node first = startNode();
+        Node second = startNode();
+        Node third = startNode();
+        first.registry.registerTopic(category);
+
+        second.registry.addSubscriber(category.getTopicToken(), wupA);
+        third.registry.addPatternSubscriber("Health/**", wupB);
+
+        for (Node node : new Node[]{first, second, third}) {
+            awaitTrue(() -> node.subscriptions.getSubscriberSet(category.getTopicToken()).contains(wupB));
+            assertThat(node.subscriptions.getSubscriberSet(category.getTopicToken())).containsExactlyInAnyOrder(wupA, wupB);
+        }
+
+        first.registry.removeAllSubscriptions(wupA);
+        for (Node node : new Node[]{first, second, third}) {
+            awaitTrue(() -> !node.subscriptions.getSubscriberSet(category.getTopicToken()).contains(wupA));
+            assertThat(node.subscriptions.getSubscribedTopics(wupA)).isEmpty();
+        }
+    }
+
+    @Test
+    public void remainingNodesCarryOnAfterANodeLeaves() {
+        Node first = startNode();
+        Node second = startNode();
+        Node leaving = startNode();
+        leaving.registry.registerTopic(sector);
+        leaving.registry.addSubscriber(sector.getTopicToken(), wupA);
+        awaitTrue(() -> first.hasTopic(sector.getTopicToken()) && second.hasTopic(sector.getTopicToken()));
+
+        leaving.registry.stop();
+        assertThat(leaving.registry.isEnabled()).isFalse();
+
+        // The leaver's writes outlive it, and the others still replicate between themselves
+        first.registry.registerTopic(category);
+        second.registry.addSubscriber(category.getTopicToken(), wupB);
+        for (Node node : new Node[]{first, second}) {
+            awaitTrue(() -> node.subscriptions.getSubscriberSet(category.getTopicToken()).contains(wupB));
+            assertThat(node.hasTopic(sector.getTopicToken())).isTrue();
+            assertThat(node.subscriptions.getSubscriberSet(sector.getTopicToken())).containsExactly(wupA);
+        }
+        assertThat(leaving.hasTopic(category.getTopicToken())).isFalse();
+
+        // A node joining afterwards is seeded with the replicated state
+        Node joiner = startNode();
+        assertThat(joiner.hasTopic(sector.getTopicToken())).isTrue();
+        assertThat(joiner.hasTopic(category.getTopicToken())).isTrue();
+        assertThat(joiner.topic(sector).getContainedTopics()).containsExactly(category.getIdentifier());
+        assertThat(joiner.subscriptions.getSubscriberSet(category.getTopicToken())).containsExactly(wupB);
+    }
+
+    @Test
+    public void localStateIsPublishedWhenJoining() {
+        // e.g. loaded by the TopicFileLoader before clustering was enabled
+        Node first = new Node();
+        first.topics.addTopic(sector);
+        first.topics.addTopic(category);
+        first.subscriptions.addSubscriber(category.getTopicToken(), wupA);
+        startNode(first);
+        Node second = startNode();
+        assertThat(second.hasTopic(category.getTopicToken())).isTrue();
+        assertThat(second.subscriptions.getSubscriberSet(category.getTopicToken())).containsExactly(wupA);
+
+        first.registry.removeAllSubscriptions(wupA);
+        first.registry.unregisterTopic(category.getTopicToken());
+
+        for (Node node : new Node[]{first, second}) {
+            awaitTrue(() -> !node.hasTopic(category.getTopicToken()));
+            assertThat(node.subscriptions.getSubscribedTopics(wupA)).isEmpty();
+            assertThat(node.hasTopic(sector.getTopicToken())).isTrue();
+        }
+    }
+
+    @Test
+    public void unreplicatedStateIsRemovedLocally() {
+        Node node = startNode();
+        // Written to the data managers directly, bypassing the replicas
+        node.topics.addTopic(category);
+        node.subscriptions.addSubscriber(category.getTopicToken(), wupA);
+
+        node.registry.removeSubscriber(category.getTopicToken(), wupA);
+        node.registry.unregisterTopic(category.getTopicToken());
+
+        assertThat(node.subscriptions.getSubscriberSet(category.getTopicToken())).isEmpty();
+        assertThat(node.hasTopic(category.getTopicToken())).isFalse();
+    }
+
+    private Node startNode() {
+        return (startNode(new Node()));
+    }
+
+    private Node startNode(Node node) {
+        nodes.add(node);
+        node.registry.start(clusterName, ClusteredTopicRegistry.LOOPBACK_JGROUPS_CONFIGURATION, ClusteredTopicRegistry.DEFAULT_REPLICATION_TIMEOUT_MILLIS);
+        assertThat(node.registry.isEnabled()).isTrue();
+        return (node);
+    }
+
+    @Test
+    public void importsAreReplicatedToEveryNode() throws IOException {
+        Node exporter = new Node();
+        exporter.topics.addTopic(sector);
+        exporter.topics.addTopic(category);
+        exporter.subscriptions.addSubscriber(category.getTopicToken(), wupA);
+        exporter.subscriptions.addPatternSubscriber("Health/**", wupB);
+        ByteArrayOutputStream exchange = new ByteArrayOutputStream();
+        new TopicRegistryExchange(exporter.topics, exporter.subscriptions).exportRegistry(exchange);
+        Node first = startNode();
+        Node second = startNode();
+
+        new TopicRegistryExchange(first.topics, first.subscriptions, first.registry).importRegistry(ByteBuffer.wrap(exchange.toByteArray()));
+
+        for (Node node : new Node[]{first, second}) {
+            awaitTrue(() -> node.hasTopic(category.getTopicToken()) && node.subscriptions.getSubscriberSet(category.getTopicToken()).size() == 2);
+            assertThat(node.subscriptions.getSubscriberSet(category.getTopicToken())).containsExactlyInAnyOrder(wupA, wupB);
+        }
+        // Imported through the replicas, so removable cluster-wide
+        second.registry.removeSubscriber(category.getTopicToken(), wupA);
+        awaitTrue(() -> !first.subscriptions.hasSubscriber(category.getTopicToken(), wupA));
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROPAGATION_TIMEOUT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("replication did not propagate in time").isLessThan(deadline);
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw (new AssertionError("interrupted", interrupted));
+            }
+        }
+    }
+
+    private static final class Node {
+        final TopicCacheDM topics;
+        final TopicSubscriptionMapDM subscriptions;
+        final ClusteredTopicRegistry registry;
+
+        Node() {
+            TopicIdentifierInterner topicIds = new TopicIdentifierInterner();
+            this.topics = new TopicCacheDM(topicIds);
+            this.subscriptions = new TopicSubscriptionMapDM(topicIds);
+            this.registry = new ClusteredTopicRegistry(topics, subscriptions);
+        }
+
+        boolean hasTopic(TopicToken topicID) {
+            return (topics.getTopicId(topicID) >= 0 && topics.getTopic(topics.getTopicId(topicID)) != null);
+        }
+
+        Topic topic(Topic topic) {
+            return (topics.getTopic(topics.getTopicId(topic.getTopicToken())));
+        }
+    }
+}
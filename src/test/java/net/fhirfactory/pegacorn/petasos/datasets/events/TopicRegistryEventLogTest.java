@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.events;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicIdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class TopicRegistryEventLogTest {
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertThat(new TopicRegistryEventLog(5).getCapacity()).isEqualTo(8);
+        assertThat(new TopicRegistryEventLog(8).getCapacity()).isEqualTo(8);
+        assertThatThrownBy(() -> new TopicRegistryEventLog(0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void cursorsReadIndependentlyInVersionOrder() {
+        TopicRegistryEventLog eventLog = new TopicRegistryEventLog(16);
+        TopicRegistryEventCursor fromStart = eventLog.newCursor(0);
+        publish(eventLog, 3);
+        TopicRegistryEventCursor fromNow = eventLog.newCursor();
+        publish(eventLog, 2);
+
+        List<Long> fromStartVersions = new ArrayList<Long>();
+        assertThat(fromStart.poll(event -> fromStartVersions.add(event.getVersion()), 4)).isEqualTo(4);
+        assertThat(fromStart.poll(event -> fromStartVersions.add(event.getVersion()), 10)).isEqualTo(1);
+        assertThat(fromStartVersions).containsExactly(0L, 1L, 2L, 3L, 4L);
+
+        List<Long> fromNowVersions = new ArrayList<Long>();
+        fromNow.poll(event -> fromNowVersions.add(event.getVersion()), 10);
+        assertThat(fromNowVersions).containsExactly(3L, 4L);
+        assertThat(fromNow.poll(event -> fromNowVersions.add(event.getVersion()), 10)).isZero();
+        assertThat(fromNow.getNextVersion()).isEqualTo(eventLog.getNextVersion());
+    }
+
+    @Test
+    public void overrunCursorsAreToldToRebuild() {
+        TopicRegistryEventLog eventLog = new TopicRegistryEventLog(4);
+        TopicRegistryEventCursor cursor = eventLog.newCursor(0);
+        publish(eventLog, 6);
+
+        assertThat(cursor.isOverrun()).isTrue();
+        assertThat(eventLog.getOldestRetainedVersion()).isEqualTo(2);
+        assertThatThrownBy(() -> cursor.poll(event -> { }, 1)).isInstanceOf(IllegalStateException.class);
+
+        cursor.seek(eventLog.getOldestRetainedVersion());
+        assertThat(cursor.isOverrun()).isFalse();
+        assertThat(cursor.poll(event -> { }, 10)).isEqualTo(4);
+        cursor.seekToLatest();
+        assertThat(cursor.getNextVersion()).isEqualTo(6);
+    }
+
+    @Test
+    public void dataManagersPublishTheirChanges() {
+        TopicIdentifierInterner topicIds = new TopicIdentifierInterner();
+        TopicCacheDM topicSetCache = new TopicCacheDM(topicIds);
+        TopicSubscriptionMapDM subscriptionCache = new TopicSubscriptionMapDM(topicIds);
+        Topic sector = TopicFixtures.sector("Health");
+        Topic category = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_CATEGORY, "General");
+        NodeElementIdentifier wup = TopicFixtures.subscriber("A");
+        TopicRegistryEventCursor topicEvents = topicSetCache.getEventLog().newCursor();
+        TopicRegistryEventCursor subscriptionEvents = subscriptionCache.getEventLog().newCursor();
+
+        topicSetCache.addTopic(category);
+        topicSetCache.removeTopic(category.getTopicToken());
+        subscriptionCache.addSubscriber(category.getTopicToken(), wup);
+        subscriptionCache.addSubscriber(category.getTopicToken(), wup);
+        subscriptionCache.addHierarchySubscriber(sector.getIdentifier(), wup);
+        subscriptionCache.removeSubscriber(category.getTopicToken(), wup);
+
+        // Outside a container each data manager has its own log
+        List<TopicRegistryEvent> events = new ArrayList<TopicRegistryEvent>();
+        topicEvents.poll(events::add, 100);
+        subscriptionEvents.poll(events::add, 100);
+        assertThat(events).extracting(TopicRegistryEvent::getEventType).containsExactly(TopicRegistryEventTypeEnum.TOPIC_ADDED,
+                TopicRegistryEventTypeEnum.TOPIC_REMOVED, TopicRegistryEventTypeEnum.SUBSCRIBER_ADDED,
+                TopicRegistryEventTypeEnum.PATTERN_SUBSCRIBER_ADDED, TopicRegistryEventTypeEnum.SUBSCRIBER_REMOVED);
+        assertThat(events.get(0).getTopic()).isSameAs(category);
+        assertThat(events.get(2).getTopicToken()).isEqualTo(category.getTopicToken());
+        assertThat(events.get(2).getSubscriber()).isEqualTo(wup);
+    }
+
+    private static void publish(TopicRegistryEventLog eventLog, int count) {
+        for (int counter = 0; counter < count; counter++) {
+            eventLog.publish(TopicRegistryEventTypeEnum.SUBSCRIBER_ADDED, null, null, null, TopicFixtures.subscriber("W" + counter));
+        }
+    }
+}
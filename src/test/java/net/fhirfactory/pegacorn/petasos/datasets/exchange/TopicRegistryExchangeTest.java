@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.exchange;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicIdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.loader.TopicFileLoader;
+import net.fhirfactory.pegacorn.petasos.datasets.versioning.TopicVersionRange;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class TopicRegistryExchangeTest {
+
+    private TopicCacheDM sourceTopics;
+    private TopicSubscriptionMapDM sourceSubscriptions;
+    private TopicCacheDM targetTopics;
+    private TopicSubscriptionMapDM targetSubscriptions;
+
+    private Topic sector;
+    private Topic definer;
+    private Topic nextDefiner;
+    private Topic patient;
+    private Topic nextPatient;
+    private NodeElementIdentifier wupA;
+    private NodeElementIdentifier wupB;
+
+    @BeforeEach
+    public void setUp() {
+        TopicIdentifierInterner sourceIds = new TopicIdentifierInterner();
+        sourceTopics = new TopicCacheDM(sourceIds);
+        sourceSubscriptions = new TopicSubscriptionMapDM(sourceIds);
+        TopicIdentifierInterner targetIds = new TopicIdentifierInterner();
+        targetTopics = new TopicCacheDM(targetIds);
+        targetSubscriptions = new TopicSubscriptionMapDM(targetIds);
+
+        sector = TopicFixtures.sector("Health");
+        definer = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_DEFINER, "HL7-FHIR", "1.0.0");
+        nextDefiner = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_DEFINER, "HL7-FHIR", "2.0.0");
+        patient = TopicFixtures.topic(definer, TopicTypeEnum.DATASET_TOPIC, "Patient", "1.0.0");
+        nextPatient = TopicFixtures.topic(definer, TopicTypeEnum.DATASET_TOPIC, "Patient", "2.0.0");
+        for (Topic topic : new Topic[]{sector, definer, nextDefiner, patient, nextPatient}) {
+            sourceTopics.addTopic(topic);
+        }
+        wupA = TopicFixtures.subscriber("A");
+        wupB = TopicFixtures.subscriber("B");
+    }
+
+    @Test
+    public void roundTripRestoresTheCatalogue() throws IOException {
+        int exported = exportRegistry().remaining();
+        assertThat(exported).isPositive();
+
+        assertThat(importRegistry(exportRegistry())).isEqualTo(5);
+
+        assertThat(targetTopics.getTopicCount()).isEqualTo(5);
+        for (Topic topic : new Topic[]{sector, definer, nextDefiner, patient, nextPatient}) {
+            Topic imported = imported(topic);
+            assertThat(imported).as(topic.getTopicToken().toString()).isNotNull();
+            assertThat(imported.getIdentifier()).isEqualTo(topic.getIdentifier());
+            assertThat(imported.getVersion()).isEqualTo(topic.getVersion());
+            assertThat(imported.getTopicType()).isEqualTo(topic.getTopicType());
+            assertThat(imported.getContainingDataset()).isEqualTo(topic.getContainingDataset());
+        }
+    }
+
+    @Test
+    public void containmentIsRebuiltForEveryVersion() throws IOException {
+        importRegistry(exportRegistry());
+
+        assertThat(imported(sector).getContainedTopics()).containsExactly(definer.getIdentifier());
+        assertThat(imported(definer).getContainedTopics()).containsExactly(patient.getIdentifier());
+        assertThat(imported(nextDefiner).getContainedTopics()).containsExactly(patient.getIdentifier());
+        assertThat(imported(patient).getContainedTopics()).isEmpty();
+        assertThat(targetTopics.getTopicContainmentPath(patient.getIdentifier()).getDepth()).isEqualTo(3);
+    }
+
+    @Test
+    public void roundTripRestoresTheSubscriptions() throws IOException {
+        sourceSubscriptions.addSubscriber(patient.getTopicToken(), wupA);
+        sourceSubscriptions.addSubscriber(patient.getTopicToken(), wupB);
+        sourceSubscriptions.addSubscriber(nextPatient.getTopicToken(), wupB);
+        sourceSubscriptions.addPatternSubscriber("Health/**", wupA);
+        sourceSubscriptions.addVersionRangeSubscriber(patient.getIdentifier(), TopicVersionRange.parse("^1.0.0"), wupB);
+
+        importRegistry(exportRegistry());
+
+        assertThat(targetSubscriptions.getSubscriberSet(patient.getTopicToken())).contains(wupA, wupB);
+        assertThat(targetSubscriptions.getSubscribedTopics(wupB)).containsExactlyInAnyOrder(patient.getTopicToken(), nextPatient.getTopicToken());
+        assertThat(targetSubscriptions.getSubscribedPatterns(wupA)).containsExactly("Health/**");
+        assertThat(targetSubscriptions.getSubscribedVersionRanges(wupB)).containsOnlyKeys(patient.getIdentifier());
+        assertThat(targetSubscriptions.getSubscriberSet(new TopicToken(sector.getIdentifier(), TopicFixtures.VERSION))).containsExactly(wupA);
+    }
+
+    @Test
+    public void roundTripRestoresTheTopicsFile() throws IOException {
+        TopicIdentifierInterner loadedIds = new TopicIdentifierInterner();
+        sourceTopics = new TopicCacheDM(loadedIds);
+        sourceSubscriptions = new TopicSubscriptionMapDM(loadedIds);
+        try (InputStream topicsFile = TopicRegistryExchangeTest.class.getResourceAsStream(TopicFileLoader.TOPICS_FILE_RESOURCE)) {
+            assertThat(new TopicFileLoader(sourceTopics).loadTopics(topicsFile)).isPositive();
+        }
+
+        assertThat(importRegistry(exportRegistry())).isEqualTo(sourceTopics.getTopicCount());
+
+        assertThat(targetTopics.getTopicCount()).isEqualTo(sourceTopics.getTopicCount());
+        for (Topic topic : sourceTopics.getTopicCatalogue().asSet()) {
+            Topic imported = imported(topic);
+            assertThat(imported).as(topic.getTopicToken().toString()).isNotNull();
+            assertThat(imported.getTopicToken()).isEqualTo(topic.getTopicToken());
+            assertThat(imported.getTopicType()).isEqualTo(topic.getTopicType());
+            assertThat(imported.getContainingDataset()).isEqualTo(topic.getContainingDataset());
+            assertThat(imported.getContainedTopics()).as(topic.getTopicToken().toString()).containsExactlyInAnyOrderElementsOf(topic.getContainedTopics());
+        }
+    }
+
+    @Test
+    public void truncatedFilesAreRejected() throws IOException {
+        ByteBuffer exchange = exportRegistry();
+        for (int length : new int[]{0, 4, exchange.remaining() / 2, exchange.remaining() - 1}) {
+            ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(exchange.array(), length));
+            assertThatThrownBy(() -> importRegistry(truncated)).as("length " + length).isInstanceOf(IOException.class);
+        }
+        assertThat(targetTopics.getTopicCount()).isZero();
+    }
+
+    @Test
+    public void corruptFilesAreRejected() throws IOException {
+        byte[] exchange = exportRegistry().array();
+
+        byte[] flipped = exchange.clone();
+        flipped[flipped.length / 2] ^= 0x5A;
+        assertThatThrownBy(() -> importRegistry(ByteBuffer.wrap(flipped))).isInstanceOf(IOException.class).hasMessageContaining("checksum");
+
+        // An intact checksum over a foreign magic number
+        byte[] foreign = exchange.clone();
+        foreign[0] ^= 0x01;
+        assertThatThrownBy(() -> importRegistry(ByteBuffer.wrap(withChecksum(foreign)))).isInstanceOf(IOException.class).hasMessageContaining("not a (supported)");
+
+        // An intact checksum over a section that overruns the file
+        byte[] overrun = Arrays.copyOf(exchange, exchange.length - 1);
+        assertThatThrownBy(() -> importRegistry(ByteBuffer.wrap(withChecksum(overrun)))).isInstanceOf(IOException.class);
+
+        assertThat(targetTopics.getTopicCount()).isZero();
+    }
+
+    private ByteBuffer exportRegistry() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new TopicRegistryExchange(sourceTopics, sourceSubscriptions).exportRegistry(output);
+        return (ByteBuffer.wrap(output.toByteArray()));
+    }
+
+    private int importRegistry(ByteBuffer exchange) throws IOException {
+        return (new TopicRegistryExchange(targetTopics, targetSubscriptions).importRegistry(exchange));
+    }
+
+    private Topic imported(Topic topic) {
+        return (targetTopics.getTopic(targetTopics.getTopicId(topic.getTopicToken())));
+    }
+
+    // Rewrites the trailing CRC32 over the (modified) content
+    private static byte[] withChecksum(byte[] exchange) {
+        CRC32 checksum = new CRC32();
+        checksum.update(exchange, 0, exchange.length - 4);
+        ByteBuffer.wrap(exchange).putInt(exchange.length - 4, (int) checksum.getValue());
+        return (exchange);
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.lease;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicIdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredTopicRegistry;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEvent;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventCursor;
+import net.fhirfactory.pegacorn.petasos.datasets.events.TopicRegistryEventTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+/**
+ * The ticker is never started, the tests advance the wheel themselves (via processTicks()).
+ */
+public class SubscriptionLeaseManagerTest {
+
+    private static final long TICK_MILLIS = 10L;
+    private static final long TTL_MILLIS = 1000L;
+
+    private TopicSubscriptionMapDM subscriptionCache;
+    private SubscriptionLeaseManager leaseManager;
+
+    private TopicToken topic;
+    private NodeElementIdentifier wup;
+
+    @BeforeEach
+    public void setUp() {
+        TopicIdentifierInterner topicIds = new TopicIdentifierInterner();
+        TopicCacheDM topicSetCache = new TopicCacheDM(topicIds);
+        subscriptionCache = new TopicSubscriptionMapDM(topicIds);
+        leaseManager = new SubscriptionLeaseManager(subscriptionCache, new ClusteredTopicRegistry(topicSetCache, subscriptionCache), TICK_MILLIS);
+        topic = TopicFixtures.sector("Sector").getTopicToken();
+        wup = TopicFixtures.subscriber("A");
+    }
+
+    @Test
+    public void expiryRemovesTheSubscriptionTheLeaseMade() {
+        SubscriptionLease lease = leaseManager.acquireLease(topic, wup, TTL_MILLIS);
+
+        assertThat(lease.isSubscriptionOwner()).isTrue();
+        assertThat(subscriptionCache.hasSubscriber(topic, wup)).isTrue();
+        assertThat(leaseManager.processTicks(afterTtl())).isEqualTo(1);
+        assertThat(subscriptionCache.hasSubscriber(topic, wup)).isFalse();
+        assertThat(lease.isHeld()).isFalse();
+    }
+
+    @Test
+    public void expiryLeavesAPermanentSubscriptionInPlace() {
+        subscriptionCache.addSubscriber(topic, wup);
+        SubscriptionLease lease = leaseManager.acquireLease(topic, wup, TTL_MILLIS);
+
+        assertThat(lease.isSubscriptionOwner()).isFalse();
+        assertThat(leaseManager.processTicks(afterTtl())).isEqualTo(1);
+        assertThat(subscriptionCache.hasSubscriber(topic, wup)).isTrue();
+        assertThat(leaseManager.getLeaseCount()).isZero();
+    }
+
+    @Test
+    public void expiryLeavesASubscriptionMadePermanentUnderTheLease() {
+        SubscriptionLease lease = leaseManager.acquireLease(topic, wup, TTL_MILLIS);
+        // As per a TopicIM.addTopicSubscriberAsync() applied, but whose lease is not yet released
+        subscriptionCache.addSubscriber(topic, wup);
+
+        assertThat(lease.isSubscriptionOwner()).isTrue();
+        assertThat(leaseManager.processTicks(afterTtl())).isEqualTo(1);
+        assertThat(subscriptionCache.hasSubscriber(topic, wup)).isTrue();
+    }
+
+    @Test
+    public void reacquiringKeepsTheOwnershipOfTheFirstLease() {
+        SubscriptionLease lease = leaseManager.acquireLease(topic, wup, TTL_MILLIS);
+
+        assertThat(leaseManager.acquireLease(topic, wup, TTL_MILLIS)).isSameAs(lease);
+        assertThat(leaseManager.processTicks(afterTtl())).isEqualTo(1);
+        assertThat(subscriptionCache.hasSubscriber(topic, wup)).isFalse();
+    }
+
+    @Test
+    public void aRenewedLeaseIsNotExpired() {
+        leaseManager.acquireLease(topic, wup, TTL_MILLIS);
+
+        assertThat(leaseManager.renewLeases(wup)).isEqualTo(1);
+        assertThat(leaseManager.processTicks(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TTL_MILLIS / 2))).isZero();
+        assertThat(subscriptionCache.hasSubscriber(topic, wup)).isTrue();
+    }
+
+    @Test
+    public void releasingALeaseLeavesItsSubscription() {
+        leaseManager.acquireLease(topic, wup, TTL_MILLIS);
+
+        assertThat(leaseManager.releaseLease(topic, wup)).isTrue();
+        assertThat(leaseManager.processTicks(afterTtl())).isZero();
+        assertThat(subscriptionCache.hasSubscriber(topic, wup)).isTrue();
+    }
+
+    @Test
+    public void leasedSubscriptionsAreNotPermanent() {
+        TopicRegistryEventCursor events = subscriptionCache.getEventLog().newCursor();
+        leaseManager.acquireLease(topic, wup, TTL_MILLIS);
+
+        assertThat(subscriptionCache.isLeasedSubscriber(topic, wup)).isTrue();
+        assertThat(permanentSubscriptionCount()).isZero();
+        assertThat(nextEvent(events).isLeased()).isTrue();
+
+        // As per TopicIM.addTopicSubscriber()
+        leaseManager.releaseLease(topic, wup);
+        subscriptionCache.addSubscriber(topic, wup);
+
+        assertThat(subscriptionCache.isLeasedSubscriber(topic, wup)).isFalse();
+        assertThat(permanentSubscriptionCount()).isEqualTo(1);
+        TopicRegistryEvent madePermanent = nextEvent(events);
+        assertThat(madePermanent.getEventType()).isEqualTo(TopicRegistryEventTypeEnum.SUBSCRIBER_ADDED);
+        assertThat(madePermanent.isLeased()).isFalse();
+    }
+
+    private static TopicRegistryEvent nextEvent(TopicRegistryEventCursor events) {
+        TopicRegistryEvent[] event = new TopicRegistryEvent[1];
+        assertThat(events.poll(polled -> event[0] = polled, 1)).isEqualTo(1);
+        return (event[0]);
+    }
+
+    private int permanentSubscriptionCount() {
+        int[] subscriptionCount = new int[1];
+        subscriptionCache.forEachPermanentSubscription((subscribedTopic, subscribers) -> subscriptionCount[0] += subscribers.size());
+        return (subscriptionCount[0]);
+    }
+
+    private static long afterTtl() {
+        return (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TTL_MILLIS + 10 * TICK_MILLIS));
+    }
+}
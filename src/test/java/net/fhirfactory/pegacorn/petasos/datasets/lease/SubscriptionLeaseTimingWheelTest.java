@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.lease;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicToken;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+public class SubscriptionLeaseTimingWheelTest {
+
+    private static final long START_TICK = 1000;
+
+    private final TopicToken patient = TopicFixtures.topic(TopicFixtures.sector("Health"), TopicTypeEnum.DATASET_TOPIC, "Patient").getTopicToken();
+
+    @Test
+    public void leasesFallDueOnTheirTickAtEveryLevel() {
+        SubscriptionLeaseTimingWheel wheel = new SubscriptionLeaseTimingWheel(START_TICK);
+        // Within the innermost wheel, across a slot boundary, and deep into each outer wheel
+        long[] delays = {1, 63, 64, 65, 100, 4095, 4096, 5000, 262144, 300000};
+        Map<SubscriptionLease, Long> dueTicks = new HashMap<SubscriptionLease, Long>();
+        for (long delay : delays) {
+            SubscriptionLease lease = newLease();
+            dueTicks.put(lease, START_TICK + delay);
+            wheel.schedule(lease, START_TICK + delay);
+        }
+        assertThat(wheel.getScheduledCount()).isEqualTo(delays.length);
+
+        Map<SubscriptionLease, Long> firedTicks = new HashMap<SubscriptionLease, Long>();
+        wheel.advanceTo(START_TICK + 300000, lease -> firedTicks.put(lease, wheel.getCurrentTick()));
+
+        assertThat(firedTicks).isEqualTo(dueTicks);
+        assertThat(wheel.getScheduledCount()).isZero();
+    }
+
+    @Test
+    public void randomScheduleFiresEveryLeaseOnTime() {
+        Random random = new Random(42);
+        long startTick = 12345;
+        SubscriptionLeaseTimingWheel wheel = new SubscriptionLeaseTimingWheel(startTick);
+        Map<SubscriptionLease, Long> dueTicks = new HashMap<SubscriptionLease, Long>();
+        for (int counter = 0; counter < 2000; counter++) {
+            SubscriptionLease lease = newLease();
+            long dueTick = startTick + 1 + random.nextInt(20000);
+            dueTicks.put(lease, dueTick);
+            wheel.schedule(lease, dueTick);
+        }
+
+        Map<SubscriptionLease, Long> firedTicks = new HashMap<SubscriptionLease, Long>();
+        // Advanced in uneven steps, as the ticker would be
+        while (wheel.getCurrentTick() < startTick + 20000) {
+            wheel.advanceTo(wheel.getCurrentTick() + 1 + random.nextInt(500), lease -> firedTicks.put(lease, wheel.getCurrentTick()));
+        }
+
+        assertThat(firedTicks).isEqualTo(dueTicks);
+    }
+
+    @Test
+    public void overdueLeasesFallDueOnTheNextTick() {
+        SubscriptionLeaseTimingWheel wheel = new SubscriptionLeaseTimingWheel(START_TICK);
+        SubscriptionLease lease = newLease();
+        wheel.schedule(lease, START_TICK - 50);
+
+        List<Long> firedTicks = new ArrayList<Long>();
+        wheel.advanceTo(START_TICK + 1, due -> firedTicks.add(wheel.getCurrentTick()));
+
+        assertThat(firedTicks).containsExactly(START_TICK + 1);
+    }
+
+    @Test
+    public void leasesBeyondTheHorizonAreRescheduledByTheConsumer() {
+        SubscriptionLeaseTimingWheel wheel = new SubscriptionLeaseTimingWheel(0);
+        long farDueTick = 1L << 30;
+        SubscriptionLease lease = newLease();
+        wheel.schedule(lease, farDueTick);
+
+        List<Long> firedTicks = new ArrayList<Long>();
+        wheel.advanceTo(1L << 24, due -> {
+            firedTicks.add(wheel.getCurrentTick());
+            wheel.schedule(due, farDueTick);
+        });
+
+        // Fired at the horizon, not early relative to its (clamped) placement, and still scheduled
+        assertThat(firedTicks).containsExactly((1L << 24) - 1);
+        assertThat(wheel.getScheduledCount()).isEqualTo(1);
+    }
+
+    private SubscriptionLease newLease() {
+        return (new SubscriptionLease(patient, TopicFixtures.subscriber("A"), true, TimeUnit.SECONDS.toNanos(30), System.nanoTime()));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.loader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+
+public class TopicFileLoaderTest {
+
+    private static final String CATALOGUE = "{"
+            + "\"comment\" : {\"ignored\" : [1, 2]},"
+            + "\"topicSectors\" : [ {"
+            + "  \"topicType\" : \"DATASET_SECTOR\", \"topicName\" : \"Health\", \"version\" : null,"
+            + "  \"containedElements\" : [ {"
+            + "    \"topicType\" : \"DATASET_DEFINER\", \"topicName\" : \"HL7-FHIR\", \"version\" : \"4.0.1\","
+            + "    \"containedElements\" : [ {\"topicType\" : \"DATASET_TOPIC\", \"topicName\" : \"Patient\", \"version\" : \"4.0.1\"},"
+            + "                              {\"topicType\" : \"DATASET_TOPIC\", \"topicName\" : \"Encounter\", \"version\" : \"4.0.1\", \"containedElements\" : null} ]"
+            + "  } ]"
+            + "} ]"
+            + "}";
+
+    private TopicCacheDM topicSetCache;
+    private TopicFileLoader loader;
+
+    @BeforeEach
+    public void setUp() {
+        topicSetCache = new TopicCacheDM();
+        loader = new TopicFileLoader();
+        loader.topicSetCache = topicSetCache;
+    }
+
+    @Test
+    public void parsesContainersBeforeTheirContents() throws IOException {
+        List<Topic> topics = new ArrayList<Topic>();
+        loader.parseTopics(stream(CATALOGUE), topics::add);
+
+        assertThat(topics).extracting(Topic::getTopicType).containsExactly(TopicTypeEnum.DATASET_SECTOR, TopicTypeEnum.DATASET_DEFINER,
+                TopicTypeEnum.DATASET_TOPIC, TopicTypeEnum.DATASET_TOPIC);
+        Topic sector = topics.get(0);
+        Topic definer = topics.get(1);
+        assertThat(sector.hasContainingDataset()).isFalse();
+        assertThat(sector.getVersion()).isNull();
+        assertThat(sector.getContainedTopics()).containsExactly(definer.getIdentifier());
+        assertThat(definer.getContainingDataset()).isEqualTo(sector.getIdentifier());
+        assertThat(definer.getVersion()).isEqualTo("4.0.1");
+        assertThat(definer.getContainedTopics()).containsExactly(topics.get(2).getIdentifier(), topics.get(3).getIdentifier());
+    }
+
+    @Test
+    public void loadsTheCatalogueIntoTheCache() throws IOException {
+        assertThat(loader.loadTopics(stream(CATALOGUE))).isEqualTo(4);
+
+        assertThat(topicSetCache.getTopicCount()).isEqualTo(4);
+        assertThat(topicSetCache.getTopicCatalogue().asSet()).extracting(Topic::getTopicType).contains(TopicTypeEnum.DATASET_SECTOR);
+    }
+
+    @Test
+    public void loadsTheBundledCatalogue() throws IOException {
+        // The bundled catalogue repeats one element, which re-registers the same Topic
+        assertThat(loader.loadDefaultTopicsFile()).isEqualTo(topicSetCache.getTopicCount() + 1);
+        for (Topic topic : topicSetCache.getTopicCatalogue().asSet()) {
+            assertThat(topic.getContainedTopics()).as(topic.toString()).doesNotHaveDuplicates();
+        }
+    }
+
+    @Test
+    public void repeatedElementsAreLinkedOnce() throws IOException {
+        String repeated = "{\"topicSectors\" : [ {\"topicType\" : \"DATASET_SECTOR\", \"topicName\" : \"Health\", \"containedElements\" : ["
+                + "{\"topicType\" : \"DATASET_CATEGORY\", \"topicName\" : \"General\"},"
+                + "{\"topicType\" : \"DATASET_CATEGORY\", \"topicName\" : \"General\"} ] } ]}";
+        List<Topic> topics = new ArrayList<Topic>();
+        loader.parseTopics(stream(repeated), topics::add);
+
+        assertThat(topics).hasSize(3);
+        assertThat(topics.get(0).getContainedTopics()).containsExactly(topics.get(1).getIdentifier());
+    }
+
+    @Test
+    public void rejectsMalformedCatalogues() {
+        assertThatThrownBy(() -> loader.loadTopics(stream("[]"))).isInstanceOf(JsonParseException.class);
+        assertThatThrownBy(() -> loader.loadTopics(stream("{\"topicSectors\" : [ {\"topicType\" : \"NOT_A_TYPE\", \"topicName\" : \"X\"} ]}")))
+                .isInstanceOf(JsonParseException.class).hasMessageContaining("NOT_A_TYPE");
+        assertThatThrownBy(() -> loader.loadTopics(stream("{\"topicSectors\" : [ {\"containedElements\" : [], \"topicType\" : \"DATASET_SECTOR\"} ]}")))
+                .isInstanceOf(JsonParseException.class);
+        assertThatThrownBy(() -> loader.loadTopics(stream("{\"topicSectors\" : [ {\"topicType\" : \"DATASET_SECTOR\", \"topicName\" : \"Health\"")))
+                .isInstanceOf(IOException.class);
+    }
+
+    private static InputStream stream(String json) {
+        return (new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
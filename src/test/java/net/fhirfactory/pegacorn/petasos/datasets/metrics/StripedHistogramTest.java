@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class StripedHistogramTest {
+
+    @Test
+    public void bucketsCoverEveryValueWithBoundedError() {
+        long[] values = {0, 1, 63, 64, 65, 127, 128, 1000, 123456, StripedHistogram.MAX_TRACKABLE_VALUE};
+        for (long value : values) {
+            int bucket = StripedHistogram.bucketIndex(value);
+            long highest = StripedHistogram.highestValueOf(bucket);
+            assertThat(bucket).isBetween(0, StripedHistogram.BUCKET_COUNT - 1);
+            assertThat(highest).isGreaterThanOrEqualTo(value);
+            // Within one sub-bucket, i.e. about 3% of the value
+            assertThat(highest - value).isLessThanOrEqualTo(Math.max(0, value / StripedHistogram.HALF_SUB_BUCKET_COUNT));
+            if (bucket > 0) {
+                assertThat(StripedHistogram.highestValueOf(bucket - 1)).isLessThan(value);
+            }
+        }
+    }
+
+    @Test
+    public void snapshotReportsCountMeanAndPercentiles() {
+        StripedHistogram histogram = new StripedHistogram();
+        for (long value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertThat(snapshot.getCount()).isEqualTo(100);
+        assertThat(snapshot.getMax()).isEqualTo(100);
+        assertThat(snapshot.getMean()).isEqualTo(50.5);
+        assertThat(snapshot.getMedian()).isEqualTo(50);
+        assertThat(snapshot.get90thPercentile()).isBetween(90L, 91L);
+        assertThat(snapshot.get999thPercentile()).isEqualTo(100);
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        StripedHistogram histogram = new StripedHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        HistogramSnapshot snapshot = histogram.snapshot();
+
+        assertThat(snapshot.getCount()).isEqualTo(2);
+        assertThat(snapshot.getValueAtPercentile(0.0)).isEqualTo(0);
+        assertThat(snapshot.getMax()).isEqualTo(StripedHistogram.MAX_TRACKABLE_VALUE);
+    }
+
+    @Test
+    public void resetAndEmptySnapshots() {
+        StripedHistogram histogram = new StripedHistogram();
+        assertThat(histogram.snapshot().getCount()).isZero();
+        assertThat(histogram.snapshot().getMedian()).isZero();
+        assertThat(histogram.snapshot().getMean()).isZero();
+
+        histogram.record(42);
+        histogram.reset();
+
+        assertThat(histogram.snapshot().getCount()).isZero();
+        assertThat(histogram.snapshot().getMax()).isZero();
+    }
+
+    @Test
+    public void concurrentRecordersAreAllCounted() throws InterruptedException {
+        StripedHistogram histogram = new StripedHistogram();
+        List<Thread> recorders = new ArrayList<Thread>();
+        for (int counter = 0; counter < 8; counter++) {
+            Thread recorder = new Thread(() -> {
+                for (int value = 0; value < 10000; value++) {
+                    histogram.record(value);
+                }
+            });
+            recorders.add(recorder);
+            recorder.start();
+        }
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+
+        assertThat(histogram.snapshot().getCount()).isEqualTo(80000);
+        assertThat(histogram.snapshot().getMax()).isEqualTo(9999);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class TopicRegistryMetricsReporterTest {
+
+    private TopicCacheDM topicSetCache;
+    private TopicSubscriptionMapDM subscriptionCache;
+    private TopicRegistryMetricsReporter reporter;
+
+    private Topic patient;
+    private Topic encounter;
+
+    @BeforeEach
+    public void setUp() {
+        topicSetCache = new TopicCacheDM();
+        subscriptionCache = new TopicSubscriptionMapDM();
+        reporter = new TopicRegistryMetricsReporter(subscriptionCache.getMetrics(), topicSetCache, subscriptionCache);
+        Topic sector = TopicFixtures.sector("Health");
+        patient = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Patient");
+        encounter = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_TOPIC, "Encounter");
+        topicSetCache.addTopic(sector);
+        topicSetCache.addTopic(patient);
+        topicSetCache.addTopic(encounter);
+    }
+
+    @Test
+    public void sampledLookupsAreCountedExactly() {
+        subscriptionCache.addSubscriber(patient.getTopicToken(), TopicFixtures.subscriber("A"));
+        for (int counter = 0; counter < 100; counter++) {
+            subscriptionCache.getSubscriberSet(patient.getTopicToken());
+        }
+
+        OperationMetricsSnapshot lookups = subscriptionCache.getMetrics().getOperationSnapshot(TopicRegistryOperationEnum.SUBSCRIPTION_GET_SUBSCRIBER_SET);
+
+        assertThat(lookups.getCount()).isEqualTo(100);
+        assertThat(lookups.getHits()).isEqualTo(100);
+        assertThat(lookups.getHitRatio()).isEqualTo(1.0);
+        assertThat(lookups.getLatencyNanos().getCount()).isLessThanOrEqualTo(100);
+    }
+
+    @Test
+    public void filterMissesAreOnlyRecordedAsFilterHits() {
+        subscriptionCache.addSubscriber(patient.getTopicToken(), TopicFixtures.subscriber("A"));
+        TopicRegistryMetrics metrics = subscriptionCache.getMetrics();
+        for (int counter = 0; counter < 100; counter++) {
+            subscriptionCache.getSubscriberSet(encounter.getTopicToken());
+        }
+
+        assertThat(metrics.getOperationSnapshot(TopicRegistryOperationEnum.SUBSCRIPTION_FILTER).getHits()).isEqualTo(100);
+        assertThat(metrics.getOperationSnapshot(TopicRegistryOperationEnum.SUBSCRIPTION_GET_SUBSCRIBER_SET).getCount()).isZero();
+        assertThat(metrics.getLookupFanOutSnapshot().getCount()).isZero();
+    }
+
+    @Test
+    public void snapshotCombinesOperationsWithCardinalities() {
+        NodeElementIdentifier wupA = TopicFixtures.subscriber("A");
+        NodeElementIdentifier wupB = TopicFixtures.subscriber("B");
+        subscriptionCache.addSubscriber(patient.getTopicToken(), wupA);
+        subscriptionCache.addSubscriber(patient.getTopicToken(), wupB);
+        subscriptionCache.addSubscriber(encounter.getTopicToken(), wupA);
+        subscriptionCache.getSubscriberSet(patient.getTopicToken());
+
+        TopicRegistryMetricsSnapshot snapshot = reporter.getSnapshot();
+
+        assertThat(snapshot.isEnabled()).isTrue();
+        assertThat(snapshot.getTopicCount()).isEqualTo(3);
+        assertThat(snapshot.getSubscribedTopicCount()).isEqualTo(2);
+        assertThat(snapshot.getSubscriberCount()).isEqualTo(2);
+        assertThat(snapshot.getTopicFanOut().getCount()).isEqualTo(2);
+        assertThat(snapshot.getTopicFanOut().getMax()).isEqualTo(2);
+        assertThat(snapshot.getLookupFanOut().getMax()).isEqualTo(2);
+        assertThat(snapshot.getOperation(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_SUBSCRIBER).getCount()).isEqualTo(3);
+        assertThat(snapshot.getOperation(TopicRegistryOperationEnum.SUBSCRIPTION_GET_SUBSCRIBER_SET).getHits()).isEqualTo(1);
+        assertThat(snapshot.getOperations()).hasSize(TopicRegistryOperationEnum.values().length);
+    }
+
+    @Test
+    public void topicFanOutIsRefreshedPerInterval() {
+        subscriptionCache.addSubscriber(patient.getTopicToken(), TopicFixtures.subscriber("A"));
+        assertThat(reporter.getSnapshot().getTopicFanOut().getCount()).isEqualTo(1);
+
+        subscriptionCache.addSubscriber(encounter.getTopicToken(), TopicFixtures.subscriber("A"));
+        // Within the refresh interval
+        assertThat(reporter.getSnapshot().getTopicFanOut().getCount()).isEqualTo(1);
+        assertThat(reporter.getSubscribedTopicCount()).isEqualTo(2);
+
+        TopicRegistryMetricsReporter refreshingReporter = new TopicRegistryMetricsReporter(subscriptionCache.getMetrics(), topicSetCache, subscriptionCache, 0L);
+        assertThat(refreshingReporter.getTopicFanOut()).containsEntry("count", 2L);
+    }
+
+    @Test
+    public void resetClearsTheRecordedMetrics() {
+        TopicRegistryMetrics metrics = subscriptionCache.getMetrics();
+        subscriptionCache.addSubscriber(patient.getTopicToken(), TopicFixtures.subscriber("A"));
+        subscriptionCache.getSubscriberSet(patient.getTopicToken());
+
+        metrics.reset();
+
+        assertThat(metrics.getOperationSnapshot(TopicRegistryOperationEnum.SUBSCRIPTION_ADD_SUBSCRIBER).getCount()).isZero();
+        assertThat(metrics.getLookupFanOutSnapshot().getCount()).isZero();
+        // The cardinalities are read from the data managers, so survive a reset
+        assertThat(reporter.getSnapshot().getSubscribedTopicCount()).isEqualTo(1);
+    }
+}
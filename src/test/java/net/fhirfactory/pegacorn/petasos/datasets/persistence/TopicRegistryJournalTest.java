@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.persistence;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicIdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class TopicRegistryJournalTest {
+
+    @TempDir
+    Path journalDirectory;
+
+    private TopicCacheDM topicSetCache;
+    private TopicSubscriptionMapDM subscriptionCache;
+    private TopicRegistryJournal journal;
+
+    private Topic sector;
+    private Topic category;
+
+    @BeforeEach
+    public void setUp() {
+        sector = TopicFixtures.sector("Sector");
+        category = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_CATEGORY, "Category");
+        newDataManagers();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        journal.stop();
+    }
+
+    @Test
+    public void replayingTheLogDoesNotDuplicateContainmentLinks() {
+        startJournal();
+        register(sector);
+        register(category);
+        register(sector);
+        register(category);
+
+        restart();
+        restart();
+
+        assertThat(recovered(sector).getContainedTopics()).containsExactly(category.getIdentifier());
+        assertThat(topicSetCache.getTopicCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void everyVersionOfATopicIsRecovered() {
+        Topic nextCategory = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_CATEGORY, "Category", "2.0.0");
+        startJournal();
+        register(sector);
+        register(category);
+        register(nextCategory);
+
+        restart();
+
+        assertThat(recovered(category).getVersion()).isEqualTo(TopicFixtures.VERSION);
+        assertThat(recovered(nextCategory).getVersion()).isEqualTo("2.0.0");
+        assertThat(recovered(sector).getContainedTopics()).containsExactly(category.getIdentifier());
+    }
+
+    @Test
+    public void recoveredTopicsKeepTheLinksOfTheCatalogueTopicsTheyReplace() {
+        startJournal();
+        register(sector);
+        register(category);
+        journal.flush();
+        journal.stop();
+
+        // As loaded from the TopicsFile (ahead of the journal) after the restart
+        newDataManagers();
+        Topic catalogueSector = TopicFixtures.sector("Sector");
+        Topic catalogueDefiner = TopicFixtures.topic(catalogueSector, TopicTypeEnum.DATASET_DEFINER, "Definer");
+        catalogueSector.addContainedTopic(catalogueDefiner.getIdentifier());
+        topicSetCache.addTopic(catalogueSector);
+        topicSetCache.addTopic(catalogueDefiner);
+        startJournal();
+
+        assertThat(recovered(sector).getContainedTopics()).containsExactlyInAnyOrder(catalogueDefiner.getIdentifier(), category.getIdentifier());
+    }
+
+    @Test
+    public void snapshotRestoresTopicsAndSubscriptions() {
+        NodeElementIdentifier wupA = TopicFixtures.subscriber("A");
+        NodeElementIdentifier wupB = TopicFixtures.subscriber("B");
+        startJournal();
+        register(sector);
+        register(category);
+        subscriptionCache.addSubscriber(category.getTopicToken(), wupA);
+        subscriptionCache.addSubscriber(category.getTopicToken(), wupB);
+        subscriptionCache.addSubscriber(sector.getTopicToken(), wupB);
+        journal.flush();
+        journal.compact();
+
+        restart();
+
+        assertThat(recovered(sector).getContainedTopics()).containsExactly(category.getIdentifier());
+        assertThat(subscriptionCache.getSubscriberSet(category.getTopicToken())).containsExactly(wupA, wupB);
+        assertThat(subscriptionCache.getSubscribedTopics(wupB)).containsExactlyInAnyOrder(category.getTopicToken(), sector.getTopicToken());
+    }
+
+    @Test
+    public void tornLogTailIsDiscarded() throws IOException {
+        NodeElementIdentifier wupA = TopicFixtures.subscriber("A");
+        startJournal();
+        register(sector);
+        register(category);
+        subscriptionCache.addSubscriber(category.getTopicToken(), wupA);
+        journal.flush();
+        journal.stop();
+        Path walFile = journalDirectory.resolve(TopicRegistryJournal.WAL_FILE_NAME);
+        long intactLength = Files.size(walFile);
+        // A record cut short by a crash mid-append
+        Files.write(walFile, new byte[]{0, 0, 0, 64, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        newDataManagers();
+        startJournal();
+
+        assertThat(topicSetCache.getTopicCount()).isEqualTo(2);
+        assertThat(subscriptionCache.getSubscriberSet(category.getTopicToken())).containsExactly(wupA);
+        assertThat(Files.size(walFile)).isEqualTo(intactLength);
+
+        // The log carries on from the last intact record
+        subscriptionCache.removeSubscriber(category.getTopicToken(), wupA);
+        restart();
+        assertThat(subscriptionCache.getSubscriberSet(category.getTopicToken())).isEmpty();
+        assertThat(topicSetCache.getTopicCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void removalsAreReplayed() {
+        NodeElementIdentifier wupA = TopicFixtures.subscriber("A");
+        startJournal();
+        register(sector);
+        register(category);
+        subscriptionCache.addHierarchySubscriber(sector.getIdentifier(), wupA);
+        journal.flush();
+        journal.compact();
+        topicSetCache.removeTopic(category.getTopicToken());
+        subscriptionCache.removeHierarchySubscriber(sector.getIdentifier(), wupA);
+
+        restart();
+
+        assertThat(topicSetCache.getTopicCount()).isEqualTo(1);
+        assertThat(subscriptionCache.getSubscribedPatterns(wupA)).isEmpty();
+    }
+
+    @Test
+    public void leasedSubscriptionsAreNotRecovered() {
+        NodeElementIdentifier wupA = TopicFixtures.subscriber("A");
+        NodeElementIdentifier wupB = TopicFixtures.subscriber("B");
+        startJournal();
+        register(sector);
+        register(category);
+        subscriptionCache.addLeasedSubscriber(category.getTopicToken(), wupA);
+        subscriptionCache.addLeasedSubscriber(sector.getTopicToken(), wupB);
+        // Made permanent
+        subscriptionCache.addSubscriber(sector.getTopicToken(), wupB);
+
+        restart();
+        assertThat(subscriptionCache.getSubscriberSet(category.getTopicToken())).isEmpty();
+        assertThat(subscriptionCache.getSubscriberSet(sector.getTopicToken())).containsExactly(wupB);
+
+        subscriptionCache.addLeasedSubscriber(category.getTopicToken(), wupA);
+        journal.flush();
+        journal.compact();
+        restart();
+        assertThat(subscriptionCache.getSubscriberSet(category.getTopicToken())).isEmpty();
+        assertThat(subscriptionCache.getSubscriberSet(sector.getTopicToken())).containsExactly(wupB);
+    }
+
+    @Test
+    public void compactionRestartsTheLog() throws IOException {
+        startJournal();
+        register(sector);
+        for (int counter = 0; counter < 100; counter++) {
+            subscriptionCache.addSubscriber(sector.getTopicToken(), TopicFixtures.subscriber("W" + counter));
+        }
+        journal.flush();
+        Path walFile = journalDirectory.resolve(TopicRegistryJournal.WAL_FILE_NAME);
+        long uncompactedLength = Files.size(walFile);
+
+        journal.compact();
+
+        assertThat(Files.size(walFile)).isLessThan(uncompactedLength);
+        assertThat(Files.exists(journalDirectory.resolve(TopicRegistryJournal.SNAPSHOT_FILE_NAME))).isTrue();
+        restart();
+        assertThat(subscriptionCache.getSubscriberSet(sector.getTopicToken())).hasSize(100);
+    }
+
+    private void newDataManagers() {
+        TopicIdentifierInterner topicIds = new TopicIdentifierInterner();
+        topicSetCache = new TopicCacheDM(topicIds);
+        subscriptionCache = new TopicSubscriptionMapDM(topicIds);
+        journal = new TopicRegistryJournal(topicSetCache, subscriptionCache);
+    }
+
+    private void startJournal() {
+        journal.start(journalDirectory, JournalFsyncPolicyEnum.BATCH, TopicRegistryJournal.DEFAULT_FSYNC_INTERVAL_MILLIS,
+                TopicRegistryJournal.DEFAULT_COMPACTION_THRESHOLD_BYTES);
+    }
+
+    private void restart() {
+        journal.flush();
+        journal.stop();
+        newDataManagers();
+        startJournal();
+    }
+
+    // As per TopicIM.registerTopic()
+    private void register(Topic topic) {
+        topicSetCache.addTopic(topic);
+        if (topic.hasContainingDataset()) {
+            Topic container = topicSetCache.getTopic(topic.getContainingDataset());
+            if ((container != null) && !container.getContainedTopics().contains(topic.getIdentifier())) {
+                container.addContainedTopic(topic.getIdentifier());
+            }
+        }
+    }
+
+    private Topic recovered(Topic topic) {
+        return (topicSetCache.getTopic(topicSetCache.getTopicId(topic.getTopicToken())));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.pipeline;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import net.fhirfactory.pegacorn.petasos.datasets.TopicFixtures;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicCacheDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicIdentifierInterner;
+import net.fhirfactory.pegacorn.petasos.datasets.cache.TopicSubscriptionMapDM;
+import net.fhirfactory.pegacorn.petasos.datasets.cluster.ClusteredTopicRegistry;
+import net.fhirfactory.pegacorn.petasos.model.topics.Topic;
+import net.fhirfactory.pegacorn.petasos.model.topics.TopicTypeEnum;
+import net.fhirfactory.pegacorn.petasos.model.topology.NodeElementIdentifier;
+
+public class TopicRegistryWritePipelineTest {
+
+    private TopicCacheDM topicSetCache;
+    private TopicSubscriptionMapDM subscriptionCache;
+    private TopicRegistryWritePipeline pipeline;
+
+    private Topic sector;
+    private Topic category;
+
+    @BeforeEach
+    public void setUp() {
+        TopicIdentifierInterner topicIds = new TopicIdentifierInterner();
+        topicSetCache = new TopicCacheDM(topicIds);
+        subscriptionCache = new TopicSubscriptionMapDM(topicIds);
+        pipeline = new TopicRegistryWritePipeline(topicSetCache, subscriptionCache, new ClusteredTopicRegistry(topicSetCache, subscriptionCache));
+        sector = TopicFixtures.sector("Sector");
+        category = TopicFixtures.topic(sector, TopicTypeEnum.DATASET_CATEGORY, "Category");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        pipeline.stop();
+    }
+
+    @Test
+    public void topicReRegisteredAfterItsContentsIsNotMovedBehindThem() {
+        TopicRegistryMutation registerSector = registration(sector);
+        TopicRegistryMutation registerCategory = registration(category);
+        TopicRegistryMutation reRegisterSector = registration(sector);
+
+        List<TopicRegistryMutation> coalesced = pipeline.coalesceTopics(Arrays.asList(registerSector, registerCategory, reRegisterSector));
+
+        assertThat(coalesced).containsExactly(registerSector, registerCategory, reRegisterSector);
+    }
+
+    @Test
+    public void adjacentChangesToTheSameTopicCoalesce() throws Exception {
+        TopicRegistryMutation registerSector = registration(sector);
+        TopicRegistryMutation reRegisterSector = registration(sector);
+
+        List<TopicRegistryMutation> coalesced = pipeline.coalesceTopics(Arrays.asList(registerSector, reRegisterSector));
+        coalesced.get(0).complete(7L);
+
+        assertThat(coalesced).containsExactly(reRegisterSector);
+        assertThat(registerSector.getFuture().get()).isEqualTo(7L);
+        assertThat(pipeline.getCoalescedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void subscriptionChangesCoalesceIntoTheFirstPosition() throws Exception {
+        NodeElementIdentifier wupA = TopicFixtures.subscriber("A");
+        NodeElementIdentifier wupB = TopicFixtures.subscriber("B");
+        TopicRegistryMutation addA = subscription(TopicRegistryMutationTypeEnum.ADD_SUBSCRIBER, wupA);
+        TopicRegistryMutation addB = subscription(TopicRegistryMutationTypeEnum.ADD_SUBSCRIBER, wupB);
+        TopicRegistryMutation removeA = subscription(TopicRegistryMutationTypeEnum.REMOVE_SUBSCRIBER, wupA);
+
+        List<TopicRegistryMutation> coalesced = pipeline.coalesceSubscriptions(Arrays.asList(addA, addB, removeA));
+        for (TopicRegistryMutation mutation : coalesced) {
+            mutation.complete(3L);
+        }
+
+        assertThat(coalesced).containsExactly(removeA, addB);
+        assertThat(addA.getFuture().get()).isEqualTo(3L);
+    }
+
+    @Test
+    public void containmentLinkSurvivesReRegistrationOfTheContainer() throws Exception {
+        pipeline.start(TopicRegistryWritePipeline.DEFAULT_BATCH_SIZE);
+
+        CompletableFuture<Long> first = pipeline.registerTopic(sector);
+        CompletableFuture<Long> second = pipeline.registerTopic(category);
+        CompletableFuture<Long> third = pipeline.registerTopic(sector);
+        CompletableFuture.allOf(first, second, third).get(10, TimeUnit.SECONDS);
+
+        assertThat(topicSetCache.getTopic(sector.getIdentifier()).getContainedTopics()).containsExactly(category.getIdentifier());
+        assertThat(topicSetCache.getTopicCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void subscriptionsAreVisibleOnceTheirFuturesComplete() throws Exception {
+        pipeline.start(TopicRegistryWritePipeline.DEFAULT_BATCH_SIZE);
+        NodeElementIdentifier wup = TopicFixtures.subscriber("A");
+
+        pipeline.addSubscriber(category.getTopicToken(), wup).get(10, TimeUnit.SECONDS);
+
+        assertThat(subscriptionCache.getSubscriberSet(category.getTopicToken())).containsExactly(wup);
+    }
+
+    @Test
+    public void changesAreRejectedRatherThanBlockingWhenTheQueueIsFull() throws Exception {
+        pipeline.start(TopicRegistryWritePipeline.DEFAULT_BATCH_SIZE);
+        CountDownLatch writerStalled = new CountDownLatch(1);
+        CountDownLatch releaseWriter = new CountDownLatch(1);
+        // Hold the subscription write lock, so the subscription writer can't apply anything
+        Thread lockHolder = new Thread(() -> subscriptionCache.applyBatch(() -> {
+            writerStalled.countDown();
+            awaitQuietly(releaseWriter);
+        }));
+        lockHolder.start();
+        writerStalled.await();
+
+        ArrayList<CompletableFuture<Long>> changes = new ArrayList<CompletableFuture<Long>>();
+        int changeCount = TopicRegistryWritePipeline.WRITER_QUEUE_CAPACITY + 2 * TopicRegistryWritePipeline.DEFAULT_BATCH_SIZE + 1;
+        NodeElementIdentifier wup = TopicFixtures.subscriber("A");
+        for (int counter = 0; counter < changeCount; counter++) {
+            Topic topic = TopicFixtures.topic(category, TopicTypeEnum.DATASET_DEFINER, "Definer" + counter);
+            changes.add(pipeline.addSubscriber(topic.getTopicToken(), wup));
+        }
+        CompletableFuture<Long> rejected = changes.get(changes.size() - 1);
+
+        assertThat(rejected).isCompletedExceptionally();
+        assertThat(pipeline.getRejectedCount()).isPositive();
+        try {
+            rejected.get();
+        } catch (ExecutionException expected) {
+            assertThat(expected.getCause()).isInstanceOf(RejectedExecutionException.class);
+        }
+        releaseWriter.countDown();
+        lockHolder.join();
+        // Everything that was accepted is still applied
+        for (CompletableFuture<Long> change : changes) {
+            if (!change.isCompletedExceptionally()) {
+                change.get(30, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private TopicRegistryMutation registration(Topic topic) {
+        return (new TopicRegistryMutation(TopicRegistryMutationTypeEnum.REGISTER_TOPIC, topic, topic.getTopicToken(), null));
+    }
+
+    private TopicRegistryMutation subscription(TopicRegistryMutationTypeEnum mutationType, NodeElementIdentifier subscriber) {
+        return (new TopicRegistryMutation(mutationType, null, category.getTopicToken(), subscriber));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.versioning;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+public class TopicVersionRangeTest {
+
+    @Test
+    public void compatibleRangesFollowTheMajorVersion() {
+        TopicVersionRange fromFour = TopicVersionRange.parse("^4.0.1");
+        TopicVersionRange fromZeroSix = TopicVersionRange.parse("^0.6.1");
+
+        assertThat(fromFour.contains(TopicVersion.parse("4.0.1"))).isTrue();
+        assertThat(fromFour.contains(TopicVersion.parse("4.9"))).isTrue();
+        assertThat(fromFour.contains(TopicVersion.parse("4.0.0"))).isFalse();
+        assertThat(fromFour.contains(TopicVersion.parse("5.0.0"))).isFalse();
+        assertThat(fromZeroSix.contains(TopicVersion.parse("0.6.9"))).isTrue();
+        assertThat(fromZeroSix.contains(TopicVersion.parse("0.7.0"))).isFalse();
+    }
+
+    @Test
+    public void parsesEveryForm() {
+        assertThat(TopicVersionRange.parse("*")).isSameAs(TopicVersionRange.ALL);
+        assertThat(TopicVersionRange.parse("4.0.1")).isEqualTo(TopicVersionRange.exactly(TopicVersion.parse("4.0.1")));
+
+        TopicVersionRange wildcard = TopicVersionRange.parse("4.x");
+        assertThat(wildcard.contains(TopicVersion.parse("4.7.1"))).isTrue();
+        assertThat(wildcard.contains(TopicVersion.parse("5.0"))).isFalse();
+
+        TopicVersionRange interval = TopicVersionRange.parse("(1.0, 2.0]");
+        assertThat(interval.contains(TopicVersion.parse("1.0"))).isFalse();
+        assertThat(interval.contains(TopicVersion.parse("1.5"))).isTrue();
+        assertThat(interval.contains(TopicVersion.parse("2.0"))).isTrue();
+
+        TopicVersionRange openEnded = TopicVersionRange.parse("[3.0,)");
+        assertThat(openEnded.getUpperBound()).isNull();
+        assertThat(openEnded.contains(TopicVersion.parse("99"))).isTrue();
+    }
+
+    @Test
+    public void toStringRoundTrips() {
+        for (String range : new String[]{"*", "4.0.1", "^4.0.1", "4.x", "(1.0,2.0]", "[3.0,)"}) {
+            TopicVersionRange parsed = TopicVersionRange.parse(range);
+            assertThat(TopicVersionRange.parse(parsed.toString())).as(range).isEqualTo(parsed);
+        }
+    }
+
+    @Test
+    public void rejectsMalformedAndEmptyRanges() {
+        assertThatThrownBy(() -> TopicVersionRange.parse("")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TopicVersionRange.parse("[1.0")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TopicVersionRange.parse("[2.0,1.0]")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TopicVersionRange.parse("(1.0,1.0]")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> TopicVersionRange.parse("4.0-rc1.x")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void restrictNarrowsASortedMap() {
+        NavigableMap<TopicVersion, String> versions = new TreeMap<TopicVersion, String>();
+        for (String version : new String[]{"3.9", "4.0.0", "4.5", "5.0"}) {
+            versions.put(TopicVersion.parse(version), version);
+        }
+
+        assertThat(TopicVersionRange.parse("^4.0.0").restrict(versions).values()).containsExactly("4.0.0", "4.5");
+        assertThat(TopicVersionRange.ALL.restrict(versions)).hasSize(4);
+    }
+
+    @Test
+    public void exclusiveUpperBoundsExcludeTheirPreReleases() {
+        TopicVersion nextMinorSnapshot = TopicVersion.parse("0.7-SNAPSHOT");
+        for (String range : new String[]{"0.6.x", "^0.6.1"}) {
+            TopicVersionRange parsed = TopicVersionRange.parse(range);
+            assertThat(parsed.contains(nextMinorSnapshot)).as(range).isFalse();
+            assertThat(parsed.contains(TopicVersion.parse("0.7.0-SNAPSHOT"))).as(range).isFalse();
+            assertThat(parsed.contains(TopicVersion.parse("0.6.9-SNAPSHOT"))).as(range).isTrue();
+        }
+        assertThat(TopicVersionRange.parse("[0.6.0,0.7.0)").contains(TopicVersion.parse("0.7.0-rc1"))).isFalse();
+        // An inclusive or qualified upper bound is taken as written
+        assertThat(TopicVersionRange.parse("[0.6.0,0.7.0]").contains(TopicVersion.parse("0.7.0-rc1"))).isTrue();
+        assertThat(TopicVersionRange.parse("[0.6.0,0.7.0-rc2)").contains(TopicVersion.parse("0.7.0-rc1"))).isTrue();
+
+        NavigableMap<TopicVersion, String> versions = new TreeMap<TopicVersion, String>();
+        for (String version : new String[]{"0.6.1", "0.6.9", "0.7-SNAPSHOT", "0.7"}) {
+            versions.put(TopicVersion.parse(version), version);
+        }
+        assertThat(TopicVersionRange.parse("^0.6.1").restrict(versions).values()).containsExactly("0.6.1", "0.6.9");
+    }
+
+    @Test
+    public void aRangeOfOnlyTheBoundsPreReleasesIsEmpty() {
+        assertThatThrownBy(() -> TopicVersionRange.parse("[0.7.0-rc1,0.7.0)")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2020 Mark A. Hunter (ACT Health)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.fhirfactory.pegacorn.petasos.datasets.versioning;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class TopicVersionTest {
+
+    @Test
+    public void versionsSortAsDocumented() {
+        List<String> ordered = Arrays.asList(null, "0.6.1", "0.9.0", "0.10.0", "1", "1.0", "1.0.0-SNAPSHOT", "1.0.0", "1.0.0.alpha", "4.0.1");
+        List<TopicVersion> versions = new ArrayList<TopicVersion>();
+        for (String version : ordered) {
+            versions.add(TopicVersion.parse(version));
+        }
+        List<TopicVersion> shuffled = new ArrayList<TopicVersion>(versions);
+        Collections.reverse(shuffled);
+
+        Collections.sort(shuffled);
+
+        assertThat(shuffled).containsExactlyElementsOf(versions);
+    }
+
+    @Test
+    public void parsesSegmentsAndQualifier() {
+        TopicVersion version = TopicVersion.parse("4.0.1-SNAPSHOT");
+
+        assertThat(version.getSegmentCount()).isEqualTo(3);
+        assertThat(version.getNumericSegment(2)).isEqualTo(1L);
+        assertThat(version.getQualifier()).isEqualTo("SNAPSHOT");
+        assertThat(version.getVersion()).isEqualTo("4.0.1-SNAPSHOT");
+        assertThat(TopicVersion.parse("4.0.1")).isEqualByComparingTo(TopicVersion.parse(" 4.0.1 "));
+        assertThat(TopicVersion.parse(null)).isSameAs(TopicVersion.UNVERSIONED);
+        assertThatThrownBy(() -> TopicVersion.parse("4..1")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void nextPrefixBoundsAPrefix() {
+        TopicVersion version = TopicVersion.parse("4.2.7");
+
+        assertThat(version.prefix(2)).isEqualByComparingTo(TopicVersion.parse("4.2"));
+        assertThat(version.nextPrefix(1)).isEqualByComparingTo(TopicVersion.parse("5"));
+        assertThat(version.nextPrefix(2)).isEqualByComparingTo(TopicVersion.parse("4.3"));
+    }
+
+    @Test
+    public void equivalentSpellingsAreDistinct() {
+        TopicVersion padded = TopicVersion.parse("0.6.01");
+        TopicVersion plain = TopicVersion.parse("0.6.1");
+
+        assertThat(padded).isNotEqualTo(plain);
+        assertThat(padded.compareTo(plain)).isEqualTo(-plain.compareTo(padded)).isNotZero();
+        // Both still sort between their neighbours
+        assertThat(padded).isGreaterThan(TopicVersion.parse("0.6.0")).isLessThan(TopicVersion.parse("0.6.2"));
+        assertThat(plain).isGreaterThan(TopicVersion.parse("0.6.0")).isLessThan(TopicVersion.parse("0.6.2"));
+    }
+
+    @Test
+    public void preReleaseFloorPrecedesThePreReleases() {
+        TopicVersion floor = TopicVersion.parse("0.7").preReleaseFloor();
+
+        assertThat(floor).isLessThan(TopicVersion.parse("0.7-SNAPSHOT"));
+        assertThat(floor).isLessThan(TopicVersion.parse("0.7-"));
+        assertThat(floor).isLessThan(TopicVersion.parse("0.7"));
+        assertThat(floor).isGreaterThan(TopicVersion.parse("0.6.99"));
+        assertThat(floor).isGreaterThan(TopicVersion.parse("0.6.99-SNAPSHOT"));
+        assertThat(floor).isLessThan(TopicVersion.parse("0.7.0-SNAPSHOT"));
+    }
+}